@@ -0,0 +1,182 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The attribute pool of a pad: a numbered list of (key, value) attributes,
+ * such as ("bold", "true") or ("author", "a.Wn2N8Ef1cFRRTyOI"). Changesets
+ * refer to attributes by their number in the pool.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * AttributePool pool = AttributePool.fromMap(api.getAttributePool(padId));<br />
+ * String key = pool.getKey(0);
+ * </code>
+ */
+public class AttributePool {
+
+    /** The attributes as {key, value} pairs, indexed by number. */
+    private final List<String[]> attribs = new ArrayList<>();
+
+    /** The attribute numbers, keyed by key and value. */
+    private final Map<String, Integer> numbers = new HashMap<>();
+
+    /**
+     * Creates a pool from a getAttributePool response. Both the full response
+     * (with the pool under "pool") and the pool itself (with "numToAttrib" and
+     * "nextNum") are accepted.
+     *
+     * @param response the response map
+     * @return the pool
+     */
+    public static AttributePool fromMap(final Map response) {
+        Map pool = response;
+        if (response.get("pool") instanceof Map) {
+            pool = (Map) response.get("pool");
+        }
+        AttributePool result = new AttributePool();
+        Object numToAttrib = pool.get("numToAttrib");
+        if (numToAttrib instanceof Map) {
+            for (Object entry : ((Map) numToAttrib).entrySet()) {
+                Map.Entry e = (Map.Entry) entry;
+                int num = Integer.parseInt(String.valueOf(e.getKey()));
+                List pair = (List) e.getValue();
+                result.set(num, String.valueOf(pair.get(0)),
+                        String.valueOf(pair.get(1)));
+            }
+        }
+        Object nextNum = pool.get("nextNum");
+        if (nextNum instanceof Number) {
+            while (result.attribs.size() < ((Number) nextNum).intValue()) {
+                result.attribs.add(null);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Gets the number of an attribute, adding it to the pool if needed.
+     *
+     * @param key   the attribute key
+     * @param value the attribute value
+     * @return the attribute number
+     */
+    public final synchronized int putAttrib(final String key,
+            final String value) {
+        Integer num = this.numbers.get(lookupKey(key, value));
+        if (num != null) {
+            return num;
+        }
+        int next = this.attribs.size();
+        set(next, key, value);
+        return next;
+    }
+
+    /**
+     * Gets the number of an attribute.
+     *
+     * @param key   the attribute key
+     * @param value the attribute value
+     * @return the attribute number, or -1 if it is not in the pool
+     */
+    public final synchronized int find(final String key, final String value) {
+        Integer num = this.numbers.get(lookupKey(key, value));
+        return (num != null) ? num : -1;
+    }
+
+    /**
+     * Gets the key of an attribute.
+     *
+     * @param num the attribute number
+     * @return the key
+     */
+    public final synchronized String getKey(final int num) {
+        return attrib(num)[0];
+    }
+
+    /**
+     * Gets the value of an attribute.
+     *
+     * @param num the attribute number
+     * @return the value
+     */
+    public final synchronized String getValue(final int num) {
+        return attrib(num)[1];
+    }
+
+    /**
+     * Gets the number of attribute numbers in use.
+     *
+     * @return the next free attribute number
+     */
+    public final synchronized int size() {
+        return this.attribs.size();
+    }
+
+    /**
+     * Returns the pool in the format used by the Etherpad API, with
+     * "numToAttrib" and "nextNum".
+     *
+     * @return Map
+     */
+    public final synchronized Map<String, Object> toMap() {
+        Map<String, Object> numToAttrib = new HashMap<>();
+        for (int i = 0; i < this.attribs.size(); i++) {
+            String[] pair = this.attribs.get(i);
+            if (pair != null) {
+                numToAttrib.put(String.valueOf(i),
+                        new ArrayList<>(Arrays.asList(pair)));
+            }
+        }
+        Map<String, Object> pool = new HashMap<>();
+        pool.put("numToAttrib", numToAttrib);
+        pool.put("nextNum", this.attribs.size());
+        return pool;
+    }
+
+    /**
+     * Gets an attribute.
+     *
+     * @param num the attribute number
+     * @return the {key, value} pair
+     */
+    private String[] attrib(final int num) {
+        String[] pair = (num >= 0 && num < this.attribs.size())
+                ? this.attribs.get(num) : null;
+        if (pair == null) {
+            throw new EPLiteException("Unknown attribute number " + num);
+        }
+        return pair;
+    }
+
+    /**
+     * Sets an attribute number.
+     *
+     * @param num   the attribute number
+     * @param key   the key
+     * @param value the value
+     */
+    private void set(final int num, final String key, final String value) {
+        while (this.attribs.size() <= num) {
+            this.attribs.add(null);
+        }
+        this.attribs.set(num, new String[] { key, value });
+        this.numbers.put(lookupKey(key, value), num);
+    }
+
+    /**
+     * Builds the lookup key of an attribute.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the lookup key
+     */
+    private static String lookupKey(final String key, final String value) {
+        return key + '\u0000' + value;
+    }
+}
@@ -0,0 +1,944 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+
+/**
+ * The text of a pad together with its attributes, as references into the
+ * pad's {@link AttributePool}.<br />
+ * <br />
+ * The text is stored as a rope: a balanced tree whose leaves hold chunks of
+ * at most {@link #MAX_LEAF} characters, each with its attribute runs packed
+ * into a single int array. Inserting, deleting and formatting a range take
+ * O(log n) time regardless of the size of the pad, so changesets can be
+ * applied to very large pads without copying the whole text.<br />
+ * <br />
+ * Instances are immutable. Every edit returns a new instance sharing all
+ * untouched parts of the tree with the old one, so keeping a snapshot of a
+ * revision costs nothing.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * AttributedText text = AttributedText.of(api.getText(padId).get("text"));
+ * <br />
+ * text = text.apply(Changeset.parse(changeset), pool);
+ * </code>
+ */
+public final class AttributedText implements CharSequence {
+
+    /** The maximum number of characters in a leaf. */
+    public static final int MAX_LEAF = 1024;
+
+    /** The Constant NO_ATTRIBS. */
+    private static final int[] NO_ATTRIBS = new int[0];
+
+    /** The Constant EMPTY_LEAF. */
+    private static final Leaf EMPTY_LEAF = new Leaf("", new int[0]);
+
+    /** The Constant EMPTY. */
+    private static final AttributedText EMPTY = new AttributedText(EMPTY_LEAF);
+
+    /** The root of the rope. */
+    private final Node root;
+
+    /** The plain text, built lazily. */
+    private String string;
+
+    /**
+     * Instantiates a new attributed text.
+     *
+     * @param root the root
+     */
+    private AttributedText(final Node root) {
+        this.root = root;
+    }
+
+    /**
+     * Gets the empty text.
+     *
+     * @return the empty text
+     */
+    public static AttributedText empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Creates an attributed text without attributes.
+     *
+     * @param text the text
+     * @return the attributed text
+     */
+    public static AttributedText of(final CharSequence text) {
+        return of(text, NO_ATTRIBS);
+    }
+
+    /**
+     * Creates an attributed text with the same attributes throughout.
+     *
+     * @param text    the text
+     * @param attribs the attribute numbers
+     * @return the attributed text
+     */
+    public static AttributedText of(final CharSequence text,
+            final int[] attribs) {
+        if (text.length() == 0) {
+            return EMPTY;
+        }
+        return new AttributedText(build(text.toString(), attribs, 0,
+                text.length()));
+    }
+
+    /**
+     * Builds a balanced tree of leaves for a text.
+     *
+     * @param text    the text
+     * @param attribs the attribute numbers
+     * @param start   the start index
+     * @param end     the end index
+     * @return the tree
+     */
+    private static Node build(final String text, final int[] attribs,
+            final int start, final int end) {
+        if (end - start <= MAX_LEAF) {
+            return new Leaf(text.substring(start, end),
+                    Runs.single(end - start, attribs));
+        }
+        int leaves = (end - start + MAX_LEAF - 1) / MAX_LEAF;
+        int middle = start + (leaves / 2) * MAX_LEAF;
+        return new Concat(build(text, attribs, start, middle),
+                build(text, attribs, middle, end));
+    }
+
+    @Override
+    public int length() {
+        return this.root.length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        checkRange(index, index + 1);
+        Node node = this.root;
+        int offset = index;
+        while ((node = open(node)) instanceof Concat) {
+            Concat concat = (Concat) node;
+            if (offset < concat.left.length) {
+                node = concat.left;
+            } else {
+                offset -= concat.left.length;
+                node = concat.right;
+            }
+        }
+        return ((Leaf) node).text.charAt(offset);
+    }
+
+    /**
+     * Gets the attributes of a character.
+     *
+     * @param index the character index
+     * @return a new array of attribute numbers
+     */
+    public int[] getAttribs(final int index) {
+        checkRange(index, index + 1);
+        Node node = this.root;
+        int offset = index;
+        while ((node = open(node)) instanceof Concat) {
+            Concat concat = (Concat) node;
+            if (offset < concat.left.length) {
+                node = concat.left;
+            } else {
+                offset -= concat.left.length;
+                node = concat.right;
+            }
+        }
+        int[] runs = ((Leaf) node).runs;
+        int i = 0;
+        while (offset >= runs[i]) {
+            offset -= runs[i];
+            i += 2 + runs[i + 1];
+        }
+        return Arrays.copyOfRange(runs, i + 2, i + 2 + runs[i + 1]);
+    }
+
+    @Override
+    public AttributedText subSequence(final int start, final int end) {
+        checkRange(start, end);
+        Node[] parts = split(this.root, end);
+        return new AttributedText(split(parts[0], start)[1]);
+    }
+
+    /**
+     * Inserts text.
+     *
+     * @param index   the position to insert at
+     * @param text    the text
+     * @param attribs the attribute numbers of the inserted text
+     * @return the new attributed text
+     */
+    public AttributedText insert(final int index, final CharSequence text,
+            final int[] attribs) {
+        checkRange(index, index);
+        if (text.length() == 0) {
+            return this;
+        }
+        Node[] parts = split(this.root, index);
+        Node inserted = of(text, attribs).root;
+        return new AttributedText(join(join(parts[0], inserted), parts[1]));
+    }
+
+    /**
+     * Deletes a range of text.
+     *
+     * @param start the start index
+     * @param end   the end index, exclusive
+     * @return the new attributed text
+     */
+    public AttributedText delete(final int start, final int end) {
+        checkRange(start, end);
+        if (start == end) {
+            return this;
+        }
+        Node[] tail = split(this.root, end);
+        Node[] head = split(tail[0], start);
+        return new AttributedText(join(head[0], tail[1]));
+    }
+
+    /**
+     * Applies attributes to a range of text, as a keep operation of a
+     * changeset does. Attributes with an empty value remove the attribute
+     * with the same key.
+     *
+     * @param start   the start index
+     * @param end     the end index, exclusive
+     * @param attribs the attribute numbers to apply
+     * @param pool    the pad's attribute pool
+     * @return the new attributed text
+     */
+    public AttributedText format(final int start, final int end,
+            final int[] attribs, final AttributePool pool) {
+        checkRange(start, end);
+        if (start == end || attribs.length == 0) {
+            return this;
+        }
+        Node[] tail = split(this.root, end);
+        Node[] head = split(tail[0], start);
+        return new AttributedText(join(
+                join(head[0], wrap(head[1], attribs, pool)), tail[1]));
+    }
+
+    /**
+     * Applies a changeset. Each operation takes O(log n) time.
+     *
+     * @param changeset the changeset
+     * @param pool      the pad's attribute pool, used by keep operations with
+     *                  attributes; may be null if there are none
+     * @return the new attributed text
+     */
+    public AttributedText apply(final Changeset changeset,
+            final AttributePool pool) {
+        if (changeset.getOldLength() != length()) {
+            throw new EPLiteException("Changeset applies to a text of length "
+                    + changeset.getOldLength() + ", not " + length());
+        }
+        String bank = changeset.getCharBank();
+        int bankPos = 0;
+        Node out = EMPTY_LEAF;
+        Node rest = this.root;
+        for (int i = 0; i < changeset.getOpCount(); i++) {
+            int n = changeset.getChars(i);
+            switch (changeset.getOpcode(i)) {
+            case Changeset.KEEP:
+                Node[] kept = split(rest, n);
+                Node piece = kept[0];
+                if (changeset.getAttribCount(i) > 0) {
+                    piece = wrap(piece, changeset.getAttribs(i), pool);
+                }
+                out = join(out, piece);
+                rest = kept[1];
+                break;
+            case Changeset.REMOVE:
+                rest = split(rest, n)[1];
+                break;
+            default:
+                out = join(out, of(bank.substring(bankPos, bankPos + n),
+                        changeset.getAttribs(i)).root);
+                bankPos += n;
+                break;
+            }
+        }
+        return new AttributedText(join(out, rest));
+    }
+
+    /**
+     * Iterates over the attribute runs of the whole text.
+     *
+     * @return the run iterator
+     */
+    public RunIterator runs() {
+        return new RunIterator(this.root);
+    }
+
+    /**
+     * Iterates over the attribute runs of a range of text.
+     *
+     * @param start the start index
+     * @param end   the end index, exclusive
+     * @return the run iterator
+     */
+    public RunIterator runs(final int start, final int end) {
+        return subSequence(start, end).runs();
+    }
+
+    /**
+     * Gets the depth of the tree, for diagnostics.
+     *
+     * @return the height
+     */
+    int getHeight() {
+        return this.root.height;
+    }
+
+    /**
+     * Returns the plain text.
+     *
+     * @return String
+     */
+    @Override
+    public String toString() {
+        String result = this.string;
+        if (result == null) {
+            StringBuilder out = new StringBuilder(length());
+            RunIterator runs = runs();
+            while (runs.next()) {
+                out.append(runs.leaf.text, runs.start, runs.end);
+            }
+            result = out.toString();
+            this.string = result;
+        }
+        return result;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        if (!(other instanceof AttributedText)) {
+            return false;
+        }
+        AttributedText that = (AttributedText) other;
+        if (length() != that.length() || !toString().equals(that.toString())) {
+            return false;
+        }
+        RunIterator a = runs();
+        RunIterator b = that.runs();
+        int pos = 0;
+        while (pos < length()) {
+            // compare run by run, aligning runs split at different places
+            int[] attribsA = a.attribsAt(pos);
+            int[] attribsB = b.attribsAt(pos);
+            if (!Arrays.equals(attribsA, attribsB)) {
+                return false;
+            }
+            pos = Math.min(a.runEnd(), b.runEnd());
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * Checks a range of indices.
+     *
+     * @param start the start index
+     * @param end   the end index
+     */
+    private void checkRange(final int start, final int end) {
+        if (start < 0 || end > length() || start > end) {
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end
+                    + ") outside of text of length " + length());
+        }
+    }
+
+    /**
+     * Applies attributes to all runs of a tree. Leaves are formatted at once,
+     * larger trees get a {@link Format} node which is pushed down lazily.
+     *
+     * @param node    the tree
+     * @param attribs the attribute numbers to apply
+     * @param pool    the attribute pool
+     * @return the new tree
+     */
+    private static Node wrap(final Node node, final int[] attribs,
+            final AttributePool pool) {
+        if (node.length == 0) {
+            return node;
+        }
+        if (node instanceof Leaf) {
+            return ((Leaf) node).format(attribs, pool);
+        }
+        if (node instanceof Format) {
+            Format format = (Format) node;
+            return new Format(format.child, Changeset.composeAttribs(
+                    format.attribs, attribs, true, pool), pool);
+        }
+        return new Format(node, attribs, pool);
+    }
+
+    /**
+     * Pushes pending attributes of a node down one level.
+     *
+     * @param node the node
+     * @return an equivalent leaf or concatenation
+     */
+    private static Node open(final Node node) {
+        if (!(node instanceof Format)) {
+            return node;
+        }
+        Format format = (Format) node;
+        if (format.child instanceof Leaf) {
+            return ((Leaf) format.child).format(format.attribs, format.pool);
+        }
+        Concat concat = (Concat) format.child;
+        return new Concat(wrap(concat.left, format.attribs, format.pool),
+                wrap(concat.right, format.attribs, format.pool));
+    }
+
+    /**
+     * Splits a tree at an index.
+     *
+     * @param node  the tree
+     * @param index the index
+     * @return the trees before and after the index
+     */
+    private static Node[] split(final Node node, final int index) {
+        if (index <= 0) {
+            return new Node[] { EMPTY_LEAF, node };
+        }
+        if (index >= node.length) {
+            return new Node[] { node, EMPTY_LEAF };
+        }
+        Node opened = open(node);
+        if (opened instanceof Leaf) {
+            return ((Leaf) opened).split(index);
+        }
+        Concat concat = (Concat) opened;
+        int leftLength = concat.left.length;
+        if (index < leftLength) {
+            Node[] parts = split(concat.left, index);
+            return new Node[] { parts[0], join(parts[1], concat.right) };
+        }
+        if (index > leftLength) {
+            Node[] parts = split(concat.right, index - leftLength);
+            return new Node[] { join(concat.left, parts[0]), parts[1] };
+        }
+        return new Node[] { concat.left, concat.right };
+    }
+
+    /**
+     * Concatenates two trees, keeping the result balanced. Takes time
+     * proportional to the difference of their heights.
+     *
+     * @param a the first tree
+     * @param b the second tree
+     * @return the concatenation
+     */
+    private static Node join(final Node a, final Node b) {
+        if (a.length == 0) {
+            return b;
+        }
+        if (b.length == 0) {
+            return a;
+        }
+        if (a.height > b.height + 1) {
+            Concat concat = (Concat) open(a);
+            return balance(concat.left, join(concat.right, b));
+        }
+        if (b.height > a.height + 1) {
+            Concat concat = (Concat) open(b);
+            return balance(join(a, concat.left), concat.right);
+        }
+        if (a.length + b.length <= MAX_LEAF) {
+            // small pieces are merged, so that many small edits do not
+            // leave the rope full of tiny leaves
+            return flatten(a).merge(flatten(b));
+        }
+        return new Concat(a, b);
+    }
+
+    /**
+     * Turns a tree of at most {@link #MAX_LEAF} characters into a single leaf.
+     *
+     * @param node the tree
+     * @return the leaf
+     */
+    private static Leaf flatten(final Node node) {
+        Node opened = open(node);
+        if (opened instanceof Leaf) {
+            return (Leaf) opened;
+        }
+        Concat concat = (Concat) opened;
+        return flatten(concat.left).merge(flatten(concat.right));
+    }
+
+    /**
+     * Creates a node from two subtrees whose heights differ by at most two,
+     * rotating it to restore the AVL balance.
+     *
+     * @param left  the left subtree
+     * @param right the right subtree
+     * @return the balanced node
+     */
+    private static Node balance(final Node left, final Node right) {
+        if (left.height > right.height + 1) {
+            Concat l = (Concat) open(left);
+            if (l.left.height >= l.right.height) {
+                return new Concat(l.left, new Concat(l.right, right));
+            }
+            Concat lr = (Concat) open(l.right);
+            return new Concat(new Concat(l.left, lr.left),
+                    new Concat(lr.right, right));
+        }
+        if (right.height > left.height + 1) {
+            Concat r = (Concat) open(right);
+            if (r.right.height >= r.left.height) {
+                return new Concat(new Concat(left, r.left), r.right);
+            }
+            Concat rl = (Concat) open(r.left);
+            return new Concat(new Concat(left, rl.left),
+                    new Concat(rl.right, r.right));
+        }
+        return new Concat(left, right);
+    }
+
+    /**
+     * A node of the rope.
+     */
+    private abstract static class Node {
+
+        /** The number of characters. */
+        private final int length;
+
+        /** The height, 0 for leaves. */
+        private final int height;
+
+        /**
+         * Instantiates a new node.
+         *
+         * @param length the length
+         * @param height the height
+         */
+        Node(final int length, final int height) {
+            this.length = length;
+            this.height = height;
+        }
+    }
+
+    /**
+     * An inner node concatenating two subtrees.
+     */
+    private static final class Concat extends Node {
+
+        /** The left subtree. */
+        private final Node left;
+
+        /** The right subtree. */
+        private final Node right;
+
+        /**
+         * Instantiates a new concatenation.
+         *
+         * @param left  the left subtree
+         * @param right the right subtree
+         */
+        private Concat(final Node left, final Node right) {
+            super(left.length + right.length,
+                    1 + Math.max(left.height, right.height));
+            this.left = left;
+            this.right = right;
+        }
+    }
+
+    /**
+     * A subtree with attributes still to be applied to all its runs. Keeps
+     * formatting a large range O(log n); the attributes are pushed down when
+     * the subtree is visited.
+     */
+    private static final class Format extends Node {
+
+        /** The subtree, never a Format itself. */
+        private final Node child;
+
+        /** The attribute numbers to apply. */
+        private final int[] attribs;
+
+        /** The attribute pool. */
+        private final AttributePool pool;
+
+        /**
+         * Instantiates a new format node.
+         *
+         * @param child   the subtree
+         * @param attribs the attribute numbers to apply
+         * @param pool    the attribute pool
+         */
+        private Format(final Node child, final int[] attribs,
+                final AttributePool pool) {
+            super(child.length, child.height);
+            this.child = child;
+            this.attribs = attribs;
+            this.pool = pool;
+        }
+    }
+
+    /**
+     * A chunk of text with its attribute runs. The runs are packed as
+     * <code>length, attribute count, attribute numbers...</code> for each run.
+     */
+    private static final class Leaf extends Node {
+
+        /** The text. */
+        private final String text;
+
+        /** The packed attribute runs. */
+        private final int[] runs;
+
+        /**
+         * Instantiates a new leaf.
+         *
+         * @param text the text
+         * @param runs the packed runs
+         */
+        private Leaf(final String text, final int[] runs) {
+            super(text.length(), 0);
+            this.text = text;
+            this.runs = runs;
+        }
+
+        /**
+         * Splits the leaf.
+         *
+         * @param index the index, within the leaf
+         * @return the leaves before and after the index
+         */
+        private Node[] split(final int index) {
+            Runs before = new Runs(this.runs.length + 2);
+            Runs after = new Runs(this.runs.length + 2);
+            int pos = 0;
+            for (int i = 0; i < this.runs.length; i += 2 + this.runs[i + 1]) {
+                int n = this.runs[i];
+                int end = pos + n;
+                if (end <= index) {
+                    before.add(this.runs, i, n);
+                } else if (pos >= index) {
+                    after.add(this.runs, i, n);
+                } else {
+                    before.add(this.runs, i, index - pos);
+                    after.add(this.runs, i, end - index);
+                }
+                pos = end;
+            }
+            return new Node[] {
+                    new Leaf(this.text.substring(0, index), before.toArray()),
+                    new Leaf(this.text.substring(index), after.toArray()) };
+        }
+
+        /**
+         * Applies attributes to all runs.
+         *
+         * @param attribs the attribute numbers to apply
+         * @param pool    the attribute pool
+         * @return the formatted leaf
+         */
+        private Leaf format(final int[] attribs, final AttributePool pool) {
+            Runs formatted = new Runs(this.runs.length);
+            for (int i = 0; i < this.runs.length; i += 2 + this.runs[i + 1]) {
+                int[] old = Arrays.copyOfRange(this.runs, i + 2,
+                        i + 2 + this.runs[i + 1]);
+                formatted.add(this.runs[i], Changeset.composeAttribs(old,
+                        attribs, false, pool));
+            }
+            return new Leaf(this.text, formatted.toArray());
+        }
+
+        /**
+         * Merges with a following leaf.
+         *
+         * @param next the following leaf
+         * @return the merged leaf
+         */
+        private Leaf merge(final Leaf next) {
+            Runs merged = new Runs(this.runs.length + next.runs.length);
+            for (int i = 0; i < this.runs.length; i += 2 + this.runs[i + 1]) {
+                merged.add(this.runs, i, this.runs[i]);
+            }
+            for (int i = 0; i < next.runs.length; i += 2 + next.runs[i + 1]) {
+                merged.add(next.runs, i, next.runs[i]);
+            }
+            return new Leaf(this.text + next.text, merged.toArray());
+        }
+    }
+
+    /**
+     * Builds packed attribute runs, merging adjacent runs with the same
+     * attributes.
+     */
+    private static final class Runs {
+
+        /** The packed runs. */
+        private int[] data;
+
+        /** The used length of data. */
+        private int size;
+
+        /** The start of the last run in data, -1 if none. */
+        private int last = -1;
+
+        /**
+         * Instantiates a new run builder.
+         *
+         * @param capacity the initial capacity
+         */
+        private Runs(final int capacity) {
+            this.data = new int[Math.max(capacity, 4)];
+        }
+
+        /**
+         * Packs a single run.
+         *
+         * @param length  the run length
+         * @param attribs the attribute numbers
+         * @return the packed runs
+         */
+        private static int[] single(final int length, final int[] attribs) {
+            Runs runs = new Runs(2 + attribs.length);
+            runs.add(length, attribs);
+            return runs.toArray();
+        }
+
+        /**
+         * Adds a run.
+         *
+         * @param length  the run length
+         * @param attribs the attribute numbers
+         */
+        private void add(final int length, final int[] attribs) {
+            int[] packed = new int[2 + attribs.length];
+            packed[1] = attribs.length;
+            System.arraycopy(attribs, 0, packed, 2, attribs.length);
+            add(packed, 0, length);
+        }
+
+        /**
+         * Adds a run with the attributes of a packed run.
+         *
+         * @param src    the packed runs
+         * @param run    the start of the run in src
+         * @param length the run length
+         */
+        private void add(final int[] src, final int run, final int length) {
+            if (length <= 0) {
+                return;
+            }
+            int count = src[run + 1];
+            if (this.last >= 0 && this.data[this.last + 1] == count
+                    && rangeEquals(this.data, this.last + 2, src, run + 2,
+                            count)) {
+                this.data[this.last] += length;
+                return;
+            }
+            if (this.size + 2 + count > this.data.length) {
+                this.data = Arrays.copyOf(this.data,
+                        Math.max(this.data.length * 2, this.size + 2 + count));
+            }
+            this.last = this.size;
+            this.data[this.size] = length;
+            this.data[this.size + 1] = count;
+            System.arraycopy(src, run + 2, this.data, this.size + 2, count);
+            this.size += 2 + count;
+        }
+
+        /**
+         * Gets the packed runs.
+         *
+         * @return the packed runs
+         */
+        private int[] toArray() {
+            return Arrays.copyOf(this.data, this.size);
+        }
+
+        /**
+         * Compares two ranges of int arrays.
+         *
+         * @param a      the first array
+         * @param aStart the start in the first array
+         * @param b      the second array
+         * @param bStart the start in the second array
+         * @param length the length of the ranges
+         * @return true if the ranges are equal
+         */
+        private static boolean rangeEquals(final int[] a, final int aStart,
+                final int[] b, final int bStart, final int length) {
+            for (int i = 0; i < length; i++) {
+                if (a[aStart + i] != b[bStart + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Iterates over attribute runs, in text order. Runs with the same
+     * attributes in neighbouring leaves are reported separately.<br />
+     * <br />
+     * <code>
+     * RunIterator runs = text.runs();<br />
+     * while (runs.next()) {<br />
+     * &nbsp;&nbsp;render(runs.getText(), runs.getAttribs());<br />
+     * }
+     * </code>
+     */
+    public static final class RunIterator {
+
+        /** The leaves still to visit, the next one on top. */
+        private final Deque<Node> stack = new ArrayDeque<>();
+
+        /** The current leaf. */
+        private Leaf leaf;
+
+        /** The start of the next run in the leaf's packed runs. */
+        private int nextRun;
+
+        /** The start of the current run in the leaf's packed runs. */
+        private int run;
+
+        /** The start of the current run in the leaf's text. */
+        private int start;
+
+        /** The end of the current run in the leaf's text. */
+        private int end;
+
+        /** The position of the current run's start in the whole text. */
+        private int position;
+
+        /** The position after the current run in the whole text. */
+        private int runEnd;
+
+        /**
+         * Instantiates a new run iterator.
+         *
+         * @param root the root of the rope
+         */
+        private RunIterator(final Node root) {
+            this.stack.push(root);
+        }
+
+        /**
+         * Moves to the next run.
+         *
+         * @return true if there is one
+         */
+        public boolean next() {
+            while (this.leaf == null || this.nextRun >= this.leaf.runs.length) {
+                if (this.stack.isEmpty()) {
+                    return false;
+                }
+                Node node = this.stack.pop();
+                while ((node = open(node)) instanceof Concat) {
+                    this.stack.push(((Concat) node).right);
+                    node = ((Concat) node).left;
+                }
+                this.leaf = (Leaf) node;
+                this.nextRun = 0;
+                this.end = 0;
+            }
+            this.run = this.nextRun;
+            this.nextRun += 2 + this.leaf.runs[this.run + 1];
+            this.start = this.end;
+            this.end = this.start + this.leaf.runs[this.run];
+            this.position = this.runEnd;
+            this.runEnd = this.position + this.leaf.runs[this.run];
+            return true;
+        }
+
+        /**
+         * Gets the text of the current run.
+         *
+         * @return the text
+         */
+        public String getText() {
+            return this.leaf.text.substring(this.start, this.end);
+        }
+
+        /**
+         * Gets the position of the current run in the text.
+         *
+         * @return the start index
+         */
+        public int getStart() {
+            return this.position;
+        }
+
+        /**
+         * Gets the length of the current run.
+         *
+         * @return the length
+         */
+        public int getLength() {
+            return this.end - this.start;
+        }
+
+        /**
+         * Gets the number of attributes of the current run.
+         *
+         * @return the attribute count
+         */
+        public int getAttribCount() {
+            return this.leaf.runs[this.run + 1];
+        }
+
+        /**
+         * Gets an attribute number of the current run.
+         *
+         * @param index the attribute index
+         * @return the attribute number
+         */
+        public int getAttrib(final int index) {
+            return this.leaf.runs[this.run + 2 + index];
+        }
+
+        /**
+         * Gets the attributes of the current run.
+         *
+         * @return a new array of attribute numbers
+         */
+        public int[] getAttribs() {
+            return Arrays.copyOfRange(this.leaf.runs, this.run + 2,
+                    this.run + 2 + this.leaf.runs[this.run + 1]);
+        }
+
+        /**
+         * Advances to the run containing a position and gets its attributes.
+         *
+         * @param pos the position, not before the current run
+         * @return the attribute numbers
+         */
+        private int[] attribsAt(final int pos) {
+            while (this.runEnd <= pos) {
+                next();
+            }
+            return getAttribs();
+        }
+
+        /**
+         * Gets the position after the current run.
+         *
+         * @return the end index
+         */
+        private int runEnd() {
+            return this.runEnd;
+        }
+    }
+}
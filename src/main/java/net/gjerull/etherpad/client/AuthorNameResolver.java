@@ -0,0 +1,209 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resolves the names of many authors at once, as needed to show the
+ * contributors of a pad.<br />
+ * <br />
+ * Names are kept in a size bounded cache, as they rarely change. The
+ * getAuthorName calls for the authors which are not cached are made
+ * concurrently on the given executor, each author once: an author asked
+ * for twice, or asked for by another thread while its name is being
+ * fetched, shares the call in flight. Rendering a pad page thus makes at
+ * most one burst of calls.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * AuthorNameResolver names = new AuthorNameResolver(api, executor, 10000);
+ * <br />
+ * List authorIds = (List) api.listAuthorsOfPad("my_pad").get("authorIDs");
+ * <br />
+ * Map&lt;String, String&gt; byId = names.getAuthorNames(authorIds);
+ * </code>
+ */
+public class AuthorNameResolver {
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor making the calls. */
+    private final ExecutorService executor;
+
+    /** The cached names, by author id. Guarded by itself. */
+    private final LruMap<String, String> names;
+
+    /** The calls in flight, by author id. Guarded by the names. */
+    private final Map<String, Future<String>> inFlight = new HashMap<>();
+
+    /** The number of cache hits. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of getAuthorName calls. */
+    private final AtomicLong calls = new AtomicLong();
+
+    /**
+     * Instantiates a new author name resolver.
+     *
+     * @param client     the client
+     * @param executor   the executor making the calls
+     * @param maxEntries the maximum number of cached names
+     */
+    public AuthorNameResolver(final EPLiteClient client,
+            final ExecutorService executor, final int maxEntries) {
+        this.client = client;
+        this.executor = executor;
+        this.names = new LruMap<>(maxEntries);
+    }
+
+    /**
+     * Gets the name of an author.
+     *
+     * @param authorId the author's id string
+     * @return the name, or null if the author has none
+     */
+    public final String getAuthorName(final String authorId) {
+        return getAuthorNames(Collections.singleton(authorId))
+                .get(authorId);
+    }
+
+    /**
+     * Gets the names of authors.
+     *
+     * @param authorIds the authors' id strings
+     * @return the names by author id, in the order of the ids; authors
+     *         without a name map to null
+     */
+    public final Map<String, String> getAuthorNames(
+            final Collection<String> authorIds) {
+        Map<String, String> result = new LinkedHashMap<>();
+        Map<String, Future<String>> pending = new LinkedHashMap<>();
+        List<FutureTask<String>> started = new ArrayList<>();
+        synchronized (this.names) {
+            for (final String authorId : new LinkedHashSet<>(authorIds)) {
+                if (this.names.containsKey(authorId)) {
+                    this.hits.incrementAndGet();
+                    result.put(authorId, this.names.get(authorId));
+                    continue;
+                }
+                result.put(authorId, null);
+                Future<String> call = this.inFlight.get(authorId);
+                if (call == null) {
+                    FutureTask<String> task = new FutureTask<>(
+                            new Callable<String>() {
+                                @Override
+                                public String call() {
+                                    return fetch(authorId);
+                                }
+                            });
+                    this.inFlight.put(authorId, task);
+                    started.add(task);
+                    call = task;
+                }
+                pending.put(authorId, call);
+            }
+        }
+        for (FutureTask<String> task : started) {
+            this.executor.execute(task);
+        }
+        for (Map.Entry<String, Future<String>> call : pending.entrySet()) {
+            result.put(call.getKey(), get(call.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Removes the name of an author from the cache, so it is fetched again.
+     *
+     * @param authorId the author's id string
+     */
+    public final void invalidate(final String authorId) {
+        synchronized (this.names) {
+            this.names.remove(authorId);
+        }
+    }
+
+    /**
+     * Removes all names from the cache.
+     */
+    public final void clear() {
+        synchronized (this.names) {
+            this.names.clear();
+        }
+    }
+
+    /**
+     * Gets the number of names served from the cache.
+     *
+     * @return the hit count
+     */
+    public final long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of getAuthorName calls made.
+     *
+     * @return the call count
+     */
+    public final long getCallCount() {
+        return this.calls.get();
+    }
+
+    /**
+     * Fetches the name of an author and caches it.
+     *
+     * @param authorId the author's id string
+     * @return the name
+     */
+    private String fetch(final String authorId) {
+        this.calls.incrementAndGet();
+        try {
+            String name = this.client.getAuthorName(authorId);
+            synchronized (this.names) {
+                this.names.put(authorId, name);
+            }
+            return name;
+        } finally {
+            synchronized (this.names) {
+                this.inFlight.remove(authorId);
+            }
+        }
+    }
+
+    /**
+     * Waits for the result of a call.
+     *
+     * @param future the future result
+     * @return the result
+     */
+    private static String get(final Future<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EPLiteException(
+                    "Interrupted while fetching author names", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EPLiteException) {
+                throw (EPLiteException) e.getCause();
+            }
+            throw new EPLiteException("Unable to fetch author name",
+                    e.getCause());
+        }
+    }
+}
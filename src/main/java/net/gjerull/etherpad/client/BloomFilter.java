@@ -0,0 +1,97 @@
+package net.gjerull.etherpad.client;
+
+/**
+ * A fixed size Bloom filter for strings. Answers "definitely not present" or
+ * "maybe present" using a few bits per element. Not thread safe, callers must
+ * synchronize access themselves.
+ */
+class BloomFilter {
+
+    /** The bits. */
+    private final long[] bits;
+
+    /** The number of bits. */
+    private final int size;
+
+    /** The number of hash functions. */
+    private final int hashes;
+
+    /**
+     * Instantiates a new Bloom filter sized for the given number of elements
+     * and false positive probability.
+     *
+     * @param expectedElements          the expected number of elements
+     * @param falsePositiveProbability  the wanted false positive probability
+     */
+    BloomFilter(final int expectedElements,
+            final double falsePositiveProbability) {
+        int n = Math.max(1, expectedElements);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(
+                -n * Math.log(falsePositiveProbability) / (ln2 * ln2));
+        m = Math.max(64, Math.min(m, Integer.MAX_VALUE - 63L));
+        this.size = (int) m;
+        this.bits = new long[(this.size + 63) >>> 6];
+        this.hashes = Math.max(1,
+                (int) Math.round((double) this.size / n * ln2));
+    }
+
+    /**
+     * Adds an element.
+     *
+     * @param value the element
+     */
+    final void add(final String value) {
+        int h1 = value.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < this.hashes; i++) {
+            int bit = index(h1 + i * h2);
+            this.bits[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks whether an element may have been added.
+     *
+     * @param value the element
+     * @return false if the element was definitely never added
+     */
+    final boolean mightContain(final String value) {
+        int h1 = value.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < this.hashes; i++) {
+            int bit = index(h1 + i * h2);
+            if ((this.bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Maps a hash to a bit index.
+     *
+     * @param hash the hash
+     * @return the bit index
+     */
+    private int index(final int hash) {
+        return (hash & Integer.MAX_VALUE) % this.size;
+    }
+
+    /**
+     * Derives a second, independent hash (murmur3 finalizer). The result is
+     * always odd so that the probe sequence never degenerates.
+     *
+     * @param hash the first hash
+     * @return the second hash
+     */
+    private static int mix(final int hash) {
+        int h = hash;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
@@ -0,0 +1,195 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a message with sendClientsMessage to many pads, as needed for
+ * announcements.<br />
+ * <br />
+ * The calls are made on the given executor, at most the given number at a
+ * time and at most the given number per second, so a broadcast to thousands
+ * of pads takes seconds without flooding Etherpad. The caller's thread
+ * paces the calls and waits until all are done, then gets a report of the
+ * pads reached and the pads whose call failed.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * Broadcaster broadcaster = new Broadcaster(api, executor, 16, 200);<br />
+ * Broadcaster.Report report = broadcaster.broadcastToGroup(groupId,
+ * "exam ends in 5 minutes");
+ * </code>
+ */
+public class Broadcaster {
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor making the calls. */
+    private final ExecutorService executor;
+
+    /** The largest number of concurrent calls. */
+    private final int maxConcurrency;
+
+    /** The interval between the starts of calls, in nanoseconds. */
+    private final long intervalNanos;
+
+    /**
+     * Instantiates a new broadcaster.
+     *
+     * @param client            the client
+     * @param executor          the executor making the calls
+     * @param maxConcurrency    the largest number of concurrent calls
+     * @param messagesPerSecond the largest number of calls started per
+     *                          second
+     */
+    public Broadcaster(final EPLiteClient client,
+            final ExecutorService executor, final int maxConcurrency,
+            final int messagesPerSecond) {
+        if (maxConcurrency < 1 || messagesPerSecond < 1) {
+            throw new IllegalArgumentException("maxConcurrency and "
+                    + "messagesPerSecond must be positive");
+        }
+        this.client = client;
+        this.executor = executor;
+        this.maxConcurrency = maxConcurrency;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+    }
+
+    /**
+     * Sends a message to the pads of a group, listed with listPads.
+     *
+     * @param groupId the group id
+     * @param msg     the message to send
+     * @return the delivery report
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    public final Report broadcastToGroup(final String groupId,
+            final String msg) throws InterruptedException {
+        Object padIds = this.client.listPads(groupId).get("padIDs");
+        List<String> pads = new ArrayList<>();
+        if (padIds instanceof List) {
+            for (Object padId : (List) padIds) {
+                pads.add((String) padId);
+            }
+        }
+        return broadcast(pads, msg);
+    }
+
+    /**
+     * Sends a message to pads.
+     *
+     * @param padIds the pads' id strings
+     * @param msg    the message to send
+     * @return the delivery report
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    public final Report broadcast(final Collection<String> padIds,
+            final String msg) throws InterruptedException {
+        long startNanos = System.nanoTime();
+        final Report report = new Report();
+        final Semaphore permits = new Semaphore(this.maxConcurrency);
+        Collection<String> pads = new LinkedHashSet<>(padIds);
+        final CountDownLatch done = new CountDownLatch(pads.size());
+        long next = startNanos;
+        for (final String padId : pads) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            next = Math.max(next, System.nanoTime() - this.intervalNanos)
+                    + this.intervalNanos;
+            permits.acquire();
+            try {
+                this.executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            Broadcaster.this.client.sendClientsMessage(padId,
+                                    msg);
+                            report.delivered.add(padId);
+                        } catch (EPLiteException e) {
+                            report.failures.put(padId, e);
+                        } catch (RuntimeException e) {
+                            report.failures.put(padId, new EPLiteException(
+                                    "Unable to send the message", e));
+                        } finally {
+                            permits.release();
+                            done.countDown();
+                        }
+                    }
+                });
+            } catch (RuntimeException e) {
+                permits.release();
+                done.countDown();
+                report.failures.put(padId, new EPLiteException(
+                        "Unable to schedule the message", e));
+            }
+        }
+        done.await();
+        report.elapsedNanos = System.nanoTime() - startNanos;
+        return report;
+    }
+
+    /**
+     * The outcome of a broadcast.
+     */
+    public static final class Report {
+
+        /** The pads the message was delivered to. */
+        private final Collection<String> delivered = Collections
+                .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        /** The errors of the pads the message was not delivered to. */
+        private final Map<String, EPLiteException> failures =
+                new ConcurrentHashMap<>();
+
+        /** The duration of the broadcast, in nanoseconds. */
+        private long elapsedNanos;
+
+        /**
+         * Instantiates a new report.
+         */
+        private Report() {
+        }
+
+        /**
+         * Gets the pads the message was delivered to.
+         *
+         * @return the pad ids
+         */
+        public Collection<String> getDelivered() {
+            return Collections.unmodifiableCollection(this.delivered);
+        }
+
+        /**
+         * Gets the pads the message was not delivered to, with the errors.
+         *
+         * @return the errors by pad id
+         */
+        public Map<String, EPLiteException> getFailures() {
+            return Collections.unmodifiableMap(this.failures);
+        }
+
+        /**
+         * Gets the duration of the broadcast.
+         *
+         * @return the duration in milliseconds
+         */
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(this.elapsedNanos);
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package net.gjerull.etherpad.client;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers appendText calls and sends the text appended to a pad in one
+ * appendText call, once enough text is buffered or the oldest buffered text
+ * has waited long enough.<br />
+ * <br />
+ * Text appended to the same pad is sent in the order it was appended: a
+ * pad's buffer is taken and sent while holding the pad's send lock, so
+ * batches of a pad never overtake each other. If sending fails, the batch
+ * is put back in front of the pad's buffer and sent again in the background
+ * after a growing delay, or with the next flush. While a pad's text cannot
+ * be sent, its buffer grows up to a limit of {@value #BUFFER_LIMIT_FACTOR}
+ * times the send size; appends beyond it fail.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * BufferedAppender appender = new BufferedAppender(api, scheduler, 4096,
+ * 200);<br />
+ * appender.append("log_pad", line + "\n");<br />
+ * appender.close();
+ * </code>
+ */
+public class BufferedAppender implements Flushable, Closeable {
+
+    /** The buffer limit of a pad, as a multiple of the send size. */
+    public static final int BUFFER_LIMIT_FACTOR = 16;
+
+    /** The first retry delay, in milliseconds. */
+    private static final long MIN_RETRY_DELAY = 100;
+
+    /** The longest retry delay, in milliseconds. */
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The scheduler sending buffers in the background. */
+    private final ScheduledExecutorService scheduler;
+
+    /** The number of buffered characters which triggers a send. */
+    private final int maxChars;
+
+    /** The longest time text waits in the buffer, in milliseconds. */
+    private final long maxDelay;
+
+    /** The buffers, by pad id. Guarded by itself. */
+    private final Map<String, PadBuffer> buffers = new HashMap<>();
+
+    /** The number of appends. */
+    private final AtomicLong appends = new AtomicLong();
+
+    /** The number of appendText calls. */
+    private final AtomicLong calls = new AtomicLong();
+
+    /** The number of failed appendText calls. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** Whether the appender is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new buffered appender.
+     *
+     * @param client    the client
+     * @param scheduler the scheduler sending buffers in the background
+     * @param maxChars  the number of buffered characters of a pad which
+     *                  triggers a send
+     * @param maxDelay  the longest time text waits in the buffer, in
+     *                  milliseconds
+     */
+    public BufferedAppender(final EPLiteClient client,
+            final ScheduledExecutorService scheduler, final int maxChars,
+            final long maxDelay) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.maxChars = maxChars;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Appends text to a pad, sending it later.
+     *
+     * @param padId the pad's id string
+     * @param text  the text
+     * @throws EPLiteException if the appender is closed, or the pad's buffer
+     *                         is full as its text could not be sent
+     */
+    public final void append(final String padId, final String text) {
+        if (this.closed) {
+            throw new EPLiteException("The appender is closed");
+        }
+        final PadBuffer buffer;
+        synchronized (this.buffers) {
+            PadBuffer existing = this.buffers.get(padId);
+            if (existing == null) {
+                existing = new PadBuffer(padId);
+                this.buffers.put(padId, existing);
+            }
+            buffer = existing;
+        }
+        boolean full;
+        boolean schedule;
+        long delay;
+        synchronized (buffer) {
+            // checked under the buffer's lock, so close() either sends
+            // this text or the append fails
+            if (this.closed) {
+                throw new EPLiteException("The appender is closed");
+            }
+            if (buffer.text.length() + text.length()
+                    > (long) this.maxChars * BUFFER_LIMIT_FACTOR) {
+                throw new EPLiteException("The buffer of " + padId
+                        + " is full, its text cannot be sent");
+            }
+            buffer.text.append(text);
+            buffer.appends++;
+            full = buffer.text.length() >= this.maxChars;
+            schedule = !buffer.scheduled;
+            buffer.scheduled = true;
+            delay = (buffer.failedAttempts > 0)
+                    ? retryDelay(buffer.failedAttempts)
+                    : (full ? 0 : this.maxDelay);
+        }
+        this.appends.incrementAndGet();
+        if (schedule || (full && delay == 0)) {
+            scheduleSend(buffer, delay);
+        }
+    }
+
+    /**
+     * Sends the buffered text of all pads and waits until it is sent.
+     *
+     * @throws EPLiteException if sending to a pad failed; the other pads are
+     *                         sent
+     */
+    @Override
+    public final void flush() {
+        List<PadBuffer> all;
+        synchronized (this.buffers) {
+            all = new ArrayList<>(this.buffers.values());
+        }
+        EPLiteException failure = null;
+        for (PadBuffer buffer : all) {
+            try {
+                send(buffer);
+            } catch (EPLiteException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sends the buffered text of a pad and waits until it is sent.
+     *
+     * @param padId the pad's id string
+     */
+    public final void flush(final String padId) {
+        PadBuffer buffer;
+        synchronized (this.buffers) {
+            buffer = this.buffers.get(padId);
+        }
+        if (buffer != null) {
+            send(buffer);
+        }
+    }
+
+    /**
+     * Sends the buffered text and stops accepting appends.
+     */
+    @Override
+    public final void close() {
+        this.closed = true;
+        flush();
+    }
+
+    /**
+     * Gets the number of appends.
+     *
+     * @return the append count
+     */
+    public final long getAppendCount() {
+        return this.appends.get();
+    }
+
+    /**
+     * Gets the number of appendText calls made.
+     *
+     * @return the call count
+     */
+    public final long getCallCount() {
+        return this.calls.get();
+    }
+
+    /**
+     * Gets the number of failed appendText calls.
+     *
+     * @return the failure count
+     */
+    public final long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Gets the average number of appends sent by one appendText call.
+     *
+     * @return the batching factor, or 0 if nothing was sent
+     */
+    public final double getBatchingFactor() {
+        long sent = this.calls.get() - this.failures.get();
+        return (sent > 0) ? (double) (this.appends.get() - buffered())
+                / sent : 0;
+    }
+
+    /**
+     * Counts the appends still in the buffers.
+     *
+     * @return the number of buffered appends
+     */
+    private long buffered() {
+        List<PadBuffer> all;
+        synchronized (this.buffers) {
+            all = new ArrayList<>(this.buffers.values());
+        }
+        long count = 0;
+        for (PadBuffer buffer : all) {
+            synchronized (buffer) {
+                count += buffer.appends;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends the buffered text of a pad in the background.
+     *
+     * @param buffer the pad's buffer
+     * @param delay  the delay in milliseconds
+     */
+    private void scheduleSend(final PadBuffer buffer, final long delay) {
+        Runnable send = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    send(buffer);
+                } catch (RuntimeException e) {
+                    // kept in the buffer, and sent again by the retry
+                }
+            }
+        };
+        try {
+            if (delay == 0) {
+                this.scheduler.execute(send);
+            } else {
+                this.scheduler.schedule(send, delay, TimeUnit.MILLISECONDS);
+            }
+        } catch (RejectedExecutionException e) {
+            // the scheduler is shut down; the text is sent with a flush
+            synchronized (buffer) {
+                buffer.scheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Gets the delay before sending again after failures.
+     *
+     * @param attempts the number of failed attempts in a row
+     * @return the delay in milliseconds
+     */
+    private static long retryDelay(final int attempts) {
+        return Math.min(MAX_RETRY_DELAY,
+                MIN_RETRY_DELAY << Math.min(Math.max(attempts - 1, 0), 20));
+    }
+
+    /**
+     * Sends the buffered text of a pad. If it fails, the text is put back
+     * and sent again in the background after a delay growing with the
+     * failures.
+     *
+     * @param buffer the pad's buffer
+     */
+    private void send(final PadBuffer buffer) {
+        synchronized (buffer.sendLock) {
+            String text;
+            int count;
+            synchronized (buffer) {
+                buffer.scheduled = false;
+                if (buffer.text.length() == 0) {
+                    return;
+                }
+                text = buffer.text.toString();
+                count = buffer.appends;
+                buffer.text.setLength(0);
+                buffer.appends = 0;
+            }
+            this.calls.incrementAndGet();
+            try {
+                this.client.appendText(buffer.padId, text);
+            } catch (RuntimeException e) {
+                this.failures.incrementAndGet();
+                boolean retry;
+                long delay;
+                synchronized (buffer) {
+                    buffer.text.insert(0, text);
+                    buffer.appends += count;
+                    buffer.failedAttempts++;
+                    retry = !buffer.scheduled;
+                    buffer.scheduled = true;
+                    delay = retryDelay(buffer.failedAttempts);
+                }
+                if (retry) {
+                    scheduleSend(buffer, delay);
+                }
+                throw e;
+            }
+            synchronized (buffer) {
+                buffer.failedAttempts = 0;
+            }
+        }
+    }
+
+    /**
+     * The buffered text of a pad.
+     */
+    private static final class PadBuffer {
+
+        /** The pad's id string. */
+        private final String padId;
+
+        /** The lock held while sending, keeping the pad's batches in order. */
+        private final Object sendLock = new Object();
+
+        /** The buffered text. Guarded by this. */
+        private final StringBuilder text = new StringBuilder();
+
+        /** The number of buffered appends. Guarded by this. */
+        private int appends;
+
+        /** Whether a send is scheduled. Guarded by this. */
+        private boolean scheduled;
+
+        /** The number of failed sends in a row. Guarded by this. */
+        private int failedAttempts;
+
+        /**
+         * Instantiates a new pad buffer.
+         *
+         * @param padId the pad's id string
+         */
+        private PadBuffer(final String padId) {
+            this.padId = padId;
+        }
+    }
+}
@@ -0,0 +1,1317 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An Etherpad changeset, as returned by getRevisionChangeset, e.g.
+ * <code>Z:9&gt;3|1=4*0+3$abc</code>.<br />
+ * <br />
+ * A changeset transforms a text of length {@link #getOldLength()} into a text
+ * of length {@link #getNewLength()} through a sequence of operations: keep
+ * ('='), remove ('-') and insert ('+'). Each operation covers a number of
+ * characters, of which a number of lines (newlines), and carries a list of
+ * attribute numbers referring to the pad's {@link AttributePool}. The text of
+ * all inserts is stored in the char bank after the '$'.<br />
+ * <br />
+ * Changesets are immutable. The operations are stored in primitive arrays and
+ * are parsed without regular expressions, so large changesets can be handled
+ * with little garbage.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * Changeset cs = Changeset.parse(api.getRevisionChangeset(padId, rev));<br />
+ * String newText = cs.apply(oldText);
+ * </code>
+ */
+public final class Changeset {
+
+    /** The keep opcode. */
+    public static final char KEEP = '=';
+
+    /** The insert opcode. */
+    public static final char INSERT = '+';
+
+    /** The remove opcode. */
+    public static final char REMOVE = '-';
+
+    /** The Constant NO_ATTRIBS. */
+    private static final int[] NO_ATTRIBS = new int[0];
+
+    /** The length of the text the changeset applies to. */
+    private final int oldLen;
+
+    /** The length of the resulting text. */
+    private final int newLen;
+
+    /** The opcode of each operation. */
+    private final char[] opcodes;
+
+    /** The number of characters of each operation. */
+    private final int[] chars;
+
+    /** The number of newlines of each operation. */
+    private final int[] lines;
+
+    /**
+     * The start of the attributes of each operation in attribNums, with one
+     * extra element marking the end of the last operation's attributes.
+     */
+    private final int[] attribOffsets;
+
+    /** The attribute numbers of all operations. */
+    private final int[] attribNums;
+
+    /** The inserted text. */
+    private final String charBank;
+
+    /** The packed form, built lazily. */
+    private String packed;
+
+    /**
+     * Instantiates a new changeset.
+     *
+     * @param oldLen        the old length
+     * @param newLen        the new length
+     * @param opcodes       the opcodes
+     * @param chars         the character counts
+     * @param lines         the line counts
+     * @param attribOffsets the attribute offsets
+     * @param attribNums    the attribute numbers
+     * @param charBank      the char bank
+     */
+    private Changeset(final int oldLen, final int newLen, final char[] opcodes,
+            final int[] chars, final int[] lines, final int[] attribOffsets,
+            final int[] attribNums, final String charBank) {
+        this.oldLen = oldLen;
+        this.newLen = newLen;
+        this.opcodes = opcodes;
+        this.chars = chars;
+        this.lines = lines;
+        this.attribOffsets = attribOffsets;
+        this.attribNums = attribNums;
+        this.charBank = charBank;
+    }
+
+    /**
+     * Parses a packed changeset.
+     *
+     * @param changeset the changeset string
+     * @return the changeset
+     */
+    public static Changeset parse(final String changeset) {
+        Parser parser = new Parser(changeset);
+        if (!changeset.startsWith("Z:")) {
+            throw parser.error("missing 'Z:' header");
+        }
+        parser.pos = 2;
+        int oldLen = parser.number();
+        char sign = parser.next();
+        int delta = parser.number();
+        int newLen;
+        if (sign == '>') {
+            newLen = oldLen + delta;
+        } else if (sign == '<') {
+            newLen = oldLen - delta;
+        } else {
+            throw parser.error("expected '>' or '<'");
+        }
+
+        OpList ops = new OpList();
+        int[] attribs = new int[4];
+        int consumed = 0;
+        int inserted = 0;
+        while (true) {
+            if (parser.pos >= changeset.length()) {
+                throw parser.error("missing '$'");
+            }
+            char c = changeset.charAt(parser.pos);
+            if (c == '$') {
+                parser.pos++;
+                break;
+            }
+            int attribCount = 0;
+            while (c == '*') {
+                parser.pos++;
+                if (attribCount == attribs.length) {
+                    attribs = Arrays.copyOf(attribs, attribCount * 2);
+                }
+                attribs[attribCount++] = parser.number();
+                c = parser.peek();
+            }
+            int opLines = 0;
+            if (c == '|') {
+                parser.pos++;
+                opLines = parser.number();
+            }
+            char opcode = parser.next();
+            if (opcode != KEEP && opcode != INSERT && opcode != REMOVE) {
+                throw parser.error("unknown opcode '" + opcode + "'");
+            }
+            int opChars = parser.number();
+            if (opcode == INSERT) {
+                inserted += opChars;
+            } else {
+                consumed += opChars;
+            }
+            ops.add(opcode, opChars, opLines,
+                    (attribCount == 0) ? NO_ATTRIBS
+                            : Arrays.copyOf(attribs, attribCount));
+        }
+
+        String charBank = changeset.substring(parser.pos);
+        if (inserted != charBank.length()) {
+            throw parser.error("char bank has " + charBank.length()
+                    + " characters, inserts need " + inserted);
+        }
+        if (consumed > oldLen) {
+            throw parser.error("operations consume " + consumed
+                    + " characters of a text of length " + oldLen);
+        }
+        int removed = 0;
+        for (int i = 0; i < ops.size; i++) {
+            if (ops.opcodes[i] == REMOVE) {
+                removed += ops.chars[i];
+            }
+        }
+        if (oldLen - removed + inserted != newLen) {
+            throw parser.error("lengths do not add up");
+        }
+        Changeset result = ops.toChangeset(oldLen, newLen, charBank);
+        result.packed = changeset;
+        return result;
+    }
+
+    /**
+     * Creates a changeset leaving a text of the given length unchanged.
+     *
+     * @param length the text length
+     * @return the changeset
+     */
+    public static Changeset identity(final int length) {
+        return new OpList().toChangeset(length, length, "");
+    }
+
+    /**
+     * Creates a builder for a changeset applying to a text of the given
+     * length.
+     *
+     * @param oldLen the length of the text the changeset applies to
+     * @return the builder
+     */
+    public static Builder builder(final int oldLen) {
+        return new Builder(oldLen);
+    }
+
+    /**
+     * Creates the changeset turning one text into another by keeping their
+     * common prefix and suffix and replacing what is in between. Not a
+     * minimal diff, but cheap and exact for typical single-region edits.
+     *
+     * @param oldText the old text
+     * @param newText the new text
+     * @return the changeset
+     */
+    public static Changeset diff(final CharSequence oldText,
+            final CharSequence newText) {
+        int oldLength = oldText.length();
+        int newLength = newText.length();
+        int prefix = 0;
+        int max = Math.min(oldLength, newLength);
+        while (prefix < max
+                && oldText.charAt(prefix) == newText.charAt(prefix)) {
+            prefix++;
+        }
+        int suffix = 0;
+        while (suffix < max - prefix && oldText.charAt(oldLength - 1 - suffix)
+                == newText.charAt(newLength - 1 - suffix)) {
+            suffix++;
+        }
+        return builder(oldLength).keep(oldText.subSequence(0, prefix))
+                .remove(oldText.subSequence(prefix, oldLength - suffix))
+                .insert(newText.subSequence(prefix, newLength - suffix))
+                .build();
+    }
+
+    /**
+     * Gets the length of the text the changeset applies to.
+     *
+     * @return the old length
+     */
+    public int getOldLength() {
+        return this.oldLen;
+    }
+
+    /**
+     * Gets the length of the resulting text.
+     *
+     * @return the new length
+     */
+    public int getNewLength() {
+        return this.newLen;
+    }
+
+    /**
+     * Gets the number of operations.
+     *
+     * @return the operation count
+     */
+    public int getOpCount() {
+        return this.opcodes.length;
+    }
+
+    /**
+     * Gets the opcode of an operation: {@link #KEEP}, {@link #INSERT} or
+     * {@link #REMOVE}.
+     *
+     * @param op the operation index
+     * @return the opcode
+     */
+    public char getOpcode(final int op) {
+        return this.opcodes[op];
+    }
+
+    /**
+     * Gets the number of characters of an operation.
+     *
+     * @param op the operation index
+     * @return the character count
+     */
+    public int getChars(final int op) {
+        return this.chars[op];
+    }
+
+    /**
+     * Gets the number of newlines of an operation.
+     *
+     * @param op the operation index
+     * @return the line count
+     */
+    public int getLines(final int op) {
+        return this.lines[op];
+    }
+
+    /**
+     * Gets the number of attributes of an operation.
+     *
+     * @param op the operation index
+     * @return the attribute count
+     */
+    public int getAttribCount(final int op) {
+        return this.attribOffsets[op + 1] - this.attribOffsets[op];
+    }
+
+    /**
+     * Gets an attribute number of an operation.
+     *
+     * @param op    the operation index
+     * @param index the attribute index within the operation
+     * @return the attribute number in the pad's pool
+     */
+    public int getAttrib(final int op, final int index) {
+        return this.attribNums[this.attribOffsets[op] + index];
+    }
+
+    /**
+     * Gets the attribute numbers of an operation.
+     *
+     * @param op the operation index
+     * @return a new array of attribute numbers
+     */
+    public int[] getAttribs(final int op) {
+        int start = this.attribOffsets[op];
+        int end = this.attribOffsets[op + 1];
+        return (start == end) ? NO_ATTRIBS
+                : Arrays.copyOfRange(this.attribNums, start, end);
+    }
+
+    /**
+     * Gets the inserted text.
+     *
+     * @return the char bank
+     */
+    public String getCharBank() {
+        return this.charBank;
+    }
+
+    /**
+     * Checks whether the changeset leaves the text unchanged.
+     *
+     * @return true for an identity changeset
+     */
+    public boolean isIdentity() {
+        if (this.oldLen != this.newLen) {
+            return false;
+        }
+        for (int i = 0; i < this.opcodes.length; i++) {
+            if (this.opcodes[i] != KEEP || getAttribCount(i) > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies the changeset to a text.
+     *
+     * @param text the text, of length {@link #getOldLength()}
+     * @return the new text
+     */
+    public String apply(final CharSequence text) {
+        if (text.length() != this.oldLen) {
+            throw new EPLiteException("Changeset applies to a text of length "
+                    + this.oldLen + ", not " + text.length());
+        }
+        StringBuilder out = new StringBuilder(this.newLen);
+        int pos = 0;
+        int bank = 0;
+        for (int i = 0; i < this.opcodes.length; i++) {
+            int n = this.chars[i];
+            switch (this.opcodes[i]) {
+            case KEEP:
+                out.append(text, pos, pos + n);
+                pos += n;
+                break;
+            case REMOVE:
+                pos += n;
+                break;
+            default:
+                out.append(this.charBank, bank, bank + n);
+                bank += n;
+                break;
+            }
+        }
+        out.append(text, pos, this.oldLen);
+        return out.toString();
+    }
+
+    /**
+     * Composes this changeset with the next one, giving a changeset with the
+     * effect of applying this one and then the next.
+     *
+     * @param next the changeset applying to the result of this one
+     * @param pool the pad's attribute pool; new attribute combinations may be
+     *             added to it. May be null if neither changeset has attributes
+     * @return the composed changeset
+     */
+    public Changeset compose(final Changeset next, final AttributePool pool) {
+        if (this.newLen != next.oldLen) {
+            throw new EPLiteException("Cannot compose a changeset producing "
+                    + this.newLen + " characters with one applying to "
+                    + next.oldLen);
+        }
+        OpCursor op1 = new OpCursor(this);
+        OpCursor op2 = new OpCursor(next);
+        SmartAssembler out = new SmartAssembler();
+        StringBuilder bank = new StringBuilder();
+        int bank1 = 0;
+        int bank2 = 0;
+        while (op1.opcode != 0 || op2.opcode != 0) {
+            if (op1.opcode == REMOVE) {
+                out.append(REMOVE, op1.chars, op1.lines, op1.attribs);
+                op1.advance();
+            } else if (op1.opcode == 0) {
+                if (op2.opcode == INSERT) {
+                    bank.append(next.charBank, bank2, bank2 + op2.chars);
+                    bank2 += op2.chars;
+                }
+                out.append(op2.opcode, op2.chars, op2.lines, op2.attribs);
+                op2.advance();
+            } else if (op2.opcode == INSERT) {
+                bank.append(next.charBank, bank2, bank2 + op2.chars);
+                bank2 += op2.chars;
+                out.append(INSERT, op2.chars, op2.lines, op2.attribs);
+                op2.advance();
+            } else if (op2.opcode == 0) {
+                if (op1.opcode == INSERT) {
+                    bank.append(this.charBank, bank1, bank1 + op1.chars);
+                    bank1 += op1.chars;
+                }
+                out.append(op1.opcode, op1.chars, op1.lines, op1.attribs);
+                op1.advance();
+            } else {
+                // op1 keeps or inserts, op2 keeps or removes the same text
+                boolean op2First = op2.chars <= op1.chars;
+                int n = op2First ? op2.chars : op1.chars;
+                int l = op2First ? op2.lines : op1.lines;
+                if (op2.opcode == REMOVE) {
+                    if (op1.opcode == KEEP) {
+                        out.append(REMOVE, n, l, NO_ATTRIBS);
+                    } else {
+                        bank1 += n;
+                    }
+                } else {
+                    int[] attribs = composeAttribs(op1.attribs, op2.attribs,
+                            op1.opcode == KEEP, pool);
+                    if (op1.opcode == INSERT) {
+                        bank.append(this.charBank, bank1, bank1 + n);
+                        bank1 += n;
+                    }
+                    out.append(op1.opcode, n, l, attribs);
+                }
+                op1.consume(n, l);
+                op2.consume(n, l);
+            }
+        }
+        return out.finish().toChangeset(this.oldLen, next.newLen,
+                bank.toString());
+    }
+
+    /**
+     * Creates the changeset undoing this one. Removed text is restored from
+     * the original text, without attributes, and attribute changes made by
+     * keep operations are not undone, as the original attributes are not
+     * known. Use {@link #invert(AttributedText, AttributePool)} to restore
+     * them as well.
+     *
+     * @param oldText the text this changeset was applied to
+     * @return the inverse changeset
+     */
+    public Changeset invert(final CharSequence oldText) {
+        if (oldText.length() != this.oldLen) {
+            throw new EPLiteException("Changeset applies to a text of length "
+                    + this.oldLen + ", not " + oldText.length());
+        }
+        Builder builder = builder(this.newLen);
+        int pos = 0;
+        for (int i = 0; i < this.opcodes.length; i++) {
+            int n = this.chars[i];
+            switch (this.opcodes[i]) {
+            case KEEP:
+                builder.keep(n, this.lines[i]);
+                pos += n;
+                break;
+            case REMOVE:
+                builder.insert(oldText.subSequence(pos, pos + n));
+                pos += n;
+                break;
+            default:
+                builder.remove(n, this.lines[i]);
+                break;
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates the changeset undoing this one, including its attribute
+     * changes. Removed text is restored with its original attributes, and
+     * attributes set by keep operations are reset to their old values.
+     *
+     * @param oldText the attributed text this changeset was applied to
+     * @param pool    the pad's attribute pool; attributes for the old values
+     *                may be added to it
+     * @return the inverse changeset
+     */
+    public Changeset invert(final AttributedText oldText,
+            final AttributePool pool) {
+        if (oldText.length() != this.oldLen) {
+            throw new EPLiteException("Changeset applies to a text of length "
+                    + this.oldLen + ", not " + oldText.length());
+        }
+        Builder builder = builder(this.newLen);
+        int pos = 0;
+        for (int i = 0; i < this.opcodes.length; i++) {
+            int n = this.chars[i];
+            if (this.opcodes[i] == INSERT) {
+                builder.remove(n, this.lines[i]);
+                continue;
+            }
+            if (this.opcodes[i] == KEEP && getAttribCount(i) == 0) {
+                builder.keep(n, this.lines[i]);
+                pos += n;
+                continue;
+            }
+            AttributedText.RunIterator runs = oldText.runs(pos, pos + n);
+            while (runs.next()) {
+                if (this.opcodes[i] == REMOVE) {
+                    builder.insert(runs.getText(), runs.getAttribs());
+                } else {
+                    builder.keep(runs.getText(),
+                            oldValues(i, runs.getAttribs(), pool));
+                }
+            }
+            pos += n;
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the attributes restoring the old values of the attributes an
+     * operation sets. Keys that were not set get an empty value, which
+     * removes them.
+     *
+     * @param op      the operation index
+     * @param old     the old attribute numbers of the text
+     * @param pool    the attribute pool
+     * @return the attribute numbers
+     */
+    private int[] oldValues(final int op, final int[] old,
+            final AttributePool pool) {
+        int[] result = new int[getAttribCount(op)];
+        for (int a = 0; a < result.length; a++) {
+            String key = pool.getKey(getAttrib(op, a));
+            String value = "";
+            for (int num : old) {
+                if (pool.getKey(num).equals(key)) {
+                    value = pool.getValue(num);
+                    break;
+                }
+            }
+            result[a] = pool.putAttrib(key, value);
+        }
+        return result;
+    }
+
+    /**
+     * Composes two attribute lists the way Etherpad does. Attributes of the
+     * second list replace those of the first with the same key. An empty value
+     * removes the key, unless the result is a mutation (a keep operation), in
+     * which case it is kept to remove the attribute when applied.
+     *
+     * @param attribs1         the first attribute numbers
+     * @param attribs2         the second attribute numbers
+     * @param resultIsMutation true if the result describes a change
+     * @param pool             the attribute pool
+     * @return the composed attribute numbers
+     */
+    static int[] composeAttribs(final int[] attribs1, final int[] attribs2,
+            final boolean resultIsMutation, final AttributePool pool) {
+        if (attribs1.length == 0 && resultIsMutation) {
+            return attribs2;
+        }
+        if (attribs2.length == 0) {
+            return attribs1;
+        }
+        List<String[]> atts = new ArrayList<>();
+        for (int num : attribs1) {
+            atts.add(new String[] { pool.getKey(num), pool.getValue(num) });
+        }
+        for (int num : attribs2) {
+            String key = pool.getKey(num);
+            String value = pool.getValue(num);
+            boolean found = false;
+            for (int i = 0; i < atts.size(); i++) {
+                if (atts.get(i)[0].equals(key)) {
+                    if (!value.isEmpty() || resultIsMutation) {
+                        atts.get(i)[1] = value;
+                    } else {
+                        atts.remove(i);
+                    }
+                    found = true;
+                    break;
+                }
+            }
+            if (!found && (!value.isEmpty() || resultIsMutation)) {
+                atts.add(new String[] { key, value });
+            }
+        }
+        // Etherpad sorts the pairs by their string form "key,value"
+        Collections.sort(atts, new Comparator<String[]>() {
+            @Override
+            public int compare(final String[] a, final String[] b) {
+                return (a[0] + "," + a[1]).compareTo(b[0] + "," + b[1]);
+            }
+        });
+        int[] result = new int[atts.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = pool.putAttrib(atts.get(i)[0], atts.get(i)[1]);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the attributes of the changeset to another pool, as changesets
+     * received with their own pool must be before they are applied to a pad
+     * with a different one.
+     *
+     * @param from the pool the attribute numbers refer to
+     * @param to   the pool to refer to; missing attributes are added
+     * @return the changeset with attribute numbers of the new pool
+     */
+    public Changeset moveToPool(final AttributePool from,
+            final AttributePool to) {
+        Builder builder = builder(this.oldLen);
+        int bankPos = 0;
+        for (int i = 0; i < this.opcodes.length; i++) {
+            int[] attribs = new int[getAttribCount(i)];
+            for (int a = 0; a < attribs.length; a++) {
+                int num = getAttrib(i, a);
+                attribs[a] = to.putAttrib(from.getKey(num),
+                        from.getValue(num));
+            }
+            int n = getChars(i);
+            switch (getOpcode(i)) {
+            case KEEP:
+                builder.keep(n, getLines(i), attribs);
+                break;
+            case REMOVE:
+                builder.remove(n, getLines(i));
+                break;
+            default:
+                builder.insert(this.charBank.substring(bankPos, bankPos + n),
+                        attribs);
+                bankPos += n;
+                break;
+            }
+        }
+        return builder.build();
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+        return other instanceof Changeset
+                && toString().equals(other.toString());
+    }
+
+    @Override
+    public int hashCode() {
+        return toString().hashCode();
+    }
+
+    /**
+     * Returns the packed changeset string, as used by Etherpad.
+     *
+     * @return String
+     */
+    @Override
+    public String toString() {
+        String result = this.packed;
+        if (result == null) {
+            StringBuilder out = new StringBuilder(
+                    16 + this.opcodes.length * 4 + this.charBank.length());
+            out.append("Z:").append(Integer.toString(this.oldLen, 36));
+            if (this.newLen >= this.oldLen) {
+                out.append('>').append(
+                        Integer.toString(this.newLen - this.oldLen, 36));
+            } else {
+                out.append('<').append(
+                        Integer.toString(this.oldLen - this.newLen, 36));
+            }
+            for (int i = 0; i < this.opcodes.length; i++) {
+                for (int a = this.attribOffsets[i]; a < this.attribOffsets[i
+                        + 1]; a++) {
+                    out.append('*')
+                            .append(Integer.toString(this.attribNums[a], 36));
+                }
+                if (this.lines[i] > 0) {
+                    out.append('|')
+                            .append(Integer.toString(this.lines[i], 36));
+                }
+                out.append(this.opcodes[i])
+                        .append(Integer.toString(this.chars[i], 36));
+            }
+            out.append('$').append(this.charBank);
+            result = out.toString();
+            this.packed = result;
+        }
+        return result;
+    }
+
+    /**
+     * Counts the newlines in a text.
+     *
+     * @param text  the text
+     * @param start the start index
+     * @param end   the end index
+     * @return the number of newlines
+     */
+    static int countLines(final CharSequence text, final int start,
+            final int end) {
+        int count = 0;
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Builds changesets operation by operation. Adjacent operations of the
+     * same kind are merged, removes are ordered before inserts at the same
+     * position and trailing keeps without attributes are left implicit, so
+     * the result is in Etherpad's canonical form.<br />
+     * <br />
+     * Operations given as text are split at the last newline, as Etherpad
+     * requires; operations given as counts must already end with a newline if
+     * they contain any.
+     */
+    public static final class Builder {
+
+        /** The length of the text the changeset applies to. */
+        private final int oldLen;
+
+        /** The number of characters kept or removed so far. */
+        private int consumed;
+
+        /** The number of characters removed so far. */
+        private int removed;
+
+        /** The inserted text. */
+        private final StringBuilder charBank = new StringBuilder();
+
+        /** The assembler. */
+        private final SmartAssembler assembler = new SmartAssembler();
+
+        /**
+         * Instantiates a new builder.
+         *
+         * @param oldLen the length of the text the changeset applies to
+         */
+        private Builder(final int oldLen) {
+            this.oldLen = oldLen;
+        }
+
+        /**
+         * Keeps characters.
+         *
+         * @param n         the number of characters
+         * @param lineCount the number of newlines among them
+         * @return the builder
+         */
+        public Builder keep(final int n, final int lineCount) {
+            return keep(n, lineCount, NO_ATTRIBS);
+        }
+
+        /**
+         * Keeps characters, applying attributes to them.
+         *
+         * @param n         the number of characters
+         * @param lineCount the number of newlines among them
+         * @param attribs   the attribute numbers to apply
+         * @return the builder
+         */
+        public Builder keep(final int n, final int lineCount,
+                final int[] attribs) {
+            consume(n);
+            this.assembler.append(KEEP, n, lineCount, attribs);
+            return this;
+        }
+
+        /**
+         * Keeps the given text.
+         *
+         * @param text the kept text
+         * @return the builder
+         */
+        public Builder keep(final CharSequence text) {
+            return keep(text, NO_ATTRIBS);
+        }
+
+        /**
+         * Keeps the given text, applying attributes to it.
+         *
+         * @param text    the kept text
+         * @param attribs the attribute numbers to apply
+         * @return the builder
+         */
+        public Builder keep(final CharSequence text, final int[] attribs) {
+            consume(text.length());
+            appendText(KEEP, text, attribs);
+            return this;
+        }
+
+        /**
+         * Removes characters.
+         *
+         * @param n         the number of characters
+         * @param lineCount the number of newlines among them
+         * @return the builder
+         */
+        public Builder remove(final int n, final int lineCount) {
+            consume(n);
+            this.removed += n;
+            this.assembler.append(REMOVE, n, lineCount, NO_ATTRIBS);
+            return this;
+        }
+
+        /**
+         * Removes the given text.
+         *
+         * @param text the removed text
+         * @return the builder
+         */
+        public Builder remove(final CharSequence text) {
+            consume(text.length());
+            this.removed += text.length();
+            appendText(REMOVE, text, NO_ATTRIBS);
+            return this;
+        }
+
+        /**
+         * Inserts text.
+         *
+         * @param text the inserted text
+         * @return the builder
+         */
+        public Builder insert(final CharSequence text) {
+            return insert(text, NO_ATTRIBS);
+        }
+
+        /**
+         * Inserts text with attributes.
+         *
+         * @param text    the inserted text
+         * @param attribs the attribute numbers of the text
+         * @return the builder
+         */
+        public Builder insert(final CharSequence text, final int[] attribs) {
+            this.charBank.append(text);
+            appendText(INSERT, text, attribs);
+            return this;
+        }
+
+        /**
+         * Builds the changeset.
+         *
+         * @return the changeset
+         */
+        public Changeset build() {
+            int newLen = this.oldLen - this.removed + this.charBank.length();
+            return this.assembler.finish().toChangeset(this.oldLen, newLen,
+                    this.charBank.toString());
+        }
+
+        /**
+         * Appends an operation for a text, split into the part up to the last
+         * newline and the rest.
+         *
+         * @param opcode  the opcode
+         * @param text    the text
+         * @param attribs the attribute numbers
+         */
+        private void appendText(final char opcode, final CharSequence text,
+                final int[] attribs) {
+            int length = text.length();
+            int lastNewline = length - 1;
+            while (lastNewline >= 0 && text.charAt(lastNewline) != '\n') {
+                lastNewline--;
+            }
+            if (lastNewline >= 0) {
+                this.assembler.append(opcode, lastNewline + 1,
+                        countLines(text, 0, lastNewline + 1), attribs);
+            }
+            this.assembler.append(opcode, length - lastNewline - 1, 0,
+                    attribs);
+        }
+
+        /**
+         * Checks that the operations stay within the old text.
+         *
+         * @param n the number of characters to consume
+         */
+        private void consume(final int n) {
+            if (n < 0 || this.consumed + n > this.oldLen) {
+                throw new EPLiteException("Changeset operation exceeds the "
+                        + "old text length " + this.oldLen);
+            }
+            this.consumed += n;
+        }
+    }
+
+    /**
+     * A cursor over the operations of a changeset which can consume parts of
+     * an operation.
+     */
+    private static final class OpCursor {
+
+        /** The changeset. */
+        private final Changeset changeset;
+
+        /** The index of the next operation. */
+        private int next;
+
+        /** The current opcode, 0 when exhausted. */
+        private char opcode;
+
+        /** The remaining characters of the current operation. */
+        private int chars;
+
+        /** The remaining lines of the current operation. */
+        private int lines;
+
+        /** The attributes of the current operation. */
+        private int[] attribs;
+
+        /**
+         * Instantiates a new cursor at the first operation.
+         *
+         * @param changeset the changeset
+         */
+        private OpCursor(final Changeset changeset) {
+            this.changeset = changeset;
+            advance();
+        }
+
+        /**
+         * Moves to the next operation.
+         */
+        private void advance() {
+            if (this.next < this.changeset.opcodes.length) {
+                int i = this.next++;
+                this.opcode = this.changeset.opcodes[i];
+                this.chars = this.changeset.chars[i];
+                this.lines = this.changeset.lines[i];
+                this.attribs = this.changeset.getAttribs(i);
+            } else {
+                this.opcode = 0;
+                this.chars = 0;
+                this.lines = 0;
+                this.attribs = NO_ATTRIBS;
+            }
+        }
+
+        /**
+         * Consumes part of the current operation.
+         *
+         * @param n the number of characters
+         * @param l the number of lines
+         */
+        private void consume(final int n, final int l) {
+            this.chars -= n;
+            this.lines -= l;
+            if (this.chars == 0) {
+                advance();
+            }
+        }
+    }
+
+    /**
+     * Merges consecutive operations with the same opcode and attributes, as
+     * Etherpad's MergingOpAssembler.
+     */
+    private static final class MergingAssembler {
+
+        /** The assembled operations. */
+        private final OpList out = new OpList();
+
+        /** The buffered opcode, 0 if none. */
+        private char opcode;
+
+        /** The buffered characters. */
+        private int chars;
+
+        /** The buffered lines. */
+        private int lines;
+
+        /** The buffered attributes. */
+        private int[] attribs;
+
+        /** Characters after the last newline of a multi-line operation. */
+        private int charsAfterNewline;
+
+        /**
+         * Appends an operation.
+         *
+         * @param op      the opcode
+         * @param n       the characters
+         * @param l       the lines
+         * @param attribs the attributes
+         */
+        private void append(final char op, final int n, final int l,
+                final int[] attribs) {
+            if (n <= 0) {
+                return;
+            }
+            if (this.opcode == op && Arrays.equals(this.attribs, attribs)) {
+                if (l > 0) {
+                    this.chars += this.charsAfterNewline + n;
+                    this.lines += l;
+                    this.charsAfterNewline = 0;
+                } else if (this.lines == 0) {
+                    this.chars += n;
+                } else {
+                    this.charsAfterNewline += n;
+                }
+            } else {
+                flush(false);
+                this.opcode = op;
+                this.chars = n;
+                this.lines = l;
+                this.attribs = attribs;
+            }
+        }
+
+        /**
+         * Writes the buffered operation.
+         *
+         * @param endOfDocument true to drop a final keep without attributes
+         */
+        private void flush(final boolean endOfDocument) {
+            if (this.opcode == 0) {
+                return;
+            }
+            if (!endOfDocument || this.opcode != KEEP
+                    || this.attribs.length > 0) {
+                this.out.add(this.opcode, this.chars, this.lines, this.attribs);
+                if (this.charsAfterNewline > 0) {
+                    this.out.add(this.opcode, this.charsAfterNewline, 0,
+                            this.attribs);
+                }
+            }
+            this.charsAfterNewline = 0;
+            this.opcode = 0;
+        }
+
+        /**
+         * Moves the assembled operations to another list.
+         *
+         * @param target the target list
+         */
+        private void drainTo(final OpList target) {
+            flush(false);
+            target.addAll(this.out);
+            this.out.size = 0;
+        }
+    }
+
+    /**
+     * Assembles operations in canonical order, as Etherpad's
+     * SmartOpAssembler: between keeps, all removes come before all inserts.
+     */
+    private static final class SmartAssembler {
+
+        /** The assembled operations. */
+        private final OpList out = new OpList();
+
+        /** The pending removes. */
+        private final MergingAssembler removes = new MergingAssembler();
+
+        /** The pending inserts. */
+        private final MergingAssembler inserts = new MergingAssembler();
+
+        /** The pending keeps. */
+        private final MergingAssembler keeps = new MergingAssembler();
+
+        /** The last opcode, 0 if none. */
+        private char lastOpcode;
+
+        /**
+         * Appends an operation.
+         *
+         * @param op      the opcode
+         * @param n       the characters
+         * @param l       the lines
+         * @param attribs the attributes
+         */
+        private void append(final char op, final int n, final int l,
+                final int[] attribs) {
+            if (n <= 0) {
+                return;
+            }
+            if (op == KEEP) {
+                if (this.lastOpcode != KEEP) {
+                    this.removes.drainTo(this.out);
+                    this.inserts.drainTo(this.out);
+                }
+                this.keeps.append(op, n, l, attribs);
+            } else {
+                if (this.lastOpcode == KEEP) {
+                    this.keeps.drainTo(this.out);
+                }
+                (op == REMOVE ? this.removes : this.inserts).append(op, n, l,
+                        attribs);
+            }
+            this.lastOpcode = op;
+        }
+
+        /**
+         * Finishes the document.
+         *
+         * @return the operations
+         */
+        private OpList finish() {
+            this.removes.drainTo(this.out);
+            this.inserts.drainTo(this.out);
+            this.keeps.flush(true);
+            this.out.addAll(this.keeps.out);
+            return this.out;
+        }
+    }
+
+    /**
+     * A growable list of operations.
+     */
+    private static final class OpList {
+
+        /** The opcodes. */
+        private char[] opcodes = new char[8];
+
+        /** The character counts. */
+        private int[] chars = new int[8];
+
+        /** The line counts. */
+        private int[] lines = new int[8];
+
+        /** The attributes. */
+        private int[][] attribs = new int[8][];
+
+        /** The number of operations. */
+        private int size;
+
+        /**
+         * Adds an operation.
+         *
+         * @param op      the opcode
+         * @param n       the characters
+         * @param l       the lines
+         * @param attrib  the attributes
+         */
+        private void add(final char op, final int n, final int l,
+                final int[] attrib) {
+            if (this.size == this.opcodes.length) {
+                int capacity = this.size * 2;
+                this.opcodes = Arrays.copyOf(this.opcodes, capacity);
+                this.chars = Arrays.copyOf(this.chars, capacity);
+                this.lines = Arrays.copyOf(this.lines, capacity);
+                this.attribs = Arrays.copyOf(this.attribs, capacity);
+            }
+            this.opcodes[this.size] = op;
+            this.chars[this.size] = n;
+            this.lines[this.size] = l;
+            this.attribs[this.size] = attrib;
+            this.size++;
+        }
+
+        /**
+         * Adds all operations of another list.
+         *
+         * @param other the other list
+         */
+        private void addAll(final OpList other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.opcodes[i], other.chars[i], other.lines[i],
+                        other.attribs[i]);
+            }
+        }
+
+        /**
+         * Creates a changeset from the operations.
+         *
+         * @param oldLen   the old length
+         * @param newLen   the new length
+         * @param charBank the char bank
+         * @return the changeset
+         */
+        private Changeset toChangeset(final int oldLen, final int newLen,
+                final String charBank) {
+            int[] offsets = new int[this.size + 1];
+            int total = 0;
+            for (int i = 0; i < this.size; i++) {
+                offsets[i] = total;
+                total += this.attribs[i].length;
+            }
+            offsets[this.size] = total;
+            int[] nums = new int[total];
+            for (int i = 0; i < this.size; i++) {
+                System.arraycopy(this.attribs[i], 0, nums, offsets[i],
+                        this.attribs[i].length);
+            }
+            return new Changeset(oldLen, newLen,
+                    Arrays.copyOf(this.opcodes, this.size),
+                    Arrays.copyOf(this.chars, this.size),
+                    Arrays.copyOf(this.lines, this.size), offsets, nums,
+                    charBank);
+        }
+    }
+
+    /**
+     * Reads base 36 numbers and characters from a packed changeset.
+     */
+    private static final class Parser {
+
+        /** The changeset string. */
+        private final String input;
+
+        /** The position. */
+        private int pos;
+
+        /**
+         * Instantiates a new parser.
+         *
+         * @param input the changeset string
+         */
+        private Parser(final String input) {
+            this.input = input;
+        }
+
+        /**
+         * Reads a base 36 number.
+         *
+         * @return the number
+         */
+        private int number() {
+            int start = this.pos;
+            long value = 0;
+            while (this.pos < this.input.length()) {
+                char c = this.input.charAt(this.pos);
+                int digit;
+                if (c >= '0' && c <= '9') {
+                    digit = c - '0';
+                } else if (c >= 'a' && c <= 'z') {
+                    digit = c - 'a' + 10;
+                } else {
+                    break;
+                }
+                value = value * 36 + digit;
+                if (value > Integer.MAX_VALUE) {
+                    throw error("number too large");
+                }
+                this.pos++;
+            }
+            if (this.pos == start) {
+                throw error("expected a number");
+            }
+            return (int) value;
+        }
+
+        /**
+         * Reads a character.
+         *
+         * @return the character
+         */
+        private char next() {
+            char c = peek();
+            this.pos++;
+            return c;
+        }
+
+        /**
+         * Gets the current character.
+         *
+         * @return the character
+         */
+        private char peek() {
+            if (this.pos >= this.input.length()) {
+                throw error("unexpected end");
+            }
+            return this.input.charAt(this.pos);
+        }
+
+        /**
+         * Creates a parse error.
+         *
+         * @param message the message
+         * @return the exception
+         */
+        private EPLiteException error(final String message) {
+            return new EPLiteException("Invalid changeset at position "
+                    + this.pos + " (" + message + "): " + abbreviate());
+        }
+
+        /**
+         * Abbreviates the input for error messages.
+         *
+         * @return the abbreviated input
+         */
+        private String abbreviate() {
+            return (this.input.length() <= 80) ? this.input
+                    : this.input.substring(0, 77) + "...";
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package net.gjerull.etherpad.client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Iterates over the chat messages of a pad, fetching them in pages with
+ * getChatHistory ranges so a long chat is never held in memory at once.
+ * Each message is a Map with "text", "userId", "time" and "userName".<br />
+ * <br />
+ * While a page is consumed, the next page is fetched on the given executor,
+ * so at most two pages are held. Without tailing, the iterator ends at the
+ * chat head seen when it started. When tailing, it polls getChatHead once
+ * the known messages are consumed and fetches only the new range;
+ * {@link #hasNext()} then blocks until a new message arrives or the
+ * iterator is closed, from another thread.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * ChatHistoryIterator chat = new ChatHistoryIterator(api, executor,
+ * "my_pad", 100);<br />
+ * while (chat.hasNext()) {<br />
+ * Map message = chat.next();<br />
+ * ...<br />
+ * }
+ * </code>
+ */
+public class ChatHistoryIterator implements Iterator<Map>, Closeable {
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor fetching pages. */
+    private final ExecutorService executor;
+
+    /** The pad's id string. */
+    private final String padId;
+
+    /** The number of messages of a page. */
+    private final int pageSize;
+
+    /** The interval between getChatHead polls when tailing, or 0. */
+    private final long pollInterval;
+
+    /** The index of the last message known, or -2 before it is fetched. */
+    private long head = -2;
+
+    /** The index of the first message not yet fetched. */
+    private long fetchFrom;
+
+    /** The index of the next message returned. */
+    private long index;
+
+    /** The page being consumed. */
+    private List<Map> page = Collections.emptyList();
+
+    /** The position in the page. */
+    private int position;
+
+    /** The next page being fetched, or null. */
+    private Future<List<Map>> prefetch;
+
+    /** The index of the first message of the next page being fetched. */
+    private long prefetchFrom;
+
+    /** Whether the iterator is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates an iterator over the whole chat history of a pad, up to
+     * the chat head when it starts.
+     *
+     * @param client   the client
+     * @param executor the executor fetching pages
+     * @param padId    the pad's id string
+     * @param pageSize the number of messages of a page
+     */
+    public ChatHistoryIterator(final EPLiteClient client,
+            final ExecutorService executor, final String padId,
+            final int pageSize) {
+        this(client, executor, padId, 0, pageSize, 0);
+    }
+
+    /**
+     * Instantiates an iterator over the chat messages of a pad from an
+     * index, which tails the chat if a poll interval is given.
+     *
+     * @param client       the client
+     * @param executor     the executor fetching pages
+     * @param padId        the pad's id string
+     * @param start        the index of the first message
+     * @param pageSize     the number of messages of a page
+     * @param pollInterval the interval between getChatHead polls once the
+     *                     known messages are consumed, in milliseconds, or
+     *                     0 to end there
+     */
+    public ChatHistoryIterator(final EPLiteClient client,
+            final ExecutorService executor, final String padId,
+            final long start, final int pageSize, final long pollInterval) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException(
+                    "pageSize must be positive: " + pageSize);
+        }
+        this.client = client;
+        this.executor = executor;
+        this.padId = padId;
+        this.fetchFrom = start;
+        this.index = start;
+        this.pageSize = pageSize;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Checks whether there is another message. When tailing, waits until a
+     * new message arrives or the iterator is closed. If a page cannot be
+     * fetched, the error is thrown and the page is fetched again by the next
+     * call.
+     *
+     * @return true if there is another message
+     */
+    @Override
+    public final boolean hasNext() {
+        while (!this.closed) {
+            if (this.position < this.page.size()) {
+                return true;
+            }
+            if (this.head == -2) {
+                this.head = chatHead();
+            }
+            prefetch();
+            if (this.prefetch != null) {
+                try {
+                    this.page = get(this.prefetch);
+                } catch (EPLiteException e) {
+                    // the page is fetched again by the next call
+                    this.prefetch = null;
+                    this.fetchFrom = this.prefetchFrom;
+                    throw e;
+                }
+                this.position = 0;
+                this.prefetch = null;
+                prefetch();
+                continue;
+            }
+            if (this.pollInterval <= 0) {
+                return false;
+            }
+            try {
+                Thread.sleep(this.pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            this.head = chatHead();
+            prefetch();
+        }
+        return false;
+    }
+
+    /**
+     * Gets the next message.
+     *
+     * @return the message
+     */
+    @Override
+    public final Map next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        this.index++;
+        return this.page.get(this.position++);
+    }
+
+    /**
+     * Not supported, chat messages cannot be removed.
+     */
+    @Override
+    public final void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Ends the iteration, also while {@link #hasNext()} waits for new
+     * messages.
+     */
+    @Override
+    public final void close() {
+        this.closed = true;
+    }
+
+    /**
+     * Gets the index of the next message to be returned.
+     *
+     * @return the index
+     */
+    public final long getIndex() {
+        return this.index;
+    }
+
+    /**
+     * Starts fetching the next page, if there are unfetched messages up to
+     * the chat head.
+     */
+    private void prefetch() {
+        if (this.prefetch != null || this.fetchFrom > this.head) {
+            return;
+        }
+        final long start = this.fetchFrom;
+        final long end = Math.min(start + this.pageSize - 1, this.head);
+        this.prefetchFrom = start;
+        this.fetchFrom = end + 1;
+        this.prefetch = this.executor.submit(new Callable<List<Map>>() {
+            @Override
+            public List<Map> call() {
+                Object messages = ChatHistoryIterator.this.client
+                        .getChatHistory(ChatHistoryIterator.this.padId, start,
+                                end)
+                        .get("messages");
+                List<Map> page = new ArrayList<>();
+                if (messages instanceof List) {
+                    for (Object message : (List) messages) {
+                        if (message instanceof Map) {
+                            page.add((Map) message);
+                        }
+                    }
+                }
+                return page;
+            }
+        });
+    }
+
+    /**
+     * Gets the index of the last chat message.
+     *
+     * @return the chat head, or -1 if the chat is empty
+     */
+    private long chatHead() {
+        Object chatHead = this.client.getChatHead(this.padId).get("chatHead");
+        return (chatHead instanceof Number) ? ((Number) chatHead).longValue()
+                : -1;
+    }
+
+    /**
+     * Waits for a page.
+     *
+     * @param future the future page
+     * @return the page
+     */
+    private static List<Map> get(final Future<List<Map>> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EPLiteException(
+                    "Interrupted while fetching chat messages", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EPLiteException) {
+                throw (EPLiteException) e.getCause();
+            }
+            throw new EPLiteException("Unable to fetch chat messages",
+                    e.getCause());
+        }
+    }
+}
@@ -0,0 +1,431 @@
+package net.gjerull.etherpad.client;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Debounces setText and setHTML calls: only the latest text or html written
+ * to a pad is kept, and it is sent once no write came for a quiet period, or
+ * once the first unsent write has waited the maximum delay. A write which is
+ * superseded before it is sent never reaches Etherpad.<br />
+ * <br />
+ * Sends run on the given scheduler, so its thread count bounds the number of
+ * concurrent calls. A pad's writes are sent while holding the pad's send
+ * lock, so an older write never overtakes a newer one. If sending fails and
+ * no newer write came meanwhile, the write is kept; the pad's latest write
+ * is then sent again in the background after a delay which doubles with each
+ * failure, up to the maximum delay, or sent with the next flush. A write
+ * which the scheduler rejects is kept until the next write to the pad or
+ * the next flush. A pad is forgotten once its writes are sent.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * DebouncedWriter writer = new DebouncedWriter(api, scheduler, 500,
+ * 5000);<br />
+ * writer.setText("my_pad", text);<br />
+ * writer.close();
+ * </code>
+ */
+public class DebouncedWriter implements Flushable, Closeable {
+
+    /** The first retry delay, in milliseconds. */
+    private static final long MIN_RETRY_DELAY = 100;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The scheduler sending writes in the background. */
+    private final ScheduledExecutorService scheduler;
+
+    /** The quiet period after the last write, in milliseconds. */
+    private final long quietPeriod;
+
+    /** The longest time a write waits, in milliseconds. */
+    private final long maxDelay;
+
+    /** The pads with writes not yet sent, by pad id. Guarded by itself. */
+    private final Map<String, PadWrite> writes = new HashMap<>();
+
+    /** The number of writes. */
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /** The number of writes superseded before they were sent. */
+    private final AtomicLong superseded = new AtomicLong();
+
+    /** The number of setText and setHTML calls. */
+    private final AtomicLong calls = new AtomicLong();
+
+    /** The number of failed calls. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** Whether the writer is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new debounced writer.
+     *
+     * @param client      the client
+     * @param scheduler   the scheduler sending writes in the background
+     * @param quietPeriod the time without writes to a pad after which its
+     *                    latest write is sent, in milliseconds
+     * @param maxDelay    the longest time a write waits, in milliseconds
+     */
+    public DebouncedWriter(final EPLiteClient client,
+            final ScheduledExecutorService scheduler, final long quietPeriod,
+            final long maxDelay) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Sets the text of a pad later, unless a newer write supersedes it.
+     *
+     * @param padId the pad's id string
+     * @param text  the new text
+     */
+    public final void setText(final String padId, final String text) {
+        write(padId, text, false);
+    }
+
+    /**
+     * Sets the html of a pad later, unless a newer write supersedes it.
+     *
+     * @param padId the pad's id string
+     * @param html  the new html
+     */
+    public final void setHTML(final String padId, final String html) {
+        write(padId, html, true);
+    }
+
+    /**
+     * Sends the pending writes of all pads and waits until they are sent.
+     *
+     * @throws EPLiteException if sending to a pad failed; the other pads are
+     *                         sent
+     */
+    @Override
+    public final void flush() {
+        List<PadWrite> all;
+        synchronized (this.writes) {
+            all = new ArrayList<>(this.writes.values());
+        }
+        EPLiteException failure = null;
+        for (PadWrite write : all) {
+            try {
+                send(write);
+            } catch (EPLiteException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Sends the pending write of a pad and waits until it is sent.
+     *
+     * @param padId the pad's id string
+     */
+    public final void flush(final String padId) {
+        PadWrite write;
+        synchronized (this.writes) {
+            write = this.writes.get(padId);
+        }
+        if (write != null) {
+            send(write);
+        }
+    }
+
+    /**
+     * Sends the pending writes and stops accepting writes.
+     */
+    @Override
+    public final void close() {
+        this.closed = true;
+        flush();
+    }
+
+    /**
+     * Gets the number of writes.
+     *
+     * @return the write count
+     */
+    public final long getWriteCount() {
+        return this.writeCount.get();
+    }
+
+    /**
+     * Gets the number of writes superseded by a newer write before they were
+     * sent.
+     *
+     * @return the superseded count
+     */
+    public final long getSupersededCount() {
+        return this.superseded.get();
+    }
+
+    /**
+     * Gets the number of setText and setHTML calls made.
+     *
+     * @return the call count
+     */
+    public final long getCallCount() {
+        return this.calls.get();
+    }
+
+    /**
+     * Gets the number of failed calls.
+     *
+     * @return the failure count
+     */
+    public final long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Gets the number of pads whose writes are not all sent yet.
+     *
+     * @return the pending pad count
+     */
+    public final int getPendingPadCount() {
+        synchronized (this.writes) {
+            return this.writes.size();
+        }
+    }
+
+    /**
+     * Replaces the pending write of a pad and schedules its send.
+     *
+     * @param padId the pad's id string
+     * @param value the text or html
+     * @param html  whether the value is html
+     */
+    private void write(final String padId, final String value,
+            final boolean html) {
+        if (this.closed) {
+            throw new EPLiteException("The writer is closed");
+        }
+        long now = System.currentTimeMillis();
+        PadWrite write;
+        boolean schedule;
+        while (true) {
+            synchronized (this.writes) {
+                write = this.writes.get(padId);
+                if (write == null) {
+                    write = new PadWrite(padId);
+                    this.writes.put(padId, write);
+                }
+            }
+            synchronized (write) {
+                if (write.removed) {
+                    // forgotten after its last send; use the new one
+                    continue;
+                }
+                if (write.value != null) {
+                    this.superseded.incrementAndGet();
+                } else {
+                    write.first = now;
+                }
+                write.value = value;
+                write.html = html;
+                write.last = now;
+                schedule = !write.scheduled;
+                write.scheduled = true;
+            }
+            break;
+        }
+        this.writeCount.incrementAndGet();
+        if (schedule) {
+            schedule(write, this.quietPeriod);
+        }
+    }
+
+    /**
+     * Schedules a check of a pad's write, which sends it if it is due and
+     * schedules another check otherwise. Rescheduling on each write is
+     * avoided this way. If the scheduler rejects the check, the write is
+     * kept unscheduled, so the next write to the pad schedules it again.
+     *
+     * @param write the pad's write
+     * @param delay the delay in milliseconds
+     */
+    private void schedule(final PadWrite write, final long delay) {
+        try {
+            this.scheduler.schedule(check(write), delay,
+                    TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the scheduler is shut down or full; sent with a flush
+            synchronized (write) {
+                write.scheduled = false;
+            }
+        }
+    }
+
+    /**
+     * Creates the check of a pad's write.
+     *
+     * @param write the pad's write
+     * @return the check
+     */
+    private Runnable check(final PadWrite write) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long wait;
+                synchronized (write) {
+                    if (write.value == null) {
+                        write.scheduled = false;
+                        return;
+                    }
+                    long due = Math.min(write.last + DebouncedWriter.this
+                            .quietPeriod, write.first
+                            + DebouncedWriter.this.maxDelay);
+                    wait = Math.max(due, write.retryAt)
+                            - System.currentTimeMillis();
+                }
+                if (wait > 0) {
+                    schedule(write, wait);
+                    return;
+                }
+                try {
+                    send(write);
+                } catch (RuntimeException e) {
+                    // kept, and sent again by the retry
+                }
+            }
+        };
+    }
+
+    /**
+     * Sends the pending write of a pad. If it fails, the pad's latest write
+     * is sent again in the background after a growing delay.
+     *
+     * @param write the pad's write
+     */
+    private void send(final PadWrite write) {
+        synchronized (write.sendLock) {
+            String value;
+            boolean html;
+            long first;
+            synchronized (write) {
+                write.scheduled = false;
+                if (write.value == null) {
+                    return;
+                }
+                value = write.value;
+                html = write.html;
+                first = write.first;
+                write.value = null;
+            }
+            this.calls.incrementAndGet();
+            try {
+                if (html) {
+                    this.client.setHTML(write.padId, value);
+                } else {
+                    this.client.setText(write.padId, value);
+                }
+            } catch (RuntimeException e) {
+                this.failures.incrementAndGet();
+                boolean retry;
+                long delay;
+                synchronized (write) {
+                    if (write.value == null) {
+                        write.value = value;
+                        write.html = html;
+                        write.first = first;
+                    }
+                    write.failedAttempts++;
+                    delay = Math.min(this.maxDelay, MIN_RETRY_DELAY
+                            << Math.min(write.failedAttempts - 1, 20));
+                    write.retryAt = System.currentTimeMillis() + delay;
+                    retry = !write.scheduled;
+                    write.scheduled = true;
+                }
+                if (retry) {
+                    schedule(write, delay);
+                }
+                throw e;
+            }
+            synchronized (write) {
+                write.failedAttempts = 0;
+                write.retryAt = 0;
+            }
+            forget(write);
+        }
+    }
+
+    /**
+     * Forgets a pad whose writes are all sent, so the pending writes do not
+     * grow with every pad ever written. A newer write creates a new entry.
+     *
+     * @param write the pad's write
+     */
+    private void forget(final PadWrite write) {
+        synchronized (this.writes) {
+            synchronized (write) {
+                if (write.value == null && !write.scheduled
+                        && this.writes.get(write.padId) == write) {
+                    write.removed = true;
+                    this.writes.remove(write.padId);
+                }
+            }
+        }
+    }
+
+    /**
+     * The pending write of a pad.
+     */
+    private static final class PadWrite {
+
+        /** The pad's id string. */
+        private final String padId;
+
+        /** The lock held while sending, keeping the pad's writes in order. */
+        private final Object sendLock = new Object();
+
+        /** The pending text or html, or null. Guarded by this. */
+        private String value;
+
+        /** Whether the pending value is html. Guarded by this. */
+        private boolean html;
+
+        /** The time of the first unsent write. Guarded by this. */
+        private long first;
+
+        /** The time of the last write. Guarded by this. */
+        private long last;
+
+        /** Whether a check is scheduled. Guarded by this. */
+        private boolean scheduled;
+
+        /** The number of failed sends in a row. Guarded by this. */
+        private int failedAttempts;
+
+        /** The time before which no retry is sent. Guarded by this. */
+        private long retryAt;
+
+        /** Whether the pad was forgotten. Guarded by this. */
+        private boolean removed;
+
+        /**
+         * Instantiates a new pad write.
+         *
+         * @param padId the pad's id string
+         */
+        private PadWrite(final String padId) {
+            this.padId = padId;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package net.gjerull.etherpad.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes the differences between two revisions of a pad locally, in the
+ * format of the createDiffHTML API method, from the changesets between them.
+ * <br />
+ * <br />
+ * As Etherpad does, the authorship of the start revision is cleared, the
+ * changesets are composed, text removed by them is kept and marked with a
+ * "removed" attribute, and inserted text keeps the author who wrote it. The
+ * result is rendered with author colors, line by line, and can be written
+ * to an {@link Appendable}. The diff text itself, the end revision with the
+ * removed text kept, is built in memory first, so memory grows with the
+ * size of the pad, not only with the size of the changes.<br />
+ * <br />
+ * The history store keeps plain text keyframes, without attributes, so
+ * {@link #createDiffHTML(RevisionHistoryStore, String, long, long)} rebuilds
+ * the start revision by applying every changeset from revision 0: its cost
+ * grows with the start revision. For repeated diffs of a long history, keep
+ * the attributed text of a recent revision, for example from a
+ * {@link PadMirror}, and pass it with the following changesets.<br />
+ * <br />
+ * Author colors are not part of a pad's changesets; the style sheet only
+ * contains the authors whose colors are given to the engine, for example
+ * from getAuthorColorPalette and the author pool.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * DiffEngine engine = new DiffEngine(pool);<br />
+ * Map diff = engine.createDiffHTML(store, "my_pad", 10, 20);<br />
+ * String html = (String) diff.get("html");
+ * </code>
+ */
+public class DiffEngine {
+
+    /** The Constant REMOVED. */
+    private static final String REMOVED = "removed";
+
+    /** The Constant REMOVED_STYLE, as in Etherpad's export. */
+    private static final String REMOVED_STYLE = ".removed {"
+            + "text-decoration: line-through; "
+            + "-ms-filter:'progid:DXImageTransform.Microsoft.Alpha("
+            + "Opacity=80)'; filter: alpha(opacity=80); opacity: 0.8; }";
+
+    /** The pad's attribute pool. */
+    private final AttributePool pool;
+
+    /** The colors of authors, keyed by author id. */
+    private final Map<String, String> authorColors;
+
+    /** The renderer, with author colors. */
+    private final HtmlRenderer renderer = new HtmlRenderer(1, true);
+
+    /**
+     * Instantiates a new diff engine without author colors.
+     *
+     * @param pool the pad's attribute pool
+     */
+    public DiffEngine(final AttributePool pool) {
+        this(pool, Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Instantiates a new diff engine.
+     *
+     * @param pool         the pad's attribute pool; the "removed" attribute
+     *                     is added to it
+     * @param authorColors the css colors of authors, keyed by author id
+     */
+    public DiffEngine(final AttributePool pool,
+            final Map<String, String> authorColors) {
+        this.pool = pool;
+        this.authorColors = authorColors;
+    }
+
+    /**
+     * Creates the diff html of changesets applied to a text.
+     *
+     * @param base       the text of the start revision, with its attributes
+     * @param changesets the changesets following the start revision
+     * @return a map with the "html" and the "authors" of the changes, as
+     *         returned by createDiffHTML
+     */
+    public final Map<String, Object> createDiffHTML(final AttributedText base,
+            final Iterable<Changeset> changesets) {
+        StringBuilder html = new StringBuilder(base.length() * 2 + 512);
+        List<String> authors;
+        try {
+            authors = createDiffHTML(base, changesets, html);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        Map<String, Object> diff = new HashMap<>();
+        diff.put("html", html.toString());
+        diff.put("authors", authors);
+        return diff;
+    }
+
+    /**
+     * Writes the diff html of changesets applied to a text. The diff text is
+     * built in memory, then rendered to the output line by line.
+     *
+     * @param base       the text of the start revision, with its attributes
+     * @param changesets the changesets following the start revision
+     * @param out        the output
+     * @return the authors of the changes, in order of appearance
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final List<String> createDiffHTML(final AttributedText base,
+            final Iterable<Changeset> changesets, final Appendable out)
+            throws IOException {
+        Set<String> authors = new LinkedHashSet<>();
+        AttributedText diff = diff(base, changesets, authors);
+        out.append("<style>\n");
+        for (Map.Entry<String, String> color : this.authorColors.entrySet()) {
+            out.append('.').append(HtmlRenderer.authorClass(color.getKey()))
+                    .append(" {background-color: ").append(color.getValue())
+                    .append("}\n");
+        }
+        out.append(REMOVED_STYLE).append("\n</style>");
+        this.renderer.renderBody(diff, this.pool, out);
+        return new ArrayList<>(authors);
+    }
+
+    /**
+     * Creates the diff html of two revisions of a pad from the changesets
+     * in a history store. The store must hold the revisions up to the end
+     * revision. The start revision is rebuilt from all changesets up to it,
+     * as the store's keyframes do not keep attributes, so a call takes time
+     * in proportion to the start revision.
+     *
+     * @param store    the history store
+     * @param padId    the pad's id string
+     * @param startRev the start revision
+     * @param endRev   the end revision
+     * @return a map with the "html" and the "authors" of the changes, as
+     *         returned by createDiffHTML
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final Map<String, Object> createDiffHTML(
+            final RevisionHistoryStore store, final String padId,
+            final long startRev, final long endRev) throws IOException {
+        if (startRev < 0 || endRev < startRev) {
+            throw new EPLiteException("Invalid revision range " + startRev
+                    + " to " + endRev);
+        }
+        if (store.getRevisionCount(padId) <= endRev) {
+            throw new EPLiteException("Revision " + endRev + " of " + padId
+                    + " is not in the store");
+        }
+        AttributedText base = PadMirror.INITIAL_TEXT;
+        for (long rev = 0; rev <= startRev; rev++) {
+            base = base.apply(Changeset.parse(store.getChangeset(padId, rev)),
+                    this.pool);
+        }
+        List<Changeset> changesets = new ArrayList<>();
+        for (long rev = startRev + 1; rev <= endRev; rev++) {
+            changesets.add(Changeset.parse(store.getChangeset(padId, rev)));
+        }
+        return createDiffHTML(base, changesets);
+    }
+
+    /**
+     * Builds the text showing the changes: the text of the end revision,
+     * with removed text put back and marked as removed, and authorship only
+     * on the changed text.
+     *
+     * @param base       the text of the start revision
+     * @param changesets the changesets following the start revision
+     * @param authors    the set the authors of the changes are added to
+     * @return the diff text
+     */
+    final AttributedText diff(final AttributedText base,
+            final Iterable<Changeset> changesets, final Set<String> authors) {
+        int clear = this.pool.putAttrib("author", "");
+        int removed = this.pool.putAttrib(REMOVED, "true");
+        AttributedText text = base.format(0, base.length(),
+                new int[] { clear }, this.pool);
+        Changeset composed = Changeset.identity(base.length());
+        for (Changeset changeset : changesets) {
+            addAuthors(changeset, authors);
+            composed = composed.compose(changeset, this.pool);
+        }
+        // removed text stays in the diff, so positions only move forward
+        String bank = composed.getCharBank();
+        int bankPos = 0;
+        int pos = 0;
+        for (int i = 0; i < composed.getOpCount(); i++) {
+            int n = composed.getChars(i);
+            switch (composed.getOpcode(i)) {
+            case Changeset.KEEP:
+                text = text.format(pos, pos + n, composed.getAttribs(i),
+                        this.pool);
+                break;
+            case Changeset.REMOVE:
+                text = text.format(pos, pos + n, new int[] { removed },
+                        this.pool);
+                break;
+            default:
+                text = text.insert(pos, bank.substring(bankPos, bankPos + n),
+                        composed.getAttribs(i));
+                bankPos += n;
+                break;
+            }
+            pos += n;
+        }
+        return text;
+    }
+
+    /**
+     * Adds the authors of the operations of a changeset.
+     *
+     * @param changeset the changeset
+     * @param authors   the authors
+     */
+    private void addAuthors(final Changeset changeset,
+            final Set<String> authors) {
+        for (int i = 0; i < changeset.getOpCount(); i++) {
+            for (int a = 0; a < changeset.getAttribCount(i); a++) {
+                int num = changeset.getAttrib(i, a);
+                if ("author".equals(this.pool.getKey(num))
+                        && !this.pool.getValue(num).isEmpty()) {
+                    authors.add(this.pool.getValue(num));
+                }
+            }
+        }
+    }
+}
@@ -27,6 +27,12 @@ public class EPLiteClient {
     /** The connection. */
     private final EPLiteConnection connection;
 
+    /** The id mapping cache, null when caching is disabled. */
+    private volatile MappingCache mappingCache;
+
+    /** The pad text and HTML cache, null when caching is disabled. */
+    private volatile PadContentCache padContentCache;
+
     /**
      * Initializes a new net.gjerull.etherpad.client.EPLiteClient object. The
      * default Etherpad Lite API version (in DEFAULT_API_VERSION) will be used.
@@ -54,6 +60,88 @@ public class EPLiteClient {
                 encoding);
     }
 
+    /**
+     * Gets the id mapping cache.
+     *
+     * @return the mapping cache, or null if mapping caching is disabled
+     */
+    public final MappingCache getMappingCache() {
+        return this.mappingCache;
+    }
+
+    /**
+     * Sets the cache used for the padID/readOnlyID, groupMapper and
+     * authorMapper lookups. Pass null to disable caching.
+     *
+     * @param mappingCache the mapping cache, or null
+     */
+    public final void setMappingCache(final MappingCache mappingCache) {
+        this.mappingCache = mappingCache;
+    }
+
+    /**
+     * Gets the pad content cache.
+     *
+     * @return the pad content cache, or null if content caching is disabled
+     */
+    public final PadContentCache getPadContentCache() {
+        return this.padContentCache;
+    }
+
+    /**
+     * Sets the cache used for the current text and HTML of pads, as returned
+     * by {@link #getText(String)} and {@link #getHTML(String)}. Pass null to
+     * disable caching.
+     *
+     * @param padContentCache the pad content cache, or null
+     */
+    public final void setPadContentCache(
+            final PadContentCache padContentCache) {
+        this.padContentCache = padContentCache;
+    }
+
+    /**
+     * Gets the pad existence index.
+     *
+     * @return the pad existence index, or null if disabled
+     */
+    public final PadExistenceIndex getPadExistenceIndex() {
+        return this.connection.getPadExistenceIndex();
+    }
+
+    /**
+     * Sets the index used to fail calls for pads known not to exist with an
+     * EPLiteException ("padID does not exist") without a round trip. Pass null
+     * to disable it.
+     *
+     * @param padExistenceIndex the pad existence index, or null
+     */
+    public final void setPadExistenceIndex(
+            final PadExistenceIndex padExistenceIndex) {
+        this.connection.setPadExistenceIndex(padExistenceIndex);
+    }
+
+    /**
+     * Gets the coalescer for identical concurrent GET requests.
+     *
+     * @return the request coalescer, or null if coalescing is disabled
+     */
+    public final RequestCoalescer getRequestCoalescer() {
+        return this.connection.getRequestCoalescer();
+    }
+
+    /**
+     * Sets the coalescer used to collapse identical concurrent GET requests
+     * (e.g. many users opening the same pad at once) into one round trip.
+     * Pass null to disable coalescing.
+     *
+     * @param requestCoalescer the request coalescer, or null
+     */
+    public final void setRequestCoalescer(
+            final RequestCoalescer requestCoalescer) {
+        this.connection.setRequestCoalescer(requestCoalescer);
+    }
+
     // Groups
     // Pads may belong to a group. These pads are not considered "public", and
     // won't
@@ -77,9 +165,21 @@ public class EPLiteClient {
      * @return Map with groupID
      */
     public final Map createGroupIfNotExistsFor(final String groupMapper) {
+        MappingCache cache = this.mappingCache;
+        if (cache != null) {
+            String groupId = cache.getGroupId(groupMapper);
+            if (groupId != null) {
+                return singletonMap("groupID", groupId);
+            }
+        }
         Map<String, Object> args = new HashMap<>();
         args.put("groupMapper", groupMapper);
-        return this.connection.post("createGroupIfNotExistsFor", args);
+        Map response = this.connection.post("createGroupIfNotExistsFor", args);
+        Object groupId = response.get("groupID");
+        if (cache != null && groupId instanceof String) {
+            cache.putGroupId(groupMapper, (String) groupId);
+        }
+        return response;
     }
 
     /**
@@ -90,7 +190,22 @@ public class EPLiteClient {
     public final void deleteGroup(final String groupID) {
         Map<String, Object> args = new HashMap<>();
         args.put("groupID", groupID);
-        this.connection.post("deleteGroup", args);
+        try {
+            this.connection.post("deleteGroup", args);
+        } finally {
+            MappingCache cache = this.mappingCache;
+            if (cache != null) {
+                cache.invalidateGroup(groupID);
+            }
+            PadContentCache contentCache = this.padContentCache;
+            if (contentCache != null) {
+                contentCache.invalidateGroup(groupID);
+            }
+            PadExistenceIndex existenceIndex = getPadExistenceIndex();
+            if (existenceIndex != null) {
+                existenceIndex.groupDeleted(groupID);
+            }
+        }
     }
 
     /**
@@ -182,15 +297,25 @@ public class EPLiteClient {
      * @return Map with authorID
      */
     public final Map createAuthorIfNotExistsFor(final String authorMapper) {
+        MappingCache cache = this.mappingCache;
+        if (cache != null) {
+            String authorId = cache.getAuthorId(authorMapper);
+            if (authorId != null) {
+                return singletonMap("authorID", authorId);
+            }
+        }
         Map<String, Object> args = new HashMap<>();
         args.put("authorMapper", authorMapper);
-        return this.connection.post("createAuthorIfNotExistsFor", args);
+        return cacheAuthorId(authorMapper,
+                this.connection.post("createAuthorIfNotExistsFor", args));
     }
 
     /**
      * Creates a new Author for authorMapper if one doesn't already exist. Helps
      * you map your application's authors to Etherpad Lite's authors. The author
-     * id is returned in "authorID".
+     * id is returned in "authorID". As the call also updates the author's name
+     * it always goes to the server, but the result is put in the mapping
+     * cache.
      *
      * @param authorMapper string
      * @param name         string
@@ -201,7 +326,25 @@ public class EPLiteClient {
         Map<String, Object> args = new HashMap<>();
         args.put("authorMapper", authorMapper);
         args.put("name", name);
-        return this.connection.post("createAuthorIfNotExistsFor", args);
+        return cacheAuthorId(authorMapper,
+                this.connection.post("createAuthorIfNotExistsFor", args));
+    }
+
+    /**
+     * Puts the authorID of a createAuthorIfNotExistsFor response in the
+     * mapping cache.
+     *
+     * @param authorMapper the author mapper string
+     * @param response     the response
+     * @return the response
+     */
+    private Map cacheAuthorId(final String authorMapper, final Map response) {
+        MappingCache cache = this.mappingCache;
+        Object authorId = response.get("authorID");
+        if (cache != null && authorId instanceof String) {
+            cache.putAuthorId(authorMapper, (String) authorId);
+        }
+        return response;
     }
 
     /**
@@ -370,12 +513,16 @@ public class EPLiteClient {
 
     /**
      * Returns a Map containing the latest revision of the pad's text. The text
-     * is stored under "text".
+     * is stored under "text". Served from the pad content cache if one is set.
      *
      * @param padId the pad's id string
      * @return a Map with the text content of pad
      */
     public final Map getText(final String padId) {
+        PadContentCache cache = this.padContentCache;
+        if (cache != null) {
+            return singletonMap("text", cache.getText(this.connection, padId));
+        }
         Map<String, Object> args = new HashMap<>();
         args.put("padID", padId);
         return this.connection.get("getText", args);
@@ -406,7 +553,11 @@ public class EPLiteClient {
         Map<String, Object> args = new HashMap<>();
         args.put("padID", padId);
         args.put("text", text);
-        this.connection.post("setText", args);
+        try {
+            this.connection.post("setText", args);
+        } finally {
+            invalidateContent(padId);
+        }
     }
 
     /**
@@ -420,17 +571,26 @@ public class EPLiteClient {
         Map<String, Object> args = new HashMap<>();
         args.put("padID", padId);
         args.put("text", text);
-        this.connection.post("appendText", args);
+        try {
+            this.connection.post("appendText", args);
+        } finally {
+            invalidateContent(padId);
+        }
     }
 
     /**
      * Returns a Map containing the current revision of the pad's text as HTML.
-     * The html is stored under "html".
+     * The html is stored under "html". Served from the pad content cache if one
+     * is set.
      *
      * @param padId the pad's id string
      * @return a Map with the HTML content of pad
      */
     public final Map getHTML(final String padId) {
+        PadContentCache cache = this.padContentCache;
+        if (cache != null) {
+            return singletonMap("html", cache.getHTML(this.connection, padId));
+        }
         Map<String, Object> args = new HashMap<>();
         args.put("padID", padId);
         return this.connection.get("getHTML", args);
@@ -461,7 +621,11 @@ public class EPLiteClient {
         Map<String, Object> args = new HashMap<>();
         args.put("padID", padId);
         args.put("html", html);
-        this.connection.post("setHTML", args);
+        try {
+            this.connection.post("setHTML", args);
+        } finally {
+            invalidateContent(padId);
+        }
     }
 
     /**
@@ -736,7 +900,11 @@ public class EPLiteClient {
     public final void deletePad(final String padId) {
         Map<String, Object> args = new HashMap<>();
         args.put("padID", padId);
-        this.connection.post("deletePad", args);
+        try {
+            this.connection.post("deletePad", args);
+        } finally {
+            invalidatePad(padId);
+        }
     }
 
     /**
@@ -765,7 +933,11 @@ public class EPLiteClient {
         args.put("sourceID", sourcePadId);
         args.put("destinationID", destinationPadId);
         args.put("force", force);
-        this.connection.post("copyPad", args);
+        try {
+            this.connection.post("copyPad", args);
+        } finally {
+            invalidatePad(destinationPadId);
+        }
     }
 
     /**
@@ -793,7 +965,12 @@ public class EPLiteClient {
         args.put("sourceID", sourcePadId);
         args.put("destinationID", destinationPadId);
         args.put("force", force);
-        this.connection.post("movePad", args);
+        try {
+            this.connection.post("movePad", args);
+        } finally {
+            invalidatePad(sourcePadId);
+            invalidatePad(destinationPadId);
+        }
     }
 
     /**
@@ -803,9 +980,21 @@ public class EPLiteClient {
      * @return a Map with the readOnlyID
      */
     public final Map getReadOnlyID(final String padId) {
+        MappingCache cache = this.mappingCache;
+        if (cache != null) {
+            String readOnlyId = cache.getReadOnlyId(padId);
+            if (readOnlyId != null) {
+                return singletonMap("readOnlyID", readOnlyId);
+            }
+        }
         Map<String, Object> args = new HashMap<>();
         args.put("padID", padId);
-        return this.connection.get("getReadOnlyID", args);
+        Map response = this.connection.get("getReadOnlyID", args);
+        Object readOnlyId = response.get("readOnlyID");
+        if (cache != null && readOnlyId instanceof String) {
+            cache.putReadOnlyId(padId, (String) readOnlyId);
+        }
+        return response;
     }
 
     /**
@@ -815,9 +1004,21 @@ public class EPLiteClient {
      * @return a Map with the padID
      */
     public final Map getPadID(final String readOnlyPadId) {
+        MappingCache cache = this.mappingCache;
+        if (cache != null) {
+            String padId = cache.getPadId(readOnlyPadId);
+            if (padId != null) {
+                return singletonMap("padID", padId);
+            }
+        }
         Map<String, Object> args = new HashMap<>();
         args.put("roID", readOnlyPadId);
-        return this.connection.get("getPadID", args);
+        Map response = this.connection.get("getPadID", args);
+        Object padId = response.get("padID");
+        if (cache != null && padId instanceof String) {
+            cache.putReadOnlyId((String) padId, readOnlyPadId);
+        }
+        return response;
     }
 
     /**
@@ -923,4 +1124,44 @@ public class EPLiteClient {
     public final boolean isSecure() {
         return (this.connection.getUri().getPort() == 443);
     }
+
+    /**
+     * Drops everything cached about a pad after it has been changed in a way
+     * that invalidates it.
+     *
+     * @param padId the pad's id string
+     */
+    private void invalidatePad(final String padId) {
+        MappingCache cache = this.mappingCache;
+        if (cache != null) {
+            cache.invalidatePad(padId);
+        }
+        invalidateContent(padId);
+    }
+
+    /**
+     * Drops the cached content of a pad after it has been written to.
+     *
+     * @param padId the pad's id string
+     */
+    private void invalidateContent(final String padId) {
+        PadContentCache cache = this.padContentCache;
+        if (cache != null) {
+            cache.invalidate(padId);
+        }
+    }
+
+    /**
+     * Builds a mutable response map with a single entry, as returned by the
+     * server.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return Map
+     */
+    private static Map singletonMap(final String key, final Object value) {
+        Map<String, Object> response = new HashMap<>();
+        response.put(key, value);
+        return response;
+    }
 }
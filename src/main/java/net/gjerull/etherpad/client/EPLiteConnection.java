@@ -8,9 +8,13 @@ import java.net.URL;
 import java.net.URLEncoder;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Set;
 
 import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.HttpsURLConnection;
@@ -43,6 +47,10 @@ public class EPLiteConnection {
     /** The Constant CODE_INVALID_API_KEY. */
     public static final int CODE_INVALID_API_KEY = 4;
 
+    /** API methods sent as GET which must never be coalesced. */
+    private static final Set<String> NON_IDEMPOTENT_GETS = Collections
+            .unmodifiableSet(new HashSet<>(Arrays.asList("createAuthor")));
+
     /** The url of the API. */
     private final URI uri;
 
@@ -55,6 +63,12 @@ public class EPLiteConnection {
     /** The character encoding of your application. */
     private final String encoding;
 
+    /** The coalescer for identical GET requests, null when disabled. */
+    private volatile RequestCoalescer requestCoalescer;
+
+    /** The index of existing pads, null when disabled. */
+    private volatile PadExistenceIndex padExistenceIndex;
+
     /**
      * Gets the uri.
      *
@@ -91,6 +105,46 @@ public class EPLiteConnection {
         return encoding;
     }
 
+    /**
+     * Gets the request coalescer.
+     *
+     * @return the request coalescer, or null if coalescing is disabled
+     */
+    public final RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * Sets the coalescer used to collapse identical concurrent GET requests.
+     * Pass null to disable coalescing.
+     *
+     * @param requestCoalescer the request coalescer, or null
+     */
+    public final void setRequestCoalescer(
+            final RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * Gets the pad existence index.
+     *
+     * @return the pad existence index, or null if disabled
+     */
+    public final PadExistenceIndex getPadExistenceIndex() {
+        return padExistenceIndex;
+    }
+
+    /**
+     * Sets the index used to fail calls for missing pads without a round
+     * trip. Pass null to disable it.
+     *
+     * @param padExistenceIndex the pad existence index, or null
+     */
+    public final void setPadExistenceIndex(
+            final PadExistenceIndex padExistenceIndex) {
+        this.padExistenceIndex = padExistenceIndex;
+    }
+
     /**
      * Initializes a new net.gjerull.etherpad.client.EPLiteConnection object.
      *
@@ -145,7 +199,11 @@ public class EPLiteConnection {
         String query = this.queryString(apiArgs, false);
         URL url = apiUrl(path, query);
         Request request = new GETRequest(url);
-        return this.call(request);
+        RequestCoalescer coalescer = this.requestCoalescer;
+        if (coalescer != null && !NON_IDEMPOTENT_GETS.contains(apiMethod)) {
+            request = coalescer.coalesce(url.toString(), request);
+        }
+        return this.call(apiMethod, apiArgs, request);
     }
 
     /**
@@ -197,7 +255,7 @@ public class EPLiteConnection {
         String query = this.queryString(apiArgs, true);
         URL url = apiUrl(path, null);
         Request request = new POSTRequest(url, query);
-        return this.call(request);
+        return this.call(apiMethod, apiArgs, request);
     }
 
     /**
@@ -322,6 +380,32 @@ public class EPLiteConnection {
         return strArgs.toString();
     }
 
+    /**
+     * Calls the HTTP JSON API, consulting and updating the pad existence index
+     * if one is set.
+     *
+     * @param apiMethod the name of the API method to call
+     * @param apiArgs   the api arguments
+     * @param request   the request object to send
+     * @return Object
+     */
+    private Object call(final String apiMethod,
+            final Map<String, Object> apiArgs, final Request request) {
+        PadExistenceIndex index = this.padExistenceIndex;
+        if (index == null) {
+            return this.call(request);
+        }
+        index.beforeCall(this, apiMethod, apiArgs);
+        try {
+            Object response = this.call(request);
+            index.afterCall(apiMethod, apiArgs);
+            return response;
+        } catch (EPLiteException e) {
+            index.afterError(apiMethod, apiArgs, e);
+            throw e;
+        }
+    }
+
     /**
      * Calls the HTTP JSON API.
      *
@@ -23,4 +23,15 @@ public class EPLiteException extends RuntimeException {
     public EPLiteException(final String message, final Throwable cause) {
         super(message, cause);
     }
+
+    /**
+     * Instantiates a new EP lite exception without filling in the stack trace,
+     * for errors raised on hot paths where the trace carries no information.
+     *
+     * @param message            the message
+     * @param writableStackTrace whether the stack trace should be writable
+     */
+    EPLiteException(final String message, final boolean writableStackTrace) {
+        super(message, null, false, writableStackTrace);
+    }
 }
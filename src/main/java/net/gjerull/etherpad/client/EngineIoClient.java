@@ -0,0 +1,212 @@
+package net.gjerull.etherpad.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.json.simple.JSONValue;
+
+/**
+ * A minimal Engine.IO (protocol 3) client using the polling transport, as
+ * spoken by the socket.io 2 server of Etherpad. Packets are sent with POST
+ * requests and received with long polling GET requests, in the text framing
+ * of <code>length:packet</code>.
+ */
+final class EngineIoClient {
+
+    /** The Constant OPEN. */
+    static final char OPEN = '0';
+
+    /** The Constant CLOSE. */
+    static final char CLOSE = '1';
+
+    /** The Constant PING. */
+    static final char PING = '2';
+
+    /** The Constant PONG. */
+    static final char PONG = '3';
+
+    /** The Constant MESSAGE. */
+    static final char MESSAGE = '4';
+
+    /** The Constant NOOP. */
+    static final char NOOP = '6';
+
+    /** The Constant CONNECT_TIMEOUT, in milliseconds. */
+    private static final int CONNECT_TIMEOUT = 10000;
+
+    /** The url of the socket.io endpoint, ending with "?". */
+    private final String endpoint;
+
+    /** The session id, null until the handshake. */
+    private volatile String sid;
+
+    /** The interval of pings, in milliseconds. */
+    private volatile long pingInterval = 25000;
+
+    /** The time the server waits for a ping, in milliseconds. */
+    private volatile long pingTimeout = 60000;
+
+    /**
+     * Instantiates a new client.
+     *
+     * @param baseUrl the url of the Etherpad server
+     */
+    EngineIoClient(final String baseUrl) {
+        this.endpoint = (baseUrl.endsWith("/") ? baseUrl : baseUrl + "/")
+                + "socket.io/?EIO=3&transport=polling&b64=1";
+    }
+
+    /**
+     * Opens a session. Packets the server sent along with the handshake are
+     * returned.
+     *
+     * @return the packets following the open packet
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    List<String> open() throws IOException {
+        List<String> packets = decode(request("GET", this.endpoint, null,
+                CONNECT_TIMEOUT));
+        if (packets.isEmpty() || packets.get(0).charAt(0) != OPEN) {
+            throw new EPLiteException("Unexpected Engine.IO handshake");
+        }
+        Map handshake = (Map) JSONValue.parse(packets.get(0).substring(1));
+        this.sid = (String) handshake.get("sid");
+        if (handshake.get("pingInterval") instanceof Number) {
+            this.pingInterval = ((Number) handshake.get("pingInterval"))
+                    .longValue();
+        }
+        if (handshake.get("pingTimeout") instanceof Number) {
+            this.pingTimeout = ((Number) handshake.get("pingTimeout"))
+                    .longValue();
+        }
+        return packets.subList(1, packets.size());
+    }
+
+    /**
+     * Waits for packets from the server.
+     *
+     * @return the packets
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    List<String> poll() throws IOException {
+        return decode(request("GET", sessionUrl(), null,
+                (int) (this.pingInterval + this.pingTimeout)));
+    }
+
+    /**
+     * Sends packets to the server.
+     *
+     * @param packets the packets, each starting with its type
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    void send(final String... packets) throws IOException {
+        StringBuilder payload = new StringBuilder();
+        for (String packet : packets) {
+            payload.append(packet.length()).append(':').append(packet);
+        }
+        request("POST", sessionUrl(), payload.toString(), CONNECT_TIMEOUT);
+    }
+
+    /**
+     * Gets the interval of pings.
+     *
+     * @return the interval in milliseconds
+     */
+    long getPingInterval() {
+        return this.pingInterval;
+    }
+
+    /**
+     * Gets the url of the session.
+     *
+     * @return the url
+     */
+    private String sessionUrl() {
+        if (this.sid == null) {
+            throw new EPLiteException("The Engine.IO session is not open");
+        }
+        return this.endpoint + "&sid=" + this.sid + "&t="
+                + System.currentTimeMillis();
+    }
+
+    /**
+     * Decodes a text payload into its packets.
+     *
+     * @param payload the payload
+     * @return the packets
+     */
+    static List<String> decode(final String payload) {
+        List<String> packets = new ArrayList<>();
+        int pos = 0;
+        while (pos < payload.length()) {
+            int colon = payload.indexOf(':', pos);
+            if (colon < 0) {
+                throw new EPLiteException("Invalid Engine.IO payload");
+            }
+            int length;
+            try {
+                length = Integer.parseInt(payload.substring(pos, colon));
+            } catch (NumberFormatException e) {
+                throw new EPLiteException("Invalid Engine.IO payload");
+            }
+            if (length < 1 || colon + 1 + length > payload.length()) {
+                throw new EPLiteException("Invalid Engine.IO payload");
+            }
+            packets.add(payload.substring(colon + 1, colon + 1 + length));
+            pos = colon + 1 + length;
+        }
+        return packets;
+    }
+
+    /**
+     * Sends an HTTP request.
+     *
+     * @param method  the method
+     * @param url     the url
+     * @param body    the body, or null
+     * @param timeout the read timeout, in milliseconds
+     * @return the response body
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static String request(final String method, final String url,
+            final String body, final int timeout) throws IOException {
+        HttpURLConnection con = (HttpURLConnection) new URL(url)
+                .openConnection();
+        try {
+            con.setRequestMethod(method);
+            con.setConnectTimeout(CONNECT_TIMEOUT);
+            con.setReadTimeout(timeout);
+            if (body != null) {
+                con.setDoOutput(true);
+                con.setRequestProperty("Content-Type",
+                        "text/plain;charset=UTF-8");
+                try (OutputStream out = con.getOutputStream()) {
+                    out.write(body.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            if (con.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new EPLiteException("Engine.IO request failed with "
+                        + con.getResponseCode());
+            }
+            ByteArrayOutputStream response = new ByteArrayOutputStream();
+            try (InputStream in = con.getInputStream()) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    response.write(buffer, 0, n);
+                }
+            }
+            return new String(response.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            con.disconnect();
+        }
+    }
+}
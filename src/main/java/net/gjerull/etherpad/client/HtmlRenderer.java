@@ -0,0 +1,592 @@
+package net.gjerull.etherpad.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders the HTML of a pad locally from its {@link AttributedText} and
+ * {@link AttributePool}, in the format of the getHTML API method, so the
+ * Etherpad server does not have to.<br />
+ * <br />
+ * The standard attributes are rendered as Etherpad does: bold, italic,
+ * underline and strikethrough as &lt;strong&gt;, &lt;em&gt;, &lt;u&gt; and
+ * &lt;s&gt;, heading1 and heading2 as &lt;h1&gt; and &lt;h2&gt;, and the
+ * line attributes "list" (bullet, number and indent lists, with their level)
+ * and "heading" (as set by ep_headings2). Author colors are not part of
+ * getHTML; when enabled, text is wrapped in
+ * <code>&lt;span class="author..."&gt;</code> and
+ * <code>&lt;span class="removed"&gt;</code> elements as in Etherpad's export
+ * with author colors, which createDiffHTML uses. URLs are not turned into
+ * links.<br />
+ * <br />
+ * Rendered documents of {@link PadMirror}s are cached per pad and revision.
+ * <br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * PadMirror mirror = new PadMirror(api, "my_pad", executor,
+ * Integer.MAX_VALUE);<br />
+ * mirror.sync();<br />
+ * String html = renderer.getHTML(mirror);
+ * </code>
+ */
+public class HtmlRenderer {
+
+    /** The Constant DEFAULT_MAX_ENTRIES. */
+    public static final int DEFAULT_MAX_ENTRIES = 100;
+
+    /** The inline attributes, in the order their tags are opened. */
+    private static final String[] PROPS = { "heading1", "heading2", "bold",
+            "italic", "underline", "strikethrough" };
+
+    /** The tags of the inline attributes. */
+    private static final String[] TAGS = { "h1", "h2", "strong", "em", "u",
+            "s" };
+
+    /** The Constant LINE_MARKER. */
+    private static final String LINE_MARKER = "lmkr";
+
+    /** Whether text is wrapped in author spans. */
+    private final boolean authorColors;
+
+    /** The rendered documents, keyed by pad id. */
+    private final LruMap<String, Rendered> cache;
+
+    /** The number of documents served from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of documents rendered. */
+    private final AtomicLong renders = new AtomicLong();
+
+    /**
+     * Instantiates a new renderer rendering getHTML's output.
+     */
+    public HtmlRenderer() {
+        this(DEFAULT_MAX_ENTRIES, false);
+    }
+
+    /**
+     * Instantiates a new renderer.
+     *
+     * @param maxEntries   the maximum number of pads whose rendered document
+     *                     is cached
+     * @param authorColors true to wrap text in author and removed spans
+     */
+    public HtmlRenderer(final int maxEntries, final boolean authorColors) {
+        this.cache = new LruMap<>(maxEntries);
+        this.authorColors = authorColors;
+    }
+
+    /**
+     * Gets the HTML of the revision a mirror is at, rendering it only if it
+     * is not cached.
+     *
+     * @param mirror the pad mirror
+     * @return the html document
+     */
+    public final String getHTML(final PadMirror mirror) {
+        PadMirror.Snapshot snapshot = mirror.getSnapshot();
+        String padId = mirror.getPadId();
+        synchronized (this.cache) {
+            Rendered cached = this.cache.get(padId);
+            if (cached != null && cached.rev == snapshot.getRevision()) {
+                this.hits.incrementAndGet();
+                return cached.html;
+            }
+        }
+        String html = render(snapshot.getText(), mirror.getAttributePool());
+        synchronized (this.cache) {
+            Rendered cached = this.cache.get(padId);
+            if (cached == null || cached.rev < snapshot.getRevision()) {
+                this.cache.put(padId,
+                        new Rendered(snapshot.getRevision(), html));
+            }
+        }
+        return html;
+    }
+
+    /**
+     * Renders an attributed text as an HTML document.
+     *
+     * @param text the text, ending with a newline as all pads do
+     * @param pool the attribute pool, may be null if the text has no
+     *             attributes
+     * @return the html document
+     */
+    public final String render(final AttributedText text,
+            final AttributePool pool) {
+        StringBuilder out = new StringBuilder(text.length() * 2 + 64);
+        out.append("<!DOCTYPE HTML><html><body>");
+        try {
+            renderBody(text, pool, out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        out.append("</body></html>");
+        return out.toString();
+    }
+
+    /**
+     * Renders the lines of an attributed text as HTML, without the
+     * surrounding document. Each line is written as soon as it is complete,
+     * so large documents can be streamed.
+     *
+     * @param text the text, ending with a newline as all pads do
+     * @param pool the attribute pool, may be null if the text has no
+     *             attributes
+     * @param out  the output
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void renderBody(final AttributedText text,
+            final AttributePool pool, final Appendable out)
+            throws IOException {
+        this.renders.incrementAndGet();
+        LineRenderer line = new LineRenderer(out, pool);
+        // The final newline of the pad does not start another line
+        int end = Math.max(0, text.length() - 1);
+        AttributedText.RunIterator runs = text.runs(0, end);
+        while (runs.next()) {
+            String chunk = runs.getText();
+            int[] attribs = runs.getAttribs();
+            int start = 0;
+            int newline;
+            while ((newline = chunk.indexOf('\n', start)) >= 0) {
+                line.append(chunk, start, newline, attribs);
+                line.endLine();
+                start = newline + 1;
+            }
+            line.append(chunk, start, chunk.length(), attribs);
+        }
+        line.endLine();
+        line.closeLists(0);
+    }
+
+    /**
+     * Drops the cached document of a pad.
+     *
+     * @param padId the pad's id string
+     */
+    public final void invalidate(final String padId) {
+        synchronized (this.cache) {
+            this.cache.remove(padId);
+        }
+    }
+
+    /**
+     * Gets the number of documents served from the cache.
+     *
+     * @return the hit count
+     */
+    public final long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of documents rendered.
+     *
+     * @return the render count
+     */
+    public final long getRenderCount() {
+        return this.renders.get();
+    }
+
+    /**
+     * Gets the CSS class name Etherpad's export uses for an author.
+     *
+     * @param authorId the author id
+     * @return the class name
+     */
+    static String authorClass(final String authorId) {
+        return "author" + authorId.replace('.', '_');
+    }
+
+    /**
+     * Escapes text for HTML, as Etherpad does.
+     *
+     * @param out   the output
+     * @param text  the text
+     * @param start the start index
+     * @param end   the end index
+     */
+    private static void escape(final StringBuilder out, final String text,
+            final int start, final int end) {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                out.append("&amp;");
+                break;
+            case '<':
+                out.append("&lt;");
+                break;
+            case '>':
+                out.append("&gt;");
+                break;
+            case '"':
+                out.append("&quot;");
+                break;
+            case '\'':
+                out.append("&#x27;");
+                break;
+            default:
+                out.append(c);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Replaces spaces which a browser would collapse with non-breaking
+     * spaces, as Etherpad's export does: all but the last space of a run of
+     * spaces, and spaces at the start and end of the line. Tags are skipped.
+     *
+     * @param html the html of a line
+     * @return the processed html
+     */
+    static String processSpaces(final CharSequence html) {
+        int length = html.length();
+        boolean[] nbsp = new boolean[length];
+        boolean endOfLine = true;
+        boolean beforeSpace = false;
+        for (int i = length - 1; i >= 0; i--) {
+            char c = html.charAt(i);
+            if (c == '>') {
+                // skip back over the tag
+                while (i > 0 && html.charAt(i) != '<') {
+                    i--;
+                }
+            } else if (c == ' ') {
+                nbsp[i] = endOfLine || beforeSpace;
+                endOfLine = false;
+                beforeSpace = true;
+            } else {
+                endOfLine = false;
+                beforeSpace = false;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                while (i < length - 1 && html.charAt(i) != '>') {
+                    i++;
+                }
+            } else {
+                nbsp[i] |= c == ' ';
+                break;
+            }
+        }
+        StringBuilder out = new StringBuilder(length + 16);
+        for (int i = 0; i < length; i++) {
+            if (nbsp[i]) {
+                out.append("&nbsp;");
+            } else {
+                out.append(html.charAt(i));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Renders the lines of a document, keeping track of open inline tags
+     * and lists.
+     */
+    private final class LineRenderer {
+
+        /** The output. */
+        private final Appendable out;
+
+        /** The attribute pool. */
+        private final AttributePool pool;
+
+        /** The html of the current line. */
+        private final StringBuilder line = new StringBuilder();
+
+        /** The open inline tags, as opening tags, innermost last. */
+        private final List<String> openTags = new ArrayList<>();
+
+        /** The open lists, as {type, level}, innermost last. */
+        private final List<Object[]> openLists = new ArrayList<>();
+
+        /** Whether the current line has content or a line marker yet. */
+        private boolean started;
+
+        /** The list attribute of the current line, or null. */
+        private String list;
+
+        /** The heading attribute of the current line, or null. */
+        private String heading;
+
+        /**
+         * Instantiates a new line renderer.
+         *
+         * @param out  the output
+         * @param pool the attribute pool
+         */
+        private LineRenderer(final Appendable out,
+                final AttributePool pool) {
+            this.out = out;
+            this.pool = pool;
+        }
+
+        /**
+         * Appends text of one run within the current line.
+         *
+         * @param text    the run text
+         * @param start   the start index
+         * @param end     the end index
+         * @param attribs the attribute numbers
+         */
+        private void append(final String text, final int start,
+                final int end, final int[] attribs) {
+            int from = start;
+            if (!this.started && from < end) {
+                this.started = true;
+                if (text.charAt(from) == '*' && lineMarker(attribs)) {
+                    from++;
+                }
+            }
+            if (from >= end) {
+                return;
+            }
+            List<String> tags = tags(attribs);
+            int common = 0;
+            while (common < this.openTags.size() && common < tags.size()
+                    && this.openTags.get(common).equals(tags.get(common))) {
+                common++;
+            }
+            closeTags(common);
+            for (int i = common; i < tags.size(); i++) {
+                this.line.append(tags.get(i));
+                this.openTags.add(tags.get(i));
+            }
+            escape(this.line, text, from, end);
+        }
+
+        /**
+         * Checks for a line marker and reads the line attributes from it.
+         *
+         * @param attribs the attributes of the first character of the line
+         * @return true if the character is a line marker
+         */
+        private boolean lineMarker(final int[] attribs) {
+            boolean marker = false;
+            for (int num : attribs) {
+                String key = this.pool.getKey(num);
+                if (LINE_MARKER.equals(key)) {
+                    marker = true;
+                } else if ("list".equals(key)) {
+                    this.list = this.pool.getValue(num);
+                } else if ("heading".equals(key)) {
+                    this.heading = this.pool.getValue(num);
+                }
+            }
+            if (!marker) {
+                this.list = null;
+                this.heading = null;
+            }
+            return marker;
+        }
+
+        /**
+         * Gets the opening tags of the inline attributes of a run.
+         *
+         * @param attribs the attribute numbers
+         * @return the opening tags, outermost first
+         */
+        private List<String> tags(final int[] attribs) {
+            List<String> tags = new ArrayList<>();
+            if (attribs.length == 0) {
+                return tags;
+            }
+            for (int p = 0; p < PROPS.length; p++) {
+                for (int num : attribs) {
+                    if (PROPS[p].equals(this.pool.getKey(num))
+                            && "true".equals(this.pool.getValue(num))) {
+                        tags.add("<" + TAGS[p] + ">");
+                        break;
+                    }
+                }
+            }
+            if (HtmlRenderer.this.authorColors) {
+                // Etherpad opens the author and removed spans after, so
+                // inside, the standard tags
+                for (int num : attribs) {
+                    if ("author".equals(this.pool.getKey(num))
+                            && !this.pool.getValue(num).isEmpty()) {
+                        tags.add("<span class=\""
+                                + authorClass(this.pool.getValue(num))
+                                + "\">");
+                    }
+                }
+                for (int num : attribs) {
+                    if ("removed".equals(this.pool.getKey(num))
+                            && "true".equals(this.pool.getValue(num))) {
+                        tags.add("<span class=\"removed\">");
+                    }
+                }
+            }
+            return tags;
+        }
+
+        /**
+         * Closes open inline tags.
+         *
+         * @param keep the number of outer tags to keep open
+         */
+        private void closeTags(final int keep) {
+            for (int i = this.openTags.size() - 1; i >= keep; i--) {
+                String tag = this.openTags.remove(i);
+                int nameEnd = tag.indexOf(' ');
+                this.line.append("</").append(tag, 1,
+                        (nameEnd > 0) ? nameEnd : tag.length() - 1)
+                        .append('>');
+            }
+        }
+
+        /**
+         * Writes the current line and starts the next.
+         *
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private void endLine() throws IOException {
+            closeTags(0);
+            String content = processSpaces(this.line);
+            if (this.heading != null && this.heading.matches("h[1-6]")) {
+                content = "<" + this.heading + ">" + content + "</"
+                        + this.heading + ">";
+            }
+            ListType type = (this.list != null) ? ListType.parse(this.list)
+                    : null;
+            if (type != null) {
+                closeLists(type.level, type.name);
+                while (this.openLists.size() < type.level) {
+                    this.out.append(type.openTag());
+                    this.openLists.add(new Object[] { type.name,
+                            this.openLists.size() + 1 });
+                }
+                this.out.append("<li>").append(content).append("</li>");
+            } else {
+                closeLists(0);
+                this.out.append(content).append("<br>");
+            }
+            this.line.setLength(0);
+            this.started = false;
+            this.list = null;
+            this.heading = null;
+        }
+
+        /**
+         * Closes the lists deeper than a level.
+         *
+         * @param level the level to keep
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private void closeLists(final int level) throws IOException {
+            closeLists(level, null);
+        }
+
+        /**
+         * Closes the lists deeper than a level, and the list at the level if
+         * it is of another type.
+         *
+         * @param level the level to keep
+         * @param name  the list type at the level, or null
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private void closeLists(final int level, final String name)
+                throws IOException {
+            while (!this.openLists.isEmpty()) {
+                Object[] innermost = this.openLists
+                        .get(this.openLists.size() - 1);
+                int innermostLevel = (Integer) innermost[1];
+                if (innermostLevel < level || (innermostLevel == level
+                        && innermost[0].equals(name))) {
+                    break;
+                }
+                this.openLists.remove(this.openLists.size() - 1);
+                this.out.append("number".equals(innermost[0]) ? "</ol>"
+                        : "</ul>");
+            }
+        }
+    }
+
+    /**
+     * A list type such as "bullet2": a name and a level.
+     */
+    private static final class ListType {
+
+        /** The name: bullet, number or indent. */
+        private final String name;
+
+        /** The level, from 1. */
+        private final int level;
+
+        /**
+         * Instantiates a new list type.
+         *
+         * @param name  the name
+         * @param level the level
+         */
+        private ListType(final String name, final int level) {
+            this.name = name;
+            this.level = level;
+        }
+
+        /**
+         * Parses a list attribute value.
+         *
+         * @param value the value, e.g. "bullet1"
+         * @return the list type, or null if the value is not a list type
+         */
+        private static ListType parse(final String value) {
+            int digits = value.length();
+            while (digits > 0 && Character.isDigit(value.charAt(digits - 1))) {
+                digits--;
+            }
+            if (digits == 0 || digits == value.length()) {
+                return null;
+            }
+            int level = Integer.parseInt(value.substring(digits));
+            return (level > 0) ? new ListType(value.substring(0, digits), level)
+                    : null;
+        }
+
+        /**
+         * Gets the opening tag of a list of this type.
+         *
+         * @return the opening tag
+         */
+        private String openTag() {
+            if ("number".equals(this.name)) {
+                return "<ol class=\"number\">";
+            }
+            return "<ul class=\"" + this.name + "\">";
+        }
+    }
+
+    /**
+     * A rendered document.
+     */
+    private static final class Rendered {
+
+        /** The revision. */
+        private final long rev;
+
+        /** The html. */
+        private final String html;
+
+        /**
+         * Instantiates a new rendered document.
+         *
+         * @param rev  the revision
+         * @param html the html
+         */
+        private Rendered(final long rev, final String html) {
+            this.rev = rev;
+            this.html = html;
+        }
+    }
+}
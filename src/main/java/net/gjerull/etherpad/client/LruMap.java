@@ -0,0 +1,63 @@
+package net.gjerull.etherpad.client;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded map which evicts the least recently accessed entry once the
+ * maximum number of entries is exceeded. Not thread safe, callers must
+ * synchronize access themselves.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+    /** The Constant serialVersionUID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The maximum number of entries. */
+    private final int maxEntries;
+
+    /**
+     * Instantiates a new LRU map.
+     *
+     * @param maxEntries the maximum number of entries
+     */
+    LruMap(final int maxEntries) {
+        super(16, 0.75f, true);
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException(
+                    "maxEntries must be positive: " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Gets the maximum number of entries.
+     *
+     * @return the maximum number of entries
+     */
+    final int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+        if (size() > this.maxEntries) {
+            evicted(eldest.getKey(), eldest.getValue());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called when an entry is evicted because the map is full. Does nothing by
+     * default.
+     *
+     * @param key   the evicted key
+     * @param value the evicted value
+     */
+    protected void evicted(final K key, final V value) {
+    }
+}
@@ -0,0 +1,702 @@
+package net.gjerull.etherpad.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An on-disk store for pad documents, used as the second tier of the
+ * {@link PadContentCache}.<br />
+ * <br />
+ * Documents are appended to a data file which is memory-mapped in fixed size
+ * regions, so reads are served straight from the page cache without copying
+ * through read buffers. A separate append-only index file records where each
+ * document lives; on startup only the index is read, the data stays on disk
+ * until it is accessed. When the data file reaches its maximum size the live
+ * documents are compacted into a new file.<br />
+ * <br />
+ * The store is a cache: writes are not forced to disk, and documents written
+ * shortly before a crash are detected by their checksum and dropped.
+ */
+public class MappedPadStore implements Closeable {
+
+    /** The Constant DEFAULT_REGION_SIZE. */
+    public static final int DEFAULT_REGION_SIZE = 64 * 1024 * 1024;
+
+    /** The Constant DEFAULT_MAX_BYTES. */
+    public static final long DEFAULT_MAX_BYTES = 1024L * 1024L * 1024L;
+
+    /** The name of the data file. */
+    private static final String DATA_FILE = "pads.dat";
+
+    /** The name of the index file. */
+    private static final String INDEX_FILE = "pads.idx";
+
+    /** Index record kind of a text document. */
+    private static final byte KIND_TEXT = 0;
+
+    /** Index record kind of an HTML document. */
+    private static final byte KIND_HTML = 1;
+
+    /** Index record kind removing a text document. */
+    private static final byte KIND_TEXT_REMOVED = 2;
+
+    /** Index record kind removing an HTML document. */
+    private static final byte KIND_HTML_REMOVED = 3;
+
+    /** The directory holding the files. */
+    private final File directory;
+
+    /** The size of each mapped region. */
+    private final int regionSize;
+
+    /** The maximum size of the data file. */
+    private final long maxBytes;
+
+    /** The location of each live document, keyed by pad id and kind. */
+    private final Map<String, Location> locations = new HashMap<>();
+
+    /** The mapped regions of the data file. */
+    private final List<MappedByteBuffer> regions = new ArrayList<>();
+
+    /** The data file. */
+    private RandomAccessFile data;
+
+    /** The index file. */
+    private DataOutputStream index;
+
+    /** The append position in the data file. */
+    private long position;
+
+    /** The number of bytes used by live documents. */
+    private long liveBytes;
+
+    /**
+     * Opens or creates a store in a directory with default sizes.
+     *
+     * @param directory the directory
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public MappedPadStore(final File directory) throws IOException {
+        this(directory, DEFAULT_REGION_SIZE, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Opens or creates a store in a directory.
+     *
+     * @param directory  the directory
+     * @param regionSize the size of each mapped region, which is also the
+     *                   maximum size of a single document
+     * @param maxBytes   the size at which the data file is compacted
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public MappedPadStore(final File directory, final int regionSize,
+            final long maxBytes) throws IOException {
+        if (regionSize <= 0 || maxBytes < regionSize) {
+            throw new IllegalArgumentException(
+                    "Need 0 < regionSize <= maxBytes");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        this.directory = directory;
+        this.regionSize = regionSize;
+        this.maxBytes = maxBytes;
+        open();
+    }
+
+    /**
+     * Gets a document.
+     *
+     * @param padId the pad's id string
+     * @param html  true for the HTML document, false for the text
+     * @return the document, or null if not stored
+     */
+    public final synchronized StoredDocument get(final String padId,
+            final boolean html) {
+        String key = key(padId, html);
+        Location location = this.locations.get(key);
+        if (location == null) {
+            return null;
+        }
+        ByteBuffer bytes = slice(location);
+        if (!location.verified) {
+            if (checksum(bytes) != location.checksum) {
+                this.locations.remove(key);
+                this.liveBytes -= location.length;
+                return null;
+            }
+            location.verified = true;
+        }
+        return new StoredDocument(location.rev, bytes);
+    }
+
+    /**
+     * Stores a document, replacing the previous one of the same pad and kind.
+     * Documents larger than the region size are not stored.
+     *
+     * @param padId    the pad's id string
+     * @param html     true for an HTML document, false for text
+     * @param rev      the revision of the document
+     * @param document the document
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized void put(final String padId, final boolean html,
+            final long rev, final String document) throws IOException {
+        byte[] bytes = document.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > this.regionSize) {
+            remove(padId, html);
+        } else if (!append(padId, html, rev, bytes)) {
+            compact();
+            if (!append(padId, html, rev, bytes)) {
+                clear();
+                append(padId, html, rev, bytes);
+            }
+        }
+        this.index.flush();
+    }
+
+    /**
+     * Removes both documents of a pad.
+     *
+     * @param padId the pad's id string
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized void remove(final String padId)
+            throws IOException {
+        remove(padId, false);
+        remove(padId, true);
+        this.index.flush();
+    }
+
+    /**
+     * Removes the documents of all pads whose id starts with a prefix, such
+     * as the pads of a group.
+     *
+     * @param prefix the prefix of the pads' id strings
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized void removeAll(final String prefix)
+            throws IOException {
+        Set<String> padIds = new HashSet<>();
+        for (String key : this.locations.keySet()) {
+            String padId = key.substring(0, key.length() - 2);
+            if (padId.startsWith(prefix)) {
+                padIds.add(padId);
+            }
+        }
+        for (String padId : padIds) {
+            remove(padId, false);
+            remove(padId, true);
+        }
+        this.index.flush();
+    }
+
+    /**
+     * Removes all documents.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized void clear() throws IOException {
+        closeFiles();
+        new File(this.directory, INDEX_FILE).delete();
+        new File(this.directory, DATA_FILE).delete();
+        this.locations.clear();
+        open();
+    }
+
+    /**
+     * Gets the number of stored documents.
+     *
+     * @return the number of documents
+     */
+    public final synchronized int size() {
+        return this.locations.size();
+    }
+
+    /**
+     * Gets the number of bytes used in the data file, including space held
+     * by replaced documents.
+     *
+     * @return the used bytes
+     */
+    public final synchronized long getUsedBytes() {
+        return this.position;
+    }
+
+    /**
+     * Gets the number of bytes used by live documents.
+     *
+     * @return the live bytes
+     */
+    public final synchronized long getLiveBytes() {
+        return this.liveBytes;
+    }
+
+    @Override
+    public final synchronized void close() throws IOException {
+        for (MappedByteBuffer region : this.regions) {
+            region.force();
+        }
+        closeFiles();
+    }
+
+    /**
+     * Opens the files and loads the index.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void open() throws IOException {
+        File dataFile = new File(this.directory, DATA_FILE);
+        File indexFile = new File(this.directory, INDEX_FILE);
+        this.regions.clear();
+        this.position = 0;
+        this.liveBytes = 0;
+        long validIndexLength = loadIndex(indexFile, dataFile.length());
+        if (indexFile.exists() && indexFile.length() != validIndexLength) {
+            // Cut off a record torn by a crash
+            try (RandomAccessFile raf = new RandomAccessFile(indexFile,
+                    "rw")) {
+                raf.setLength(validIndexLength);
+            }
+        }
+        this.data = new RandomAccessFile(dataFile, "rw");
+        this.index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile, true)));
+    }
+
+    /**
+     * Reads the index file into the location map.
+     *
+     * @param indexFile  the index file
+     * @param dataLength the length of the data file
+     * @return the length of the valid part of the index file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private long loadIndex(final File indexFile, final long dataLength)
+            throws IOException {
+        if (!indexFile.exists()) {
+            return 0;
+        }
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            while (true) {
+                String padId;
+                byte kind;
+                Location location;
+                try {
+                    padId = in.readUTF();
+                    kind = in.readByte();
+                    location = new Location(in.readLong(), in.readLong(),
+                            in.readInt(), in.readInt(), false);
+                } catch (EOFException e) {
+                    break;
+                }
+                valid += 2 + modifiedUtf8Length(padId) + 1 + 8 + 8 + 4 + 4;
+                if (kind == KIND_TEXT_REMOVED || kind == KIND_HTML_REMOVED) {
+                    drop(key(padId, kind == KIND_HTML_REMOVED));
+                    continue;
+                }
+                long end = location.offset + location.length;
+                if (end > dataLength) {
+                    continue;
+                }
+                this.position = Math.max(this.position, end);
+                drop(key(padId, kind == KIND_HTML));
+                this.locations.put(key(padId, kind == KIND_HTML), location);
+                this.liveBytes += location.length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Appends a record to the index file.
+     *
+     * @param padId    the pad's id string
+     * @param kind     the record kind
+     * @param location the document location
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void writeIndex(final String padId, final byte kind,
+            final Location location) throws IOException {
+        writeIndex(this.index, padId, kind, location);
+    }
+
+    /**
+     * Writes an index record.
+     *
+     * @param out      the index stream
+     * @param padId    the pad's id string
+     * @param kind     the record kind
+     * @param location the document location
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void writeIndex(final DataOutputStream out,
+            final String padId, final byte kind, final Location location)
+            throws IOException {
+        out.writeUTF(padId);
+        out.writeByte(kind);
+        out.writeLong(location.rev);
+        out.writeLong(location.offset);
+        out.writeInt(location.length);
+        out.writeInt(location.checksum);
+    }
+
+    /**
+     * Rewrites the live documents into fresh files, dropping the space held
+     * by replaced and removed documents. The documents are copied as bytes
+     * from the mapped regions of the old data file to those of the new one;
+     * documents whose checksum does not match are dropped.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void compact() throws IOException {
+        File dataFile = new File(this.directory, DATA_FILE);
+        File indexFile = new File(this.directory, INDEX_FILE);
+        File compactData = new File(this.directory, DATA_FILE + ".compact");
+        File compactIndex = new File(this.directory, INDEX_FILE + ".compact");
+        Map<String, Location> compacted = new HashMap<>();
+        long end = 0;
+        long live = 0;
+        try (RandomAccessFile out = new RandomAccessFile(compactData, "rw");
+                DataOutputStream outIndex = new DataOutputStream(
+                        new BufferedOutputStream(
+                                new FileOutputStream(compactIndex)))) {
+            List<MappedByteBuffer> outRegions = new ArrayList<>();
+            for (Map.Entry<String, Location> entry
+                    : this.locations.entrySet()) {
+                Location location = entry.getValue();
+                ByteBuffer bytes = slice(location);
+                if (!location.verified
+                        && checksum(bytes) != location.checksum) {
+                    continue;
+                }
+                // the live documents fit, as the old file held them and
+                // more; the check only guards against region padding
+                long offset = allocate(end, location.length);
+                if (offset < 0) {
+                    continue;
+                }
+                int number = (int) (offset / this.regionSize);
+                while (outRegions.size() <= number) {
+                    long start = (long) outRegions.size() * this.regionSize;
+                    outRegions.add(out.getChannel().map(
+                            FileChannel.MapMode.READ_WRITE, start,
+                            this.regionSize));
+                }
+                ByteBuffer region = outRegions.get(number).duplicate();
+                region.position((int) (offset % this.regionSize));
+                region.put(bytes);
+                end = offset + location.length;
+
+                Location moved = new Location(location.rev, offset,
+                        location.length, location.checksum, true);
+                String key = entry.getKey();
+                boolean html = key.endsWith("h");
+                writeIndex(outIndex, key.substring(0, key.length() - 2),
+                        html ? KIND_HTML : KIND_TEXT, moved);
+                compacted.put(key, moved);
+                live += location.length;
+            }
+        }
+        closeFiles();
+        Files.move(compactData.toPath(), dataFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        Files.move(compactIndex.toPath(), indexFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        this.locations.clear();
+        this.locations.putAll(compacted);
+        this.position = end;
+        this.liveBytes = live;
+        this.data = new RandomAccessFile(dataFile, "rw");
+        this.index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile, true)));
+    }
+
+    /**
+     * Appends a document to the data file and records it in the index.
+     *
+     * @param padId the pad's id string
+     * @param html  the document kind
+     * @param rev   the revision
+     * @param bytes the UTF-8 encoded document
+     * @return false if the data file is full
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private boolean append(final String padId, final boolean html,
+            final long rev, final byte[] bytes) throws IOException {
+        long offset = allocate(this.position, bytes.length);
+        if (offset < 0) {
+            return false;
+        }
+        ByteBuffer region = region(offset).duplicate();
+        region.position((int) (offset % this.regionSize));
+        region.put(bytes);
+        this.position = offset + bytes.length;
+
+        Location location = new Location(rev, offset, bytes.length,
+                checksum(ByteBuffer.wrap(bytes)), true);
+        writeIndex(padId, html ? KIND_HTML : KIND_TEXT, location);
+        drop(key(padId, html));
+        this.locations.put(key(padId, html), location);
+        this.liveBytes += bytes.length;
+        return true;
+    }
+
+    /**
+     * Finds the offset for a new document of the given length.
+     *
+     * @param position the append position
+     * @param length   the document length
+     * @return the offset, or -1 if the data file is full
+     */
+    private long allocate(final long position, final int length) {
+        long offset = position;
+        long regionEnd = (offset / this.regionSize + 1) * this.regionSize;
+        if (offset + length > regionEnd) {
+            offset = regionEnd;
+        }
+        return (offset + length <= this.maxBytes) ? offset : -1;
+    }
+
+    /**
+     * Gets the mapped region containing an offset, mapping it if needed.
+     *
+     * @param offset the offset
+     * @return the region
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private MappedByteBuffer region(final long offset) throws IOException {
+        int number = (int) (offset / this.regionSize);
+        while (this.regions.size() <= number) {
+            long start = (long) this.regions.size() * this.regionSize;
+            this.regions.add(this.data.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, start, this.regionSize));
+        }
+        return this.regions.get(number);
+    }
+
+    /**
+     * Gets a read-only view of a stored document.
+     *
+     * @param location the document location
+     * @return the bytes
+     */
+    private ByteBuffer slice(final Location location) {
+        try {
+            ByteBuffer view = region(location.offset).asReadOnlyBuffer();
+            int start = (int) (location.offset % this.regionSize);
+            view.position(start);
+            view.limit(start + location.length);
+            return view.slice();
+        } catch (IOException e) {
+            throw new EPLiteException("Unable to map pad store", e);
+        }
+    }
+
+    /**
+     * Removes a location from the map.
+     *
+     * @param key the key
+     * @return true if there was a location
+     */
+    private boolean drop(final String key) {
+        Location previous = this.locations.remove(key);
+        if (previous != null) {
+            this.liveBytes -= previous.length;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Removes a document and records the removal.
+     *
+     * @param padId the pad's id string
+     * @param html  the document kind
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void remove(final String padId, final boolean html)
+            throws IOException {
+        if (drop(key(padId, html))) {
+            writeIndex(padId, html ? KIND_HTML_REMOVED : KIND_TEXT_REMOVED,
+                    new Location(0, 0, 0, 0, true));
+        }
+    }
+
+    /**
+     * Closes the data and index files.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void closeFiles() throws IOException {
+        this.regions.clear();
+        try {
+            this.index.close();
+        } finally {
+            this.data.close();
+        }
+    }
+
+    /**
+     * Builds the location key of a document.
+     *
+     * @param padId the pad's id string
+     * @param html  the document kind
+     * @return the key
+     */
+    private static String key(final String padId, final boolean html) {
+        return padId + (html ? "\u0000h" : "\u0000t");
+    }
+
+    /**
+     * Computes the FNV-1a checksum of the remaining bytes of a buffer, without
+     * changing its position.
+     *
+     * @param bytes the bytes
+     * @return the checksum
+     */
+    static int checksum(final ByteBuffer bytes) {
+        int hash = 0x811c9dc5;
+        for (int i = bytes.position(); i < bytes.limit(); i++) {
+            hash ^= bytes.get(i) & 0xff;
+            hash *= 0x01000193;
+        }
+        return hash;
+    }
+
+    /**
+     * Gets the length of a string in modified UTF-8, as written by
+     * {@link DataOutputStream#writeUTF}.
+     *
+     * @param value the string
+     * @return the length in bytes
+     */
+    private static int modifiedUtf8Length(final String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 0x0001 && c <= 0x007f) {
+                length++;
+            } else if (c > 0x07ff) {
+                length += 3;
+            } else {
+                length += 2;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * A document read from the store.
+     */
+    public static final class StoredDocument {
+
+        /** The revision. */
+        private final long rev;
+
+        /** The UTF-8 encoded document, a view of the mapped file. */
+        private final ByteBuffer bytes;
+
+        /**
+         * Instantiates a new stored document.
+         *
+         * @param rev   the revision
+         * @param bytes the bytes
+         */
+        private StoredDocument(final long rev, final ByteBuffer bytes) {
+            this.rev = rev;
+            this.bytes = bytes;
+        }
+
+        /**
+         * Gets the revision of the document.
+         *
+         * @return the revision
+         */
+        public long getRev() {
+            return this.rev;
+        }
+
+        /**
+         * Gets the UTF-8 encoded document as a read-only view of the mapped
+         * file. Valid until the store is compacted, cleared or closed.
+         *
+         * @return the bytes
+         */
+        public ByteBuffer getBytes() {
+            return this.bytes.duplicate();
+        }
+
+        /**
+         * Decodes the document.
+         *
+         * @return the document
+         */
+        public String getDocument() {
+            return StandardCharsets.UTF_8.decode(this.bytes.duplicate())
+                    .toString();
+        }
+    }
+
+    /**
+     * The location of a document in the data file.
+     */
+    private static final class Location {
+
+        /** The revision. */
+        private final long rev;
+
+        /** The offset in the data file. */
+        private final long offset;
+
+        /** The length in bytes. */
+        private final int length;
+
+        /** The checksum. */
+        private final int checksum;
+
+        /** Whether the checksum has been verified. */
+        private boolean verified;
+
+        /**
+         * Instantiates a new location.
+         *
+         * @param rev      the revision
+         * @param offset   the offset
+         * @param length   the length
+         * @param checksum the checksum
+         * @param verified whether the checksum is known to match
+         */
+        private Location(final long rev, final long offset, final int length,
+                final int checksum, final boolean verified) {
+            this.rev = rev;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+            this.verified = verified;
+        }
+    }
+}
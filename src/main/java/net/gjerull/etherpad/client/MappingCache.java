@@ -0,0 +1,245 @@
+package net.gjerull.etherpad.client;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A read-through cache for the stable id mappings of the Etherpad Lite API:
+ * padID to readOnlyID (and back), groupMapper to groupID and authorMapper to
+ * authorID.<br />
+ * <br />
+ * Install it on a client with {@link EPLiteClient#setMappingCache}. Entries
+ * are invalidated when pads or groups are deleted or moved through the same
+ * client. Changes made by other clients are not seen, so only use the cache
+ * when this client is the one managing the pads and groups.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * EPLiteClient api = new EPLiteClient(url, apiKey);<br />
+ * api.setMappingCache(new MappingCache(10000));<br />
+ * String roId = (String) api.getReadOnlyID("my_pad").get("readOnlyID");
+ * </code>
+ */
+public class MappingCache {
+
+    /** The Constant DEFAULT_MAX_ENTRIES. */
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /**
+     * The padID to readOnlyID mappings. Evicting one also removes its
+     * reverse mapping, so both directions always hold the same pairs.
+     */
+    private final LruMap<String, String> readOnlyIds;
+
+    /** The readOnlyID to padID mappings, the reverse of readOnlyIds. */
+    private final Map<String, String> padIds = new HashMap<>();
+
+    /** The groupMapper to groupID mappings. */
+    private final LruMap<String, String> groupIds;
+
+    /** The authorMapper to authorID mappings. */
+    private final LruMap<String, String> authorIds;
+
+    /** The number of lookups answered from the cache. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of lookups not answered from the cache. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Instantiates a new mapping cache holding at most
+     * {@link #DEFAULT_MAX_ENTRIES} entries of each mapping kind.
+     */
+    public MappingCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Instantiates a new mapping cache.
+     *
+     * @param maxEntries the maximum number of entries of each mapping kind
+     */
+    public MappingCache(final int maxEntries) {
+        this.readOnlyIds = new LruMap<String, String>(maxEntries) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void evicted(final String padId,
+                    final String readOnlyId) {
+                MappingCache.this.padIds.remove(readOnlyId);
+            }
+        };
+        this.groupIds = new LruMap<>(maxEntries);
+        this.authorIds = new LruMap<>(maxEntries);
+    }
+
+    /**
+     * Gets the cached readOnlyID of a pad.
+     *
+     * @param padId the pad's id string
+     * @return the readOnlyID, or null if not cached
+     */
+    public final synchronized String getReadOnlyId(final String padId) {
+        return count(this.readOnlyIds.get(padId));
+    }
+
+    /**
+     * Gets the cached padID of a readOnlyID.
+     *
+     * @param readOnlyId the pad's read only id string
+     * @return the padID, or null if not cached
+     */
+    public final synchronized String getPadId(final String readOnlyId) {
+        String padId = this.padIds.get(readOnlyId);
+        if (padId != null) {
+            // keeps the pair recently used
+            this.readOnlyIds.get(padId);
+        }
+        return count(padId);
+    }
+
+    /**
+     * Caches the mapping between a pad and its readOnlyID in both directions.
+     *
+     * @param padId      the pad's id string
+     * @param readOnlyId the pad's read only id string
+     */
+    public final synchronized void putReadOnlyId(final String padId,
+            final String readOnlyId) {
+        String previousReadOnlyId = this.readOnlyIds.remove(padId);
+        if (previousReadOnlyId != null) {
+            this.padIds.remove(previousReadOnlyId);
+        }
+        String previousPadId = this.padIds.remove(readOnlyId);
+        if (previousPadId != null) {
+            this.readOnlyIds.remove(previousPadId);
+        }
+        this.readOnlyIds.put(padId, readOnlyId);
+        this.padIds.put(readOnlyId, padId);
+    }
+
+    /**
+     * Gets the cached groupID of a groupMapper.
+     *
+     * @param groupMapper your group mapper string
+     * @return the groupID, or null if not cached
+     */
+    public final synchronized String getGroupId(final String groupMapper) {
+        return count(this.groupIds.get(groupMapper));
+    }
+
+    /**
+     * Caches the groupID of a groupMapper.
+     *
+     * @param groupMapper your group mapper string
+     * @param groupId     the groupID
+     */
+    public final synchronized void putGroupId(final String groupMapper,
+            final String groupId) {
+        this.groupIds.put(groupMapper, groupId);
+    }
+
+    /**
+     * Gets the cached authorID of an authorMapper.
+     *
+     * @param authorMapper your author mapper string
+     * @return the authorID, or null if not cached
+     */
+    public final synchronized String getAuthorId(final String authorMapper) {
+        return count(this.authorIds.get(authorMapper));
+    }
+
+    /**
+     * Caches the authorID of an authorMapper.
+     *
+     * @param authorMapper your author mapper string
+     * @param authorId     the authorID
+     */
+    public final synchronized void putAuthorId(final String authorMapper,
+            final String authorId) {
+        this.authorIds.put(authorMapper, authorId);
+    }
+
+    /**
+     * Removes the readOnlyID mappings of a pad.
+     *
+     * @param padId the pad's id string
+     */
+    public final synchronized void invalidatePad(final String padId) {
+        String readOnlyId = this.readOnlyIds.remove(padId);
+        if (readOnlyId != null) {
+            this.padIds.remove(readOnlyId);
+        }
+    }
+
+    /**
+     * Removes the groupMapper mappings of a group together with the
+     * readOnlyID mappings of all pads in the group.
+     *
+     * @param groupId the groupID
+     */
+    public final synchronized void invalidateGroup(final String groupId) {
+        Iterator<Map.Entry<String, String>> i = this.groupIds.entrySet()
+                .iterator();
+        while (i.hasNext()) {
+            if (groupId.equals(i.next().getValue())) {
+                i.remove();
+            }
+        }
+        String prefix = groupId + "$";
+        i = this.readOnlyIds.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, String> entry = i.next();
+            if (entry.getKey().startsWith(prefix)) {
+                this.padIds.remove(entry.getValue());
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes all cached mappings.
+     */
+    public final synchronized void clear() {
+        this.readOnlyIds.clear();
+        this.padIds.clear();
+        this.groupIds.clear();
+        this.authorIds.clear();
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public final long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of lookups which had to go to the server.
+     *
+     * @return the miss count
+     */
+    public final long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Records a lookup result in the hit/miss counters.
+     *
+     * @param value the looked up value
+     * @return the value
+     */
+    private String count(final String value) {
+        if (value != null) {
+            this.hits.incrementAndGet();
+        } else {
+            this.misses.incrementAndGet();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,437 @@
+package net.gjerull.etherpad.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache for the current text and HTML of pads which is kept fresh by cheap
+ * revalidation. A cached document is returned as is while it is younger than
+ * the staleness window. After that the revision number of the pad is fetched
+ * with getRevisionsCount, and the full document is only downloaded again if
+ * the pad has a newer revision than the cached one.<br />
+ * <br />
+ * Install it on a client with {@link EPLiteClient#setPadContentCache}. Writes
+ * made through the same client invalidate the cached documents of the pad.
+ * <br />
+ * <br />
+ * Optionally a {@link MappedPadStore} can be given as a second tier. Every
+ * downloaded document is also written there, so pads evicted from memory, or
+ * cached before a restart, only need a getRevisionsCount call to be served
+ * again. Failures of the second tier never fail a read; they are counted in
+ * {@link #getDiskErrorCount()}.
+ * <br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * EPLiteClient api = new EPLiteClient(url, apiKey);<br />
+ * api.setPadContentCache(new PadContentCache(1000, 5000));<br />
+ * String text = (String) api.getText("my_pad").get("text");
+ * </code>
+ */
+public class PadContentCache {
+
+    /** The Constant DEFAULT_MAX_ENTRIES. */
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    /** The Constant DEFAULT_STALENESS_MILLIS. */
+    public static final long DEFAULT_STALENESS_MILLIS = 1000L;
+
+    /** The cached documents, keyed by pad id. */
+    private final LruMap<String, Entry> entries;
+
+    /** How long a document is served without revalidation, in nanoseconds. */
+    private final long stalenessNanos;
+
+    /** The on-disk second tier, or null. */
+    private final MappedPadStore diskTier;
+
+    /** The number of reads served without contacting the server. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of reads served after a successful revalidation. */
+    private final AtomicLong revalidations = new AtomicLong();
+
+    /** The number of reads which downloaded the full document. */
+    private final AtomicLong fetches = new AtomicLong();
+
+    /** The number of documents served from the second tier. */
+    private final AtomicLong diskHits = new AtomicLong();
+
+    /** The number of failed second tier operations. */
+    private final AtomicLong diskErrors = new AtomicLong();
+
+    /**
+     * Instantiates a new pad content cache with the default size and
+     * staleness window.
+     */
+    public PadContentCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_STALENESS_MILLIS);
+    }
+
+    /**
+     * Instantiates a new pad content cache.
+     *
+     * @param maxEntries       the maximum number of pads kept in memory
+     * @param stalenessMillis  how long a document is served without
+     *                         revalidating it, 0 to revalidate on every read
+     */
+    public PadContentCache(final int maxEntries, final long stalenessMillis) {
+        this(maxEntries, stalenessMillis, null);
+    }
+
+    /**
+     * Instantiates a new pad content cache with an on-disk second tier.
+     *
+     * @param maxEntries       the maximum number of pads kept in memory
+     * @param stalenessMillis  how long a document is served without
+     *                         revalidating it, 0 to revalidate on every read
+     * @param diskTier         the second tier, or null
+     */
+    public PadContentCache(final int maxEntries, final long stalenessMillis,
+            final MappedPadStore diskTier) {
+        if (stalenessMillis < 0) {
+            throw new IllegalArgumentException(
+                    "stalenessMillis must not be negative: " + stalenessMillis);
+        }
+        this.entries = new LruMap<>(maxEntries);
+        this.stalenessNanos = TimeUnit.MILLISECONDS.toNanos(stalenessMillis);
+        this.diskTier = diskTier;
+    }
+
+    /**
+     * Gets the current text of a pad.
+     *
+     * @param connection the connection used on a cache miss
+     * @param padId      the pad's id string
+     * @return the text
+     */
+    final String getText(final EPLiteConnection connection,
+            final String padId) {
+        return get(connection, padId, false);
+    }
+
+    /**
+     * Gets the current HTML of a pad.
+     *
+     * @param connection the connection used on a cache miss
+     * @param padId      the pad's id string
+     * @return the html
+     */
+    final String getHTML(final EPLiteConnection connection,
+            final String padId) {
+        return get(connection, padId, true);
+    }
+
+    /**
+     * Gets the current text or HTML of a pad, revalidating or fetching it as
+     * needed.
+     *
+     * @param connection the connection
+     * @param padId      the pad's id string
+     * @param html       true for the HTML, false for the text
+     * @return the document
+     */
+    private String get(final EPLiteConnection connection, final String padId,
+            final boolean html) {
+        Entry entry = lookup(padId);
+        String cached = (entry != null) ? entry.document(html) : null;
+        long cachedRev = (entry != null) ? entry.rev : -1;
+        long now = System.nanoTime();
+        if (cached != null && now - entry.validatedAt <= this.stalenessNanos) {
+            this.hits.incrementAndGet();
+            return cached;
+        }
+        // A document found on disk stays in the mapped file until the
+        // revision is validated; only then is it decoded, once, into the
+        // String returned and kept in memory
+        MappedPadStore.StoredDocument stored = null;
+        if (cached == null) {
+            stored = readDisk(padId, html);
+            if (stored != null) {
+                cachedRev = stored.getRev();
+            }
+        }
+
+        long rev = revisionsCount(connection, padId);
+        if (stored != null && rev == cachedRev) {
+            cached = stored.getDocument();
+            this.diskHits.incrementAndGet();
+            store(padId, rev, cached, html, now);
+            this.revalidations.incrementAndGet();
+            return cached;
+        }
+        if (cached != null && rev == cachedRev) {
+            entry.validatedAt = now;
+            this.revalidations.incrementAndGet();
+            return cached;
+        }
+
+        // Fetch the document at the revision we validated against, so the
+        // cached revision number always matches the cached content
+        Map<String, Object> args = new HashMap<>();
+        args.put("padID", padId);
+        args.put("rev", rev);
+        String key = html ? "html" : "text";
+        String document = (String) connection
+                .get(html ? "getHTML" : "getText", args).get(key);
+        this.fetches.incrementAndGet();
+        store(padId, rev, document, html, now);
+        writeDisk(padId, rev, document, html);
+        return document;
+    }
+
+    /**
+     * Fetches the current revision number of a pad.
+     *
+     * @param connection the connection
+     * @param padId      the pad's id string
+     * @return the revision number
+     */
+    private static long revisionsCount(final EPLiteConnection connection,
+            final String padId) {
+        Map<String, Object> args = new HashMap<>();
+        args.put("padID", padId);
+        Object revisions = connection.get("getRevisionsCount", args)
+                .get("revisions");
+        if (!(revisions instanceof Number)) {
+            throw new EPLiteException(
+                    "Unexpected getRevisionsCount response for " + padId);
+        }
+        return ((Number) revisions).longValue();
+    }
+
+    /**
+     * Reads a document from the second tier.
+     *
+     * @param padId the pad's id string
+     * @param html  true for the HTML
+     * @return the document, or null
+     */
+    private MappedPadStore.StoredDocument readDisk(final String padId,
+            final boolean html) {
+        if (this.diskTier == null) {
+            return null;
+        }
+        try {
+            return this.diskTier.get(padId, html);
+        } catch (RuntimeException e) {
+            this.diskErrors.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Writes a downloaded document to the second tier.
+     *
+     * @param padId    the pad's id string
+     * @param rev      the revision
+     * @param document the document
+     * @param html     true for the HTML
+     */
+    private void writeDisk(final String padId, final long rev,
+            final String document, final boolean html) {
+        if (this.diskTier == null) {
+            return;
+        }
+        try {
+            this.diskTier.put(padId, html, rev, document);
+        } catch (IOException | RuntimeException e) {
+            this.diskErrors.incrementAndGet();
+        }
+    }
+
+    /**
+     * Looks up the cached entry of a pad.
+     *
+     * @param padId the pad's id string
+     * @return the entry, or null
+     */
+    private Entry lookup(final String padId) {
+        synchronized (this.entries) {
+            return this.entries.get(padId);
+        }
+    }
+
+    /**
+     * Stores a freshly fetched document. The other document kind of the
+     * entry is kept if it belongs to the same revision.
+     *
+     * @param padId       the pad's id string
+     * @param rev         the revision of the document
+     * @param document    the document
+     * @param html        true if the document is HTML
+     * @param validatedAt the time the revision was validated
+     */
+    private void store(final String padId, final long rev,
+            final String document, final boolean html, final long validatedAt) {
+        synchronized (this.entries) {
+            Entry previous = this.entries.get(padId);
+            if (previous != null && previous.rev > rev) {
+                return;
+            }
+            String text = html ? null : document;
+            String htmlDocument = html ? document : null;
+            if (previous != null && previous.rev == rev) {
+                text = (text != null) ? text : previous.text;
+                htmlDocument = (htmlDocument != null) ? htmlDocument
+                        : previous.html;
+            }
+            this.entries.put(padId,
+                    new Entry(rev, text, htmlDocument, validatedAt));
+        }
+    }
+
+    /**
+     * Drops the cached documents of a pad.
+     *
+     * @param padId the pad's id string
+     */
+    public final void invalidate(final String padId) {
+        synchronized (this.entries) {
+            this.entries.remove(padId);
+        }
+        if (this.diskTier != null) {
+            try {
+                this.diskTier.remove(padId);
+            } catch (IOException | RuntimeException e) {
+                this.diskErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops the cached documents of all pads of a group.
+     *
+     * @param groupId the group id
+     */
+    public final void invalidateGroup(final String groupId) {
+        String prefix = groupId + "$";
+        synchronized (this.entries) {
+            Iterator<String> i = this.entries.keySet().iterator();
+            while (i.hasNext()) {
+                if (i.next().startsWith(prefix)) {
+                    i.remove();
+                }
+            }
+        }
+        if (this.diskTier != null) {
+            try {
+                this.diskTier.removeAll(prefix);
+            } catch (IOException | RuntimeException e) {
+                this.diskErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Drops all cached documents.
+     */
+    public final void clear() {
+        synchronized (this.entries) {
+            this.entries.clear();
+        }
+        if (this.diskTier != null) {
+            try {
+                this.diskTier.clear();
+            } catch (IOException | RuntimeException e) {
+                this.diskErrors.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of reads served without contacting the server.
+     *
+     * @return the hit count
+     */
+    public final long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of reads served after a getRevisionsCount call showed
+     * the cached document to be current.
+     *
+     * @return the revalidation count
+     */
+    public final long getRevalidationCount() {
+        return this.revalidations.get();
+    }
+
+    /**
+     * Gets the number of reads which downloaded the full document.
+     *
+     * @return the fetch count
+     */
+    public final long getFetchCount() {
+        return this.fetches.get();
+    }
+
+    /**
+     * Gets the number of documents served from the second tier after missing
+     * the in-memory tier.
+     *
+     * @return the disk hit count
+     */
+    public final long getDiskHitCount() {
+        return this.diskHits.get();
+    }
+
+    /**
+     * Gets the number of failed second tier operations.
+     *
+     * @return the disk error count
+     */
+    public final long getDiskErrorCount() {
+        return this.diskErrors.get();
+    }
+
+    /**
+     * The cached documents of one pad at one revision.
+     */
+    private static final class Entry {
+
+        /** The revision. */
+        private final long rev;
+
+        /** The text, or null if not cached. */
+        private final String text;
+
+        /** The html, or null if not cached. */
+        private final String html;
+
+        /** The time of the last validation, from System.nanoTime(). */
+        private volatile long validatedAt;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param rev         the revision
+         * @param text        the text
+         * @param html        the html
+         * @param validatedAt the time of validation
+         */
+        private Entry(final long rev, final String text, final String html,
+                final long validatedAt) {
+            this.rev = rev;
+            this.text = text;
+            this.html = html;
+            this.validatedAt = validatedAt;
+        }
+
+        /**
+         * Gets the text or HTML document.
+         *
+         * @param html true for the HTML
+         * @return the document, or null
+         */
+        private String document(final boolean html) {
+            return html ? this.html : this.text;
+        }
+    }
+}
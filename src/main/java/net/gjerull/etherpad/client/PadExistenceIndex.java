@@ -0,0 +1,431 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An index of existing pad ids used to fail calls for missing pads without a
+ * round trip to the server.<br />
+ * <br />
+ * The index is a Bloom filter built from listAllPads, rebuilt when it gets
+ * older than the configured maximum age, and kept up to date by createPad,
+ * createGroupPad, copyPad, movePad and deletePad calls made through the same
+ * client, and by successful calls for pads it did not contain. Pads the
+ * server reported as missing are remembered in a negative cache for a short
+ * time.<br />
+ * <br />
+ * A call for a pad the filter does not contain, or which is in the
+ * negative cache, fails without a round trip. The filter is built and
+ * rebuilt in the background, one rebuild at a time, so no call waits for
+ * listAllPads: until the first filter is built, calls are sent and only the
+ * negative cache fails them, and a stale filter is used until its
+ * replacement is swapped in. Pads created by other clients are therefore
+ * reported missing until the next rebuild, at most the maximum age later;
+ * call {@link #invalidate()} to see them sooner.<br />
+ * <br />
+ * Install it on a client with {@link EPLiteClient#setPadExistenceIndex}.
+ */
+public class PadExistenceIndex {
+
+    /** The message of the error returned for a missing pad. */
+    public static final String PAD_DOES_NOT_EXIST = "padID does not exist";
+
+    /** The Constant DEFAULT_MAX_AGE_MILLIS. */
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60000L;
+
+    /** The Constant DEFAULT_NEGATIVE_TTL_MILLIS. */
+    public static final long DEFAULT_NEGATIVE_TTL_MILLIS = 5000L;
+
+    /** The Constant DEFAULT_NEGATIVE_ENTRIES. */
+    public static final int DEFAULT_NEGATIVE_ENTRIES = 10000;
+
+    /** The false positive probability of the Bloom filter. */
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /** The minimum capacity of a freshly built filter. */
+    private static final int MIN_CAPACITY = 1024;
+
+    /** The maximum age of the index, in nanoseconds. */
+    private final long maxAgeNanos;
+
+    /** How long a confirmed miss is remembered, in nanoseconds. */
+    private final long negativeTtlNanos;
+
+    /** The confirmed misses and the time they expire. */
+    private final LruMap<String, Long> misses;
+
+    /** The pad id filter, null until built. */
+    private BloomFilter filter;
+
+    /** The executor rebuilding the filter, or null for a new thread. */
+    private final Executor rebuilder;
+
+    /** The pads created while the filter is rebuilt, null if it is not. */
+    private List<String> createdWhileRebuilding;
+
+    /** The number of times the index was discarded. */
+    private long generation;
+
+    /** The number of pad ids the filter was sized for. */
+    private int capacity;
+
+    /** The number of pad ids added to the filter. */
+    private int count;
+
+    /** The time the filter was built, from System.nanoTime(). */
+    private long builtAt;
+
+    /** The number of calls failed without a round trip. */
+    private final AtomicLong shortCircuits = new AtomicLong();
+
+    /** The number of times the index was built from listAllPads. */
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    /**
+     * Instantiates a new pad existence index with default settings.
+     */
+    public PadExistenceIndex() {
+        this(DEFAULT_MAX_AGE_MILLIS, DEFAULT_NEGATIVE_TTL_MILLIS,
+                DEFAULT_NEGATIVE_ENTRIES);
+    }
+
+    /**
+     * Instantiates a new pad existence index.
+     *
+     * @param maxAgeMillis       the age after which the index is rebuilt from
+     *                           listAllPads
+     * @param negativeTtlMillis  how long a pad confirmed missing is remembered
+     * @param maxNegativeEntries the maximum number of remembered misses
+     */
+    public PadExistenceIndex(final long maxAgeMillis,
+            final long negativeTtlMillis, final int maxNegativeEntries) {
+        this(maxAgeMillis, negativeTtlMillis, maxNegativeEntries, null);
+    }
+
+    /**
+     * Instantiates a new pad existence index rebuilt on an executor.
+     *
+     * @param maxAgeMillis       the age after which the index is rebuilt from
+     *                           listAllPads
+     * @param negativeTtlMillis  how long a pad confirmed missing is remembered
+     * @param maxNegativeEntries the maximum number of remembered misses
+     * @param rebuilder          the executor rebuilding the index, or null to
+     *                           start a daemon thread for each rebuild
+     */
+    public PadExistenceIndex(final long maxAgeMillis,
+            final long negativeTtlMillis, final int maxNegativeEntries,
+            final Executor rebuilder) {
+        this.rebuilder = rebuilder;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS
+                .toNanos(negativeTtlMillis);
+        this.misses = new LruMap<>(maxNegativeEntries);
+    }
+
+    /**
+     * Checks whether a pad may exist, starting a rebuild of the index in the
+     * background if it is missing or stale.
+     *
+     * @param connection the connection used to build the index
+     * @param padId      the pad's id string
+     * @return false if the pad is not in the index, or known not to exist
+     */
+    final boolean mightExist(final EPLiteConnection connection,
+            final String padId) {
+        boolean build;
+        boolean result;
+        synchronized (this) {
+            if (isMissing(padId)) {
+                return false;
+            }
+            // one rebuild at a time, decided and marked under the lock
+            build = (this.filter == null
+                    || System.nanoTime() - this.builtAt > this.maxAgeNanos)
+                    && this.createdWhileRebuilding == null;
+            if (build) {
+                this.createdWhileRebuilding = new ArrayList<>();
+            }
+            result = this.filter == null || this.filter.mightContain(padId);
+        }
+        if (build) {
+            startRebuild(connection);
+        }
+        return result;
+    }
+
+    /**
+     * Starts the rebuild marked by {@link #mightExist} in the background.
+     *
+     * @param connection the connection
+     */
+    private void startRebuild(final EPLiteConnection connection) {
+        Runnable rebuild = new Runnable() {
+            @Override
+            public void run() {
+                rebuild(connection);
+            }
+        };
+        try {
+            if (this.rebuilder != null) {
+                this.rebuilder.execute(rebuild);
+            } else {
+                Thread thread = new Thread(rebuild, "PadExistenceIndex");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (RejectedExecutionException e) {
+            // tried again by the next check
+            synchronized (this) {
+                this.createdWhileRebuilding = null;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from listAllPads and swaps it in. Pads created
+     * while listAllPads runs are added to the new filter. If listAllPads
+     * fails, the old filter is kept and the next check tries again.
+     *
+     * @param connection the connection
+     */
+    private void rebuild(final EPLiteConnection connection) {
+        long started;
+        synchronized (this) {
+            started = this.generation;
+        }
+        List ids;
+        try {
+            Object padIds = connection.get("listAllPads").get("padIDs");
+            ids = (padIds instanceof List) ? (List) padIds : new ArrayList();
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                this.createdWhileRebuilding = null;
+            }
+            return;
+        }
+        int size = ids.size();
+        int newCapacity = Math.max(MIN_CAPACITY, size * 2);
+        BloomFilter newFilter = new BloomFilter(newCapacity,
+                FALSE_POSITIVE_PROBABILITY);
+        for (Object id : ids) {
+            newFilter.add(String.valueOf(id));
+        }
+        synchronized (this) {
+            if (this.generation != started) {
+                // discarded while listing, which may predate the change
+                this.createdWhileRebuilding = null;
+                return;
+            }
+            this.filter = newFilter;
+            this.capacity = newCapacity;
+            this.count = size;
+            this.builtAt = System.nanoTime();
+            for (String padId : this.createdWhileRebuilding) {
+                add(padId);
+            }
+            this.createdWhileRebuilding = null;
+        }
+        this.rebuilds.incrementAndGet();
+    }
+
+    /**
+     * Records that a pad has been created.
+     *
+     * @param padId the pad's id string
+     */
+    public final synchronized void padCreated(final String padId) {
+        this.misses.remove(padId);
+        if (this.createdWhileRebuilding != null) {
+            this.createdWhileRebuilding.add(padId);
+        }
+        if (this.filter != null) {
+            add(padId);
+        }
+    }
+
+    /**
+     * Records that a pad is known not to exist (anymore).
+     *
+     * @param padId the pad's id string
+     */
+    public final synchronized void padMissing(final String padId) {
+        this.misses.put(padId, System.nanoTime() + this.negativeTtlNanos);
+    }
+
+    /**
+     * Records that a group has been deleted. The names of its pads are not
+     * known, so the index is discarded and rebuilt on the next check without
+     * them; the pads known to be missing are kept.
+     *
+     * @param groupId the group id
+     */
+    public final synchronized void groupDeleted(final String groupId) {
+        this.filter = null;
+        this.generation++;
+    }
+
+    /**
+     * Discards the index; it is rebuilt from the next check on.
+     */
+    public final synchronized void invalidate() {
+        this.filter = null;
+        this.generation++;
+        this.misses.clear();
+    }
+
+    /**
+     * Gets the number of calls failed without a round trip to the server.
+     *
+     * @return the short circuit count
+     */
+    public final long getShortCircuitCount() {
+        return this.shortCircuits.get();
+    }
+
+    /**
+     * Gets the number of times the index was built from listAllPads.
+     *
+     * @return the rebuild count
+     */
+    public final long getRebuildCount() {
+        return this.rebuilds.get();
+    }
+
+    /**
+     * Fails a call before it is sent if the pad it refers to is not in the
+     * filter or has been confirmed missing.
+     *
+     * @param connection the connection
+     * @param apiMethod  the api method
+     * @param apiArgs    the api arguments
+     */
+    final void beforeCall(final EPLiteConnection connection,
+            final String apiMethod, final Map<String, Object> apiArgs) {
+        String padId = existingPadArgument(apiMethod, apiArgs);
+        if (padId == null || mightExist(connection, padId)) {
+            return;
+        }
+        this.shortCircuits.incrementAndGet();
+        throw new EPLiteException(PAD_DOES_NOT_EXIST, false);
+    }
+
+    /**
+     * Updates the index after a successful call.
+     *
+     * @param apiMethod the api method
+     * @param apiArgs   the api arguments
+     */
+    final void afterCall(final String apiMethod,
+            final Map<String, Object> apiArgs) {
+        String padId = existingPadArgument(apiMethod, apiArgs);
+        if (padId != null && !"movePad".equals(apiMethod)
+                && !"deletePad".equals(apiMethod)) {
+            padSeen(padId);
+        }
+        switch (apiMethod) {
+        case "createPad":
+            padCreated(String.valueOf(apiArgs.get("padID")));
+            break;
+        case "createGroupPad":
+            padCreated(apiArgs.get("groupID") + "$" + apiArgs.get("padName"));
+            break;
+        case "copyPad":
+            padCreated(String.valueOf(apiArgs.get("destinationID")));
+            break;
+        case "movePad":
+            padMissing(String.valueOf(apiArgs.get("sourceID")));
+            padCreated(String.valueOf(apiArgs.get("destinationID")));
+            break;
+        case "deletePad":
+            padMissing(String.valueOf(apiArgs.get("padID")));
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Remembers the pad of a failed call if the server reported it missing.
+     *
+     * @param apiMethod the api method
+     * @param apiArgs   the api arguments
+     * @param e         the error
+     */
+    final void afterError(final String apiMethod,
+            final Map<String, Object> apiArgs, final EPLiteException e) {
+        String padId = existingPadArgument(apiMethod, apiArgs);
+        if (padId != null && PAD_DOES_NOT_EXIST.equals(e.getMessage())) {
+            padMissing(padId);
+        }
+    }
+
+    /**
+     * Gets the argument naming a pad that must already exist for the call to
+     * succeed.
+     *
+     * @param apiMethod the api method
+     * @param apiArgs   the api arguments
+     * @return the pad id, or null if the call does not need an existing pad
+     */
+    private static String existingPadArgument(final String apiMethod,
+            final Map<String, Object> apiArgs) {
+        switch (apiMethod) {
+        case "createPad":
+            return null;
+        case "copyPad":
+        case "movePad":
+            return (String) apiArgs.get("sourceID");
+        default:
+            return (String) apiArgs.get("padID");
+        }
+    }
+
+    /**
+     * Checks the negative cache, dropping an expired miss. The caller holds
+     * the lock.
+     *
+     * @param padId the pad's id string
+     * @return true if the pad was recently confirmed missing
+     */
+    private boolean isMissing(final String padId) {
+        Long expiry = this.misses.get(padId);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry - System.nanoTime() > 0) {
+            return true;
+        }
+        this.misses.remove(padId);
+        return false;
+    }
+
+    /**
+     * Adds a pad a call succeeded for to the filter, or to the filter being
+     * built, if it is not there.
+     *
+     * @param padId the pad's id string
+     */
+    private synchronized void padSeen(final String padId) {
+        if (this.filter == null || !this.filter.mightContain(padId)) {
+            padCreated(padId);
+        }
+    }
+
+    /**
+     * Adds a pad id to the filter, growing it by a rebuild on the next check
+     * once it is over capacity.
+     *
+     * @param padId the pad's id string
+     */
+    private void add(final String padId) {
+        this.filter.add(padId);
+        if (++this.count > this.capacity) {
+            this.builtAt = System.nanoTime() - this.maxAgeNanos - 1;
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A local copy of the text of a pad which is kept up to date with the
+ * changesets of new revisions instead of downloading the full text again.
+ * <br />
+ * <br />
+ * {@link #sync()} fetches the current revision number and, if the mirror is
+ * behind, the changesets of the missing revisions with getRevisionChangeset.
+ * They are fetched in parallel on the given executor and applied in order. If
+ * the mirror is more than maxGap revisions behind, the text is downloaded
+ * with getText instead, as a few large requests are cheaper than many small
+ * ones. An empty mirror counts as being behind by all revisions of the pad,
+ * so pads with at most maxGap revisions are built from their changesets,
+ * starting with the initial text of every pad, a single newline.<br />
+ * <br />
+ * The text is kept as an {@link AttributedText}, so applying a changeset
+ * takes time proportional to its size, not to the size of the pad. The
+ * attributes of changesets are tracked along with the text, with the pad's
+ * attribute pool fetched when a changeset refers to attributes not seen
+ * before. Text downloaded with getText has no attributes, so a mirror that
+ * must keep all attributes needs a maxGap of at least the pad's number of
+ * revisions.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * PadMirror mirror = new PadMirror(api, "my_pad", executor, 50);<br />
+ * mirror.sync();<br />
+ * String text = mirror.getText();
+ * </code>
+ */
+public class PadMirror {
+
+    /** The Constant DEFAULT_MAX_GAP. */
+    public static final int DEFAULT_MAX_GAP = 100;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The pad's id string. */
+    private final String padId;
+
+    /** The executor fetching changesets, or null to fetch them in turn. */
+    private final ExecutorService executor;
+
+    /** The largest gap caught up with changesets. */
+    private final int maxGap;
+
+    /** The Constant INITIAL_TEXT. */
+    static final AttributedText INITIAL_TEXT = AttributedText
+            .of("\n");
+
+    /** The mirrored revision and its text. */
+    private volatile Snapshot snapshot = new Snapshot(-1,
+            AttributedText.empty());
+
+    /** The pad's attribute pool, null until needed. */
+    private volatile AttributePool pool;
+
+    /** The number of changesets applied. */
+    private final AtomicLong changesetsApplied = new AtomicLong();
+
+    /** The number of full text downloads. */
+    private final AtomicLong fullFetches = new AtomicLong();
+
+    /**
+     * Instantiates a new pad mirror which fetches changesets one after the
+     * other in the calling thread.
+     *
+     * @param client the client
+     * @param padId  the pad's id string
+     */
+    public PadMirror(final EPLiteClient client, final String padId) {
+        this(client, padId, null, DEFAULT_MAX_GAP);
+    }
+
+    /**
+     * Instantiates a new pad mirror.
+     *
+     * @param client   the client
+     * @param padId    the pad's id string
+     * @param executor the executor fetching changesets in parallel, or null to
+     *                 fetch them in the calling thread
+     * @param maxGap   the largest number of missing revisions caught up with
+     *                 changesets; larger gaps download the full text
+     */
+    public PadMirror(final EPLiteClient client, final String padId,
+            final ExecutorService executor, final int maxGap) {
+        if (maxGap < 0) {
+            throw new IllegalArgumentException(
+                    "maxGap must not be negative: " + maxGap);
+        }
+        this.client = client;
+        this.padId = padId;
+        this.executor = executor;
+        this.maxGap = maxGap;
+    }
+
+    /**
+     * Brings the mirror up to the current revision of the pad.
+     *
+     * @return the revision of the mirrored text
+     */
+    public final synchronized long sync() {
+        long head = revisionsCount();
+        long current = this.snapshot.rev;
+        if (head < current || head - current > this.maxGap) {
+            download(head);
+        } else if (head > current) {
+            try {
+                catchUp(current, head);
+            } catch (EPLiteException e) {
+                // A changeset that does not fit the mirrored text means the
+                // mirror went out of step; start again from the full text
+                download(head);
+            }
+        }
+        return this.snapshot.rev;
+    }
+
+    /**
+     * Downloads the text of a revision.
+     *
+     * @param head the revision
+     */
+    private void download(final long head) {
+        String current = (String) this.client.getText(this.padId, head)
+                .get("text");
+        this.fullFetches.incrementAndGet();
+        this.snapshot = new Snapshot(head, AttributedText.of(current));
+    }
+
+    /**
+     * Applies the changesets of the revisions after the mirrored one.
+     *
+     * @param from the mirrored revision
+     * @param head the revision to catch up to
+     */
+    private void catchUp(final long from, final long head) {
+        List<Future<String>> pending = new ArrayList<>();
+        if (this.executor != null) {
+            for (long r = from + 1; r <= head; r++) {
+                pending.add(this.executor.submit(fetch(r)));
+            }
+        }
+        AttributedText current = (from < 0) ? INITIAL_TEXT
+                : this.snapshot.text;
+        try {
+            for (long r = from + 1; r <= head; r++) {
+                String packed = (this.executor != null)
+                        ? result(pending.get((int) (r - from - 1)))
+                        : this.client.getRevisionChangeset(this.padId, r);
+                Changeset changeset = Changeset.parse(packed);
+                current = current.apply(changeset, poolFor(changeset));
+                this.changesetsApplied.incrementAndGet();
+            }
+        } finally {
+            for (Future<String> future : pending) {
+                future.cancel(true);
+            }
+        }
+        this.snapshot = new Snapshot(head, current);
+    }
+
+    /**
+     * Gets an attribute pool knowing all attributes of a changeset, fetching
+     * the pad's pool again if it refers to an attribute number not seen yet.
+     * Attribute numbers are never reused, so a newer pool is always a
+     * superset of an older one.
+     *
+     * @param changeset the changeset
+     * @return the pool, or null if the changeset has no attributes
+     */
+    private AttributePool poolFor(final Changeset changeset) {
+        int maxAttrib = -1;
+        for (int i = 0; i < changeset.getOpCount(); i++) {
+            for (int a = 0; a < changeset.getAttribCount(i); a++) {
+                maxAttrib = Math.max(maxAttrib, changeset.getAttrib(i, a));
+            }
+        }
+        AttributePool current = this.pool;
+        if (maxAttrib >= 0
+                && (current == null || maxAttrib >= current.size())) {
+            current = AttributePool
+                    .fromMap(this.client.getAttributePool(this.padId));
+            this.pool = current;
+        }
+        return current;
+    }
+
+    /**
+     * Creates a task fetching the changeset of a revision.
+     *
+     * @param r the revision
+     * @return the task
+     */
+    private Callable<String> fetch(final long r) {
+        return new Callable<String>() {
+            @Override
+            public String call() {
+                return PadMirror.this.client.getRevisionChangeset(
+                        PadMirror.this.padId, r);
+            }
+        };
+    }
+
+    /**
+     * Waits for a fetched changeset.
+     *
+     * @param future the pending fetch
+     * @return the packed changeset
+     */
+    private static String result(final Future<String> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EPLiteException(
+                    "Interrupted while fetching changesets", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EPLiteException) {
+                throw (EPLiteException) e.getCause();
+            }
+            throw new EPLiteException("Unable to fetch changeset",
+                    e.getCause());
+        }
+    }
+
+    /**
+     * Fetches the current revision number of the pad.
+     *
+     * @return the revision number
+     */
+    private long revisionsCount() {
+        Object revisions = this.client.getRevisionsCount(this.padId)
+                .get("revisions");
+        if (!(revisions instanceof Number)) {
+            throw new EPLiteException(
+                    "Unexpected getRevisionsCount response for " + this.padId);
+        }
+        return ((Number) revisions).longValue();
+    }
+
+    /**
+     * Gets the pad's id string.
+     *
+     * @return the pad id
+     */
+    public final String getPadId() {
+        return this.padId;
+    }
+
+    /**
+     * Gets the revision of the mirrored text.
+     *
+     * @return the revision, -1 before the first sync
+     */
+    public final long getRevision() {
+        return this.snapshot.rev;
+    }
+
+    /**
+     * Gets the mirrored text.
+     *
+     * @return the text, empty before the first sync
+     */
+    public final String getText() {
+        return this.snapshot.text.toString();
+    }
+
+    /**
+     * Gets the mirrored text with its attributes. The returned text is an
+     * immutable snapshot.
+     *
+     * @return the attributed text
+     */
+    public final AttributedText getAttributedText() {
+        return this.snapshot.text;
+    }
+
+    /**
+     * Gets the mirrored revision together with its text.
+     *
+     * @return the snapshot
+     */
+    final Snapshot getSnapshot() {
+        return this.snapshot;
+    }
+
+    /**
+     * Gets the pad's attribute pool as last fetched.
+     *
+     * @return the pool, or null if no changeset with attributes was applied
+     */
+    public final AttributePool getAttributePool() {
+        return this.pool;
+    }
+
+    /**
+     * Gets the number of changesets applied.
+     *
+     * @return the changeset count
+     */
+    public final long getChangesetsApplied() {
+        return this.changesetsApplied.get();
+    }
+
+    /**
+     * Gets the number of full text downloads.
+     *
+     * @return the full fetch count
+     */
+    public final long getFullFetchCount() {
+        return this.fullFetches.get();
+    }
+
+    /**
+     * A revision of the pad and its text.
+     */
+    static final class Snapshot {
+
+        /** The revision, -1 before the first sync. */
+        private final long rev;
+
+        /** The text at the revision. */
+        private final AttributedText text;
+
+        /**
+         * Instantiates a new snapshot.
+         *
+         * @param rev  the revision
+         * @param text the text
+         */
+        private Snapshot(final long rev, final AttributedText text) {
+            this.rev = rev;
+            this.text = text;
+        }
+
+        /**
+         * Gets the revision.
+         *
+         * @return the revision
+         */
+        long getRevision() {
+            return this.rev;
+        }
+
+        /**
+         * Gets the text.
+         *
+         * @return the attributed text
+         */
+        AttributedText getText() {
+            return this.text;
+        }
+    }
+}
@@ -0,0 +1,680 @@
+package net.gjerull.etherpad.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONValue;
+
+/**
+ * Connects to a pad with Etherpad's realtime collaboration protocol, as a
+ * browser does, to receive the changesets of other authors as they happen
+ * and to submit changesets of its own, instead of polling the HTTP API.
+ * <br />
+ * <br />
+ * The client speaks socket.io 2 over the Engine.IO polling transport. After
+ * {@link #connect()}, the pad's text and attribute pool are kept up to date
+ * with the NEW_CHANGES messages of the server, and listeners are told about
+ * every new revision. Changesets received with their own attribute pool are
+ * moved to the client's pool, so all attribute numbers refer to
+ * {@link #getAttributePool()}.<br />
+ * <br />
+ * {@link #submitChanges(Changeset)} sends a changeset against the current
+ * text and waits until the server accepts it. Only one submission is
+ * pending at a time. If another author's changes arrive while a submission
+ * is pending, the server rebases the submitted changeset, which the client
+ * cannot reproduce; the text is then out of step, while revisions are still
+ * reported, until {@link #connect()} is called again. Connecting again opens
+ * a new session and reloads the text and pool from the server; it also
+ * revives a client whose connection ended or which was closed.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * PadRealtimeClient pad = new PadRealtimeClient("http://localhost:9001",
+ * "my_pad");<br />
+ * pad.addListener(listener);<br />
+ * pad.connect();<br />
+ * pad.submitChanges(Changeset.diff(pad.getText(), newText));
+ * </code>
+ */
+public class PadRealtimeClient implements Closeable {
+
+    /** The Constant TIMEOUT, in milliseconds. */
+    private static final long TIMEOUT = 30000;
+
+    /** The Constant RANDOM. */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** The url of the Etherpad server. */
+    private final String url;
+
+    /** The pad's id string. */
+    private final String padId;
+
+    /** The session id of a group pad session, or null. */
+    private final String sessionId;
+
+    /** The author token. */
+    private final String token;
+
+    /** The listeners. */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** The number of listener calls which threw an exception. */
+    private final AtomicLong listenerFailures = new AtomicLong();
+
+    /** The lock serializing submissions and connections. */
+    private final Object submitLock = new Object();
+
+    /** The Engine.IO session, null until connected. Guarded by this. */
+    private EngineIoClient engine;
+
+    /** The number of the current connection. Guarded by this. */
+    private long connection;
+
+    /** The attribute pool, null until connected. Guarded by this. */
+    private AttributePool pool;
+
+    /** The text, null until connected or when out of step. Guarded by this. */
+    private AttributedText text;
+
+    /** The revision of the text. Guarded by this. */
+    private long rev = -1;
+
+    /** The submitted changeset, or null. Guarded by this. */
+    private Changeset pending;
+
+    /** Whether other changes arrived while submitting. Guarded by this. */
+    private boolean rebased;
+
+    /** The revision of the last accepted submission. Guarded by this. */
+    private long accepted = -1;
+
+    /** The reason the connection ended, or null. Guarded by this. */
+    private RuntimeException failure;
+
+    /** Whether the current connection has ended. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new client for a public pad, with a new author token.
+     *
+     * @param url   the url of the Etherpad server
+     * @param padId the pad's id string
+     */
+    public PadRealtimeClient(final String url, final String padId) {
+        this(url, padId, null, newToken());
+    }
+
+    /**
+     * Instantiates a new client.
+     *
+     * @param url       the url of the Etherpad server
+     * @param padId     the pad's id string
+     * @param sessionId the session id for a group pad, as from
+     *                  createSession, or null
+     * @param token     the author token, identifying the author to the pad
+     */
+    public PadRealtimeClient(final String url, final String padId,
+            final String sessionId, final String token) {
+        this.url = url;
+        this.padId = padId;
+        this.sessionId = sessionId;
+        this.token = token;
+    }
+
+    /**
+     * Creates a random author token, as the browser does.
+     *
+     * @return the token
+     */
+    public static String newToken() {
+        String chars = "0123456789abcdefghijklmnopqrstuvwxyz";
+        StringBuilder token = new StringBuilder("t.");
+        for (int i = 0; i < 20; i++) {
+            token.append(chars.charAt(RANDOM.nextInt(chars.length())));
+        }
+        return token.toString();
+    }
+
+    /**
+     * Connects to the pad and waits for its text. If the client was
+     * connected before, the previous session is ended and the text is
+     * loaded again, also after the connection failed or the client was
+     * closed.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void connect() throws IOException {
+        synchronized (this.submitLock) {
+            connectSession();
+        }
+    }
+
+    /**
+     * Opens a new session, resetting the state of the previous one. Must
+     * hold the submission lock.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void connectSession() throws IOException {
+        final EngineIoClient session = new EngineIoClient(this.url);
+        final long current;
+        EngineIoClient previous;
+        long previousConnection;
+        synchronized (this) {
+            previous = this.closed ? null : this.engine;
+            previousConnection = this.connection;
+        }
+        if (previous != null) {
+            closeSession(previous);
+            fail(previousConnection,
+                    new EPLiteException("The client connected again"));
+        }
+        synchronized (this) {
+            current = ++this.connection;
+            this.engine = session;
+            this.closed = false;
+            this.failure = null;
+            this.pool = null;
+            this.text = null;
+            this.rev = -1;
+            this.pending = null;
+            this.rebased = false;
+            this.accepted = -1;
+        }
+        List<String> initial;
+        try {
+            initial = session.open();
+        } catch (IOException | RuntimeException e) {
+            fail(current, new EPLiteException("Unable to connect: "
+                    + e.getMessage()));
+            throw e;
+        }
+        for (String packet : initial) {
+            handle(current, packet);
+        }
+        startThread("PadRealtimeClient-" + this.padId, new Runnable() {
+            @Override
+            public void run() {
+                read(session, current);
+            }
+        });
+        startThread("PadRealtimeClient-ping-" + this.padId, new Runnable() {
+            @Override
+            public void run() {
+                ping(session, current);
+            }
+        });
+        Map<String, Object> ready = new HashMap<>();
+        ready.put("component", "pad");
+        ready.put("type", "CLIENT_READY");
+        ready.put("padId", this.padId);
+        ready.put("sessionID", this.sessionId);
+        ready.put("password", null);
+        ready.put("token", this.token);
+        ready.put("protocolVersion", 2);
+        send(session, ready);
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (this.rev < 0) {
+                checkFailure();
+                waitUntil(deadline, "the pad's text");
+            }
+        }
+    }
+
+    /**
+     * Submits a changeset and waits until the server accepts it.
+     *
+     * @param changeset the changeset, against the current text, with
+     *                  attribute numbers of the client's pool
+     * @return the new revision
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final long submitChanges(final Changeset changeset)
+            throws IOException {
+        synchronized (this.submitLock) {
+            Map<String, Object> data = new HashMap<>();
+            EngineIoClient session;
+            synchronized (this) {
+                checkFailure();
+                session = this.engine;
+                if (session == null) {
+                    throw new EPLiteException("Not connected");
+                }
+                if (this.text != null
+                        && changeset.getOldLength() != this.text.length()) {
+                    throw new EPLiteException("Changeset applies to a text "
+                            + "of length " + changeset.getOldLength()
+                            + ", not " + this.text.length());
+                }
+                this.pending = changeset;
+                this.rebased = false;
+                this.accepted = -1;
+                data.put("type", "USER_CHANGES");
+                data.put("baseRev", this.rev);
+                data.put("changeset", changeset.toString());
+                data.put("apool", this.pool.toMap());
+            }
+            Map<String, Object> message = new HashMap<>();
+            message.put("component", "pad");
+            message.put("type", "COLLABROOM");
+            message.put("data", data);
+            send(session, message);
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + TIMEOUT;
+                while (this.accepted < 0) {
+                    checkFailure();
+                    waitUntil(deadline, "the changeset to be accepted");
+                }
+                return this.accepted;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener.
+     *
+     * @param listener the listener
+     */
+    public final void addListener(final Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the listener
+     */
+    public final void removeListener(final Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Gets the number of listener calls which threw an exception. They are
+     * ignored, so a failing listener neither disconnects the client nor
+     * keeps the other listeners from being notified.
+     *
+     * @return the failure count
+     */
+    public final long getListenerFailureCount() {
+        return this.listenerFailures.get();
+    }
+
+    /**
+     * Gets the latest revision of the pad.
+     *
+     * @return the revision, or -1 before connecting
+     */
+    public final synchronized long getRevision() {
+        return this.rev;
+    }
+
+    /**
+     * Gets the text of the latest revision.
+     *
+     * @return the text
+     */
+    public final synchronized AttributedText getText() {
+        if (this.text == null) {
+            throw new EPLiteException((this.rev < 0) ? "Not connected"
+                    : "The text is out of step after a concurrent edit; "
+                            + "connect again to reload it");
+        }
+        return this.text;
+    }
+
+    /**
+     * Gets the attribute pool all received changesets refer to.
+     *
+     * @return the pool
+     */
+    public final synchronized AttributePool getAttributePool() {
+        return this.pool;
+    }
+
+    /**
+     * Disconnects from the pad.
+     */
+    @Override
+    public final void close() {
+        EngineIoClient session;
+        long current;
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+            session = this.engine;
+            current = this.connection;
+        }
+        if (session != null) {
+            closeSession(session);
+        }
+        fail(current, new EPLiteException("The client is closed"));
+    }
+
+    /**
+     * Ends an Engine.IO session.
+     *
+     * @param session the session
+     */
+    private static void closeSession(final EngineIoClient session) {
+        try {
+            session.send(String.valueOf(EngineIoClient.CLOSE));
+        } catch (IOException | RuntimeException e) {
+            // the session ends either way
+        }
+    }
+
+    /**
+     * Checks whether a connection is the current one and still open.
+     *
+     * @param current the number of the connection
+     * @return true if it is
+     */
+    private synchronized boolean isCurrent(final long current) {
+        return current == this.connection && !this.closed;
+    }
+
+    /**
+     * Starts a daemon thread.
+     *
+     * @param name     the thread name
+     * @param runnable the runnable
+     */
+    private static void startThread(final String name,
+            final Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Polls for packets until the connection ends.
+     *
+     * @param session the session
+     * @param current the number of the connection
+     */
+    private void read(final EngineIoClient session, final long current) {
+        while (isCurrent(current)) {
+            try {
+                for (String packet : session.poll()) {
+                    handle(current, packet);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(current, (e instanceof RuntimeException)
+                        ? (RuntimeException) e
+                        : new EPLiteException("Connection lost: "
+                                + e.getMessage()));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends pings until the connection ends, so the server keeps the session.
+     *
+     * @param session the session
+     * @param current the number of the connection
+     */
+    private void ping(final EngineIoClient session, final long current) {
+        while (isCurrent(current)) {
+            try {
+                Thread.sleep(session.getPingInterval());
+                session.send(String.valueOf(EngineIoClient.PING));
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                // a lost connection is noticed by the reader
+            }
+        }
+    }
+
+    /**
+     * Sends a message to the pad.
+     *
+     * @param session the session
+     * @param message the message
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static void send(final EngineIoClient session,
+            final Map<String, Object> message) throws IOException {
+        session.send(EngineIoClient.MESSAGE + "2"
+                + JSONValue.toJSONString(Arrays.asList("message", message)));
+    }
+
+    /**
+     * Handles an Engine.IO packet.
+     *
+     * @param current the number of the connection it arrived on
+     * @param packet  the packet
+     */
+    private void handle(final long current, final String packet) {
+        char type = packet.charAt(0);
+        if (type == EngineIoClient.CLOSE) {
+            fail(current,
+                    new EPLiteException("The server closed the connection"));
+        } else if (type == EngineIoClient.MESSAGE && packet.length() > 1) {
+            // socket.io packets: 0 connect, 1 disconnect, 2 event, 4 error
+            char ioType = packet.charAt(1);
+            if (ioType == '1' || ioType == '4') {
+                fail(current, new EPLiteException(
+                        "The server ended the session: "
+                                + packet.substring(2)));
+            } else if (ioType == '2') {
+                Object event = JSONValue.parse(packet.substring(2));
+                if (event instanceof List && ((List) event).size() > 1
+                        && "message".equals(((List) event).get(0))
+                        && ((List) event).get(1) instanceof Map) {
+                    handleMessage(current, (Map) ((List) event).get(1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a message of the collaboration protocol.
+     *
+     * @param current the number of the connection it arrived on
+     * @param message the message
+     */
+    private void handleMessage(final long current, final Map message) {
+        if (message.get("disconnect") != null) {
+            fail(current, new EPLiteException("Disconnected by the server: "
+                    + message.get("disconnect")));
+            return;
+        }
+        Object type = message.get("type");
+        Map data = (Map) message.get("data");
+        if ("CLIENT_VARS".equals(type)) {
+            clientVars(current, (Map) data.get("collab_client_vars"));
+        } else if ("COLLABROOM".equals(type)) {
+            if ("NEW_CHANGES".equals(data.get("type"))) {
+                newChanges(current, data);
+            } else if ("ACCEPT_COMMIT".equals(data.get("type"))) {
+                acceptCommit(current,
+                        ((Number) data.get("newRev")).longValue());
+            }
+        }
+    }
+
+    /**
+     * Takes the pad's text and pool from the CLIENT_VARS message.
+     *
+     * @param current the number of the connection it arrived on
+     * @param vars    the collab_client_vars
+     */
+    private synchronized void clientVars(final long current,
+            final Map vars) {
+        if (current != this.connection) {
+            return;
+        }
+        Map initial = (Map) vars.get("initialAttributedText");
+        String initialText = (String) initial.get("text");
+        // the attributes are the operations of a changeset inserting the text
+        Changeset insert = Changeset.parse("Z:0>"
+                + Integer.toString(initialText.length(), 36)
+                + initial.get("attribs") + "$" + initialText);
+        this.pool = AttributePool.fromMap((Map) vars.get("apool"));
+        this.text = AttributedText.empty().apply(insert, this.pool);
+        this.rev = ((Number) vars.get("rev")).longValue();
+        notifyAll();
+    }
+
+    /**
+     * Applies a NEW_CHANGES message and notifies the listeners.
+     *
+     * @param current the number of the connection it arrived on
+     * @param data    the message data
+     */
+    private void newChanges(final long current, final Map data) {
+        long newRev = ((Number) data.get("newRev")).longValue();
+        Changeset changeset;
+        synchronized (this) {
+            if (current != this.connection || this.pool == null) {
+                return;
+            }
+            changeset = Changeset.parse((String) data.get("changeset"));
+            if (data.get("apool") instanceof Map) {
+                changeset = changeset.moveToPool(
+                        AttributePool.fromMap((Map) data.get("apool")),
+                        this.pool);
+            }
+            if (this.text != null) {
+                this.text = this.text.apply(changeset, this.pool);
+            }
+            this.rev = newRev;
+            if (this.pending != null) {
+                this.rebased = true;
+            }
+        }
+        String author = (String) data.get("author");
+        for (Listener listener : this.listeners) {
+            try {
+                listener.newChanges(this.padId, newRev, changeset, author);
+            } catch (RuntimeException e) {
+                // a failing listener must not disconnect the client
+                this.listenerFailures.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Applies the pending changeset once the server accepted it.
+     *
+     * @param current the number of the connection it arrived on
+     * @param newRev  the revision of the changeset
+     */
+    private synchronized void acceptCommit(final long current,
+            final long newRev) {
+        if (current != this.connection || this.pending == null) {
+            return;
+        }
+        if (this.rebased) {
+            this.text = null;
+        } else if (this.text != null) {
+            this.text = this.text.apply(this.pending, this.pool);
+        }
+        this.rev = newRev;
+        this.pending = null;
+        this.accepted = newRev;
+        notifyAll();
+    }
+
+    /**
+     * Ends a connection with a failure, waking up waiting threads. Nothing
+     * happens if it is no longer the current connection.
+     *
+     * @param current the number of the connection
+     * @param e       the reason
+     */
+    private void fail(final long current, final RuntimeException e) {
+        boolean notify;
+        synchronized (this) {
+            if (current != this.connection) {
+                return;
+            }
+            notify = this.failure == null;
+            if (notify) {
+                this.failure = e;
+            }
+            this.closed = true;
+            notifyAll();
+        }
+        if (notify) {
+            for (Listener listener : this.listeners) {
+                try {
+                    listener.disconnected(this.padId, e);
+                } catch (RuntimeException failure) {
+                    this.listenerFailures.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Throws the failure which ended the connection, if any. Must hold the
+     * client's lock.
+     */
+    private void checkFailure() {
+        if (this.failure != null) {
+            throw this.failure;
+        }
+    }
+
+    /**
+     * Waits for a notification. Must hold the client's lock.
+     *
+     * @param deadline the time to give up at
+     * @param what     what is waited for, for the error message
+     */
+    private void waitUntil(final long deadline, final String what) {
+        long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+            throw new EPLiteException("Timed out waiting for " + what);
+        }
+        try {
+            wait(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EPLiteException("Interrupted waiting for " + what);
+        }
+    }
+
+    /**
+     * Receives the changes of a pad.
+     */
+    public interface Listener {
+
+        /**
+         * Called for each new revision of another author, on the client's
+         * thread.
+         *
+         * @param padId     the pad's id string
+         * @param rev       the new revision
+         * @param changeset the changeset, with attribute numbers of the
+         *                  client's pool
+         * @param author    the author of the changes
+         */
+        void newChanges(String padId, long rev, Changeset changeset,
+                String author);
+
+        /**
+         * Called once when a connection ends, also before connecting
+         * again.
+         *
+         * @param padId  the pad's id string
+         * @param reason the reason
+         */
+        void disconnected(String padId, RuntimeException reason);
+    }
+}
@@ -0,0 +1,433 @@
+package net.gjerull.etherpad.client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches many pads for changes by polling getLastEdited, and tells
+ * listeners about new edits along with the pad's revision from
+ * getRevisionsCount.<br />
+ * <br />
+ * Each pad is polled at its own interval, which adapts to its activity: a
+ * pad that changed is polled again after the minimum interval, and every
+ * poll finding no change doubles the interval, up to the maximum. Idle pads
+ * thus cost few requests while active pads are seen quickly.<br />
+ * <br />
+ * Polls are scheduled on a hashed timer wheel driven by a single thread, so
+ * watching thousands of pads costs no more than a list entry per pad. Pads
+ * which are due at the same tick are polled in batches on the given
+ * executor, and a pad is rescheduled only when its poll is done, so a slow
+ * server is never polled for a pad more than once at a time.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * PadWatcher watcher = new PadWatcher(api, executor, 1000, 60000);<br />
+ * watcher.addListener(listener);<br />
+ * watcher.watch("my_pad");<br />
+ * watcher.start();
+ * </code>
+ */
+public class PadWatcher implements Closeable {
+
+    /** The Constant BATCH_SIZE, the number of pads polled by one task. */
+    private static final int BATCH_SIZE = 16;
+
+    /** The Constant WHEEL_SIZE. */
+    private static final int WHEEL_SIZE = 512;
+
+    /** The Constant MAX_TICK_MILLIS. */
+    private static final long MAX_TICK_MILLIS = 100;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor polling the pads. */
+    private final ExecutorService executor;
+
+    /** The polling interval of active pads, in milliseconds. */
+    private final long minInterval;
+
+    /** The polling interval of idle pads, in milliseconds. */
+    private final long maxInterval;
+
+    /** The duration of a tick of the wheel, in milliseconds. */
+    private final long tickMillis;
+
+    /** The slots of the timer wheel. Guarded by itself. */
+    private final List<List<Watch>> wheel = new ArrayList<>(WHEEL_SIZE);
+
+    /** The watched pads, by id. Guarded by the wheel. */
+    private final Map<String, Watch> watches = new HashMap<>();
+
+    /** The listeners. */
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    /** The number of polls. */
+    private final AtomicLong polls = new AtomicLong();
+
+    /** The number of changes seen. */
+    private final AtomicLong changes = new AtomicLong();
+
+    /** The number of failed polls and listener calls. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** The current tick. Guarded by the wheel. */
+    private long tick;
+
+    /** The thread turning the wheel, null until started. */
+    private Thread timer;
+
+    /** Whether the watcher is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new pad watcher.
+     *
+     * @param client      the client
+     * @param executor    the executor polling the pads
+     * @param minInterval the polling interval of active pads, in milliseconds
+     * @param maxInterval the longest polling interval of idle pads, in
+     *                    milliseconds
+     */
+    public PadWatcher(final EPLiteClient client,
+            final ExecutorService executor, final long minInterval,
+            final long maxInterval) {
+        if (minInterval < 1 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid polling intervals "
+                    + minInterval + " and " + maxInterval);
+        }
+        this.client = client;
+        this.executor = executor;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.tickMillis = Math.min(minInterval, MAX_TICK_MILLIS);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            this.wheel.add(new ArrayList<Watch>());
+        }
+    }
+
+    /**
+     * Starts watching a pad. Its first poll only records when it was last
+     * edited.
+     *
+     * @param padId the pad's id string
+     */
+    public final void watch(final String padId) {
+        synchronized (this.wheel) {
+            if (!this.watches.containsKey(padId)) {
+                Watch watch = new Watch(padId, this.minInterval);
+                this.watches.put(padId, watch);
+                schedule(watch, 0);
+            }
+        }
+    }
+
+    /**
+     * Stops watching a pad.
+     *
+     * @param padId the pad's id string
+     */
+    public final void unwatch(final String padId) {
+        synchronized (this.wheel) {
+            Watch watch = this.watches.remove(padId);
+            if (watch != null) {
+                watch.cancelled = true;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener.
+     *
+     * @param listener the listener
+     */
+    public final void addListener(final Listener listener) {
+        this.listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener the listener
+     */
+    public final void removeListener(final Listener listener) {
+        this.listeners.remove(listener);
+    }
+
+    /**
+     * Starts the thread turning the wheel.
+     */
+    public final synchronized void start() {
+        if (this.timer != null || this.closed) {
+            return;
+        }
+        this.timer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                turn();
+            }
+        }, "PadWatcher");
+        this.timer.setDaemon(true);
+        this.timer.start();
+    }
+
+    /**
+     * Stops polling. Polls already running are finished, but do not notify
+     * listeners.
+     */
+    @Override
+    public final synchronized void close() {
+        this.closed = true;
+        if (this.timer != null) {
+            this.timer.interrupt();
+        }
+    }
+
+    /**
+     * Gets the current polling interval of a pad.
+     *
+     * @param padId the pad's id string
+     * @return the interval in milliseconds, or -1 if the pad is not watched
+     */
+    public final long getInterval(final String padId) {
+        synchronized (this.wheel) {
+            Watch watch = this.watches.get(padId);
+            return (watch != null) ? watch.interval : -1;
+        }
+    }
+
+    /**
+     * Gets the number of polls.
+     *
+     * @return the poll count
+     */
+    public final long getPollCount() {
+        return this.polls.get();
+    }
+
+    /**
+     * Gets the number of changes seen.
+     *
+     * @return the change count
+     */
+    public final long getChangeCount() {
+        return this.changes.get();
+    }
+
+    /**
+     * Gets the number of failed polls and listener calls.
+     *
+     * @return the failure count
+     */
+    public final long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Puts a pad on the wheel. Must hold the wheel's lock.
+     *
+     * @param watch the pad
+     * @param delay the delay in milliseconds
+     */
+    private void schedule(final Watch watch, final long delay) {
+        long ticks = Math.max(1, (delay + this.tickMillis - 1)
+                / this.tickMillis);
+        watch.deadline = this.tick + ticks;
+        this.wheel.get((int) (watch.deadline % WHEEL_SIZE)).add(watch);
+    }
+
+    /**
+     * Turns the wheel until the watcher is closed, submitting the pads which
+     * are due.
+     */
+    private void turn() {
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(this.tickMillis);
+        long next = System.nanoTime() + tickNanos;
+        while (!this.closed) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            next += tickNanos;
+            List<Watch> due = new ArrayList<>();
+            synchronized (this.wheel) {
+                this.tick++;
+                Iterator<Watch> slot = this.wheel
+                        .get((int) (this.tick % WHEEL_SIZE)).iterator();
+                while (slot.hasNext()) {
+                    Watch watch = slot.next();
+                    if (watch.cancelled) {
+                        slot.remove();
+                    } else if (watch.deadline <= this.tick) {
+                        slot.remove();
+                        due.add(watch);
+                    }
+                }
+            }
+            for (int i = 0; i < due.size(); i += BATCH_SIZE) {
+                List<Watch> batch = due.subList(i,
+                        Math.min(i + BATCH_SIZE, due.size()));
+                try {
+                    submit(batch);
+                } catch (RejectedExecutionException e) {
+                    // the executor is saturated or shut down: keep the
+                    // pads on the wheel and try again after their interval
+                    this.failures.addAndGet(batch.size());
+                    synchronized (this.wheel) {
+                        for (Watch watch : batch) {
+                            if (!watch.cancelled) {
+                                schedule(watch, watch.interval);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Submits a batch of polls to the executor.
+     *
+     * @param batch the pads to poll
+     */
+    private void submit(final List<Watch> batch) {
+        final List<Watch> pads = new ArrayList<>(batch);
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Watch watch : pads) {
+                    poll(watch);
+                }
+            }
+        });
+    }
+
+    /**
+     * Polls a pad, notifies the listeners if it changed and schedules the
+     * next poll.
+     *
+     * @param watch the pad
+     */
+    private void poll(final Watch watch) {
+        if (this.closed || watch.cancelled) {
+            return;
+        }
+        this.polls.incrementAndGet();
+        boolean changed = false;
+        long revision = -1;
+        long lastEdited = watch.lastEdited;
+        try {
+            long edited = number(this.client.getLastEdited(watch.padId),
+                    "lastEdited");
+            changed = watch.lastEdited >= 0 && edited != watch.lastEdited;
+            if (changed) {
+                revision = number(
+                        this.client.getRevisionsCount(watch.padId),
+                        "revisions");
+            }
+            // kept only once the whole probe succeeded, so a failed probe
+            // reports the edit at the next poll
+            lastEdited = edited;
+        } catch (RuntimeException e) {
+            this.failures.incrementAndGet();
+            changed = false;
+        }
+        synchronized (this.wheel) {
+            watch.lastEdited = lastEdited;
+            watch.interval = changed ? this.minInterval
+                    : Math.min(watch.interval * 2, this.maxInterval);
+            if (!watch.cancelled && !this.closed) {
+                schedule(watch, watch.interval);
+            }
+        }
+        if (changed && !this.closed) {
+            this.changes.incrementAndGet();
+            for (Listener listener : this.listeners) {
+                try {
+                    listener.padChanged(watch.padId, lastEdited, revision);
+                } catch (RuntimeException e) {
+                    // a failing listener must not keep the others from
+                    // being notified
+                    this.failures.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a number from a response.
+     *
+     * @param response the response
+     * @param key      the key
+     * @return the number
+     */
+    private static long number(final Map response, final String key) {
+        Object value = response.get(key);
+        if (!(value instanceof Number)) {
+            throw new EPLiteException("Unexpected response, no " + key);
+        }
+        return ((Number) value).longValue();
+    }
+
+    /**
+     * Receives the changes of watched pads.
+     */
+    public interface Listener {
+
+        /**
+         * Called when a watched pad was edited since its last poll. Called on
+         * a thread of the executor.
+         *
+         * @param padId      the pad's id string
+         * @param lastEdited the time of the latest edit, in milliseconds
+         * @param revision   the pad's latest revision
+         */
+        void padChanged(String padId, long lastEdited, long revision);
+    }
+
+    /**
+     * The polling state of a pad. Guarded by the wheel.
+     */
+    private static final class Watch {
+
+        /** The pad's id string. */
+        private final String padId;
+
+        /** The polling interval, in milliseconds. */
+        private long interval;
+
+        /** The time of the latest edit seen, or -1 before the first poll. */
+        private long lastEdited = -1;
+
+        /** The tick of the next poll. */
+        private long deadline;
+
+        /** Whether the pad is no longer watched. */
+        private volatile boolean cancelled;
+
+        /**
+         * Instantiates a new watch.
+         *
+         * @param padId    the pad's id string
+         * @param interval the polling interval, in milliseconds
+         */
+        private Watch(final String padId, final long interval) {
+            this.padId = padId;
+            this.interval = interval;
+        }
+    }
+}
@@ -0,0 +1,465 @@
+package net.gjerull.etherpad.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Brings the group pads of Etherpad to a desired state, making only the
+ * calls needed.<br />
+ * <br />
+ * The actual state is fetched concurrently on the given executor:
+ * listAllGroups, listPads of each desired group, and getPublicStatus and
+ * isPasswordProtected of each desired pad which exists. It is compared with
+ * the desired state, and only the differences are applied, concurrently
+ * for different pads: createGroupPad for missing pads, setPublicStatus and
+ * setPassword where they differ, and deletePad for the pads of a managed
+ * group which are not desired. Etherpad does not tell a pad's password, so
+ * the password of a protected pad is not set again unless the desired
+ * state asks for it with {@link DesiredState#alwaysSetPasswords()}; such a
+ * pad is reported by {@link Result#getUnverified()}, as its password may
+ * differ. A password is set on pads without one, and removed from pads
+ * which should have none.<br />
+ * <br />
+ * Groups are not created, as their ids are chosen by Etherpad; pads of a
+ * group which does not exist are reported as failures.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * Reconciler.DesiredState state = new Reconciler.DesiredState();<br />
+ * state.group(groupId);<br />
+ * state.pad(groupId, "notes", true, null);<br />
+ * Reconciler.Result result = new Reconciler(api, executor)
+ * .reconcile(state);
+ * </code>
+ */
+public class Reconciler {
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor making the calls. */
+    private final ExecutorService executor;
+
+    /**
+     * Instantiates a new reconciler.
+     *
+     * @param client   the client
+     * @param executor the executor making the calls
+     */
+    public Reconciler(final EPLiteClient client,
+            final ExecutorService executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Brings the pads to the desired state.
+     *
+     * @param desired the desired state
+     * @return the calls made and the failures
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    public final Result reconcile(final DesiredState desired)
+            throws InterruptedException {
+        final Result result = new Result();
+        Future<Map> allGroups = submit(new Callable<Map>() {
+            @Override
+            public Map call() {
+                return Reconciler.this.client.listAllGroups();
+            }
+        });
+        Map<String, Future<Map>> padLists = new LinkedHashMap<>();
+        for (final String groupId : desired.groups()) {
+            padLists.put(groupId, submit(new Callable<Map>() {
+                @Override
+                public Map call() {
+                    return Reconciler.this.client.listPads(groupId);
+                }
+            }));
+        }
+
+        Set<String> existingGroups = new HashSet<>();
+        try {
+            existingGroups.addAll(list(get(allGroups), "groupIDs"));
+        } catch (EPLiteException e) {
+            result.failures.put("", e);
+            return result;
+        }
+        Set<String> existingPads = new HashSet<>();
+        for (Map.Entry<String, Future<Map>> padList : padLists.entrySet()) {
+            String groupId = padList.getKey();
+            if (!existingGroups.contains(groupId)) {
+                result.failures.put(groupId,
+                        new EPLiteException("groupID does not exist"));
+                continue;
+            }
+            try {
+                existingPads.addAll(list(get(padList.getValue()), "padIDs"));
+            } catch (EPLiteException e) {
+                result.failures.put(groupId, e);
+            }
+        }
+
+        // the status of the desired pads which exist
+        Map<String, Future<Map>> publicStatus = new LinkedHashMap<>();
+        Map<String, Future<Map>> protection = new LinkedHashMap<>();
+        for (final String padId : desired.pads.keySet()) {
+            if (!existingPads.contains(padId)) {
+                continue;
+            }
+            publicStatus.put(padId, submit(new Callable<Map>() {
+                @Override
+                public Map call() {
+                    return Reconciler.this.client.getPublicStatus(padId);
+                }
+            }));
+            protection.put(padId, submit(new Callable<Map>() {
+                @Override
+                public Map call() {
+                    return Reconciler.this.client.isPasswordProtected(padId);
+                }
+            }));
+        }
+
+        List<Future<Map>> changes = new ArrayList<>();
+        for (Map.Entry<String, PadState> pad : desired.pads.entrySet()) {
+            String padId = pad.getKey();
+            PadState state = pad.getValue();
+            if (result.failures.containsKey(state.groupId)) {
+                result.failures.put(padId, result.failures.get(state.groupId));
+                continue;
+            }
+            boolean exists = existingPads.contains(padId);
+            boolean isPublic = false;
+            boolean isProtected = false;
+            if (exists) {
+                try {
+                    isPublic = Boolean.TRUE.equals(get(publicStatus
+                            .get(padId)).get("publicStatus"));
+                    isProtected = Boolean.TRUE.equals(get(protection
+                            .get(padId)).get("isPasswordProtected"));
+                } catch (EPLiteException e) {
+                    result.failures.put(padId, e);
+                    continue;
+                }
+            }
+            boolean setPublic = state.publicStatus != isPublic;
+            String password = null;
+            if (state.password != null
+                    && (!isProtected || desired.alwaysSetPasswords)) {
+                password = state.password;
+            } else if (state.password != null) {
+                // protected, but maybe with another password
+                result.unverified.add(padId);
+            } else if (isProtected) {
+                password = "";
+            }
+            if (!exists || setPublic || password != null) {
+                changes.add(submit(change(state, padId, !exists, setPublic,
+                        password, result)));
+            }
+        }
+        for (String groupId : desired.managed) {
+            if (result.failures.containsKey(groupId)) {
+                continue;
+            }
+            for (final String padId : existingPads) {
+                if (padId.startsWith(groupId + "$")
+                        && !desired.pads.containsKey(padId)) {
+                    changes.add(submit(delete(padId, result)));
+                }
+            }
+        }
+        for (Future<Map> change : changes) {
+            try {
+                get(change);
+            } catch (EPLiteException e) {
+                // recorded by the change
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates the change of a desired pad.
+     *
+     * @param state     the desired state
+     * @param padId     the pad's id string
+     * @param create    whether to create the pad
+     * @param setPublic whether to set the public status
+     * @param password  the password to set, "" to remove it, or null
+     * @param result    the result
+     * @return the change
+     */
+    private Callable<Map> change(final PadState state, final String padId,
+            final boolean create, final boolean setPublic,
+            final String password, final Result result) {
+        return new Callable<Map>() {
+            @Override
+            public Map call() {
+                try {
+                    if (create) {
+                        Reconciler.this.client.createGroupPad(state.groupId,
+                                state.padName);
+                        result.operations.add("createGroupPad " + padId);
+                    }
+                    if (setPublic) {
+                        Reconciler.this.client.setPublicStatus(padId,
+                                state.publicStatus);
+                        result.operations.add("setPublicStatus " + padId);
+                    }
+                    if (password != null) {
+                        Reconciler.this.client.setPassword(padId, password);
+                        result.operations.add("setPassword " + padId);
+                    }
+                } catch (EPLiteException e) {
+                    result.failures.put(padId, e);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Creates the deletion of a pad which is not desired.
+     *
+     * @param padId  the pad's id string
+     * @param result the result
+     * @return the change
+     */
+    private Callable<Map> delete(final String padId, final Result result) {
+        return new Callable<Map>() {
+            @Override
+            public Map call() {
+                try {
+                    Reconciler.this.client.deletePad(padId);
+                    result.operations.add("deletePad " + padId);
+                } catch (EPLiteException e) {
+                    result.failures.put(padId, e);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Submits a call to the executor.
+     *
+     * @param call the call
+     * @return the future result
+     */
+    private Future<Map> submit(final Callable<Map> call) {
+        return this.executor.submit(call);
+    }
+
+    /**
+     * Gets the strings of a list in a response.
+     *
+     * @param response the response
+     * @param key      the key of the list
+     * @return the strings
+     */
+    private static List<String> list(final Map response, final String key) {
+        List<String> strings = new ArrayList<>();
+        Object list = response.get(key);
+        if (list instanceof List) {
+            for (Object string : (List) list) {
+                strings.add((String) string);
+            }
+        }
+        return strings;
+    }
+
+    /**
+     * Waits for the result of a call.
+     *
+     * @param future the future result
+     * @return the result
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    private static Map get(final Future<Map> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EPLiteException) {
+                throw (EPLiteException) e.getCause();
+            }
+            throw new EPLiteException("Unable to reconcile", e.getCause());
+        }
+    }
+
+    /**
+     * The desired state of group pads.
+     */
+    public static final class DesiredState {
+
+        /** The desired pads, by pad id. */
+        private final Map<String, PadState> pads = new LinkedHashMap<>();
+
+        /** The groups whose undesired pads are deleted. */
+        private final Set<String> managed = new LinkedHashSet<>();
+
+        /** Whether the password of protected pads is set again. */
+        private boolean alwaysSetPasswords;
+
+        /**
+         * Sets the desired password of pads which are already protected too,
+         * as their password cannot be compared, so passwords can be changed.
+         *
+         * @return this state
+         */
+        public DesiredState alwaysSetPasswords() {
+            this.alwaysSetPasswords = true;
+            return this;
+        }
+
+        /**
+         * Declares a managed group: its pads which are not desired are
+         * deleted.
+         *
+         * @param groupId the group id
+         * @return this state
+         */
+        public DesiredState group(final String groupId) {
+            this.managed.add(groupId);
+            return this;
+        }
+
+        /**
+         * Declares a desired pad.
+         *
+         * @param groupId      the group the pad belongs to
+         * @param padName      the name of the pad
+         * @param publicStatus whether the pad is public
+         * @param password     the pad's password, or null for none
+         * @return this state
+         */
+        public DesiredState pad(final String groupId, final String padName,
+                final boolean publicStatus, final String password) {
+            this.pads.put(groupId + "$" + padName,
+                    new PadState(groupId, padName, publicStatus, password));
+            return this;
+        }
+
+        /**
+         * Gets the groups of the desired pads and the managed groups.
+         *
+         * @return the group ids
+         */
+        private Set<String> groups() {
+            Set<String> groups = new LinkedHashSet<>(this.managed);
+            for (PadState pad : this.pads.values()) {
+                groups.add(pad.groupId);
+            }
+            return groups;
+        }
+    }
+
+    /**
+     * The outcome of a reconciliation.
+     */
+    public static final class Result {
+
+        /** The calls made, as method and pad id. */
+        private final List<String> operations = Collections
+                .synchronizedList(new ArrayList<String>());
+
+        /** The errors, by pad or group id. */
+        private final Map<String, EPLiteException> failures =
+                new ConcurrentHashMap<>();
+
+        /** The protected pads whose password was not checked. */
+        private final List<String> unverified = Collections
+                .synchronizedList(new ArrayList<String>());
+
+        /**
+         * Instantiates a new result.
+         */
+        private Result() {
+        }
+
+        /**
+         * Gets the changing calls made, such as "deletePad g.x$name".
+         *
+         * @return the calls
+         */
+        public List<String> getOperations() {
+            synchronized (this.operations) {
+                return new ArrayList<>(this.operations);
+            }
+        }
+
+        /**
+         * Gets the pads which should have a password and are protected, but
+         * whose password was left as it is, as it cannot be compared with
+         * the desired one. Empty with
+         * {@link DesiredState#alwaysSetPasswords()}.
+         *
+         * @return the pad ids
+         */
+        public List<String> getUnverified() {
+            synchronized (this.unverified) {
+                return new ArrayList<>(this.unverified);
+            }
+        }
+
+        /**
+         * Gets the pads and groups which could not be reconciled, with the
+         * errors. A failure of listAllGroups is under "".
+         *
+         * @return the errors by pad or group id
+         */
+        public Map<String, EPLiteException> getFailures() {
+            return Collections.unmodifiableMap(this.failures);
+        }
+    }
+
+    /**
+     * The desired state of a pad.
+     */
+    private static final class PadState {
+
+        /** The group id. */
+        private final String groupId;
+
+        /** The pad name. */
+        private final String padName;
+
+        /** Whether the pad is public. */
+        private final boolean publicStatus;
+
+        /** The password, or null for none. */
+        private final String password;
+
+        /**
+         * Instantiates a new pad state.
+         *
+         * @param groupId      the group id
+         * @param padName      the pad name
+         * @param publicStatus whether the pad is public
+         * @param password     the password, or null for none
+         */
+        private PadState(final String groupId, final String padName,
+                final boolean publicStatus, final String password) {
+            this.groupId = groupId;
+            this.padName = padName;
+            this.publicStatus = publicStatus;
+            this.password = password;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package net.gjerull.etherpad.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses identical concurrent requests into a single HTTP round trip
+ * ("single-flight"). The first caller for a key sends the request; callers
+ * arriving with the same key while it is in flight wait for it and get the
+ * same raw response. Each caller parses the response on its own, so no parsed
+ * objects are shared between callers.<br />
+ * <br />
+ * Install it on a client with {@link EPLiteClient#setRequestCoalescer}. Only
+ * read-only GET calls are coalesced.
+ */
+public class RequestCoalescer {
+
+    /** The requests currently in flight, keyed by request key. */
+    private final ConcurrentMap<String, Flight> inFlight =
+            new ConcurrentHashMap<>();
+
+    /** The number of requests passed through the coalescer. */
+    private final AtomicLong requests = new AtomicLong();
+
+    /** The number of requests that were actually sent. */
+    private final AtomicLong executed = new AtomicLong();
+
+    /**
+     * Wraps a request so that it shares its round trip with concurrent
+     * requests of the same key.
+     *
+     * @param key     the request key, usually the full request url
+     * @param request the request to send if no identical request is in flight
+     * @return Request
+     */
+    public final Request coalesce(final String key, final Request request) {
+        return new Request() {
+            @Override
+            public String send() throws Exception {
+                return RequestCoalescer.this.send(key, request);
+            }
+        };
+    }
+
+    /**
+     * Sends the request, or waits for the identical request in flight.
+     *
+     * @param key     the request key
+     * @param request the request
+     * @return the raw response
+     * @throws Exception the exception thrown by the shared request
+     */
+    private String send(final String key, final Request request)
+            throws Exception {
+        Flight flight = new Flight();
+        Flight leader = this.inFlight.putIfAbsent(key, flight);
+        this.requests.incrementAndGet();
+        if (leader != null) {
+            return leader.await();
+        }
+        this.executed.incrementAndGet();
+        try {
+            flight.response = request.send();
+        } catch (Exception e) {
+            flight.error = e;
+        } finally {
+            this.inFlight.remove(key, flight);
+            flight.done.countDown();
+        }
+        return flight.await();
+    }
+
+    /**
+     * Gets the number of requests passed through the coalescer.
+     *
+     * @return the request count
+     */
+    public final long getRequestCount() {
+        return this.requests.get();
+    }
+
+    /**
+     * Gets the number of requests that were actually sent to the server.
+     *
+     * @return the executed count
+     */
+    public final long getExecutedCount() {
+        return this.executed.get();
+    }
+
+    /**
+     * Gets the number of requests that were answered by sharing the response
+     * of an identical request in flight.
+     *
+     * @return the coalesced count
+     */
+    public final long getCoalescedCount() {
+        return this.requests.get() - this.executed.get();
+    }
+
+    /**
+     * A request in flight.
+     */
+    private static final class Flight {
+
+        /** Released when the response or error is available. */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** The raw response. */
+        private volatile String response;
+
+        /** The error thrown while sending. */
+        private volatile Exception error;
+
+        /**
+         * Waits for the request to complete.
+         *
+         * @return the raw response
+         * @throws Exception the error thrown while sending
+         */
+        private String await() throws Exception {
+            try {
+                this.done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new EPLiteException(
+                        "Interrupted while waiting for a coalesced request", e);
+            }
+            if (this.error != null) {
+                throw this.error;
+            }
+            return this.response;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package net.gjerull.etherpad.client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fetches the changesets of every revision of many pads into a
+ * {@link RevisionHistoryStore}.<br />
+ * <br />
+ * The revisions of a pad are split into windows of consecutive revisions.
+ * Windows of the same pad and of different pads are fetched concurrently on
+ * the given executor, and appended to the store in revision order as soon as
+ * all earlier windows of their pad are. Memory is bounded by the number of
+ * windows in flight: a window holds its permit from before it is fetched
+ * until it is appended, so windows finished early wait for their
+ * predecessors without letting more windows start.<br />
+ * <br />
+ * The store is the log of the backfill: revisions are appended as they
+ * arrive, and a backfill of a pad starts at the store's revision count, so
+ * running it again after a crash or a failure continues where it stopped.
+ * <br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * RevisionBackfill backfill = new RevisionBackfill(api, store, executor,
+ * 50, 32);<br />
+ * backfill.backfill(padIds);<br />
+ * double rate = backfill.getRevisionsPerSecond();
+ * </code>
+ */
+public class RevisionBackfill {
+
+    /** The Constant DEFAULT_WINDOW_SIZE. */
+    public static final int DEFAULT_WINDOW_SIZE = 50;
+
+    /** The Constant DEFAULT_MAX_WINDOWS. */
+    public static final int DEFAULT_MAX_WINDOWS = 16;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The store the changesets are appended to. */
+    private final RevisionHistoryStore store;
+
+    /** The executor fetching windows. */
+    private final ExecutorService executor;
+
+    /** The number of revisions in a window. */
+    private final int windowSize;
+
+    /** The largest number of windows fetched or waiting to be appended. */
+    private final int maxWindows;
+
+    /** The failures of the last backfill, keyed by pad id. */
+    private final Map<String, Exception> failures = new ConcurrentHashMap<>();
+
+    /** The number of revisions appended by the last backfill. */
+    private final AtomicLong revisionsAppended = new AtomicLong();
+
+    /** The start of the last backfill, in nanoseconds. */
+    private volatile long startNanos;
+
+    /** The end of the last backfill, in nanoseconds, or 0 while running. */
+    private volatile long endNanos;
+
+    /**
+     * Instantiates a new backfill with the default window size and number
+     * of windows.
+     *
+     * @param client   the client
+     * @param store    the store the changesets are appended to
+     * @param executor the executor fetching windows
+     */
+    public RevisionBackfill(final EPLiteClient client,
+            final RevisionHistoryStore store,
+            final ExecutorService executor) {
+        this(client, store, executor, DEFAULT_WINDOW_SIZE,
+                DEFAULT_MAX_WINDOWS);
+    }
+
+    /**
+     * Instantiates a new backfill.
+     *
+     * @param client     the client
+     * @param store      the store the changesets are appended to
+     * @param executor   the executor fetching windows
+     * @param windowSize the number of revisions fetched by one task
+     * @param maxWindows the largest number of windows fetched or waiting to
+     *                   be appended at a time
+     */
+    public RevisionBackfill(final EPLiteClient client,
+            final RevisionHistoryStore store, final ExecutorService executor,
+            final int windowSize, final int maxWindows) {
+        if (windowSize < 1 || maxWindows < 1) {
+            throw new IllegalArgumentException(
+                    "windowSize and maxWindows must be positive");
+        }
+        this.client = client;
+        this.store = store;
+        this.executor = executor;
+        this.windowSize = windowSize;
+        this.maxWindows = maxWindows;
+    }
+
+    /**
+     * Fetches the revisions of pads which are not in the store yet, and
+     * waits until they are appended. Pads which fail are skipped and
+     * reported by {@link #getFailures()}; the other pads are completed.
+     *
+     * @param padIds the pads' id strings
+     * @return the number of revisions appended
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    public final long backfill(final Collection<String> padIds)
+            throws InterruptedException {
+        this.failures.clear();
+        this.revisionsAppended.set(0);
+        this.endNanos = 0;
+        this.startNanos = System.nanoTime();
+        Semaphore permits = new Semaphore(this.maxWindows);
+        // revision counts are read ahead, as many as windows run at a time
+        Iterator<String> pads = padIds.iterator();
+        Deque<Object[]> counts = new ArrayDeque<>();
+        try {
+            while (pads.hasNext() || !counts.isEmpty()) {
+                while (pads.hasNext() && counts.size() < this.maxWindows) {
+                    final String padId = pads.next();
+                    counts.add(new Object[] { padId,
+                            this.executor.submit(new Callable<Long>() {
+                                @Override
+                                public Long call() {
+                                    return revisionsCount(padId);
+                                }
+                            }) });
+                }
+                Object[] count = counts.poll();
+                @SuppressWarnings("unchecked")
+                Future<Long> head = (Future<Long>) count[1];
+                schedule((String) count[0], head, permits);
+            }
+        } finally {
+            // every window returns its permit once appended or dropped
+            permits.acquireUninterruptibly(this.maxWindows);
+            this.endNanos = System.nanoTime();
+        }
+        return this.revisionsAppended.get();
+    }
+
+    /**
+     * Submits the windows of the missing revisions of a pad.
+     *
+     * @param padId   the pad's id string
+     * @param count   the pad's revision count, being read
+     * @param permits the window permits
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    private void schedule(final String padId, final Future<Long> count,
+            final Semaphore permits) throws InterruptedException {
+        long head;
+        long next;
+        try {
+            head = count.get();
+            next = this.store.getRevisionCount(padId);
+        } catch (ExecutionException e) {
+            this.failures.put(padId, (e.getCause() instanceof Exception)
+                    ? (Exception) e.getCause() : e);
+            return;
+        } catch (IOException e) {
+            this.failures.put(padId, e);
+            return;
+        }
+        Pad pad = new Pad(padId, next);
+        for (long start = next; start <= head; start += this.windowSize) {
+            permits.acquire();
+            synchronized (pad) {
+                if (pad.failed) {
+                    permits.release();
+                    return;
+                }
+            }
+            this.executor.execute(new Window(pad,
+                    start, Math.min(start + this.windowSize, head + 1),
+                    permits));
+        }
+    }
+
+    /**
+     * Reads the latest revision of a pad.
+     *
+     * @param padId the pad's id string
+     * @return the revision
+     */
+    private long revisionsCount(final String padId) {
+        Object revisions = this.client.getRevisionsCount(padId)
+                .get("revisions");
+        if (!(revisions instanceof Number)) {
+            throw new EPLiteException(
+                    "Unexpected getRevisionsCount response for " + padId);
+        }
+        return ((Number) revisions).longValue();
+    }
+
+    /**
+     * Gets the failures of the last backfill.
+     *
+     * @return the exceptions, keyed by pad id
+     */
+    public final Map<String, Exception> getFailures() {
+        return Collections.unmodifiableMap(this.failures);
+    }
+
+    /**
+     * Gets the number of revisions appended by the last backfill, so far if
+     * it is running.
+     *
+     * @return the revision count
+     */
+    public final long getRevisionsAppended() {
+        return this.revisionsAppended.get();
+    }
+
+    /**
+     * Gets the rate of the last backfill, so far if it is running.
+     *
+     * @return the revisions appended per second
+     */
+    public final double getRevisionsPerSecond() {
+        long start = this.startNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = this.endNanos;
+        long elapsed = ((end != 0) ? end : System.nanoTime()) - start;
+        return (elapsed > 0) ? this.revisionsAppended.get() * 1e9 / elapsed
+                : 0;
+    }
+
+    /**
+     * The backfill state of a pad. Guarded by itself.
+     */
+    private static final class Pad {
+
+        /** The pad's id string. */
+        private final String padId;
+
+        /** The windows fetched ahead of the next revision, by start. */
+        private final Map<Long, String[]> fetched = new HashMap<>();
+
+        /** The next revision to append. */
+        private long next;
+
+        /** Whether a window of the pad failed. */
+        private boolean failed;
+
+        /**
+         * Instantiates a new pad state.
+         *
+         * @param padId the pad's id string
+         * @param next  the next revision to append
+         */
+        private Pad(final String padId, final long next) {
+            this.padId = padId;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Fetches the changesets of a window of revisions and appends them.
+     */
+    private final class Window implements Runnable {
+
+        /** The pad. */
+        private final Pad pad;
+
+        /** The first revision. */
+        private final long start;
+
+        /** The end revision, exclusive. */
+        private final long end;
+
+        /** The window permits. */
+        private final Semaphore permits;
+
+        /**
+         * Instantiates a new window.
+         *
+         * @param pad     the pad
+         * @param start   the first revision
+         * @param end     the end revision, exclusive
+         * @param permits the window permits
+         */
+        private Window(final Pad pad, final long start, final long end,
+                final Semaphore permits) {
+            this.pad = pad;
+            this.start = start;
+            this.end = end;
+            this.permits = permits;
+        }
+
+        @Override
+        public void run() {
+            String[] changesets = new String[(int) (this.end - this.start)];
+            try {
+                for (int i = 0; i < changesets.length; i++) {
+                    changesets[i] = RevisionBackfill.this.client
+                            .getRevisionChangeset(this.pad.padId,
+                                    this.start + i);
+                }
+            } catch (RuntimeException e) {
+                synchronized (this.pad) {
+                    fail(e);
+                }
+                this.permits.release();
+                return;
+            }
+            synchronized (this.pad) {
+                if (this.pad.failed) {
+                    this.permits.release();
+                    return;
+                }
+                this.pad.fetched.put(this.start, changesets);
+                try {
+                    String[] window;
+                    while ((window = this.pad.fetched
+                            .remove(this.pad.next)) != null) {
+                        try {
+                            for (String changeset : window) {
+                                RevisionBackfill.this.store.append(
+                                        this.pad.padId, this.pad.next,
+                                        changeset);
+                                this.pad.next++;
+                                RevisionBackfill.this.revisionsAppended
+                                        .incrementAndGet();
+                            }
+                        } finally {
+                            // backfill() returns once every permit is back
+                            this.permits.release();
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * Marks the pad as failed and drops its fetched windows. Must hold
+         * the pad's lock.
+         *
+         * @param e the failure
+         */
+        private void fail(final Exception e) {
+            if (!this.pad.failed) {
+                this.pad.failed = true;
+                RevisionBackfill.this.failures.put(this.pad.padId, e);
+            }
+            this.permits.release(this.pad.fetched.size());
+            this.pad.fetched.clear();
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package net.gjerull.etherpad.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A local store of the revision history of pads, which can rebuild the text
+ * of any stored revision without asking the server.<br />
+ * <br />
+ * Each pad has an append-only file holding the changeset of every revision,
+ * as returned by getRevisionChangeset, and the full text of every K-th
+ * revision (a keyframe). The text of a revision is rebuilt from the keyframe
+ * before it by applying at most K - 1 changesets.<br />
+ * <br />
+ * The file starts with a header (magic number, format version and K) and
+ * continues with records of the form
+ * <code>type (byte), revision (int), length (int), payload, checksum
+ * (int)</code>. Changeset payloads are UTF-8, keyframe payloads are the
+ * deflated UTF-8 text preceded by its length. A record torn by a crash fails
+ * its checksum and is cut off when the file is opened again.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * RevisionHistoryStore history = new RevisionHistoryStore(directory);<br />
+ * String text = history.getText(api, "my_pad", 1234);
+ * </code>
+ */
+public class RevisionHistoryStore implements Closeable {
+
+    /** The Constant DEFAULT_KEYFRAME_INTERVAL. */
+    public static final int DEFAULT_KEYFRAME_INTERVAL = 100;
+
+    /** The Constant DEFAULT_MAX_OPEN_PADS. */
+    public static final int DEFAULT_MAX_OPEN_PADS = 64;
+
+    /** The Constant MAGIC. */
+    private static final int MAGIC = 0x45505248;
+
+    /** The Constant VERSION. */
+    private static final short VERSION = 1;
+
+    /** The length of the file header. */
+    private static final int HEADER_LENGTH = 4 + 2 + 4;
+
+    /** Record type of a changeset. */
+    private static final byte TYPE_CHANGESET = 1;
+
+    /** Record type of a keyframe. */
+    private static final byte TYPE_KEYFRAME = 2;
+
+    /** The length of a record without its payload. */
+    private static final int RECORD_OVERHEAD = 1 + 4 + 4 + 4;
+
+    /** The file extension of history files. */
+    private static final String EXTENSION = ".hist";
+
+    /** The directory holding the history files. */
+    private final File directory;
+
+    /** The keyframe interval of new history files. */
+    private final int keyframeInterval;
+
+    /** The open histories, keyed by pad id. */
+    private final LruMap<String, PadHistory> open;
+
+    /**
+     * Instantiates a new revision history store with a keyframe every 100
+     * revisions.
+     *
+     * @param directory the directory holding the history files
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public RevisionHistoryStore(final File directory) throws IOException {
+        this(directory, DEFAULT_KEYFRAME_INTERVAL, DEFAULT_MAX_OPEN_PADS);
+    }
+
+    /**
+     * Instantiates a new revision history store.
+     *
+     * @param directory        the directory holding the history files
+     * @param keyframeInterval the number of revisions between keyframes in new
+     *                         history files; existing files keep theirs
+     * @param maxOpenPads      the maximum number of history files kept open
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public RevisionHistoryStore(final File directory,
+            final int keyframeInterval, final int maxOpenPads)
+            throws IOException {
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException(
+                    "keyframeInterval must be positive: " + keyframeInterval);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create " + directory);
+        }
+        this.directory = directory;
+        this.keyframeInterval = keyframeInterval;
+        this.open = new LruMap<String, PadHistory>(maxOpenPads) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void evicted(final String padId,
+                    final PadHistory history) {
+                history.close();
+            }
+        };
+    }
+
+    /**
+     * Gets the number of stored revisions of a pad. Revisions are stored
+     * from revision 0 without gaps, so this is also the next revision to
+     * append.
+     *
+     * @param padId the pad's id string
+     * @return the revision count
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized long getRevisionCount(final String padId)
+            throws IOException {
+        return history(padId).count;
+    }
+
+    /**
+     * Appends the changeset of the next revision of a pad. Revisions which
+     * are already stored are ignored, so fetching may be retried safely.
+     *
+     * @param padId     the pad's id string
+     * @param rev       the revision
+     * @param changeset the changeset, as returned by getRevisionChangeset
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized void append(final String padId, final long rev,
+            final String changeset) throws IOException {
+        PadHistory history = history(padId);
+        if (rev < history.count) {
+            return;
+        }
+        if (rev > history.count) {
+            throw new EPLiteException("Cannot append revision " + rev + " of "
+                    + padId + ", the history ends at revision "
+                    + (history.count - 1));
+        }
+        String base = (rev == 0) ? "\n" : history.headText();
+        String text = Changeset.parse(changeset).apply(base);
+        history.append(changeset, text);
+    }
+
+    /**
+     * Gets the stored changeset of a revision.
+     *
+     * @param padId the pad's id string
+     * @param rev   the revision
+     * @return the changeset
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized String getChangeset(final String padId,
+            final long rev) throws IOException {
+        PadHistory history = history(padId);
+        history.checkStored(rev);
+        return history.readChangeset((int) rev);
+    }
+
+    /**
+     * Gets the text of a stored revision.
+     *
+     * @param padId the pad's id string
+     * @param rev   the revision
+     * @return the text
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final synchronized String getText(final String padId,
+            final long rev) throws IOException {
+        PadHistory history = history(padId);
+        history.checkStored(rev);
+        return history.text((int) rev);
+    }
+
+    /**
+     * Gets the text of a revision, first fetching the changesets of the
+     * revisions up to it that are not stored yet.
+     *
+     * @param client the client
+     * @param padId  the pad's id string
+     * @param rev    the revision
+     * @return the text
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final String getText(final EPLiteClient client, final String padId,
+            final long rev) throws IOException {
+        for (long r = getRevisionCount(padId); r <= rev; r++) {
+            append(padId, r, client.getRevisionChangeset(padId, r));
+        }
+        return getText(padId, rev);
+    }
+
+    /**
+     * Closes all history files.
+     */
+    @Override
+    public final synchronized void close() {
+        for (PadHistory history : this.open.values()) {
+            history.close();
+        }
+        this.open.clear();
+    }
+
+    /**
+     * Gets the history of a pad, opening its file if needed.
+     *
+     * @param padId the pad's id string
+     * @return the history
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private PadHistory history(final String padId) throws IOException {
+        PadHistory history = this.open.get(padId);
+        if (history == null) {
+            history = new PadHistory(new File(this.directory,
+                    fileName(padId)), this.keyframeInterval);
+            this.open.put(padId, history);
+        }
+        return history;
+    }
+
+    /**
+     * Gets the name of the history file of a pad.
+     *
+     * @param padId the pad's id string
+     * @return the file name
+     */
+    static String fileName(final String padId) {
+        try {
+            return URLEncoder.encode(padId, "UTF-8").replace("*", "%2A")
+                    + EXTENSION;
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compresses a text.
+     *
+     * @param text the text
+     * @return the compressed bytes, preceded by the uncompressed length
+     */
+    private static byte[] deflate(final String text) {
+        byte[] raw = text.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(
+                    raw.length / 2 + 64);
+            DataOutputStream data = new DataOutputStream(out);
+            data.writeInt(raw.length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                data.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a text.
+     *
+     * @param bytes the compressed bytes, preceded by the uncompressed length
+     * @return the text
+     * @throws IOException Signals that the bytes are corrupt.
+     */
+    private static String inflate(final byte[] bytes) throws IOException {
+        int length = ByteBuffer.wrap(bytes).getInt();
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, 4, bytes.length - 4);
+            int n = 0;
+            while (n < length && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, length - n);
+                if (inflated == 0 && inflater.needsInput()) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != length) {
+                throw new IOException("Truncated keyframe");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt keyframe", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * The history file of one pad.
+     */
+    private static final class PadHistory {
+
+        /** The file. */
+        private final RandomAccessFile file;
+
+        /** The keyframe interval of the file. */
+        private final int interval;
+
+        /** The offsets of the changeset records, by revision. */
+        private long[] changesets = new long[64];
+
+        /** The offsets of the keyframe records, by revision / interval. */
+        private long[] keyframes = new long[8];
+
+        /** The number of stored revisions. */
+        private int count;
+
+        /** The text of the last stored revision, null until needed. */
+        private String headText;
+
+        /**
+         * Opens a history file, creating it if it does not exist and cutting
+         * off a torn record at its end.
+         *
+         * @param path     the path
+         * @param interval the keyframe interval for a new file
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private PadHistory(final File path, final int interval)
+                throws IOException {
+            Arrays.fill(this.keyframes, -1);
+            boolean exists = path.length() >= HEADER_LENGTH;
+            this.file = new RandomAccessFile(path, "rw");
+            try {
+                if (exists) {
+                    this.file.seek(0);
+                    if (this.file.readInt() != MAGIC
+                            || this.file.readShort() != VERSION) {
+                        throw new IOException(path + " is not a history file");
+                    }
+                    this.interval = this.file.readInt();
+                    this.file.setLength(load(path));
+                } else {
+                    this.interval = interval;
+                    this.file.setLength(0);
+                    this.file.writeInt(MAGIC);
+                    this.file.writeShort(VERSION);
+                    this.file.writeInt(interval);
+                }
+            } catch (IOException | RuntimeException e) {
+                this.file.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Reads the record index of the file.
+         *
+         * @param path the path
+         * @return the length of the valid part of the file
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private long load(final File path) throws IOException {
+            long valid = HEADER_LENGTH;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(path)))) {
+                in.skipBytes(HEADER_LENGTH);
+                while (true) {
+                    byte type;
+                    int rev;
+                    byte[] payload;
+                    int checksum;
+                    try {
+                        type = in.readByte();
+                        rev = in.readInt();
+                        int length = in.readInt();
+                        if (length < 0 || length > path.length() - valid) {
+                            break;
+                        }
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        checksum = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (checksum != MappedPadStore
+                            .checksum(ByteBuffer.wrap(payload))) {
+                        break;
+                    }
+                    if (type == TYPE_CHANGESET && rev == this.count) {
+                        addChangeset(valid);
+                    } else if (type == TYPE_KEYFRAME && rev == this.count - 1
+                            && rev % this.interval == 0) {
+                        addKeyframe(rev, valid);
+                    } else {
+                        break;
+                    }
+                    valid += RECORD_OVERHEAD + payload.length;
+                }
+            }
+            // A keyframe that was not written is rebuilt on the next append
+            // of its revision, so drop a changeset whose keyframe is missing
+            if (this.count > 0 && (this.count - 1) % this.interval == 0
+                    && keyframeOffset(this.count - 1) < 0) {
+                valid = this.changesets[this.count - 1];
+                this.count--;
+            }
+            return valid;
+        }
+
+        /**
+         * Throws if a revision is not stored.
+         *
+         * @param rev the revision
+         */
+        private void checkStored(final long rev) {
+            if (rev < 0 || rev >= this.count) {
+                throw new EPLiteException("Revision " + rev
+                        + " is not stored, the history has " + this.count
+                        + " revisions");
+            }
+        }
+
+        /**
+         * Appends a revision.
+         *
+         * @param changeset the changeset
+         * @param text      the text after the changeset
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private void append(final String changeset, final String text)
+                throws IOException {
+            int rev = this.count;
+            long offset = this.file.length();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(buffer);
+            writeRecord(out, TYPE_CHANGESET, rev,
+                    changeset.getBytes(StandardCharsets.UTF_8));
+            long keyframeOffset = -1;
+            if (rev % this.interval == 0) {
+                keyframeOffset = offset + buffer.size();
+                writeRecord(out, TYPE_KEYFRAME, rev, deflate(text));
+            }
+            this.file.seek(offset);
+            this.file.write(buffer.toByteArray());
+            addChangeset(offset);
+            if (keyframeOffset >= 0) {
+                addKeyframe(rev, keyframeOffset);
+            }
+            this.headText = text;
+        }
+
+        /**
+         * Writes a record.
+         *
+         * @param out     the output
+         * @param type    the record type
+         * @param rev     the revision
+         * @param payload the payload
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private static void writeRecord(final DataOutputStream out,
+                final byte type, final int rev, final byte[] payload)
+                throws IOException {
+            out.writeByte(type);
+            out.writeInt(rev);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt(MappedPadStore.checksum(ByteBuffer.wrap(payload)));
+        }
+
+        /**
+         * Reads the payload of a record.
+         *
+         * @param offset the record offset
+         * @return the payload
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private byte[] readRecord(final long offset) throws IOException {
+            this.file.seek(offset + 1 + 4);
+            byte[] payload = new byte[this.file.readInt()];
+            this.file.readFully(payload);
+            if (this.file.readInt() != MappedPadStore
+                    .checksum(ByteBuffer.wrap(payload))) {
+                throw new IOException("Corrupt record at offset " + offset);
+            }
+            return payload;
+        }
+
+        /**
+         * Reads the changeset of a revision.
+         *
+         * @param rev the revision
+         * @return the changeset
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private String readChangeset(final int rev) throws IOException {
+            return new String(readRecord(this.changesets[rev]),
+                    StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Rebuilds the text of a revision from the keyframe before it.
+         *
+         * @param rev the revision
+         * @return the text
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private String text(final int rev) throws IOException {
+            if (rev == this.count - 1 && this.headText != null) {
+                return this.headText;
+            }
+            int keyframe = rev - rev % this.interval;
+            String text = inflate(readRecord(keyframeOffset(keyframe)));
+            for (int r = keyframe + 1; r <= rev; r++) {
+                text = Changeset.parse(readChangeset(r)).apply(text);
+            }
+            return text;
+        }
+
+        /**
+         * Gets the text of the last stored revision.
+         *
+         * @return the text
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        private String headText() throws IOException {
+            if (this.headText == null) {
+                this.headText = text(this.count - 1);
+            }
+            return this.headText;
+        }
+
+        /**
+         * Records the offset of the next changeset.
+         *
+         * @param offset the record offset
+         */
+        private void addChangeset(final long offset) {
+            if (this.count == this.changesets.length) {
+                this.changesets = Arrays.copyOf(this.changesets,
+                        this.count * 2);
+            }
+            this.changesets[this.count++] = offset;
+        }
+
+        /**
+         * Records the offset of a keyframe.
+         *
+         * @param rev    the revision
+         * @param offset the record offset
+         */
+        private void addKeyframe(final int rev, final long offset) {
+            int index = rev / this.interval;
+            if (index >= this.keyframes.length) {
+                int oldLength = this.keyframes.length;
+                this.keyframes = Arrays.copyOf(this.keyframes,
+                        Math.max(index + 1, oldLength * 2));
+                Arrays.fill(this.keyframes, oldLength, this.keyframes.length,
+                        -1);
+            }
+            this.keyframes[index] = offset;
+        }
+
+        /**
+         * Gets the offset of a keyframe.
+         *
+         * @param rev the revision, a multiple of the interval
+         * @return the record offset, or -1 if it is missing
+         */
+        private long keyframeOffset(final int rev) {
+            int index = rev / this.interval;
+            return (index < this.keyframes.length) ? this.keyframes[index]
+                    : -1;
+        }
+
+        /**
+         * Closes the file, ignoring errors.
+         */
+        private void close() {
+            try {
+                this.file.close();
+            } catch (IOException e) {
+                // nothing was buffered, so nothing is lost
+            }
+        }
+    }
+}
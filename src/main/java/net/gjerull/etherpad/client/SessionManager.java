@@ -0,0 +1,531 @@
+package net.gjerull.etherpad.client;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages sessions: caches getSessionInfo so validity checks rarely reach
+ * Etherpad, and deletes expired sessions in the background.<br />
+ * <br />
+ * Session info is cached until the session's own validUntil, but at most
+ * for the maximum age, as sessions can be deleted by others. An entry which
+ * is used in the last quarter of its age is refreshed in the background, so
+ * sessions in use are never fetched while a page waits. The info of an
+ * expired session is cached for the maximum age, so checking it needs no
+ * call either. Sessions created or deleted through the manager update the
+ * cache directly.<br />
+ * <br />
+ * The sweeper lists the sessions of every group and author the manager has
+ * seen, with the listSessionsOfGroup and listSessionsOfAuthor calls made in
+ * parallel on the executor, and deletes the expired ones in batches of at
+ * most the given number of deletes per second.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * SessionManager sessions = new SessionManager(api, executor, 60000, 10);
+ * <br />
+ * sessions.startSweeper(3600000);<br />
+ * if (sessions.isValid(sessionId)) {<br />
+ * ...<br />
+ * }
+ * </code>
+ */
+public class SessionManager implements Closeable {
+
+    /** The Constant MAX_ENTRIES of the cache. */
+    public static final int MAX_ENTRIES = 10000;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor making the background and parallel calls. */
+    private final ExecutorService executor;
+
+    /** The longest time session info is cached, in milliseconds. */
+    private final long maxAge;
+
+    /** The number of deletes per second of the sweeper. */
+    private final int deletesPerSecond;
+
+    /** The cached session info, by session id. Guarded by itself. */
+    private final LruMap<String, Entry> sessions = new LruMap<>(MAX_ENTRIES);
+
+    /** The groups seen. Guarded by itself. */
+    private final Set<String> groups = new HashSet<>();
+
+    /** The authors seen. Guarded by the groups. */
+    private final Set<String> authors = new HashSet<>();
+
+    /** The number of cache hits. */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** The number of cache misses. */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** The number of background refreshes. */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /** The number of sessions deleted by the sweeper. */
+    private final AtomicLong swept = new AtomicLong();
+
+    /** The sweeper thread. */
+    private Thread sweeper;
+
+    /** Whether the manager is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new session manager.
+     *
+     * @param client           the client
+     * @param executor         the executor making the background and
+     *                         parallel calls
+     * @param maxAge           the longest time session info is cached, in
+     *                         milliseconds
+     * @param deletesPerSecond the number of deletes per second of the
+     *                         sweeper
+     */
+    public SessionManager(final EPLiteClient client,
+            final ExecutorService executor, final long maxAge,
+            final int deletesPerSecond) {
+        if (deletesPerSecond < 1) {
+            throw new IllegalArgumentException(
+                    "deletesPerSecond must be positive: " + deletesPerSecond);
+        }
+        this.client = client;
+        this.executor = executor;
+        this.maxAge = maxAge;
+        this.deletesPerSecond = deletesPerSecond;
+    }
+
+    /**
+     * Creates a session and caches its info.
+     *
+     * @param groupId    the group id
+     * @param authorId   the author id
+     * @param validUntil long UNIX timestamp <strong>in seconds</strong>
+     * @return Map with sessionID
+     */
+    public final Map createSession(final String groupId,
+            final String authorId, final long validUntil) {
+        Map response = this.client.createSession(groupId, authorId,
+                validUntil);
+        Object sessionId = response.get("sessionID");
+        if (sessionId instanceof String) {
+            Map<String, Object> info = new HashMap<>();
+            info.put("groupID", groupId);
+            info.put("authorID", authorId);
+            info.put("validUntil", validUntil);
+            cache((String) sessionId, info);
+        }
+        return response;
+    }
+
+    /**
+     * Deletes a session and removes its info from the cache.
+     *
+     * @param sessionId the session id
+     */
+    public final void deleteSession(final String sessionId) {
+        try {
+            this.client.deleteSession(sessionId);
+        } finally {
+            synchronized (this.sessions) {
+                this.sessions.remove(sessionId);
+            }
+        }
+    }
+
+    /**
+     * Returns information about a session: authorID, groupID and validUntil.
+     *
+     * @param sessionId the session id
+     * @return Map
+     */
+    public final Map getSessionInfo(final String sessionId) {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        boolean refresh = false;
+        synchronized (this.sessions) {
+            entry = this.sessions.get(sessionId);
+            if (entry != null && now >= entry.expires) {
+                this.sessions.remove(sessionId);
+                entry = null;
+            }
+            if (entry != null && !entry.refreshing
+                    && now >= entry.expires - this.maxAge / 4
+                    && entry.expires < entry.validUntil) {
+                entry.refreshing = true;
+                refresh = true;
+            }
+        }
+        if (entry == null) {
+            this.misses.incrementAndGet();
+            return cache(sessionId, this.client.getSessionInfo(sessionId))
+                    .info;
+        }
+        this.hits.incrementAndGet();
+        if (refresh) {
+            refresh(sessionId);
+        }
+        return entry.info;
+    }
+
+    /**
+     * Checks whether a session exists and has not expired.
+     *
+     * @param sessionId the session id
+     * @return true if the session is valid
+     */
+    public final boolean isValid(final String sessionId) {
+        Map info;
+        try {
+            info = getSessionInfo(sessionId);
+        } catch (EPLiteException e) {
+            if (e.getMessage() != null
+                    && e.getMessage().contains("does not exist")) {
+                return false;
+            }
+            throw e;
+        }
+        return validUntil(info) > System.currentTimeMillis();
+    }
+
+    /**
+     * Adds a group whose sessions are swept.
+     *
+     * @param groupId the group id
+     */
+    public final void addGroup(final String groupId) {
+        synchronized (this.groups) {
+            this.groups.add(groupId);
+        }
+    }
+
+    /**
+     * Adds an author whose sessions are swept.
+     *
+     * @param authorId the author id
+     */
+    public final void addAuthor(final String authorId) {
+        synchronized (this.groups) {
+            this.authors.add(authorId);
+        }
+    }
+
+    /**
+     * Starts the thread sweeping expired sessions.
+     *
+     * @param interval the time between sweeps, in milliseconds
+     */
+    public final synchronized void startSweeper(final long interval) {
+        if (this.sweeper != null || this.closed) {
+            return;
+        }
+        this.sweeper = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!SessionManager.this.closed) {
+                    try {
+                        try {
+                            sweep();
+                        } catch (RuntimeException e) {
+                            // tried again with the next sweep
+                        }
+                        Thread.sleep(interval);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, "SessionManager");
+        this.sweeper.setDaemon(true);
+        this.sweeper.start();
+    }
+
+    /**
+     * Lists the sessions of the groups and authors seen and deletes the
+     * expired ones. A list which fails is skipped until the next sweep.
+     *
+     * @return the number of sessions deleted
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    public final int sweep() throws InterruptedException {
+        List<Future<Map>> lists = new ArrayList<>();
+        synchronized (this.groups) {
+            for (final String groupId : this.groups) {
+                lists.add(this.executor.submit(new Callable<Map>() {
+                    @Override
+                    public Map call() {
+                        return SessionManager.this.client
+                                .listSessionsOfGroup(groupId);
+                    }
+                }));
+            }
+            for (final String authorId : this.authors) {
+                lists.add(this.executor.submit(new Callable<Map>() {
+                    @Override
+                    public Map call() {
+                        return SessionManager.this.client
+                                .listSessionsOfAuthor(authorId);
+                    }
+                }));
+            }
+        }
+        long now = System.currentTimeMillis();
+        Set<String> expired = new LinkedHashSet<>();
+        for (Future<Map> list : lists) {
+            Object listed;
+            try {
+                listed = get(list);
+            } catch (EPLiteException e) {
+                // the other lists are still swept, this one next sweep
+                continue;
+            }
+            if (!(listed instanceof Map)) {
+                // null for a group or author which never had sessions
+                continue;
+            }
+            for (Object session : ((Map) listed).entrySet()) {
+                Map.Entry sessionEntry = (Map.Entry) session;
+                if (sessionEntry.getValue() instanceof Map && validUntil(
+                        (Map) sessionEntry.getValue()) <= now) {
+                    expired.add((String) sessionEntry.getKey());
+                }
+            }
+        }
+        return delete(new ArrayList<>(expired));
+    }
+
+    /**
+     * Stops the sweeper. A sweep already running is finished.
+     */
+    @Override
+    public final synchronized void close() {
+        this.closed = true;
+        if (this.sweeper != null) {
+            this.sweeper.interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of cache hits.
+     *
+     * @return the hit count
+     */
+    public final long getHitCount() {
+        return this.hits.get();
+    }
+
+    /**
+     * Gets the number of cache misses.
+     *
+     * @return the miss count
+     */
+    public final long getMissCount() {
+        return this.misses.get();
+    }
+
+    /**
+     * Gets the number of background refreshes.
+     *
+     * @return the refresh count
+     */
+    public final long getRefreshCount() {
+        return this.refreshes.get();
+    }
+
+    /**
+     * Gets the number of sessions deleted by the sweeper.
+     *
+     * @return the swept count
+     */
+    public final long getSweptCount() {
+        return this.swept.get();
+    }
+
+    /**
+     * Deletes sessions in batches of at most deletesPerSecond, starting a
+     * batch at most once a second.
+     *
+     * @param sessionIds the session ids
+     * @return the number of sessions deleted
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    private int delete(final List<String> sessionIds)
+            throws InterruptedException {
+        int deleted = 0;
+        for (int start = 0; start < sessionIds.size()
+                && !this.closed; start += this.deletesPerSecond) {
+            long batchStart = System.nanoTime();
+            List<Future<Map>> batch = new ArrayList<>();
+            for (final String sessionId : sessionIds.subList(start,
+                    Math.min(start + this.deletesPerSecond,
+                            sessionIds.size()))) {
+                batch.add(this.executor.submit(new Callable<Map>() {
+                    @Override
+                    public Map call() {
+                        deleteSession(sessionId);
+                        return Collections.emptyMap();
+                    }
+                }));
+            }
+            for (Future<Map> delete : batch) {
+                try {
+                    get(delete);
+                    deleted++;
+                    this.swept.incrementAndGet();
+                } catch (EPLiteException e) {
+                    // deleted by someone else, or tried again next sweep
+                }
+            }
+            long wait = TimeUnit.SECONDS.toNanos(1)
+                    - (System.nanoTime() - batchStart);
+            if (start + this.deletesPerSecond < sessionIds.size()
+                    && wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Refreshes the info of a session in the background.
+     *
+     * @param sessionId the session id
+     */
+    private void refresh(final String sessionId) {
+        this.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SessionManager.this.refreshes.incrementAndGet();
+                try {
+                    cache(sessionId, SessionManager.this.client
+                            .getSessionInfo(sessionId));
+                } catch (EPLiteException e) {
+                    // fetched when the entry expires
+                    synchronized (SessionManager.this.sessions) {
+                        SessionManager.this.sessions.remove(sessionId);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Caches the info of a session and remembers its group and author.
+     *
+     * @param sessionId the session id
+     * @param info      the info
+     * @return the cache entry
+     */
+    private Entry cache(final String sessionId, final Map info) {
+        long now = System.currentTimeMillis();
+        long validUntil = validUntil(info);
+        // a valid session is cached until it expires, an expired one for
+        // the maximum age
+        long expires = now + this.maxAge;
+        if (validUntil > now) {
+            expires = Math.min(expires, validUntil);
+        }
+        Entry entry = new Entry(info, validUntil, expires);
+        synchronized (this.sessions) {
+            this.sessions.put(sessionId, entry);
+        }
+        synchronized (this.groups) {
+            if (info.get("groupID") instanceof String) {
+                this.groups.add((String) info.get("groupID"));
+            }
+            if (info.get("authorID") instanceof String) {
+                this.authors.add((String) info.get("authorID"));
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the validUntil of session info.
+     *
+     * @param info the info
+     * @return the time the session expires, in milliseconds
+     */
+    private static long validUntil(final Map info) {
+        Object validUntil = info.get("validUntil");
+        if (validUntil instanceof Number) {
+            return ((Number) validUntil).longValue() * 1000L;
+        }
+        if (validUntil instanceof String) {
+            return Long.parseLong((String) validUntil) * 1000L;
+        }
+        return 0;
+    }
+
+    /**
+     * Waits for the result of a call.
+     *
+     * @param future the future result
+     * @return the result
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    private static Map get(final Future<Map> future)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EPLiteException) {
+                throw (EPLiteException) e.getCause();
+            }
+            throw new EPLiteException("Unable to sweep sessions",
+                    e.getCause());
+        }
+    }
+
+    /**
+     * The cached info of a session.
+     */
+    private static final class Entry {
+
+        /** The info. */
+        private final Map info;
+
+        /** The time the session expires, in milliseconds. */
+        private final long validUntil;
+
+        /** The time the entry expires, in milliseconds. */
+        private final long expires;
+
+        /** Whether a refresh is running. Guarded by the cache. */
+        private boolean refreshing;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param info       the info
+         * @param validUntil the time the session expires, in milliseconds
+         * @param expires    the time the entry expires, in milliseconds
+         */
+        private Entry(final Map info, final long validUntil,
+                final long expires) {
+            this.info = info;
+            this.validUntil = validUntil;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package net.gjerull.etherpad.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Provisions the group, author and session of a user login, making the
+ * independent calls concurrently instead of one after the other.<br />
+ * <br />
+ * The group and the author are created (or found) at the same time. The
+ * session and, if asked for, the group pad are then created at the same
+ * time. The groupMapper and authorMapper results are kept in a
+ * {@link MappingCache} of the provisioner, so a repeated login only creates
+ * the session: one round trip instead of three or four. The author's name
+ * is still updated, concurrently with the session. The client is left as
+ * it is; a group deleted through it is forgotten with
+ * {@link #invalidateGroup(String)}.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * SessionProvisioner provisioner = new SessionProvisioner(api, executor);
+ * <br />
+ * Map ids = provisioner.provisionSession(courseId, userId, userName,
+ * validUntil);<br />
+ * String sessionId = (String) ids.get("sessionID");
+ * </code>
+ */
+public class SessionProvisioner {
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor making the concurrent calls. */
+    private final ExecutorService executor;
+
+    /** The groupMapper and authorMapper results. */
+    private final MappingCache cache = new MappingCache();
+
+    /**
+     * Instantiates a new session provisioner.
+     *
+     * @param client   the client
+     * @param executor the executor making the concurrent calls
+     */
+    public SessionProvisioner(final EPLiteClient client,
+            final ExecutorService executor) {
+        this.client = client;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates the group and the author if they do not exist, and a session
+     * for the author in the group. The ids are returned in "groupID",
+     * "authorID" and "sessionID".
+     *
+     * @param groupMapper  your group mapper string
+     * @param authorMapper your author mapper string
+     * @param name         the author's name, or null to leave it unchanged
+     * @param validUntil   long UNIX timestamp <strong>in seconds</strong>
+     * @return Map with groupID, authorID and sessionID
+     */
+    public final Map provisionSession(final String groupMapper,
+            final String authorMapper, final String name,
+            final long validUntil) {
+        return provisionSession(groupMapper, authorMapper, name, validUntil,
+                null);
+    }
+
+    /**
+     * Creates the group and the author if they do not exist, a session for
+     * the author in the group and a pad in the group if it does not exist.
+     * The ids are returned in "groupID", "authorID", "sessionID" and
+     * "padID".
+     *
+     * @param groupMapper  your group mapper string
+     * @param authorMapper your author mapper string
+     * @param name         the author's name, or null to leave it unchanged
+     * @param validUntil   long UNIX timestamp <strong>in seconds</strong>
+     * @param padName      the name of the group pad, or null for none
+     * @return Map with groupID, authorID, sessionID and padID
+     */
+    public final Map provisionSession(final String groupMapper,
+            final String authorMapper, final String name,
+            final long validUntil, final String padName) {
+        String cachedGroupId = this.cache.getGroupId(groupMapper);
+        String cachedAuthorId = this.cache.getAuthorId(authorMapper);
+
+        // the author's name is only updated by a call to the server, which
+        // can wait for the session if the author id is cached
+        Future<Object> author = null;
+        if (cachedAuthorId == null || name != null) {
+            author = submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return (name == null) ? SessionProvisioner.this.client
+                            .createAuthorIfNotExistsFor(authorMapper)
+                            : SessionProvisioner.this.client
+                                    .createAuthorIfNotExistsFor(authorMapper,
+                                            name);
+                }
+            });
+        }
+        final String groupId;
+        final String authorId;
+        try {
+            groupId = (cachedGroupId != null) ? cachedGroupId
+                    : (String) this.client.createGroupIfNotExistsFor(
+                            groupMapper).get("groupID");
+            authorId = (cachedAuthorId != null) ? cachedAuthorId
+                    : (String) ((Map) get(author)).get("authorID");
+        } catch (EPLiteException e) {
+            cancel(author);
+            throw e;
+        }
+        if (groupId != null) {
+            this.cache.putGroupId(groupMapper, groupId);
+        }
+        if (authorId != null) {
+            this.cache.putAuthorId(authorMapper, authorId);
+        }
+
+        Future<Object> pad = null;
+        if (padName != null) {
+            pad = submit(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    return createGroupPad(groupId, padName);
+                }
+            });
+        }
+        Map<String, Object> ids = new HashMap<>();
+        ids.put("groupID", groupId);
+        ids.put("authorID", authorId);
+        try {
+            ids.put("sessionID", this.client
+                    .createSession(groupId, authorId, validUntil)
+                    .get("sessionID"));
+            if (pad != null) {
+                ids.put("padID", get(pad));
+            }
+            if (cachedAuthorId != null && author != null) {
+                get(author);
+            }
+        } catch (EPLiteException e) {
+            cancel(pad);
+            cancel(author);
+            throw e;
+        }
+        return ids;
+    }
+
+    /**
+     * Forgets the groupMapper of a group, so it is created (or found) again
+     * at the next login. Call it when the group is deleted.
+     *
+     * @param groupId the group id
+     */
+    public final void invalidateGroup(final String groupId) {
+        this.cache.invalidateGroup(groupId);
+    }
+
+    /**
+     * Creates a group pad if it does not exist.
+     *
+     * @param groupId the group id
+     * @param padName the pad name
+     * @return the pad id
+     */
+    private String createGroupPad(final String groupId, final String padName) {
+        try {
+            Object padId = this.client.createGroupPad(groupId, padName)
+                    .get("padID");
+            if (padId instanceof String) {
+                return (String) padId;
+            }
+        } catch (EPLiteException e) {
+            if (e.getMessage() == null
+                    || !e.getMessage().contains("already exist")) {
+                throw e;
+            }
+        }
+        return groupId + "$" + padName;
+    }
+
+    /**
+     * Submits a call to the executor.
+     *
+     * @param call the call
+     * @return the future result
+     */
+    private Future<Object> submit(final Callable<Object> call) {
+        return this.executor.submit(call);
+    }
+
+    /**
+     * Waits for the result of a call.
+     *
+     * @param future the future result
+     * @return the result
+     */
+    private static Object get(final Future<Object> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EPLiteException(
+                    "Interrupted while provisioning a session", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EPLiteException) {
+                throw (EPLiteException) e.getCause();
+            }
+            throw new EPLiteException("Unable to provision a session",
+                    e.getCause());
+        }
+    }
+
+    /**
+     * Cancels a call which is no longer needed.
+     *
+     * @param future the future result, or null
+     */
+    private static void cancel(final Future<Object> future) {
+        if (future != null) {
+            future.cancel(false);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package net.gjerull.etherpad.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sets the text of pads with the smallest mutation that produces it, instead
+ * of replacing the whole text with setText.<br />
+ * <br />
+ * The new text is compared with the current text of the pad: the text of a
+ * connected {@link PadRealtimeClient} if one is registered for the pad, and
+ * otherwise the last text written or seen by this writer, with its
+ * revision. The pad's latest revision is read with getRevisionsCount, and
+ * the text is only downloaded with getText of that revision when it is not
+ * the known one, as after an edit by someone else. Each write is expected
+ * to make one revision; if the count says otherwise the text is downloaded
+ * again. The texts of at most {@link #MAX_ENTRIES} pads are kept. Then:
+ * <ul>
+ * <li>nothing is sent if the text is unchanged,</li>
+ * <li>appendText sends only the new lines if the text was only added to at
+ * its end,</li>
+ * <li>a realtime client submits a changeset of the changed part, keeping the
+ * rest of the pad as it is,</li>
+ * <li>and otherwise setText replaces the text.</li>
+ * </ul>
+ * The bytes of text transferred, including the current text downloaded
+ * with getText, are counted along with those setText alone would have sent,
+ * to show the saving; only a change in the middle of a pad edited by
+ * someone else since the last write costs more than setText.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * SmartTextWriter writer = new SmartTextWriter(api);<br />
+ * writer.setText("my_pad", text);
+ * </code>
+ */
+public class SmartTextWriter {
+
+    /** The Constant MAX_ENTRIES of the known texts. */
+    public static final int MAX_ENTRIES = 1000;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The realtime clients, by pad id. */
+    private final Map<String, PadRealtimeClient> realtime =
+            new ConcurrentHashMap<>();
+
+    /** The last known texts, by pad id. Guarded by itself. */
+    private final LruMap<String, Known> known = new LruMap<>(MAX_ENTRIES);
+
+    /** The number of bytes of text sent and downloaded. */
+    private final AtomicLong bytesSent = new AtomicLong();
+
+    /** The number of bytes of text setText would have sent. */
+    private final AtomicLong bytesReplaced = new AtomicLong();
+
+    /**
+     * Instantiates a new smart text writer.
+     *
+     * @param client the client
+     */
+    public SmartTextWriter(final EPLiteClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Registers a connected realtime client, used to read the pad's text and
+     * to submit changesets.
+     *
+     * @param padId  the pad's id string
+     * @param client the realtime client, or null to remove it
+     */
+    public final void setRealtimeClient(final String padId,
+            final PadRealtimeClient client) {
+        if (client == null) {
+            this.realtime.remove(padId);
+        } else {
+            this.realtime.put(padId, client);
+        }
+    }
+
+    /**
+     * Sets the text of a pad.
+     *
+     * @param padId the pad's id string
+     * @param text  the new text
+     * @return the mutation used
+     */
+    public final Mutation setText(final String padId, final String text) {
+        // pads always end with a newline, which setText adds if missing
+        String target = text.endsWith("\n") ? text : text + "\n";
+        long replaceBytes = utf8Length(target);
+        this.bytesReplaced.addAndGet(replaceBytes);
+
+        PadRealtimeClient pad = this.realtime.get(padId);
+        String current = null;
+        if (pad != null) {
+            try {
+                current = pad.getText().toString();
+            } catch (EPLiteException e) {
+                // out of step or disconnected; use the HTTP API
+                pad = null;
+            }
+        }
+        long revision = -1;
+        if (current == null) {
+            revision = revisionsCount(padId);
+            current = knownText(padId, revision);
+            if (current == null) {
+                current = (String) this.client.getText(padId, revision)
+                        .get("text");
+                if (current != null) {
+                    this.bytesSent.addAndGet(utf8Length(current));
+                }
+            }
+        }
+        if (target.equals(current)) {
+            remember(padId, current, revision);
+            return Mutation.UNCHANGED;
+        }
+        // the text is not known while the write may fail; once written it
+        // is the text of the next revision
+        forget(padId);
+        long written = (revision < 0) ? -1 : revision + 1;
+        if (current != null && target.startsWith(current)) {
+            String suffix = target.substring(current.length());
+            this.client.appendText(padId, suffix);
+            this.bytesSent.addAndGet(utf8Length(suffix));
+            remember(padId, target, written);
+            return Mutation.APPEND;
+        }
+        if (pad != null) {
+            Changeset changeset = Changeset.diff(current, target);
+            try {
+                pad.submitChanges(changeset);
+                this.bytesSent.addAndGet(utf8Length(changeset.toString()));
+                return Mutation.CHANGESET;
+            } catch (IOException | EPLiteException e) {
+                // replace the text below
+            }
+        }
+        this.client.setText(padId, target);
+        this.bytesSent.addAndGet(replaceBytes);
+        remember(padId, target, written);
+        return Mutation.REPLACE;
+    }
+
+    /**
+     * Gets the number of bytes of text sent, and of current text downloaded
+     * to compare the new text with.
+     *
+     * @return the byte count
+     */
+    public final long getBytesSent() {
+        return this.bytesSent.get();
+    }
+
+    /**
+     * Gets the number of bytes setText would have sent for the same calls.
+     *
+     * @return the byte count
+     */
+    public final long getBytesReplaced() {
+        return this.bytesReplaced.get();
+    }
+
+    /**
+     * Reads the latest revision of a pad.
+     *
+     * @param padId the pad's id string
+     * @return the revision
+     */
+    private long revisionsCount(final String padId) {
+        Object revisions = this.client.getRevisionsCount(padId)
+                .get("revisions");
+        if (!(revisions instanceof Number)) {
+            throw new EPLiteException(
+                    "Unexpected getRevisionsCount response for " + padId);
+        }
+        return ((Number) revisions).longValue();
+    }
+
+    /**
+     * Gets the known text of a pad at a revision.
+     *
+     * @param padId    the pad's id string
+     * @param revision the pad's latest revision
+     * @return the text, or null if the text of the revision is not known
+     */
+    private String knownText(final String padId, final long revision) {
+        synchronized (this.known) {
+            Known text = this.known.get(padId);
+            return (text != null && text.revision == revision) ? text.text
+                    : null;
+        }
+    }
+
+    /**
+     * Remembers the text of a pad at a revision read over HTTP.
+     *
+     * @param padId    the pad's id string
+     * @param text     the text
+     * @param revision the revision, or a negative number if it was not read
+     */
+    private void remember(final String padId, final String text,
+            final long revision) {
+        if (revision < 0) {
+            return;
+        }
+        synchronized (this.known) {
+            this.known.put(padId, new Known(text, revision));
+        }
+    }
+
+    /**
+     * Forgets the text of a pad.
+     *
+     * @param padId the pad's id string
+     */
+    private void forget(final String padId) {
+        synchronized (this.known) {
+            this.known.remove(padId);
+        }
+    }
+
+    /**
+     * Gets the length of a string in UTF-8.
+     *
+     * @param text the text
+     * @return the number of bytes
+     */
+    private static long utf8Length(final String text) {
+        return text.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    /**
+     * The text of a pad at a revision.
+     */
+    private static final class Known {
+
+        /** The text. */
+        private final String text;
+
+        /** The revision. */
+        private final long revision;
+
+        /**
+         * Instantiates a new known text.
+         *
+         * @param text     the text
+         * @param revision the revision
+         */
+        private Known(final String text, final long revision) {
+            this.text = text;
+            this.revision = revision;
+        }
+    }
+
+    /**
+     * The mutation used to set a text.
+     */
+    public enum Mutation {
+
+        /** The text was unchanged and nothing was sent. */
+        UNCHANGED,
+
+        /** The new end of the text was sent with appendText. */
+        APPEND,
+
+        /** A changeset was submitted by the realtime client. */
+        CHANGESET,
+
+        /** The text was replaced with setText. */
+        REPLACE
+    }
+}
@@ -0,0 +1,372 @@
+package net.gjerull.etherpad.client;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps live counts of the users online, per pad and per group, by polling
+ * padUsersCount.<br />
+ * <br />
+ * Every watched pad is polled on the given scheduler, concurrently with the
+ * others. A pad with users is polled at the active interval, and an idle pad
+ * at the longer idle interval, so the polls go to the pads where counts
+ * change. The counts of a group, taken from the pad id ("g.x$name" belongs
+ * to "g.x", other pads to ""), and the total are kept in atomic counters,
+ * updated by the difference of each poll, so reading them takes no lock and
+ * no call.<br />
+ * <br />
+ * {@link #watchAll()} watches the pads listed when it is called;
+ * {@link #watchAll(long)} lists them again periodically, so pads created
+ * later are watched too. A pad which no longer exists is unwatched by its
+ * next poll.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * UsageAggregator usage = new UsageAggregator(api, scheduler, 5000,
+ * 60000);<br />
+ * usage.watchAll(600000);<br />
+ * long online = usage.getUserCount(groupId);
+ * </code>
+ */
+public class UsageAggregator implements Closeable {
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The scheduler polling the pads. */
+    private final ScheduledExecutorService scheduler;
+
+    /** The polling interval of pads with users, in milliseconds. */
+    private final long activeInterval;
+
+    /** The polling interval of pads without users, in milliseconds. */
+    private final long idleInterval;
+
+    /** The watched pads, by id. */
+    private final ConcurrentMap<String, PadUsage> pads =
+            new ConcurrentHashMap<>();
+
+    /** The user counts, by group id. */
+    private final ConcurrentMap<String, AtomicLong> groups =
+            new ConcurrentHashMap<>();
+
+    /** The total user count. */
+    private final AtomicLong total = new AtomicLong();
+
+    /** The number of polls. */
+    private final AtomicLong polls = new AtomicLong();
+
+    /** The number of failed polls and listings. */
+    private final AtomicLong failures = new AtomicLong();
+
+    /** Whether the aggregator is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Instantiates a new usage aggregator.
+     *
+     * @param client         the client
+     * @param scheduler      the scheduler polling the pads
+     * @param activeInterval the polling interval of pads with users, in
+     *                       milliseconds
+     * @param idleInterval   the polling interval of pads without users, in
+     *                       milliseconds
+     */
+    public UsageAggregator(final EPLiteClient client,
+            final ScheduledExecutorService scheduler,
+            final long activeInterval, final long idleInterval) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.activeInterval = activeInterval;
+        this.idleInterval = idleInterval;
+    }
+
+    /**
+     * Starts watching a pad, polling it right away.
+     *
+     * @param padId the pad's id string
+     */
+    public final void watch(final String padId) {
+        if (this.closed) {
+            throw new EPLiteException("The aggregator is closed");
+        }
+        String groupId = groupOf(padId);
+        AtomicLong group = this.groups.get(groupId);
+        if (group == null) {
+            AtomicLong created = new AtomicLong();
+            group = this.groups.putIfAbsent(groupId, created);
+            if (group == null) {
+                group = created;
+            }
+        }
+        PadUsage pad = new PadUsage(padId, group);
+        if (this.pads.putIfAbsent(padId, pad) == null) {
+            schedule(pad, 0);
+        }
+    }
+
+    /**
+     * Starts watching all pads, listed once with listAllPads. Pads created
+     * later are not watched.
+     */
+    public final void watchAll() {
+        Object padIds = this.client.listAllPads().get("padIDs");
+        if (padIds instanceof List) {
+            for (Object padId : (List) padIds) {
+                watch((String) padId);
+            }
+        }
+    }
+
+    /**
+     * Starts watching all pads, listed with listAllPads now and again at
+     * the given interval, so pads created later are watched too.
+     *
+     * @param relistInterval the interval between listings, in milliseconds
+     */
+    public final void watchAll(final long relistInterval) {
+        watchAll();
+        scheduleListing(relistInterval);
+    }
+
+    /**
+     * Stops watching a pad and removes its users from the counts.
+     *
+     * @param padId the pad's id string
+     */
+    public final void unwatch(final String padId) {
+        PadUsage pad = this.pads.remove(padId);
+        if (pad != null) {
+            pad.cancelled = true;
+            update(pad, 0);
+        }
+    }
+
+    /**
+     * Gets the number of users online in the watched pads of a group.
+     *
+     * @param groupId the group id, or "" for pads outside groups
+     * @return the user count
+     */
+    public final long getUserCount(final String groupId) {
+        AtomicLong group = this.groups.get(groupId);
+        return (group != null) ? group.get() : 0;
+    }
+
+    /**
+     * Gets the number of users online, per group.
+     *
+     * @return the user counts by group id
+     */
+    public final Map<String, Long> getUserCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, AtomicLong> group : this.groups.entrySet()) {
+            counts.put(group.getKey(), group.getValue().get());
+        }
+        return counts;
+    }
+
+    /**
+     * Gets the number of users online in all watched pads.
+     *
+     * @return the user count
+     */
+    public final long getTotalUserCount() {
+        return this.total.get();
+    }
+
+    /**
+     * Gets the number of users online in a pad, as last polled.
+     *
+     * @param padId the pad's id string
+     * @return the user count, or 0 if the pad is not watched
+     */
+    public final long getPadUserCount(final String padId) {
+        PadUsage pad = this.pads.get(padId);
+        return (pad != null) ? pad.count.get() : 0;
+    }
+
+    /**
+     * Gets the number of polls.
+     *
+     * @return the poll count
+     */
+    public final long getPollCount() {
+        return this.polls.get();
+    }
+
+    /**
+     * Gets the number of failed polls and listings.
+     *
+     * @return the failure count
+     */
+    public final long getFailureCount() {
+        return this.failures.get();
+    }
+
+    /**
+     * Stops polling. Polls already running are finished.
+     */
+    @Override
+    public final void close() {
+        this.closed = true;
+    }
+
+    /**
+     * Gets the group of a pad.
+     *
+     * @param padId the pad's id string
+     * @return the group id, or "" for pads outside groups
+     */
+    static String groupOf(final String padId) {
+        int separator = padId.indexOf('$');
+        return (padId.startsWith("g.") && separator > 0)
+                ? padId.substring(0, separator) : "";
+    }
+
+    /**
+     * Schedules the next listing of all pads.
+     *
+     * @param relistInterval the interval between listings, in milliseconds
+     */
+    private void scheduleListing(final long relistInterval) {
+        if (this.closed) {
+            return;
+        }
+        try {
+            this.scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (UsageAggregator.this.closed) {
+                        return;
+                    }
+                    try {
+                        watchAll();
+                    } catch (RuntimeException e) {
+                        // listed again after the interval
+                        UsageAggregator.this.failures.incrementAndGet();
+                    }
+                    scheduleListing(relistInterval);
+                }
+            }, relistInterval, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // the scheduler is shut down
+        }
+    }
+
+    /**
+     * Schedules the next poll of a pad. If the scheduler is shut down, the
+     * pad is unwatched, as its count could no longer be updated.
+     *
+     * @param pad   the pad
+     * @param delay the delay in milliseconds
+     */
+    private void schedule(final PadUsage pad, final long delay) {
+        if (this.closed || pad.cancelled) {
+            return;
+        }
+        try {
+            this.scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    poll(pad);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            unwatch(pad.padId);
+        }
+    }
+
+    /**
+     * Polls the user count of a pad and schedules the next poll.
+     *
+     * @param pad the pad
+     */
+    private void poll(final PadUsage pad) {
+        if (this.closed || pad.cancelled) {
+            return;
+        }
+        this.polls.incrementAndGet();
+        long count;
+        try {
+            Object users = this.client.padUsersCount(pad.padId)
+                    .get("padUsersCount");
+            count = (users instanceof Number) ? ((Number) users).longValue()
+                    : 0;
+        } catch (EPLiteException e) {
+            this.failures.incrementAndGet();
+            if (e.getMessage() != null
+                    && e.getMessage().contains("does not exist")) {
+                unwatch(pad.padId);
+                return;
+            }
+            schedule(pad, this.idleInterval);
+            return;
+        } catch (RuntimeException e) {
+            // an unexpected answer must not end the polls of the pad
+            this.failures.incrementAndGet();
+            schedule(pad, this.idleInterval);
+            return;
+        }
+        update(pad, count);
+        if (pad.cancelled) {
+            // unwatched while polling, which may have set a count again
+            update(pad, 0);
+            return;
+        }
+        schedule(pad, (count > 0) ? this.activeInterval : this.idleInterval);
+    }
+
+    /**
+     * Sets the user count of a pad, adding the difference to its group and
+     * the total.
+     *
+     * @param pad   the pad
+     * @param count the user count
+     */
+    private void update(final PadUsage pad, final long count) {
+        long delta = count - pad.count.getAndSet(count);
+        if (delta != 0) {
+            pad.group.addAndGet(delta);
+            this.total.addAndGet(delta);
+        }
+    }
+
+    /**
+     * The user count of a watched pad.
+     */
+    private static final class PadUsage {
+
+        /** The pad's id string. */
+        private final String padId;
+
+        /** The user count of the pad's group. */
+        private final AtomicLong group;
+
+        /** The user count. */
+        private final AtomicLong count = new AtomicLong();
+
+        /** Whether the pad is no longer watched. */
+        private volatile boolean cancelled;
+
+        /**
+         * Instantiates a new pad usage.
+         *
+         * @param padId the pad's id string
+         * @param group the user count of the pad's group
+         */
+        private PadUsage(final String padId, final AtomicLong group) {
+            this.padId = padId;
+            this.group = group;
+        }
+    }
+}
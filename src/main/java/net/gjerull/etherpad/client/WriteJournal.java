@@ -0,0 +1,788 @@
+package net.gjerull.etherpad.client;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.simple.JSONValue;
+
+/**
+ * A durable write-ahead journal for mutating calls. A call is appended to a
+ * local journal file, the file is synced to disk, and the call returns; the
+ * call is then replayed to Etherpad in the background.<br />
+ * <br />
+ * Syncs are batched: while one thread syncs the file, calls of other threads
+ * are buffered, and the next sync covers all of them. Calls to the same pad
+ * are replayed in the order they were journaled, one at a time; calls to
+ * different pads are replayed in parallel on the given executor. A call which
+ * fails because Etherpad cannot be reached is retried with exponential
+ * backoff until it succeeds, holding back the later calls of its pad. A call
+ * Etherpad rejects is retried a few times and then dropped and counted.
+ * <br />
+ * <br />
+ * The journal file has a header (magic number and format version) followed
+ * by records of the form <code>type (byte), sequence number (long), length
+ * (int), payload, checksum (int)</code>. A call record holds the method and
+ * arguments as JSON; a done record, with no payload, marks a call as
+ * replayed. When the journal is opened again, the calls without a done
+ * record are replayed, so a call may be replayed twice if the process stops
+ * right after replaying it. Once every call is replayed, a large file is
+ * truncated.<br />
+ * <br />
+ * Example:<br />
+ * <br />
+ * <code>
+ * WriteJournal journal = new WriteJournal(api, file, scheduler);<br />
+ * journal.setText("my_pad", text);
+ * </code>
+ */
+public class WriteJournal implements Closeable {
+
+    /** The Constant MAX_ATTEMPTS of calls Etherpad rejects. */
+    public static final int MAX_ATTEMPTS = 3;
+
+    /** The Constant MAGIC. */
+    private static final int MAGIC = 0x4550574A;
+
+    /** The Constant VERSION. */
+    private static final short VERSION = 1;
+
+    /** The length of the file header. */
+    private static final int HEADER_LENGTH = 4 + 2;
+
+    /** Record type of a call. */
+    private static final byte TYPE_CALL = 1;
+
+    /** Record type of a replayed call. */
+    private static final byte TYPE_DONE = 2;
+
+    /** The length of a record without its payload. */
+    private static final int RECORD_OVERHEAD = 1 + 8 + 4 + 4;
+
+    /** The file length above which a fully replayed journal is truncated. */
+    private static final long COMPACT_LENGTH = 1 << 20;
+
+    /** The first retry delay, in milliseconds. */
+    private static final long MIN_RETRY_DELAY = 100;
+
+    /** The longest retry delay, in milliseconds. */
+    private static final long MAX_RETRY_DELAY = 30000;
+
+    /** The client. */
+    private final EPLiteClient client;
+
+    /** The executor replaying calls. */
+    private final ScheduledExecutorService executor;
+
+    /** The journal file. Guarded by the sync lock. */
+    private final RandomAccessFile file;
+
+    /** The lock held while writing and syncing the file. */
+    private final Object syncLock = new Object();
+
+    /** The records not yet written to the file. Guarded by this. */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    /** The replay queues, by pad id. Guarded by this. */
+    private final Map<String, Deque<Entry>> queues = new HashMap<>();
+
+    /** The last sequence number. Guarded by this. */
+    private long lastSeq;
+
+    /** The last sequence number synced to disk. */
+    private volatile long synced;
+
+    /** The number of calls not yet replayed. Guarded by this. */
+    private long pending;
+
+    /** The number of syncs. */
+    private final AtomicLong syncs = new AtomicLong();
+
+    /** The number of calls replayed. */
+    private final AtomicLong replayed = new AtomicLong();
+
+    /** The number of retries. */
+    private final AtomicLong retries = new AtomicLong();
+
+    /** The number of calls dropped after being rejected. */
+    private final AtomicLong failed = new AtomicLong();
+
+    /** Whether the journal is closed. */
+    private volatile boolean closed;
+
+    /**
+     * Opens a journal, creating the file if it does not exist, and starts
+     * replaying the calls it holds.
+     *
+     * @param client   the client
+     * @param path     the journal file
+     * @param executor the executor replaying calls
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public WriteJournal(final EPLiteClient client, final File path,
+            final ScheduledExecutorService executor) throws IOException {
+        this.client = client;
+        this.executor = executor;
+        boolean exists = path.length() >= HEADER_LENGTH;
+        this.file = new RandomAccessFile(path, "rw");
+        Map<Long, Map> calls = new TreeMap<>();
+        try {
+            if (exists) {
+                this.file.seek(0);
+                if (this.file.readInt() != MAGIC
+                        || this.file.readShort() != VERSION) {
+                    throw new IOException(path + " is not a journal file");
+                }
+                this.file.setLength(load(path, calls));
+            } else {
+                this.file.setLength(0);
+                this.file.writeInt(MAGIC);
+                this.file.writeShort(VERSION);
+                this.file.getFD().sync();
+            }
+        } catch (IOException | RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+        synchronized (this) {
+            this.synced = this.lastSeq;
+            for (Map.Entry<Long, Map> call : calls.entrySet()) {
+                enqueue(new Entry(call.getKey(), call.getValue()));
+            }
+        }
+        for (String padId : padIds()) {
+            kick(padId);
+        }
+    }
+
+    /**
+     * Journals createPad.
+     *
+     * @param padId the pad's id string
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void createPad(final String padId) throws IOException {
+        append("createPad", args(padId));
+    }
+
+    /**
+     * Journals createPad with an initial text.
+     *
+     * @param padId the pad's id string
+     * @param text  the initial text string
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void createPad(final String padId, final String text)
+            throws IOException {
+        Map<String, Object> args = args(padId);
+        args.put("text", text);
+        append("createPad", args);
+    }
+
+    /**
+     * Journals setText.
+     *
+     * @param padId the pad's id string
+     * @param text  the pad's new text
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void setText(final String padId, final String text)
+            throws IOException {
+        Map<String, Object> args = args(padId);
+        args.put("text", text);
+        append("setText", args);
+    }
+
+    /**
+     * Journals appendText.
+     *
+     * @param padId the pad's id string
+     * @param text  the text to append
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void appendText(final String padId, final String text)
+            throws IOException {
+        Map<String, Object> args = args(padId);
+        args.put("text", text);
+        append("appendText", args);
+    }
+
+    /**
+     * Journals setHTML.
+     *
+     * @param padId the pad's id string
+     * @param html  the pad's new html
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void setHTML(final String padId, final String html)
+            throws IOException {
+        Map<String, Object> args = args(padId);
+        args.put("html", html);
+        append("setHTML", args);
+    }
+
+    /**
+     * Journals appendChatMessage. The message keeps the time it was
+     * journaled at.
+     *
+     * @param padId    the pad's id string
+     * @param text     the text of this chat entry
+     * @param authorId the author of this chat entry
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void appendChatMessage(final String padId, final String text,
+            final String authorId) throws IOException {
+        Map<String, Object> args = args(padId);
+        args.put("text", text);
+        args.put("authorID", authorId);
+        args.put("time", System.currentTimeMillis());
+        append("appendChatMessage", args);
+    }
+
+    /**
+     * Journals saveRevision of the latest revision.
+     *
+     * @param padId the pad's id string
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void saveRevision(final String padId) throws IOException {
+        append("saveRevision", args(padId));
+    }
+
+    /**
+     * Journals saveRevision.
+     *
+     * @param padId the pad's id string
+     * @param rev   the revision to be saved
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public final void saveRevision(final String padId, final long rev)
+            throws IOException {
+        Map<String, Object> args = args(padId);
+        args.put("rev", rev);
+        append("saveRevision", args);
+    }
+
+    /**
+     * Waits until every journaled call is replayed or dropped.
+     *
+     * @param timeout the timeout
+     * @param unit    the unit of the timeout
+     * @return true if no call is pending
+     * @throws InterruptedException if the thread is interrupted while
+     *                              waiting
+     */
+    public final synchronized boolean awaitReplay(final long timeout,
+            final TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (this.pending > 0) {
+            long wait = TimeUnit.NANOSECONDS
+                    .toMillis(deadline - System.nanoTime());
+            if (wait <= 0) {
+                return false;
+            }
+            wait(wait);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the number of calls not yet replayed.
+     *
+     * @return the pending count
+     */
+    public final synchronized long getPendingCount() {
+        return this.pending;
+    }
+
+    /**
+     * Gets the number of syncs of the journal file.
+     *
+     * @return the sync count
+     */
+    public final long getSyncCount() {
+        return this.syncs.get();
+    }
+
+    /**
+     * Gets the number of calls replayed.
+     *
+     * @return the replayed count
+     */
+    public final long getReplayedCount() {
+        return this.replayed.get();
+    }
+
+    /**
+     * Gets the number of retried calls.
+     *
+     * @return the retry count
+     */
+    public final long getRetryCount() {
+        return this.retries.get();
+    }
+
+    /**
+     * Gets the number of calls dropped after Etherpad rejected them.
+     *
+     * @return the failed count
+     */
+    public final long getFailedCount() {
+        return this.failed.get();
+    }
+
+    /**
+     * Stops replaying and closes the file. Calls not yet replayed are
+     * replayed when the journal is opened again.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    @Override
+    public final void close() throws IOException {
+        this.closed = true;
+        synchronized (this.syncLock) {
+            if (this.file.getChannel().isOpen()) {
+                write(true);
+                this.file.close();
+            }
+        }
+    }
+
+    /**
+     * Creates the arguments of a pad call.
+     *
+     * @param padId the pad's id string
+     * @return the arguments
+     */
+    private static Map<String, Object> args(final String padId) {
+        Map<String, Object> args = new HashMap<>();
+        args.put("padID", padId);
+        return args;
+    }
+
+    /**
+     * Appends a call to the journal, waits until it is on disk and schedules
+     * its replay.
+     *
+     * @param method the API method
+     * @param args   the arguments
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void append(final String method, final Map<String, Object> args)
+            throws IOException {
+        if (this.closed) {
+            throw new EPLiteException("The journal is closed");
+        }
+        Map<String, Object> call = new HashMap<>();
+        call.put("method", method);
+        call.put("args", args);
+        byte[] payload = JSONValue.toJSONString(call)
+                .getBytes(StandardCharsets.UTF_8);
+        long seq;
+        Entry entry;
+        synchronized (this) {
+            seq = ++this.lastSeq;
+            writeRecord(TYPE_CALL, seq, payload);
+            // queued now, so the pad's calls keep their journal order, but
+            // only replayed once synced
+            entry = new Entry(seq, call);
+            enqueue(entry);
+        }
+        synchronized (this.syncLock) {
+            if (this.synced < seq) {
+                try {
+                    write(true);
+                } catch (IOException e) {
+                    // not on disk, so the caller is told it failed and the
+                    // call must never be replayed
+                    cancel(entry);
+                    throw e;
+                }
+            }
+        }
+        kick((String) args.get("padID"));
+    }
+
+    /**
+     * Writes the buffered records to the file. Must hold the sync lock.
+     *
+     * @param sync whether to sync the file to disk
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private void write(final boolean sync) throws IOException {
+        byte[] bytes;
+        long upTo;
+        boolean compact;
+        synchronized (this) {
+            bytes = this.buffer.toByteArray();
+            this.buffer.reset();
+            upTo = this.lastSeq;
+            compact = this.pending == 0;
+        }
+        long length = this.file.length();
+        try {
+            if (compact && length + bytes.length > COMPACT_LENGTH) {
+                // only done records are buffered, and every call is replayed
+                this.file.setLength(HEADER_LENGTH);
+            } else {
+                this.file.seek(length);
+                this.file.write(bytes);
+            }
+            if (sync) {
+                this.file.getFD().sync();
+                this.syncs.incrementAndGet();
+                this.synced = upTo;
+            }
+        } catch (IOException e) {
+            // cut off a partly written record and keep the records buffered,
+            // in front of those buffered meanwhile
+            try {
+                this.file.setLength(length);
+            } catch (IOException ignored) {
+                // the torn record is skipped when the journal is read
+            }
+            synchronized (this) {
+                byte[] later = this.buffer.toByteArray();
+                this.buffer.reset();
+                this.buffer.write(bytes, 0, bytes.length);
+                this.buffer.write(later, 0, later.length);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a call whose record could not be synced from its replay queue,
+     * and buffers its done record so it is not replayed if the record is
+     * written later. Must hold the sync lock, so the call cannot be synced
+     * and started meanwhile.
+     *
+     * @param entry the call
+     */
+    private synchronized void cancel(final Entry entry) {
+        Deque<Entry> queue = this.queues.get(entry.padId);
+        if (queue != null && queue.remove(entry)) {
+            this.pending--;
+            if (queue.isEmpty()) {
+                this.queues.remove(entry.padId);
+            }
+        }
+        writeRecord(TYPE_DONE, entry.seq, new byte[0]);
+        notifyAll();
+    }
+
+    /**
+     * Buffers a record. Must hold the journal's lock.
+     *
+     * @param type    the record type
+     * @param seq     the sequence number
+     * @param payload the payload
+     */
+    private void writeRecord(final byte type, final long seq,
+            final byte[] payload) {
+        DataOutputStream out = new DataOutputStream(this.buffer);
+        try {
+            out.writeByte(type);
+            out.writeLong(seq);
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt(MappedPadStore.checksum(ByteBuffer.wrap(payload)));
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the calls of the file which were not replayed.
+     *
+     * @param path  the path
+     * @param calls the map the calls are put in, by sequence number
+     * @return the length of the valid part of the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private long load(final File path, final Map<Long, Map> calls)
+            throws IOException {
+        long valid = HEADER_LENGTH;
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(path)))) {
+            in.skipBytes(HEADER_LENGTH);
+            while (true) {
+                byte type;
+                long seq;
+                byte[] payload;
+                int checksum;
+                try {
+                    type = in.readByte();
+                    seq = in.readLong();
+                    int length = in.readInt();
+                    if (length < 0 || length > path.length() - valid) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    checksum = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (checksum != MappedPadStore
+                        .checksum(ByteBuffer.wrap(payload))) {
+                    break;
+                }
+                if (type == TYPE_CALL) {
+                    calls.put(seq, (Map) JSONValue.parse(
+                            new String(payload, StandardCharsets.UTF_8)));
+                } else if (type == TYPE_DONE) {
+                    calls.remove(seq);
+                } else {
+                    break;
+                }
+                this.lastSeq = Math.max(this.lastSeq, seq);
+                valid += RECORD_OVERHEAD + payload.length;
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Queues a call for replay. Must hold the journal's lock.
+     *
+     * @param entry the call
+     */
+    private void enqueue(final Entry entry) {
+        Deque<Entry> queue = this.queues.get(entry.padId);
+        if (queue == null) {
+            queue = new ArrayDeque<>();
+            this.queues.put(entry.padId, queue);
+        }
+        queue.add(entry);
+        this.pending++;
+    }
+
+    /**
+     * Gets the ids of the pads with queued calls.
+     *
+     * @return the pad ids
+     */
+    private synchronized String[] padIds() {
+        return this.queues.keySet().toArray(new String[0]);
+    }
+
+    /**
+     * Starts replaying the calls of a pad, unless they are being replayed.
+     *
+     * @param padId the pad's id string
+     */
+    private void kick(final String padId) {
+        synchronized (this) {
+            Deque<Entry> queue = this.queues.get(padId);
+            if (this.closed || queue == null || queue.isEmpty()
+                    || queue.peek().running) {
+                return;
+            }
+            queue.peek().running = true;
+        }
+        try {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    replay(padId);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // kicked again by the pad's next call
+            stopped(padId);
+        }
+    }
+
+    /**
+     * Marks the replay of a pad as stopped, so it can be kicked again.
+     *
+     * @param padId the pad's id string
+     */
+    private synchronized void stopped(final String padId) {
+        Deque<Entry> queue = this.queues.get(padId);
+        if (queue != null && !queue.isEmpty()) {
+            queue.peek().running = false;
+        }
+    }
+
+    /**
+     * Replays the calls of a pad in order, until the queue is empty or a
+     * call must be retried later.
+     *
+     * @param padId the pad's id string
+     */
+    private void replay(final String padId) {
+        while (!this.closed) {
+            Entry entry;
+            synchronized (this) {
+                Deque<Entry> queue = this.queues.get(padId);
+                entry = (queue != null) ? queue.peek() : null;
+                if (entry == null) {
+                    // its only call was cancelled
+                    return;
+                }
+                if (entry.seq > this.synced) {
+                    // its append is still syncing and kicks the pad after
+                    entry.running = false;
+                    return;
+                }
+            }
+            try {
+                call(entry.call);
+                this.replayed.incrementAndGet();
+            } catch (EPLiteException e) {
+                entry.attempts++;
+                boolean unreachable = e.getMessage() != null && e.getMessage()
+                        .startsWith("Unable to connect");
+                if (unreachable || entry.attempts < MAX_ATTEMPTS) {
+                    this.retries.incrementAndGet();
+                    long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY
+                            << Math.min(entry.attempts - 1, 20));
+                    try {
+                        this.executor.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                replay(padId);
+                            }
+                        }, delay, TimeUnit.MILLISECONDS);
+                    } catch (RejectedExecutionException rejected) {
+                        // kicked again by the pad's next call
+                        stopped(padId);
+                    }
+                    return;
+                }
+                this.failed.incrementAndGet();
+            } catch (RuntimeException e) {
+                // a malformed call, which can never succeed
+                this.failed.incrementAndGet();
+            }
+            synchronized (this) {
+                Deque<Entry> queue = this.queues.get(padId);
+                queue.poll();
+                writeRecord(TYPE_DONE, entry.seq, new byte[0]);
+                this.pending--;
+                if (queue.isEmpty()) {
+                    this.queues.remove(padId);
+                }
+                notifyAll();
+                if (queue.isEmpty()) {
+                    break;
+                }
+                queue.peek().running = true;
+            }
+        }
+        flushDone();
+    }
+
+    /**
+     * Writes buffered done records without syncing, so they reach the file
+     * even if no more calls are journaled.
+     */
+    private void flushDone() {
+        synchronized (this.syncLock) {
+            try {
+                if (this.file.getChannel().isOpen()) {
+                    write(false);
+                }
+            } catch (IOException e) {
+                // the calls are replayed again when the journal is reopened
+            }
+        }
+    }
+
+    /**
+     * Makes a journaled call.
+     *
+     * @param call the method and arguments
+     */
+    private void call(final Map call) {
+        String method = (String) call.get("method");
+        Map args = (Map) call.get("args");
+        String padId = (String) args.get("padID");
+        switch (method) {
+        case "createPad":
+            if (args.get("text") != null) {
+                this.client.createPad(padId, (String) args.get("text"));
+            } else {
+                this.client.createPad(padId);
+            }
+            break;
+        case "setText":
+            this.client.setText(padId, (String) args.get("text"));
+            break;
+        case "appendText":
+            this.client.appendText(padId, (String) args.get("text"));
+            break;
+        case "setHTML":
+            this.client.setHTML(padId, (String) args.get("html"));
+            break;
+        case "appendChatMessage":
+            this.client.appendChatMessage(padId, (String) args.get("text"),
+                    (String) args.get("authorID"),
+                    ((Number) args.get("time")).longValue());
+            break;
+        case "saveRevision":
+            if (args.get("rev") != null) {
+                this.client.saveRevision(padId,
+                        ((Number) args.get("rev")).longValue());
+            } else {
+                this.client.saveRevision(padId);
+            }
+            break;
+        default:
+            throw new EPLiteException("Unknown journaled method " + method);
+        }
+    }
+
+    /**
+     * A journaled call.
+     */
+    private static final class Entry {
+
+        /** The sequence number. */
+        private final long seq;
+
+        /** The method and arguments. */
+        private final Map call;
+
+        /** The pad's id string. */
+        private final String padId;
+
+        /** The number of failed attempts. */
+        private int attempts;
+
+        /** Whether the call is being replayed. Guarded by the journal. */
+        private boolean running;
+
+        /**
+         * Instantiates a new entry.
+         *
+         * @param seq  the sequence number
+         * @param call the method and arguments
+         */
+        private Entry(final long seq, final Map call) {
+            this.seq = seq;
+            this.call = call;
+            this.padId = (String) ((Map) call.get("args")).get("padID");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The Class AttributedTextTest.
+ */
+public class AttributedTextTest {
+
+    /**
+     * Random edits give the same text as a StringBuilder and keep the tree
+     * balanced.
+     */
+    @Test
+    public void random_edits_match_a_string_builder() {
+        Random random = new Random(42);
+        StringBuilder expected = new StringBuilder();
+        AttributedText text = AttributedText.empty();
+        for (int i = 0; i < 5000; i++) {
+            int pos = random.nextInt(expected.length() + 1);
+            if (random.nextInt(3) > 0 || expected.length() == 0) {
+                String inserted = "edit " + i + (i % 7 == 0 ? "\n" : "");
+                expected.insert(pos, inserted);
+                text = text.insert(pos, inserted, new int[] { i % 3 });
+            } else {
+                int end = Math.min(expected.length(),
+                        pos + random.nextInt(20));
+                expected.delete(pos, end);
+                text = text.delete(pos, end);
+            }
+        }
+        assertEquals(expected.toString(), text.toString());
+        assertEquals(expected.length(), text.length());
+        assertEquals(expected.charAt(expected.length() / 2),
+                text.charAt(text.length() / 2));
+        assertTrue("height " + text.getHeight(), text.getHeight() < 20);
+    }
+
+    /**
+     * Formatting composes attributes and leaves snapshots unchanged.
+     */
+    @Test
+    public void formatting_composes_attributes_and_keeps_snapshots() {
+        AttributePool pool = new AttributePool();
+        int author = pool.putAttrib("author", "a.1");
+        int bold = pool.putAttrib("bold", "true");
+        int notBold = pool.putAttrib("bold", "");
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("line ").append(i).append('\n');
+        }
+        AttributedText before = AttributedText.of(large,
+                new int[] { author });
+
+        AttributedText after = before.format(5, 5000, new int[] { bold }, pool)
+                .format(10, 20, new int[] { notBold }, pool);
+
+        assertArrayEquals(new int[] { author }, before.getAttribs(100));
+        assertArrayEquals(new int[] { author }, after.getAttribs(4));
+        assertArrayEquals(new int[] { author, bold }, after.getAttribs(5));
+        assertArrayEquals(new int[] { author }, after.getAttribs(15));
+        assertArrayEquals(new int[] { author, bold }, after.getAttribs(4999));
+        assertArrayEquals(new int[] { author }, after.getAttribs(5000));
+        assertEquals(before.toString(), after.toString());
+    }
+
+    /**
+     * Applying a changeset matches applying it to a string, and the inverse
+     * restores text and attributes.
+     */
+    @Test
+    public void changesets_are_applied_and_inverted() {
+        AttributePool pool = new AttributePool();
+        int author = pool.putAttrib("author", "a.1");
+        int bold = pool.putAttrib("bold", "true");
+        AttributedText text = AttributedText.of("hello\nworld\n",
+                new int[] { author });
+        Changeset cs = Changeset.builder(12).keep("hel")
+                .keep("lo", new int[] { bold }).remove("\nwor")
+                .insert("!\n", new int[] { author }).build();
+
+        AttributedText applied = text.apply(cs, pool);
+        assertEquals(cs.apply(text.toString()), applied.toString());
+        assertArrayEquals(new int[] { author, bold }, applied.getAttribs(3));
+
+        Changeset inverse = cs.invert(text, pool);
+        assertEquals(text, applied.apply(inverse, pool));
+    }
+
+    /**
+     * Attribute runs are reported in order.
+     */
+    @Test
+    public void runs_are_reported_in_order() {
+        AttributedText text = AttributedText.of("abc", new int[] { 1 })
+                .insert(3, "def", new int[] { 2 });
+
+        AttributedText.RunIterator runs = text.runs();
+        assertTrue(runs.next());
+        assertEquals("abc", runs.getText());
+        assertArrayEquals(new int[] { 1 }, runs.getAttribs());
+        assertTrue(runs.next());
+        assertEquals(3, runs.getStart());
+        assertEquals("def", runs.getText());
+        assertEquals(2, runs.getAttrib(0));
+        assertEquals(false, runs.next());
+    }
+}
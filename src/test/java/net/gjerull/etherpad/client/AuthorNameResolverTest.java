@@ -0,0 +1,95 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class AuthorNameResolverTest.
+ */
+public class AuthorNameResolverTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The executor. */
+    private ExecutorService executor;
+
+    /**
+     * Sets up a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * Each author's name is fetched once and then served from the cache.
+     */
+    @Test
+    public void names_are_fetched_once() {
+        respond("a.1", "Alice");
+        respond("a.2", "Bob");
+        AuthorNameResolver resolver = new AuthorNameResolver(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, 100);
+
+        Map<String, String> names = resolver
+                .getAuthorNames(Arrays.asList("a.1", "a.2", "a.1"));
+        assertEquals(2, names.size());
+        assertEquals("Alice", names.get("a.1"));
+        assertEquals("Bob", names.get("a.2"));
+        assertEquals("Bob", resolver.getAuthorName("a.2"));
+
+        this.mockServer.verify(request("a.1"), VerificationTimes.exactly(1));
+        this.mockServer.verify(request("a.2"), VerificationTimes.exactly(1));
+        assertEquals(2, resolver.getCallCount());
+        assertEquals(1, resolver.getHitCount());
+    }
+
+    /**
+     * Gets a getAuthorName request.
+     *
+     * @param authorId the author id
+     * @return the request
+     */
+    private HttpRequest request(final String authorId) {
+        return HttpRequest.request().withPath("/api/1.2.13/getAuthorName")
+                .withQueryStringParameter("authorID", authorId);
+    }
+
+    /**
+     * Makes the mock server answer getAuthorName.
+     *
+     * @param authorId the author id
+     * @param name     the name
+     */
+    private void respond(final String authorId, final String name) {
+        this.mockServer.when(request(authorId))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":\"" + name + "\"}"));
+    }
+}
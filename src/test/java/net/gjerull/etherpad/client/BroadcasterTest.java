@@ -0,0 +1,133 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.StringBody;
+
+/**
+ * The Class BroadcasterTest.
+ */
+public class BroadcasterTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The executor. */
+    private ExecutorService executor;
+
+    /**
+     * Sets up a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * The message is sent to every pad of the group, and failures are
+     * reported per pad.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void message_is_sent_to_the_pads_of_a_group() throws Exception {
+        respond(HttpRequest.request().withPath("/api/1.2.13/listPads"),
+                "{\"code\":0,\"message\":\"ok\",\"data\":{\"padIDs\":"
+                        + "[\"g.1$a\",\"g.1$b\",\"g.1$gone\"]}}");
+        respond(sendClientsMessage().withBody(StringBody.subString("gone")),
+                "{\"code\":1,\"message\":\"padID does not exist\","
+                        + "\"data\":null}");
+        respond(sendClientsMessage(),
+                "{\"code\":0,\"message\":\"ok\",\"data\":null}");
+        Broadcaster broadcaster = new Broadcaster(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, 2, 100);
+
+        Broadcaster.Report report = broadcaster.broadcastToGroup("g.1",
+                "exam ends in 5 minutes");
+        assertEquals(2, report.getDelivered().size());
+        assertTrue(report.getDelivered().contains("g.1$a"));
+        assertTrue(report.getDelivered().contains("g.1$b"));
+        assertEquals("padID does not exist",
+                report.getFailures().get("g.1$gone").getMessage());
+    }
+
+    /**
+     * Calls are started at most at the given rate and run at most the given
+     * number at a time, and an unexpected answer is reported for its pad.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void calls_are_rate_limited_and_bounded() throws Exception {
+        // not a JSON object, which the connection does not expect
+        respond(sendClientsMessage().withBody(StringBody.subString("odd")),
+                "[]");
+        this.mockServer.when(sendClientsMessage()).respond(
+                HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":null}")
+                        .withDelay(TimeUnit.MILLISECONDS, 300));
+        EPLiteClient client = new EPLiteClient("http://localhost:9001",
+                "apikey");
+
+        // six calls at ten per second take at least half a second
+        Broadcaster.Report report = new Broadcaster(client, this.executor,
+                4, 10).broadcast(Arrays.asList("g.1$a", "g.1$b", "g.1$c",
+                        "g.1$d", "g.1$e", "g.1$odd"), "msg");
+        assertTrue(report.getElapsedMillis() >= 500);
+        assertEquals(5, report.getDelivered().size());
+        assertEquals(1, report.getFailures().size());
+        assertTrue(report.getFailures().containsKey("g.1$odd"));
+
+        // four slow calls, two at a time, take two rounds
+        report = new Broadcaster(client, this.executor, 2, 1000).broadcast(
+                Arrays.asList("g.1$a", "g.1$b", "g.1$c", "g.1$d"), "msg");
+        assertTrue(report.getElapsedMillis() >= 600);
+        assertEquals(4, report.getDelivered().size());
+    }
+
+    /**
+     * Gets a sendClientsMessage request.
+     *
+     * @return the request
+     */
+    private HttpRequest sendClientsMessage() {
+        return HttpRequest.request().withMethod("POST")
+                .withPath("/api/1.2.13/sendClientsMessage");
+    }
+
+    /**
+     * Makes the mock server answer a request.
+     *
+     * @param request the request
+     * @param body    the response body
+     */
+    private void respond(final HttpRequest request, final String body) {
+        this.mockServer.when(request).respond(
+                HttpResponse.response().withStatusCode(200).withBody(body));
+    }
+}
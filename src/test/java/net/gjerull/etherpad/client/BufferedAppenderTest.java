@@ -0,0 +1,147 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.StringBody;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class BufferedAppenderTest.
+ */
+public class BufferedAppenderTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The scheduler. */
+    private ScheduledExecutorService scheduler;
+
+    /** The client. */
+    private EPLiteClient client;
+
+    /** The appendText request. */
+    private final HttpRequest appendText = HttpRequest.request()
+            .withMethod("POST").withPath("/api/1.2.13/appendText");
+
+    /**
+     * Sets up a client against a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.mockServer.when(this.appendText)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":null}"));
+        this.scheduler = Executors.newScheduledThreadPool(2);
+        this.client = new EPLiteClient("http://localhost:9001", "apikey");
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.scheduler.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * Appends to a pad are sent in one call when flushed.
+     */
+    @Test
+    public void appends_are_coalesced_until_flushed() {
+        BufferedAppender appender = new BufferedAppender(this.client,
+                this.scheduler, 1000, 60000);
+        for (int i = 0; i < 10; i++) {
+            appender.append("log", "line" + i + " ");
+        }
+        assertEquals(0, appender.getCallCount());
+
+        appender.close();
+        this.mockServer.verify(this.appendText.withBody(StringBody
+                .subString("line0+line1+line2+line3+line4+line5+line6+"
+                        + "line7+line8+line9")),
+                VerificationTimes.exactly(1));
+        assertEquals(1, appender.getCallCount());
+        assertEquals(10.0, appender.getBatchingFactor(), 0.0);
+    }
+
+    /**
+     * A full buffer is sent in the background.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void full_buffers_are_sent_in_the_background() throws Exception {
+        BufferedAppender appender = new BufferedAppender(this.client,
+                this.scheduler, 6, 60000);
+        appender.append("log", "abc");
+        appender.append("log", "def");
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (appender.getCallCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        appender.flush();
+        this.mockServer.verify(
+                this.appendText.withBody(StringBody.subString("abcdef")),
+                VerificationTimes.exactly(1));
+        assertEquals(1, appender.getCallCount());
+    }
+
+    /**
+     * A failed background send is retried without a flush, and the buffer of
+     * a pad whose text cannot be sent is bounded.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void failed_sends_are_retried_in_the_background()
+            throws Exception {
+        this.mockServer.reset();
+        this.mockServer.when(this.appendText, Times.once())
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":1,\"message\":\"down\","
+                                + "\"data\":null}"));
+        this.mockServer.when(this.appendText)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":null}"));
+        BufferedAppender appender = new BufferedAppender(this.client,
+                this.scheduler, 3, 60000);
+        appender.append("log", "abc");
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (appender.getCallCount() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        this.mockServer.verify(
+                this.appendText.withBody(StringBody.subString("abc")),
+                VerificationTimes.exactly(2));
+        assertEquals(1, appender.getFailureCount());
+
+        try {
+            appender.append("log", new String(new char[49]));
+            fail("Expected '" + EPLiteException.class.getName()
+                    + "' to be thrown");
+        } catch (EPLiteException e) {
+            assertTrue(e.getMessage().contains("full"));
+        }
+    }
+}
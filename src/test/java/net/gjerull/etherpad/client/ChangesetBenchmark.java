@@ -0,0 +1,166 @@
+package net.gjerull.etherpad.client;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for {@link Changeset}. Not run by the test suite; run with
+ * <code>mvn test-compile exec:java
+ * -Dexec.mainClass=net.gjerull.etherpad.client.ChangesetBenchmark
+ * -Dexec.classpathScope=test</code> or from an IDE.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangesetBenchmark {
+
+    /** The number of lines of the document. */
+    @Param({ "100", "10000" })
+    private int lines;
+
+    /** The document. */
+    private String text;
+
+    /** A changeset editing every tenth line. */
+    private Changeset changeset;
+
+    /** The packed form of the changeset. */
+    private String packed;
+
+    /** A changeset following the first one. */
+    private Changeset next;
+
+    /** The attribute pool. */
+    private AttributePool pool;
+
+    /** The document as attributed text. */
+    private AttributedText attributedText;
+
+    /** A single character insert in the middle of the document. */
+    private Changeset keystroke;
+
+    /**
+     * Builds the document and changesets.
+     */
+    @Setup
+    public void setUp() {
+        StringBuilder document = new StringBuilder();
+        for (int i = 0; i < this.lines; i++) {
+            document.append("line number ").append(i).append('\n');
+        }
+        this.text = document.toString();
+        this.pool = new AttributePool();
+        int author = this.pool.putAttrib("author", "a.benchmark");
+
+        Changeset.Builder builder = Changeset.builder(this.text.length());
+        int start = 0;
+        for (int i = 0; i < this.lines; i++) {
+            int end = this.text.indexOf('\n', start) + 1;
+            if (i % 10 == 0) {
+                builder.remove(this.text.substring(start, start + 4))
+                        .insert("LINE", new int[] { author })
+                        .keep(this.text.substring(start + 4, end));
+            } else {
+                builder.keep(this.text.substring(start, end));
+            }
+            start = end;
+        }
+        this.changeset = builder.build();
+        this.packed = this.changeset.toString();
+        String edited = this.changeset.apply(this.text);
+        this.next = Changeset.diff(edited, edited + "appended\n");
+        this.attributedText = AttributedText.of(this.text);
+        int middle = this.text.length() / 2;
+        this.keystroke = Changeset.builder(this.text.length())
+                .keep(this.text.substring(0, middle)).insert("x").build();
+    }
+
+    /**
+     * Parses a packed changeset.
+     *
+     * @return the changeset
+     */
+    @Benchmark
+    public Changeset parse() {
+        return Changeset.parse(this.packed);
+    }
+
+    /**
+     * Applies a changeset.
+     *
+     * @return the new text
+     */
+    @Benchmark
+    public String apply() {
+        return this.changeset.apply(this.text);
+    }
+
+    /**
+     * Applies a single keystroke to a string.
+     *
+     * @return the new text
+     */
+    @Benchmark
+    public String applyKeystrokeToString() {
+        return this.keystroke.apply(this.text);
+    }
+
+    /**
+     * Applies a single keystroke to an attributed text.
+     *
+     * @return the new text
+     */
+    @Benchmark
+    public AttributedText applyKeystrokeToAttributedText() {
+        return this.attributedText.apply(this.keystroke, this.pool);
+    }
+
+    /**
+     * Composes two changesets.
+     *
+     * @return the composed changeset
+     */
+    @Benchmark
+    public Changeset compose() {
+        return this.changeset.compose(this.next, this.pool);
+    }
+
+    /**
+     * Inverts a changeset.
+     *
+     * @return the inverse
+     */
+    @Benchmark
+    public Changeset invert() {
+        return this.changeset.invert(this.text);
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the arguments
+     * @throws RunnerException the runner exception
+     */
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(ChangesetBenchmark.class.getSimpleName()).build())
+                        .run();
+    }
+}
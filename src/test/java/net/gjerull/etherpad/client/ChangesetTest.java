@@ -0,0 +1,144 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The Class ChangesetTest.
+ */
+public class ChangesetTest {
+
+    /**
+     * Changesets are parsed and packed again unchanged.
+     */
+    @Test
+    public void changesets_are_parsed_and_packed() {
+        Changeset cs = Changeset.parse("Z:1k>3|2=1c*0*1+3$xyz");
+
+        assertEquals(56, cs.getOldLength());
+        assertEquals(59, cs.getNewLength());
+        assertEquals(2, cs.getOpCount());
+        assertEquals(Changeset.KEEP, cs.getOpcode(0));
+        assertEquals(48, cs.getChars(0));
+        assertEquals(2, cs.getLines(0));
+        assertEquals(Changeset.INSERT, cs.getOpcode(1));
+        assertArrayEquals(new int[] { 0, 1 }, cs.getAttribs(1));
+        assertEquals("xyz", cs.getCharBank());
+        assertEquals("Z:1k>3|2=1c*0*1+3$xyz", cs.toString());
+    }
+
+    /**
+     * Malformed changesets are rejected.
+     */
+    @Test
+    public void malformed_changesets_are_rejected() {
+        String[] invalid = { "", "X:1>0$", "Z:1>1+1$", "Z:1>1+1$ab",
+                "Z:1>0=2$", "Z:1?0$", "Z:1>0=1" };
+        for (String changeset : invalid) {
+            try {
+                Changeset.parse(changeset);
+                throw new AssertionError("Accepted " + changeset);
+            } catch (EPLiteException e) {
+                assertTrue(e.getMessage().startsWith("Invalid changeset"));
+            }
+        }
+    }
+
+    /**
+     * Changesets are applied to text.
+     */
+    @Test
+    public void changesets_are_applied() {
+        String text = "hello\nworld\n";
+        Changeset cs = Changeset.parse("Z:c>2|1=6=1-4+6$ORLD!!");
+
+        assertEquals("hello\nwORLD!!\n", cs.apply(text));
+        assertEquals(text, Changeset.identity(12).apply(text));
+    }
+
+    /**
+     * The builder produces Etherpad's canonical form.
+     */
+    @Test
+    public void the_builder_produces_the_canonical_form() {
+        Changeset cs = Changeset.builder(12).keep("hello\nw").insert("OR")
+                .remove("orl").insert("LD!!").keep("d\n").build();
+
+        assertEquals("Z:c>3|1=6=1-3+6$ORLD!!", cs.toString());
+        assertEquals("hello\nwORLD!!d\n", cs.apply("hello\nworld\n"));
+    }
+
+    /**
+     * Composing gives the same result as applying one after the other.
+     */
+    @Test
+    public void composing_equals_applying_in_sequence() {
+        String text = "one\ntwo\nthree\n";
+        Changeset first = Changeset.diff(text, "one\n2\nthree\n");
+        Changeset second = Changeset.diff("one\n2\nthree\n",
+                "zero\none\n2\nthree\n");
+        Changeset composed = first.compose(second, new AttributePool());
+
+        assertEquals("zero\none\n2\nthree\n", composed.apply(text));
+        assertEquals(second.apply(first.apply(text)), composed.apply(text));
+    }
+
+    /**
+     * Composing merges attributes the way Etherpad does.
+     */
+    @Test
+    public void composing_merges_attributes() {
+        AttributePool pool = new AttributePool();
+        int bold = pool.putAttrib("bold", "true");
+        int notBold = pool.putAttrib("bold", "");
+        int author = pool.putAttrib("author", "a.1");
+
+        Changeset insert = Changeset.builder(1)
+                .insert("ab", new int[] { author }).build();
+        Changeset format = Changeset.builder(3)
+                .keep(1, 0, new int[] { bold }).build();
+        Changeset unformat = Changeset.builder(3)
+                .keep(1, 0, new int[] { notBold }).build();
+
+        Changeset formatted = insert.compose(format, pool);
+        assertEquals("Z:1>2*2*0+1*2+1$ab", formatted.toString());
+        assertEquals("Z:1>2*2+2$ab",
+                formatted.compose(unformat, pool).toString());
+        assertEquals("Z:3>0*0=1$",
+                Changeset.builder(3).keep(1, 0, new int[] { bold }).build()
+                        .compose(Changeset.identity(3), pool).toString());
+    }
+
+    /**
+     * Inverting a changeset restores the original text.
+     */
+    @Test
+    public void inverting_restores_the_original_text() {
+        String text = "hello\nworld\n";
+        Changeset cs = Changeset.diff(text, "hello\nbrave new\nworld\n");
+        Changeset inverse = cs.invert(text);
+
+        assertEquals(text, inverse.apply(cs.apply(text)));
+        assertTrue(cs.compose(inverse, new AttributePool()).isIdentity());
+    }
+
+    /**
+     * Moving a changeset to another pool renumbers its attributes.
+     */
+    @Test
+    public void moving_to_another_pool_renumbers_attributes() {
+        AttributePool wire = new AttributePool();
+        int author = wire.putAttrib("author", "a.x");
+        AttributePool local = new AttributePool();
+        local.putAttrib("bold", "true");
+        Changeset cs = Changeset.builder(3).keep("a")
+                .insert("xy", new int[] { author }).build();
+
+        Changeset moved = cs.moveToPool(wire, local);
+        assertEquals("Z:3>2=1*1+2$xy", moved.toString());
+        assertEquals(1, local.find("author", "a.x"));
+    }
+}
@@ -0,0 +1,170 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+/**
+ * The Class ChatHistoryIteratorTest.
+ */
+public class ChatHistoryIteratorTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The executor. */
+    private ExecutorService executor;
+
+    /**
+     * Sets up a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.executor = Executors.newFixedThreadPool(2);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * The messages up to the chat head are fetched in pages.
+     */
+    @Test
+    public void messages_are_fetched_in_pages() {
+        respond(HttpRequest.request().withPath("/api/1.2.13/getChatHead"),
+                "{\"chatHead\":2}");
+        respondPage(0, 1, "{\"text\":\"one\"},{\"text\":\"two\"}");
+        respondPage(2, 2, "{\"text\":\"three\"}");
+        ChatHistoryIterator chat = new ChatHistoryIterator(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, "pad", 2);
+
+        assertEquals("one", chat.next().get("text"));
+        assertEquals("two", chat.next().get("text"));
+        assertEquals("three", chat.next().get("text"));
+        assertFalse(chat.hasNext());
+        assertEquals(3, chat.getIndex());
+    }
+
+    /**
+     * A page which cannot be fetched is fetched again by the next call.
+     */
+    @Test
+    public void failed_pages_are_fetched_again() {
+        respond(HttpRequest.request().withPath("/api/1.2.13/getChatHead"),
+                "{\"chatHead\":0}");
+        this.mockServer.when(HttpRequest.request()
+                .withPath("/api/1.2.13/getChatHistory"), Times.once())
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":1,\"message\":\"failed\","
+                                + "\"data\":null}"));
+        respondPage(0, 0, "{\"text\":\"one\"}");
+        ChatHistoryIterator chat = new ChatHistoryIterator(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, "pad", 2);
+
+        try {
+            chat.hasNext();
+            fail("The failed page was not reported");
+        } catch (EPLiteException e) {
+            assertEquals("failed", e.getMessage());
+        }
+        assertEquals("one", chat.next().get("text"));
+        assertFalse(chat.hasNext());
+    }
+
+    /**
+     * When tailing, new messages are fetched once the chat head moves, and
+     * closing ends a waiting iteration.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void tailing_waits_for_new_messages_until_closed()
+            throws Exception {
+        this.mockServer.when(HttpRequest.request()
+                .withPath("/api/1.2.13/getChatHead"), Times.exactly(3))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":{\"chatHead\":0}}"));
+        respond(HttpRequest.request().withPath("/api/1.2.13/getChatHead"),
+                "{\"chatHead\":1}");
+        respondPage(0, 0, "{\"text\":\"one\"}");
+        respondPage(1, 1, "{\"text\":\"two\"}");
+        final ChatHistoryIterator chat = new ChatHistoryIterator(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, "pad", 0, 2, 50);
+
+        assertEquals("one", chat.next().get("text"));
+        assertEquals("two", chat.next().get("text"));
+        assertEquals(2, chat.getIndex());
+
+        ExecutorService waiter = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> hasNext = waiter.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return chat.hasNext();
+                }
+            });
+            Thread.sleep(200);
+            assertFalse(hasNext.isDone());
+            chat.close();
+            assertFalse(hasNext.get(2, TimeUnit.SECONDS));
+            assertTrue(hasNext.isDone());
+        } finally {
+            waiter.shutdownNow();
+        }
+    }
+
+    /**
+     * Makes the mock server answer getChatHistory for a range.
+     *
+     * @param start    the start index
+     * @param end      the end index
+     * @param messages the messages
+     */
+    private void respondPage(final long start, final long end,
+            final String messages) {
+        respond(HttpRequest.request().withPath("/api/1.2.13/getChatHistory")
+                .withQueryStringParameter("start", String.valueOf(start))
+                .withQueryStringParameter("end", String.valueOf(end)),
+                "{\"messages\":[" + messages + "]}");
+    }
+
+    /**
+     * Makes the mock server answer a request.
+     *
+     * @param request the request
+     * @param data    the data of the response
+     */
+    private void respond(final HttpRequest request, final String data) {
+        this.mockServer.when(request)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":" + data + "}"));
+    }
+}
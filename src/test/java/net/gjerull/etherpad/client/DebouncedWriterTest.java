@@ -0,0 +1,196 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.StringBody;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class DebouncedWriterTest.
+ */
+public class DebouncedWriterTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The scheduler. */
+    private ScheduledExecutorService scheduler;
+
+    /** The client. */
+    private EPLiteClient client;
+
+    /** The setText request. */
+    private final HttpRequest setText = HttpRequest.request()
+            .withMethod("POST").withPath("/api/1.2.13/setText");
+
+    /**
+     * Sets up a client against a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.mockServer.when(this.setText)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":null}"));
+        this.scheduler = Executors.newScheduledThreadPool(2);
+        this.client = new EPLiteClient("http://localhost:9001", "apikey");
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.scheduler.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * Only the latest write to a pad is sent.
+     */
+    @Test
+    public void superseded_writes_are_not_sent() {
+        DebouncedWriter writer = new DebouncedWriter(this.client,
+                this.scheduler, 60000, 60000);
+        for (int i = 0; i < 10; i++) {
+            writer.setText("pad", "version" + i);
+        }
+        assertEquals(0, writer.getCallCount());
+
+        writer.close();
+        this.mockServer.verify(this.setText, VerificationTimes.exactly(1));
+        this.mockServer.verify(this.setText
+                .withBody(StringBody.subString("text=version9")));
+        assertEquals(9, writer.getSupersededCount());
+    }
+
+    /**
+     * The latest write is sent in the background after the quiet period.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void writes_are_sent_after_the_quiet_period() throws Exception {
+        DebouncedWriter writer = new DebouncedWriter(this.client,
+                this.scheduler, 50, 60000);
+        writer.setText("pad", "first");
+        writer.setText("pad", "second");
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getCallCount() == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        writer.close();
+        this.mockServer.verify(this.setText, VerificationTimes.exactly(1));
+        this.mockServer.verify(this.setText
+                .withBody(StringBody.subString("text=second")));
+    }
+
+    /**
+     * A failed write is sent again in the background without a flush.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void failed_writes_are_retried_in_the_background()
+            throws Exception {
+        this.mockServer.reset();
+        this.mockServer.when(this.setText, Times.once())
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":1,\"message\":\"down\","
+                                + "\"data\":null}"));
+        this.mockServer.when(this.setText)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":null}"));
+        DebouncedWriter writer = new DebouncedWriter(this.client,
+                this.scheduler, 20, 60000);
+        writer.setText("pad", "text");
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getCallCount() < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        this.mockServer.verify(
+                this.setText.withBody(StringBody.subString("text=text")),
+                VerificationTimes.exactly(2));
+        assertEquals(1, writer.getFailureCount());
+    }
+
+    /**
+     * Sent pads are forgotten, and a write rejected by the scheduler is sent
+     * after the next write.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void rejected_writes_are_scheduled_again() throws Exception {
+        this.scheduler.shutdownNow();
+        this.scheduler = new RejectOnceScheduler();
+        DebouncedWriter writer = new DebouncedWriter(this.client,
+                this.scheduler, 20, 60000);
+        writer.setText("pad", "first");
+        assertEquals(1, writer.getPendingPadCount());
+        writer.setText("pad", "second");
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getPendingPadCount() > 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, writer.getPendingPadCount());
+        this.mockServer.verify(this.setText, VerificationTimes.exactly(1));
+        this.mockServer.verify(this.setText
+                .withBody(StringBody.subString("text=second")));
+
+        writer.setText("pad", "third");
+        writer.flush();
+        assertEquals(0, writer.getPendingPadCount());
+        assertEquals(2, writer.getCallCount());
+    }
+
+    /**
+     * A scheduler which rejects its first task.
+     */
+    private static final class RejectOnceScheduler
+            extends ScheduledThreadPoolExecutor {
+
+        /** Whether a task was rejected. */
+        private final AtomicBoolean rejected = new AtomicBoolean();
+
+        /**
+         * Instantiates a new scheduler.
+         */
+        private RejectOnceScheduler() {
+            super(1);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(final Runnable command,
+                final long delay, final TimeUnit unit) {
+            if (this.rejected.compareAndSet(false, true)) {
+                throw new RejectedExecutionException("full");
+            }
+            return super.schedule(command, delay, unit);
+        }
+    }
+}
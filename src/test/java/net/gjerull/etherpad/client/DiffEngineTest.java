@@ -0,0 +1,83 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The Class DiffEngineTest.
+ */
+public class DiffEngineTest {
+
+    /** The style sheet of a diff without author colors. */
+    private static final String STYLE = "<style>\n.removed {"
+            + "text-decoration: line-through; -ms-filter:'progid:"
+            + "DXImageTransform.Microsoft.Alpha(Opacity=80)'; "
+            + "filter: alpha(opacity=80); opacity: 0.8; }\n</style>";
+
+    /** The temporary folder. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Removed text is kept and inserted text shows its author.
+     */
+    @Test
+    public void removed_and_inserted_text_is_marked() {
+        AttributePool pool = new AttributePool();
+        int alice = pool.putAttrib("author", "a.alice");
+        int bob = pool.putAttrib("author", "a.bob");
+        AttributedText base = AttributedText.of("hello world\n",
+                new int[] { alice });
+        Changeset first = Changeset.builder(12).keep("hello ")
+                .remove("world").insert("there", new int[] { bob }).build();
+        Changeset second = Changeset.builder(12).keep("hello there")
+                .insert("!", new int[] { alice }).build();
+
+        Map<String, Object> diff = new DiffEngine(pool,
+                Collections.singletonMap("a.bob", "#ffc7c7"))
+                        .createDiffHTML(base, Arrays.asList(first, second));
+        assertEquals("<style>\n.authora_bob {background-color: #ffc7c7}\n"
+                + STYLE.substring(8) + "hello <span class=\"removed\">world"
+                + "</span><span class=\"authora_bob\">there</span>"
+                + "<span class=\"authora_alice\">!</span><br>",
+                diff.get("html"));
+        assertEquals(Arrays.asList("a.bob", "a.alice"), diff.get("authors"));
+    }
+
+    /**
+     * Diffs of a stored history rebuild the start revision.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void diffs_of_a_stored_history() throws Exception {
+        AttributePool pool = new AttributePool();
+        int author = pool.putAttrib("author", "a.x");
+        RevisionHistoryStore store = new RevisionHistoryStore(
+                this.folder.newFolder(), 2, 10);
+        try {
+            store.append("pad", 0, "Z:1>2+2$ab");
+            store.append("pad", 1, Changeset.builder(3).keep("a")
+                    .insert("c\n", new int[] { author }).build().toString());
+            store.append("pad", 2, Changeset.builder(5).remove("a")
+                    .build().toString());
+
+            Map<String, Object> diff = new DiffEngine(pool)
+                    .createDiffHTML(store, "pad", 0, 2);
+            assertEquals(STYLE + "<span class=\"removed\">a</span>"
+                    + "<span class=\"authora_x\">c</span><br>b<br>",
+                    diff.get("html"));
+            assertEquals(Collections.singletonList("a.x"),
+                    diff.get("authors"));
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+/**
+ * The Class HtmlRendererTest.
+ */
+public class HtmlRendererTest {
+
+    /** The renderer. */
+    private final HtmlRenderer renderer = new HtmlRenderer();
+
+    /**
+     * Plain text is escaped and split into lines.
+     */
+    @Test
+    public void plain_text_is_escaped_and_split_into_lines() {
+        AttributedText text = AttributedText
+                .of("a < b & c\n\n  two  spaces \n");
+
+        assertEquals("<!DOCTYPE HTML><html><body>a &lt; b &amp; c<br><br>"
+                + "&nbsp; two&nbsp; spaces&nbsp;<br></body></html>",
+                this.renderer.render(text, null));
+    }
+
+    /**
+     * Inline attributes become nested tags.
+     */
+    @Test
+    public void inline_attributes_become_tags() {
+        AttributePool pool = new AttributePool();
+        int bold = pool.putAttrib("bold", "true");
+        int italic = pool.putAttrib("italic", "true");
+        AttributedText text = AttributedText.of("plain bold both italic\n")
+                .format(6, 15, new int[] { bold }, pool)
+                .format(11, 22, new int[] { italic }, pool);
+
+        assertEquals("<!DOCTYPE HTML><html><body>plain <strong>bold "
+                + "<em>both</em></strong><em> italic</em><br></body></html>",
+                this.renderer.render(text, pool));
+    }
+
+    /**
+     * Line markers render lists.
+     */
+    @Test
+    public void line_markers_render_lists() {
+        AttributePool pool = new AttributePool();
+        int lmkr = pool.putAttrib("lmkr", "1");
+        int bullet1 = pool.putAttrib("list", "bullet1");
+        int bullet2 = pool.putAttrib("list", "bullet2");
+        int number1 = pool.putAttrib("list", "number1");
+        AttributedText text = AttributedText.of("intro\n")
+                .insert(6, "*one\n", new int[0])
+                .format(6, 7, new int[] { lmkr, bullet1 }, pool)
+                .insert(11, "*two\n", new int[0])
+                .format(11, 12, new int[] { lmkr, bullet2 }, pool)
+                .insert(16, "*three\n", new int[0])
+                .format(16, 17, new int[] { lmkr, number1 }, pool)
+                .insert(23, "end\n", new int[0]);
+
+        assertEquals("<!DOCTYPE HTML><html><body>intro<br>"
+                + "<ul class=\"bullet\"><li>one</li>"
+                + "<ul class=\"bullet\"><li>two</li></ul></ul>"
+                + "<ol class=\"number\"><li>three</li></ol>end<br>"
+                + "</body></html>", this.renderer.render(text, pool));
+    }
+
+    /**
+     * Author colors use the class names of Etherpad's export.
+     */
+    @Test
+    public void author_colors_use_etherpad_class_names() {
+        AttributePool pool = new AttributePool();
+        int author = pool.putAttrib("author", "a.Wn2N8");
+        AttributedText text = AttributedText.of("hi\n", new int[] { author });
+
+        assertEquals("authora_Wn2N8", HtmlRenderer.authorClass("a.Wn2N8"));
+        assertEquals("<!DOCTYPE HTML><html><body>"
+                + "<span class=\"authora_Wn2N8\">hi</span><br>"
+                + "</body></html>",
+                new HtmlRenderer(10, true).render(text, pool));
+    }
+
+    /**
+     * Documents of mirrors are cached per revision.
+     */
+    @Test
+    public void documents_are_cached_per_revision() {
+        ClientAndServer mockServer = startClientAndServer(9001);
+        try {
+            mockServer.when(HttpRequest.request().withMethod("GET")
+                    .withPath("/api/1.2.13/getRevisionsCount"))
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":{\"revisions\":0}}"));
+            mockServer.when(HttpRequest.request().withMethod("GET")
+                    .withPath("/api/1.2.13/getRevisionChangeset"))
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":\"Z:1>2+2$hi\"}"));
+            PadMirror mirror = new PadMirror(
+                    new EPLiteClient("http://localhost:9001", "apikey"),
+                    "pad");
+            mirror.sync();
+
+            String html = this.renderer.getHTML(mirror);
+            assertEquals("<!DOCTYPE HTML><html><body>hi<br></body></html>",
+                    html);
+            assertSame(html, this.renderer.getHTML(mirror));
+            assertEquals(1, this.renderer.getRenderCount());
+            assertEquals(1, this.renderer.getHitCount());
+        } finally {
+            mockServer.stop();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The Class MappedPadStoreTest.
+ */
+public class MappedPadStoreTest {
+
+    /** The temporary folder. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Documents survive a restart.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void documents_survive_a_restart() throws Exception {
+        File directory = this.folder.newFolder();
+        MappedPadStore store = new MappedPadStore(directory, 4096, 65536);
+        store.put("pad", false, 3, "æøå text\n");
+        store.put("pad", true, 3, "<html>æøå</html>");
+        store.put("other", false, 1, "other\n");
+        store.close();
+
+        store = new MappedPadStore(directory, 4096, 65536);
+        assertEquals(3, store.size());
+        assertEquals("æøå text\n", store.get("pad", false).getDocument());
+        assertEquals(3, store.get("pad", true).getRev());
+        assertEquals("<html>æøå</html>", store.get("pad", true).getDocument());
+        store.close();
+    }
+
+    /**
+     * Newer documents replace older ones and removals are persisted.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void replacements_and_removals_are_persisted() throws Exception {
+        File directory = this.folder.newFolder();
+        MappedPadStore store = new MappedPadStore(directory, 4096, 65536);
+        store.put("pad", false, 1, "one\n");
+        store.put("pad", false, 2, "two\n");
+        store.put("gone", false, 1, "gone\n");
+        store.remove("gone");
+        store.close();
+
+        store = new MappedPadStore(directory, 4096, 65536);
+        assertEquals(2, store.get("pad", false).getRev());
+        assertEquals("two\n", store.get("pad", false).getDocument());
+        assertNull(store.get("gone", false));
+        assertEquals(4, store.getLiveBytes());
+        store.close();
+    }
+
+    /**
+     * A full store is compacted.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void a_full_store_is_compacted() throws Exception {
+        File directory = this.folder.newFolder();
+        MappedPadStore store = new MappedPadStore(directory, 1024, 4096);
+        String document = new String(new char[500]).replace('\0', 'x');
+        store.put("other", true, 7, "<p>other</p>");
+        for (int rev = 0; rev < 20; rev++) {
+            store.put("pad", false, rev, document);
+        }
+        store.put("small", false, 1, "small");
+
+        assertTrue(store.getUsedBytes() <= 4096);
+        assertEquals(19, store.get("pad", false).getRev());
+        assertEquals(document, store.get("pad", false).getDocument());
+        assertEquals("small", store.get("small", false).getDocument());
+        store.close();
+
+        store = new MappedPadStore(directory, 1024, 4096);
+        assertEquals(3, store.size());
+        assertEquals(7, store.get("other", true).getRev());
+        assertEquals("<p>other</p>", store.get("other", true).getDocument());
+        assertEquals(document, store.get("pad", false).getDocument());
+        store.close();
+    }
+
+    /**
+     * A torn index record is ignored on startup.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void a_torn_index_record_is_ignored() throws Exception {
+        File directory = this.folder.newFolder();
+        MappedPadStore store = new MappedPadStore(directory, 4096, 65536);
+        store.put("pad", false, 1, "one\n");
+        store.close();
+        try (FileOutputStream out = new FileOutputStream(
+                new File(directory, "pads.idx"), true)) {
+            out.write(new byte[] { 0, 3, 'p', 'a' });
+        }
+
+        store = new MappedPadStore(directory, 4096, 65536);
+        assertEquals("one\n", store.get("pad", false).getDocument());
+        store.put("pad", false, 2, "two\n");
+        store.close();
+
+        store = new MappedPadStore(directory, 4096, 65536);
+        assertEquals("two\n", store.get("pad", false).getDocument());
+        store.close();
+    }
+}
@@ -0,0 +1,163 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class MappingCacheTest.
+ */
+public class MappingCacheTest {
+
+    /** The client. */
+    private EPLiteClient client;
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /**
+     * Sets up a client with a mapping cache against a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.client = new EPLiteClient("http://localhost:9001", "apikey");
+        this.client.setMappingCache(new MappingCache());
+        this.mockServer = startClientAndServer(9001);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.mockServer.stop();
+    }
+
+    /**
+     * Read only ids are cached in both directions.
+     */
+    @Test
+    public void read_only_ids_are_cached_in_both_directions() {
+        MappingCache cache = new MappingCache(10);
+        cache.putReadOnlyId("pad", "r.abc");
+
+        assertEquals("r.abc", cache.getReadOnlyId("pad"));
+        assertEquals("pad", cache.getPadId("r.abc"));
+        assertEquals(2, cache.getHitCount());
+
+        cache.invalidatePad("pad");
+
+        assertNull(cache.getReadOnlyId("pad"));
+        assertNull(cache.getPadId("r.abc"));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    /**
+     * Read only ids are evicted in both directions together.
+     */
+    @Test
+    public void read_only_ids_are_evicted_in_both_directions() {
+        MappingCache cache = new MappingCache(2);
+        cache.putReadOnlyId("pad1", "r.1");
+        cache.putReadOnlyId("pad2", "r.2");
+        // the reverse lookup keeps pad1 recently used
+        assertEquals("pad1", cache.getPadId("r.1"));
+        cache.putReadOnlyId("pad3", "r.3");
+
+        assertNull(cache.getReadOnlyId("pad2"));
+        assertNull(cache.getPadId("r.2"));
+        assertEquals("r.1", cache.getReadOnlyId("pad1"));
+        assertEquals("pad3", cache.getPadId("r.3"));
+
+        cache.putReadOnlyId("pad1", "r.4");
+
+        assertNull(cache.getPadId("r.1"));
+        assertEquals("pad1", cache.getPadId("r.4"));
+    }
+
+    /**
+     * Invalidating a group drops its mappers and pads.
+     */
+    @Test
+    public void invalidating_a_group_drops_its_mappers_and_pads() {
+        MappingCache cache = new MappingCache(10);
+        cache.putGroupId("course", "g.1");
+        cache.putGroupId("other", "g.2");
+        cache.putReadOnlyId("g.1$notes", "r.1");
+        cache.putReadOnlyId("g.2$notes", "r.2");
+
+        cache.invalidateGroup("g.1");
+
+        assertNull(cache.getGroupId("course"));
+        assertNull(cache.getPadId("r.1"));
+        assertEquals("g.2", cache.getGroupId("other"));
+        assertEquals("r.2", cache.getReadOnlyId("g.2$notes"));
+    }
+
+    /**
+     * Least recently used entries are evicted.
+     */
+    @Test
+    public void least_recently_used_entries_are_evicted() {
+        MappingCache cache = new MappingCache(2);
+        cache.putAuthorId("a", "a.1");
+        cache.putAuthorId("b", "a.2");
+        cache.getAuthorId("a");
+        cache.putAuthorId("c", "a.3");
+
+        assertEquals("a.1", cache.getAuthorId("a"));
+        assertNull(cache.getAuthorId("b"));
+        assertEquals("a.3", cache.getAuthorId("c"));
+    }
+
+    /**
+     * Read only id is fetched once until the pad is deleted.
+     */
+    @Test
+    public void read_only_id_is_fetched_once_until_the_pad_is_deleted() {
+        HttpRequest getReadOnlyId = HttpRequest.request().withMethod("GET")
+                .withPath("/api/1.2.13/getReadOnlyID");
+        this.mockServer.when(getReadOnlyId)
+                .respond(HttpResponse.response().withStatusCode(200).withBody(
+                        "{\"code\":0,\"message\":\"ok\",\"data\":{\"readOnlyID\":\"r.1f2e\"}}"));
+        this.mockServer
+                .when(HttpRequest.request().withMethod("POST")
+                        .withPath("/api/1.2.13/deletePad"))
+                .respond(HttpResponse.response().withStatusCode(200).withBody(
+                        "{\"code\":0,\"message\":\"ok\",\"data\":null}"));
+
+        assertEquals("r.1f2e", client.getReadOnlyID("pad").get("readOnlyID"));
+        assertEquals("r.1f2e", client.getReadOnlyID("pad").get("readOnlyID"));
+        assertEquals("pad", client.getPadID("r.1f2e").get("padID"));
+        this.mockServer.verify(getReadOnlyId, VerificationTimes.exactly(1));
+
+        client.deletePad("pad");
+        client.getReadOnlyID("pad");
+        this.mockServer.verify(getReadOnlyId, VerificationTimes.exactly(2));
+    }
+
+    /**
+     * Group mapper is fetched once.
+     */
+    @Test
+    public void group_mapper_is_fetched_once() {
+        HttpRequest createGroup = HttpRequest.request().withMethod("POST")
+                .withPath("/api/1.2.13/createGroupIfNotExistsFor");
+        this.mockServer.when(createGroup)
+                .respond(HttpResponse.response().withStatusCode(200).withBody(
+                        "{\"code\":0,\"message\":\"ok\",\"data\":{\"groupID\":\"g.D83UvymZbQ6VNGGa\"}}"));
+
+        client.createGroupIfNotExistsFor("course");
+        assertEquals("g.D83UvymZbQ6VNGGa",
+                client.createGroupIfNotExistsFor("course").get("groupID"));
+        this.mockServer.verify(createGroup, VerificationTimes.exactly(1));
+    }
+}
@@ -0,0 +1,153 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class PadContentCacheTest.
+ */
+public class PadContentCacheTest {
+
+    /** The temporary folder. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** The client. */
+    private EPLiteClient client;
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The getText request. */
+    private final HttpRequest getText = HttpRequest.request().withMethod("GET")
+            .withPath("/api/1.2.13/getText");
+
+    /** The getRevisionsCount request. */
+    private final HttpRequest getRevisionsCount = HttpRequest.request()
+            .withMethod("GET").withPath("/api/1.2.13/getRevisionsCount");
+
+    /**
+     * Sets up a client against a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.client = new EPLiteClient("http://localhost:9001", "apikey");
+        this.mockServer = startClientAndServer(9001);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.mockServer.stop();
+    }
+
+    /**
+     * Responds to getRevisionsCount and getText.
+     *
+     * @param revisions the revision count
+     * @param text      the text
+     */
+    private void serve(final long revisions, final String text) {
+        this.mockServer.reset();
+        this.mockServer.when(this.getRevisionsCount)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\",\"data\":"
+                                + "{\"revisions\":" + revisions + "}}"));
+        this.mockServer.when(this.getText)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\",\"data\":"
+                                + "{\"text\":\"" + text + "\"}}"));
+    }
+
+    /**
+     * Unchanged pads are revalidated without downloading the text.
+     */
+    @Test
+    public void unchanged_pads_are_revalidated_without_downloading_the_text() {
+        PadContentCache cache = new PadContentCache(10, 0);
+        this.client.setPadContentCache(cache);
+        serve(4, "hello\\n");
+
+        assertEquals("hello\n", this.client.getText("pad").get("text"));
+        assertEquals("hello\n", this.client.getText("pad").get("text"));
+        assertEquals("hello\n", this.client.getText("pad").get("text"));
+
+        this.mockServer.verify(this.getText, VerificationTimes.exactly(1));
+        this.mockServer.verify(this.getRevisionsCount,
+                VerificationTimes.exactly(3));
+        assertEquals(1, cache.getFetchCount());
+        assertEquals(2, cache.getRevalidationCount());
+    }
+
+    /**
+     * Changed pads are downloaded again.
+     */
+    @Test
+    public void changed_pads_are_downloaded_again() {
+        PadContentCache cache = new PadContentCache(10, 0);
+        this.client.setPadContentCache(cache);
+        serve(4, "hello\\n");
+        assertEquals("hello\n", this.client.getText("pad").get("text"));
+
+        serve(5, "hello world\\n");
+        assertEquals("hello world\n", this.client.getText("pad").get("text"));
+        assertEquals(2, cache.getFetchCount());
+    }
+
+    /**
+     * Fresh documents are served without contacting the server.
+     */
+    @Test
+    public void fresh_documents_are_served_without_contacting_the_server() {
+        PadContentCache cache = new PadContentCache(10, 60000);
+        this.client.setPadContentCache(cache);
+        serve(4, "hello\\n");
+
+        this.client.getText("pad");
+        this.client.getText("pad");
+
+        this.mockServer.verify(this.getRevisionsCount,
+                VerificationTimes.exactly(1));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    /**
+     * Documents in the disk tier are revalidated after a restart.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void documents_in_the_disk_tier_are_revalidated_after_a_restart()
+            throws Exception {
+        File directory = this.folder.newFolder();
+        MappedPadStore store = new MappedPadStore(directory, 4096, 65536);
+        this.client.setPadContentCache(new PadContentCache(10, 0, store));
+        serve(4, "hello\\n");
+        this.client.getText("pad");
+        store.close();
+
+        MappedPadStore reopened = new MappedPadStore(directory, 4096, 65536);
+        PadContentCache restarted = new PadContentCache(10, 0, reopened);
+        this.client.setPadContentCache(restarted);
+        assertEquals("hello\n", this.client.getText("pad").get("text"));
+
+        this.mockServer.verify(this.getText, VerificationTimes.exactly(1));
+        assertEquals(1, restarted.getDiskHitCount());
+        assertEquals(0, restarted.getFetchCount());
+        reopened.close();
+    }
+}
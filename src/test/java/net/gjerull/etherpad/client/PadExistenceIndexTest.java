@@ -0,0 +1,249 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class PadExistenceIndexTest.
+ */
+public class PadExistenceIndexTest {
+
+    /** The client. */
+    private EPLiteClient client;
+
+    /** The index. */
+    private PadExistenceIndex index;
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The getText request. */
+    private final HttpRequest getText = HttpRequest.request().withMethod("GET")
+            .withPath("/api/1.2.13/getText");
+
+    /**
+     * Sets up a client with an index against a mock server knowing two pads.
+     */
+    @Before
+    public void setUp() {
+        this.client = new EPLiteClient("http://localhost:9001", "apikey");
+        this.index = new PadExistenceIndex();
+        this.client.setPadExistenceIndex(this.index);
+        this.mockServer = startClientAndServer(9001);
+        this.mockServer
+                .when(HttpRequest.request().withMethod("GET")
+                        .withPath("/api/1.2.13/listAllPads"))
+                .respond(HttpResponse.response().withStatusCode(200).withBody(
+                        "{\"code\":0,\"message\":\"ok\",\"data\":{\"padIDs\":[\"a\",\"b\"]}}"));
+        this.mockServer.when(this.getText)
+                .respond(HttpResponse.response().withStatusCode(200).withBody(
+                        "{\"code\":0,\"message\":\"ok\",\"data\":{\"text\":\"hi\\n\"}}"));
+        this.mockServer
+                .when(HttpRequest.request().withMethod("POST")
+                        .withPath("/api/1.2.13/createPad"))
+                .respond(HttpResponse.response().withStatusCode(200).withBody(
+                        "{\"code\":0,\"message\":\"ok\",\"data\":null}"));
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.mockServer.stop();
+    }
+
+    /**
+     * Bloom filter has no false negatives.
+     */
+    @Test
+    public void bloom_filter_has_no_false_negatives() {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++) {
+            filter.add("pad-" + i);
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain("pad-" + i));
+            if (filter.mightContain("other-" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives,
+                falsePositives < 50);
+    }
+
+    /**
+     * Calls for pads which are not in the filter fail without a round trip.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void calls_for_missing_pads_fail_without_a_round_trip()
+            throws Exception {
+        HttpRequest getMissing = HttpRequest.request().withMethod("GET")
+                .withPath("/api/1.2.13/getText")
+                .withQueryStringParameter("padID", "missing");
+
+        // sent while the first filter is built in the background
+        assertEquals("hi\n", this.client.getText("a").get("text"));
+        awaitRebuilds(1);
+        for (int i = 0; i < 2; i++) {
+            try {
+                this.client.getText("missing");
+                fail("Expected '" + EPLiteException.class.getName()
+                        + "' to be thrown");
+            } catch (EPLiteException e) {
+                assertEquals(PadExistenceIndex.PAD_DOES_NOT_EXIST,
+                        e.getMessage());
+            }
+        }
+
+        this.mockServer.verify(getMissing, VerificationTimes.exactly(0));
+        assertEquals(2, this.index.getShortCircuitCount());
+        assertEquals(1, this.index.getRebuildCount());
+    }
+
+    /**
+     * Concurrent checks start a single rebuild, and do not wait for it.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void concurrent_checks_start_a_single_rebuild() throws Exception {
+        HttpRequest listAllPads = HttpRequest.request().withMethod("GET")
+                .withPath("/api/1.2.13/listAllPads");
+        this.mockServer.clear(listAllPads);
+        this.mockServer.when(listAllPads).respond(HttpResponse.response()
+                .withStatusCode(200)
+                .withBody("{\"code\":0,\"message\":\"ok\","
+                        + "\"data\":{\"padIDs\":[\"a\",\"b\"]}}")
+                .withDelay(TimeUnit.MILLISECONDS, 500));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Map>> calls = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                calls.add(executor.submit(new Callable<Map>() {
+                    @Override
+                    public Map call() {
+                        return PadExistenceIndexTest.this.client
+                                .getText("a");
+                    }
+                }));
+            }
+            for (Future<Map> call : calls) {
+                assertEquals("hi\n", call.get().get("text"));
+            }
+            assertEquals(0, this.index.getRebuildCount());
+        } finally {
+            executor.shutdownNow();
+        }
+        awaitRebuilds(1);
+        this.mockServer.verify(listAllPads, VerificationTimes.exactly(1));
+    }
+
+    /**
+     * Pads created by other clients are seen once the index is rebuilt.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void pads_created_elsewhere_are_seen_after_a_rebuild()
+            throws Exception {
+        this.client.getText("a");
+        awaitRebuilds(1);
+        try {
+            this.client.getText("elsewhere");
+            fail("Expected '" + EPLiteException.class.getName()
+                    + "' to be thrown");
+        } catch (EPLiteException e) {
+            assertEquals(PadExistenceIndex.PAD_DOES_NOT_EXIST, e.getMessage());
+        }
+
+        HttpRequest listAllPads = HttpRequest.request().withMethod("GET")
+                .withPath("/api/1.2.13/listAllPads");
+        this.mockServer.clear(listAllPads);
+        this.mockServer.when(listAllPads).respond(HttpResponse.response()
+                .withStatusCode(200)
+                .withBody("{\"code\":0,\"message\":\"ok\",\"data\":"
+                        + "{\"padIDs\":[\"a\",\"b\",\"elsewhere\"]}}"));
+        this.index.invalidate();
+        this.client.getText("a");
+        awaitRebuilds(2);
+        assertEquals("hi\n", this.client.getText("elsewhere").get("text"));
+    }
+
+    /**
+     * Pads created through the client are added to the index.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void pads_created_through_the_client_are_added_to_the_index()
+            throws Exception {
+        this.client.getText("a");
+        awaitRebuilds(1);
+        this.client.createPad("new");
+
+        assertEquals("hi\n", this.client.getText("new").get("text"));
+        assertEquals(0, this.index.getShortCircuitCount());
+    }
+
+    /**
+     * Confirmed misses are remembered until they expire.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void confirmed_misses_expire() throws Exception {
+        PadExistenceIndex shortLived = new PadExistenceIndex(60000, 50, 10);
+        this.client.setPadExistenceIndex(shortLived);
+        shortLived.padMissing("a");
+
+        try {
+            this.client.getText("a");
+            fail("Expected '" + EPLiteException.class.getName()
+                    + "' to be thrown");
+        } catch (EPLiteException e) {
+            assertEquals(PadExistenceIndex.PAD_DOES_NOT_EXIST, e.getMessage());
+        }
+        Thread.sleep(100);
+        assertFalse(this.client.getText("a").isEmpty());
+    }
+
+    /**
+     * Waits until the index has been built a number of times.
+     *
+     * @param rebuilds the number of builds
+     * @throws InterruptedException if the thread is interrupted
+     */
+    private void awaitRebuilds(final long rebuilds)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.index.getRebuildCount() < rebuilds
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(rebuilds, this.index.getRebuildCount());
+    }
+}
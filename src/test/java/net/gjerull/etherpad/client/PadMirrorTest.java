@@ -0,0 +1,153 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class PadMirrorTest.
+ */
+public class PadMirrorTest {
+
+    /** The client. */
+    private EPLiteClient client;
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The executor. */
+    private ExecutorService executor;
+
+    /** The getText request. */
+    private final HttpRequest getText = HttpRequest.request().withMethod("GET")
+            .withPath("/api/1.2.13/getText");
+
+    /**
+     * Sets up a client against a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.client = new EPLiteClient("http://localhost:9001", "apikey");
+        this.mockServer = startClientAndServer(9001);
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * Responds to a GET request.
+     *
+     * @param method the API method
+     * @param rev    the rev parameter, or null
+     * @param data   the JSON data
+     */
+    private void respond(final String method, final String rev,
+            final String data) {
+        HttpRequest request = HttpRequest.request().withMethod("GET")
+                .withPath("/api/1.2.13/" + method);
+        if (rev != null) {
+            request = request.withQueryStringParameter("rev", rev);
+        }
+        this.mockServer.when(request)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\",\"data\":"
+                                + data + "}"));
+    }
+
+    /**
+     * New revisions are applied from their changesets.
+     */
+    @Test
+    public void new_revisions_are_applied_from_changesets() {
+        respond("getRevisionsCount", null, "{\"revisions\":40}");
+        respond("getText", "40", "{\"text\":\"hello\\n\"}");
+        PadMirror mirror = new PadMirror(this.client, "pad", this.executor, 10);
+        assertEquals(40, mirror.sync());
+
+        this.mockServer.reset();
+        respond("getRevisionsCount", null, "{\"revisions\":42}");
+        respond("getRevisionChangeset", "41", "\"Z:6>1=5+1$!\"");
+        respond("getRevisionChangeset", "42", "\"Z:7>1=6+1$?\"");
+
+        assertEquals(42, mirror.sync());
+        assertEquals("hello!?\n", mirror.getText());
+        assertEquals(2, mirror.getChangesetsApplied());
+        assertEquals(1, mirror.getFullFetchCount());
+        this.mockServer.verify(this.getText, VerificationTimes.exactly(0));
+    }
+
+    /**
+     * Small pads are built from all their changesets, keeping attributes.
+     */
+    @Test
+    public void small_pads_are_built_from_their_changesets() {
+        respond("getRevisionsCount", null, "{\"revisions\":1}");
+        respond("getRevisionChangeset", "0", "\"Z:1>5*0+5$hello\"");
+        respond("getRevisionChangeset", "1", "\"Z:6>0*1=5$\"");
+        respond("getAttributePool", null, "{\"pool\":{\"numToAttrib\":"
+                + "{\"0\":[\"author\",\"a.1\"],\"1\":[\"bold\",\"true\"]},"
+                + "\"nextNum\":2}}");
+        PadMirror mirror = new PadMirror(this.client, "pad", this.executor, 10);
+
+        assertEquals(1, mirror.sync());
+        assertEquals("hello\n", mirror.getText());
+        assertEquals(2, mirror.getAttributedText().getAttribs(0).length);
+        assertEquals(0, mirror.getFullFetchCount());
+    }
+
+    /**
+     * Large gaps download the full text.
+     */
+    @Test
+    public void large_gaps_download_the_full_text() {
+        respond("getRevisionsCount", null, "{\"revisions\":400}");
+        respond("getText", "400", "{\"text\":\"hello\\n\"}");
+        PadMirror mirror = new PadMirror(this.client, "pad");
+        mirror.sync();
+
+        this.mockServer.reset();
+        respond("getRevisionsCount", null, "{\"revisions\":900}");
+        respond("getText", "900", "{\"text\":\"goodbye\\n\"}");
+
+        assertEquals(900, mirror.sync());
+        assertEquals("goodbye\n", mirror.getText());
+        assertEquals(0, mirror.getChangesetsApplied());
+        assertEquals(2, mirror.getFullFetchCount());
+    }
+
+    /**
+     * A changeset not fitting the mirrored text falls back to the full text.
+     */
+    @Test
+    public void mismatching_changesets_fall_back_to_the_full_text() {
+        respond("getRevisionsCount", null, "{\"revisions\":40}");
+        respond("getText", "40", "{\"text\":\"hello\\n\"}");
+        PadMirror mirror = new PadMirror(this.client, "pad", this.executor, 10);
+        mirror.sync();
+
+        this.mockServer.reset();
+        respond("getRevisionsCount", null, "{\"revisions\":41}");
+        respond("getRevisionChangeset", "41", "\"Z:9>1=8+1$!\"");
+        respond("getText", "41", "{\"text\":\"hello again\\n\"}");
+
+        assertEquals(41, mirror.sync());
+        assertEquals("hello again\n", mirror.getText());
+    }
+}
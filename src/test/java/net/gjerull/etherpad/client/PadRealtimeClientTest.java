@@ -0,0 +1,158 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The Class PadRealtimeClientTest.
+ */
+public class PadRealtimeClientTest {
+
+    /**
+     * Changes of other authors are received and own changes are accepted.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void changes_are_received_and_submitted() throws Exception {
+        RealtimeStandInServer server = new RealtimeStandInServer();
+        PadRealtimeClient client = new PadRealtimeClient(server.getUrl(),
+                "pad");
+        try {
+            final BlockingQueue<Object[]> received =
+                    new LinkedBlockingQueue<>();
+            client.addListener(new PadRealtimeClient.Listener() {
+                @Override
+                public void newChanges(final String padId, final long rev,
+                        final Changeset changeset, final String author) {
+                    received.add(new Object[] { rev, changeset, author });
+                }
+
+                @Override
+                public void disconnected(final String padId,
+                        final RuntimeException reason) {
+                }
+            });
+            client.connect();
+            assertEquals(0, client.getRevision());
+            assertEquals("\n", client.getText().toString());
+
+            server.pushChanges(Changeset.diff("\n", "hello\n"), "a.other");
+            Object[] change = received.poll(10, TimeUnit.SECONDS);
+            assertEquals(1L, change[0]);
+            assertEquals("a.other", change[2]);
+            assertEquals("hello\n", client.getText().toString());
+
+            assertEquals(2, client.submitChanges(
+                    Changeset.diff("hello\n", "hello world\n")));
+            assertEquals("hello world\n", client.getText().toString());
+            assertEquals("hello world\n", server.getText());
+            assertTrue(received.isEmpty());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * A change arriving before a submission is accepted is recovered from by
+     * connecting again.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void connecting_again_resyncs_after_a_concurrent_edit()
+            throws Exception {
+        RealtimeStandInServer server = new RealtimeStandInServer();
+        PadRealtimeClient client = new PadRealtimeClient(server.getUrl(),
+                "pad");
+        try {
+            client.connect();
+            server.interleaveChanges(Changeset.diff("\n", "other\n"),
+                    Changeset.diff("other\n", "mine other\n"), "a.other");
+
+            assertEquals(2, client.submitChanges(
+                    Changeset.diff("\n", "mine \n")));
+            assertEquals(2, client.getRevision());
+            try {
+                client.getText();
+                fail("Expected '" + EPLiteException.class.getName()
+                        + "' to be thrown");
+            } catch (EPLiteException e) {
+                assertTrue(e.getMessage().contains("out of step"));
+            }
+
+            client.connect();
+            assertEquals(2, client.getRevision());
+            assertEquals("mine other\n", client.getText().toString());
+            assertEquals(3, client.submitChanges(
+                    Changeset.diff("mine other\n", "mine other!\n")));
+            assertEquals("mine other!\n", server.getText());
+
+            client.close();
+            client.connect();
+            assertEquals("mine other!\n", client.getText().toString());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * A listener which throws neither disconnects the client nor keeps the
+     * other listeners from being notified.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void failing_listeners_are_isolated() throws Exception {
+        RealtimeStandInServer server = new RealtimeStandInServer();
+        PadRealtimeClient client = new PadRealtimeClient(server.getUrl(),
+                "pad");
+        try {
+            final BlockingQueue<Long> received = new LinkedBlockingQueue<>();
+            client.addListener(new PadRealtimeClient.Listener() {
+                @Override
+                public void newChanges(final String padId, final long rev,
+                        final Changeset changeset, final String author) {
+                    throw new IllegalStateException("failing listener");
+                }
+
+                @Override
+                public void disconnected(final String padId,
+                        final RuntimeException reason) {
+                }
+            });
+            client.addListener(new PadRealtimeClient.Listener() {
+                @Override
+                public void newChanges(final String padId, final long rev,
+                        final Changeset changeset, final String author) {
+                    received.add(rev);
+                }
+
+                @Override
+                public void disconnected(final String padId,
+                        final RuntimeException reason) {
+                }
+            });
+            client.connect();
+
+            server.pushChanges(Changeset.diff("\n", "hello\n"), "a.other");
+            assertEquals(Long.valueOf(1), received.poll(10, TimeUnit.SECONDS));
+            assertEquals(1, client.getListenerFailureCount());
+            assertEquals(2, client.submitChanges(
+                    Changeset.diff("hello\n", "hello world\n")));
+            assertEquals("hello world\n", server.getText());
+        } finally {
+            client.close();
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+/**
+ * The Class PadWatcherTest.
+ */
+public class PadWatcherTest {
+
+    /** The getLastEdited request. */
+    private final HttpRequest getLastEdited = HttpRequest.request()
+            .withMethod("GET").withPath("/api/1.2.13/getLastEdited");
+
+    /**
+     * Responds to getLastEdited.
+     *
+     * @param mockServer the mock server
+     * @param lastEdited the time of the last edit
+     */
+    private void lastEdited(final ClientAndServer mockServer,
+            final long lastEdited) {
+        mockServer.when(this.getLastEdited)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":{\"lastEdited\":" + lastEdited
+                                + "}}"));
+    }
+
+    /**
+     * Idle pads back off and edits are reported.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void idle_pads_back_off_and_edits_are_reported() throws Exception {
+        ClientAndServer mockServer = startClientAndServer(9001);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        PadWatcher watcher = new PadWatcher(
+                new EPLiteClient("http://localhost:9001", "apikey"), executor,
+                20, 80);
+        try {
+            lastEdited(mockServer, 100);
+            mockServer.when(HttpRequest.request().withMethod("GET")
+                    .withPath("/api/1.2.13/getRevisionsCount"))
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":{\"revisions\":7}}"));
+            final CountDownLatch changed = new CountDownLatch(1);
+            final long[] event = new long[2];
+            watcher.addListener(new PadWatcher.Listener() {
+                @Override
+                public void padChanged(final String padId,
+                        final long lastEdited, final long revision) {
+                    throw new IllegalStateException("failing listener");
+                }
+            });
+            watcher.addListener(new PadWatcher.Listener() {
+                @Override
+                public void padChanged(final String padId,
+                        final long lastEdited, final long revision) {
+                    event[0] = lastEdited;
+                    event[1] = revision;
+                    changed.countDown();
+                }
+            });
+            watcher.watch("pad");
+            watcher.start();
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (watcher.getInterval("pad") < 80
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(80, watcher.getInterval("pad"));
+            assertEquals(0, watcher.getChangeCount());
+
+            mockServer.clear(this.getLastEdited);
+            lastEdited(mockServer, 200);
+            assertTrue(changed.await(10, TimeUnit.SECONDS));
+            assertEquals(200, event[0]);
+            assertEquals(7, event[1]);
+            assertEquals(1, watcher.getChangeCount());
+            assertTrue(watcher.getFailureCount() >= 1);
+        } finally {
+            watcher.close();
+            executor.shutdownNow();
+            mockServer.stop();
+        }
+    }
+
+    /**
+     * An edit whose revision count cannot be read is reported by the next
+     * poll.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void edits_are_reported_after_a_failed_probe() throws Exception {
+        ClientAndServer mockServer = startClientAndServer(9001);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        PadWatcher watcher = new PadWatcher(
+                new EPLiteClient("http://localhost:9001", "apikey"), executor,
+                20, 80);
+        try {
+            mockServer.when(this.getLastEdited, Times.once())
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":{\"lastEdited\":100}}"));
+            lastEdited(mockServer, 200);
+            HttpRequest getRevisionsCount = HttpRequest.request()
+                    .withMethod("GET")
+                    .withPath("/api/1.2.13/getRevisionsCount");
+            mockServer.when(getRevisionsCount, Times.once())
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":1,\"message\":\"failed\","
+                                    + "\"data\":null}"));
+            mockServer.when(getRevisionsCount)
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":{\"revisions\":7}}"));
+            final CountDownLatch changed = new CountDownLatch(1);
+            final long[] event = new long[2];
+            watcher.addListener(new PadWatcher.Listener() {
+                @Override
+                public void padChanged(final String padId,
+                        final long lastEdited, final long revision) {
+                    event[0] = lastEdited;
+                    event[1] = revision;
+                    changed.countDown();
+                }
+            });
+            watcher.watch("pad");
+            watcher.start();
+
+            assertTrue(changed.await(10, TimeUnit.SECONDS));
+            assertEquals(200, event[0]);
+            assertEquals(7, event[1]);
+            assertEquals(1, watcher.getChangeCount());
+            assertEquals(1, watcher.getFailureCount());
+        } finally {
+            watcher.close();
+            executor.shutdownNow();
+            mockServer.stop();
+        }
+    }
+}
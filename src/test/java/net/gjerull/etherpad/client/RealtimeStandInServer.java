@@ -0,0 +1,332 @@
+package net.gjerull.etherpad.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.simple.JSONValue;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A stand-in for the realtime server of Etherpad, for tests. It speaks
+ * Engine.IO 3 over polling and enough of the collaboration protocol for one
+ * plain text pad: CLIENT_READY, USER_CHANGES, ACCEPT_COMMIT and
+ * NEW_CHANGES. Changesets of other authors are pushed with
+ * {@link #pushChanges(Changeset, String)}, or made to arrive while a
+ * client's changeset is being committed with
+ * {@link #interleaveChanges(Changeset, Changeset, String)}.
+ */
+final class RealtimeStandInServer implements HttpHandler {
+
+    /** The server. */
+    private final HttpServer server;
+
+    /** The executor of the server. */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /** The outgoing packets of each session, by sid. */
+    private final Map<String, BlockingQueue<String>> sessions =
+            new ConcurrentHashMap<>();
+
+    /** The session ids. */
+    private final AtomicInteger nextSid = new AtomicInteger();
+
+    /** The text of the pad. Guarded by this. */
+    private String text = "\n";
+
+    /** The revision of the pad. Guarded by this. */
+    private long rev;
+
+    /** The change applied before the next commit, or null. Guarded by this. */
+    private Changeset interleaved;
+
+    /** The next client changeset, rebased on the interleaved change. */
+    private Changeset rebased;
+
+    /** The author of the interleaved change. */
+    private String interleavedAuthor;
+
+    /**
+     * Starts a server on a free port.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    RealtimeStandInServer() throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0),
+                0);
+        this.server.createContext("/socket.io/", this);
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    /**
+     * Gets the url of the server.
+     *
+     * @return the url
+     */
+    String getUrl() {
+        return "http://localhost:" + this.server.getAddress().getPort();
+    }
+
+    /**
+     * Gets the text of the pad.
+     *
+     * @return the text
+     */
+    synchronized String getText() {
+        return this.text;
+    }
+
+    /**
+     * Applies a changeset of another author and sends it to all clients.
+     *
+     * @param changeset the changeset
+     * @param author    the author
+     */
+    synchronized void pushChanges(final Changeset changeset,
+            final String author) {
+        this.text = changeset.apply(this.text);
+        this.rev++;
+        String packet = newChanges(changeset, author);
+        for (BlockingQueue<String> queue : this.sessions.values()) {
+            queue.add(packet);
+        }
+    }
+
+    /**
+     * Makes a change of another author arrive while the next changeset of a
+     * client is committed. The stand-in cannot rebase, so the test gives the
+     * client's changeset as rebased on the other author's change.
+     *
+     * @param changeset the other author's changeset
+     * @param rebased   the client's next changeset, rebased
+     * @param author    the other author
+     */
+    synchronized void interleaveChanges(final Changeset changeset,
+            final Changeset rebased, final String author) {
+        this.interleaved = changeset;
+        this.rebased = rebased;
+        this.interleavedAuthor = author;
+    }
+
+    /**
+     * Stops the server.
+     */
+    void stop() {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public void handle(final HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getQuery();
+        String sid = null;
+        for (String param : query.split("&")) {
+            if (param.startsWith("sid=")) {
+                sid = param.substring(4);
+            }
+        }
+        String response;
+        if (sid == null) {
+            sid = "sid" + this.nextSid.incrementAndGet();
+            this.sessions.put(sid, new LinkedBlockingQueue<String>());
+            response = encode(Arrays.asList("0{\"sid\":\"" + sid
+                    + "\",\"upgrades\":[],\"pingInterval\":25000,"
+                    + "\"pingTimeout\":5000}", "40"));
+        } else if ("POST".equals(exchange.getRequestMethod())) {
+            for (String packet : EngineIoClient.decode(read(exchange))) {
+                receive(sid, packet);
+            }
+            response = "ok";
+        } else {
+            response = encode(poll(sid));
+        }
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Waits briefly for the outgoing packets of a session.
+     *
+     * @param sid the session id
+     * @return the packets, or a noop packet
+     */
+    private List<String> poll(final String sid) {
+        BlockingQueue<String> queue = this.sessions.get(sid);
+        List<String> packets = new ArrayList<>();
+        if (queue == null) {
+            packets.add("1");
+            return packets;
+        }
+        try {
+            String first = queue.poll(500, TimeUnit.MILLISECONDS);
+            if (first == null) {
+                packets.add("6");
+                return packets;
+            }
+            packets.add(first);
+        } catch (InterruptedException e) {
+            packets.add("6");
+            return packets;
+        }
+        queue.drainTo(packets);
+        return packets;
+    }
+
+    /**
+     * Handles a packet from a client.
+     *
+     * @param sid    the session id
+     * @param packet the packet
+     */
+    private synchronized void receive(final String sid, final String packet) {
+        BlockingQueue<String> queue = this.sessions.get(sid);
+        if (packet.equals("2")) {
+            queue.add("3");
+        } else if (packet.equals("1")) {
+            this.sessions.remove(sid);
+        } else if (packet.startsWith("42")) {
+            Map message = (Map) ((List) JSONValue.parse(packet.substring(2)))
+                    .get(1);
+            if ("CLIENT_READY".equals(message.get("type"))) {
+                queue.add(clientVars());
+            } else if ("COLLABROOM".equals(message.get("type"))) {
+                Map data = (Map) message.get("data");
+                Changeset changeset = Changeset
+                        .parse((String) data.get("changeset"));
+                if (this.interleaved != null) {
+                    pushChanges(this.interleaved, this.interleavedAuthor);
+                    changeset = this.rebased;
+                    this.interleaved = null;
+                }
+                this.text = changeset.apply(this.text);
+                this.rev++;
+                String newChanges = newChanges(changeset, "a.client");
+                for (Map.Entry<String, BlockingQueue<String>> session
+                        : this.sessions.entrySet()) {
+                    session.getValue().add(session.getKey().equals(sid)
+                            ? message("ACCEPT_COMMIT", this.rev, null, null)
+                            : newChanges);
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the CLIENT_VARS packet.
+     *
+     * @return the packet
+     */
+    private String clientVars() {
+        String insert = Changeset.builder(0).insert(this.text).build()
+                .toString();
+        String header = "Z:0>" + Integer.toString(this.text.length(), 36);
+        Map<String, Object> initial = new HashMap<>();
+        initial.put("text", this.text);
+        initial.put("attribs",
+                insert.substring(header.length(), insert.indexOf('$')));
+        Map<String, Object> vars = new HashMap<>();
+        vars.put("initialAttributedText", initial);
+        vars.put("rev", this.rev);
+        vars.put("apool", new AttributePool().toMap());
+        Map<String, Object> data = new HashMap<>();
+        data.put("collab_client_vars", vars);
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "CLIENT_VARS");
+        message.put("data", data);
+        return "42" + JSONValue.toJSONString(Arrays.asList("message",
+                message));
+    }
+
+    /**
+     * Builds a NEW_CHANGES packet for the current revision.
+     *
+     * @param changeset the changeset
+     * @param author    the author
+     * @return the packet
+     */
+    private String newChanges(final Changeset changeset, final String author) {
+        return message("NEW_CHANGES", this.rev, changeset, author);
+    }
+
+    /**
+     * Builds a COLLABROOM packet.
+     *
+     * @param type      the message type
+     * @param newRev    the revision
+     * @param changeset the changeset, or null
+     * @param author    the author, or null
+     * @return the packet
+     */
+    private static String message(final String type, final long newRev,
+            final Changeset changeset, final String author) {
+        Map<String, Object> data = new HashMap<>();
+        data.put("type", type);
+        data.put("newRev", newRev);
+        if (changeset != null) {
+            data.put("changeset", changeset.toString());
+            data.put("author", author);
+            data.put("apool", new AttributePool().toMap());
+        }
+        Map<String, Object> message = new HashMap<>();
+        message.put("type", "COLLABROOM");
+        message.put("data", data);
+        return "42" + JSONValue.toJSONString(Arrays.asList("message",
+                message));
+    }
+
+    /**
+     * Encodes packets into a text payload.
+     *
+     * @param packets the packets
+     * @return the payload
+     */
+    private static String encode(final List<String> packets) {
+        StringBuilder payload = new StringBuilder();
+        for (String packet : packets) {
+            payload.append(packet.length()).append(':').append(packet);
+        }
+        return payload.toString();
+    }
+
+    /**
+     * Reads the body of a request.
+     *
+     * @param exchange the exchange
+     * @return the body
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private static String read(final HttpExchange exchange)
+            throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,148 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class ReconcilerTest.
+ */
+public class ReconcilerTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The executor. */
+    private ExecutorService executor;
+
+    /**
+     * Sets up a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * Only the differences to the desired state are applied.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void only_differences_are_applied() throws Exception {
+        respond("listAllGroups", "{\"groupIDs\":[\"g.1\"]}");
+        respond("listPads", "{\"padIDs\":[\"g.1$keep\",\"g.1$old\"]}");
+        respond("getPublicStatus", "{\"publicStatus\":false}");
+        respond("isPasswordProtected", "{\"isPasswordProtected\":false}");
+        respond("createGroupPad", "{\"padID\":\"g.1$new\"}");
+        respond("setPublicStatus", "null");
+        respond("setPassword", "null");
+        respond("deletePad", "null");
+
+        Reconciler.DesiredState state = new Reconciler.DesiredState()
+                .group("g.1").pad("g.1", "keep", true, null)
+                .pad("g.1", "new", false, "secret")
+                .pad("g.2", "other", false, null);
+        Reconciler.Result result = new Reconciler(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor).reconcile(state);
+
+        assertEquals(new HashSet<>(Arrays.asList("setPublicStatus g.1$keep",
+                "createGroupPad g.1$new", "setPassword g.1$new",
+                "deletePad g.1$old")),
+                new HashSet<>(result.getOperations()));
+        assertEquals(4, result.getOperations().size());
+        assertTrue(result.getFailures().containsKey("g.2$other"));
+    }
+
+    /**
+     * A state which already matches issues no calls, and a protected pad
+     * whose password cannot be compared is reported.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void matching_state_issues_no_calls() throws Exception {
+        respond("listAllGroups", "{\"groupIDs\":[\"g.1\"]}");
+        respond("listPads", "{\"padIDs\":[\"g.1$open\",\"g.1$locked\"]}");
+        this.mockServer.when(HttpRequest.request()
+                .withPath("/api/1.2.13/getPublicStatus")
+                .withQueryStringParameter("padID", "g.1$open"))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":{\"publicStatus\":true}}"));
+        respond("getPublicStatus", "{\"publicStatus\":false}");
+        this.mockServer.when(HttpRequest.request()
+                .withPath("/api/1.2.13/isPasswordProtected")
+                .withQueryStringParameter("padID", "g.1$locked"))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":{\"isPasswordProtected\":true}}"));
+        respond("isPasswordProtected", "{\"isPasswordProtected\":false}");
+        respond("setPassword", "null");
+        EPLiteClient client = new EPLiteClient("http://localhost:9001",
+                "apikey");
+
+        Reconciler.Result result = new Reconciler(client, this.executor)
+                .reconcile(new Reconciler.DesiredState().group("g.1")
+                        .pad("g.1", "open", true, null)
+                        .pad("g.1", "locked", false, "new secret"));
+
+        assertTrue(result.getOperations().isEmpty());
+        assertTrue(result.getFailures().isEmpty());
+        assertEquals(Arrays.asList("g.1$locked"), result.getUnverified());
+        for (String method : Arrays.asList("createGroupPad",
+                "setPublicStatus", "setPassword", "deletePad")) {
+            this.mockServer.verify(HttpRequest.request()
+                    .withPath("/api/1.2.13/" + method),
+                    VerificationTimes.exactly(0));
+        }
+
+        result = new Reconciler(client, this.executor)
+                .reconcile(new Reconciler.DesiredState().group("g.1")
+                        .pad("g.1", "open", true, null)
+                        .pad("g.1", "locked", false, "new secret")
+                        .alwaysSetPasswords());
+
+        assertEquals(Arrays.asList("setPassword g.1$locked"),
+                result.getOperations());
+        assertTrue(result.getUnverified().isEmpty());
+    }
+
+    /**
+     * Makes the mock server answer an API method.
+     *
+     * @param method the method
+     * @param data   the data of the response
+     */
+    private void respond(final String method, final String data) {
+        this.mockServer.when(HttpRequest.request()
+                .withPath("/api/1.2.13/" + method))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":" + data + "}"));
+    }
+}
@@ -0,0 +1,142 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * The Class RequestCoalescerTest.
+ */
+public class RequestCoalescerTest {
+
+    /**
+     * Concurrent identical requests share one round trip.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void concurrent_identical_requests_share_one_round_trip()
+            throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger sent = new AtomicInteger();
+        final Request slow = new Request() {
+            @Override
+            public String send() throws Exception {
+                sent.incrementAndGet();
+                release.await();
+                return "{\"code\":0}";
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return coalescer.coalesce("getPublicStatus?padID=x",
+                                slow).send();
+                    }
+                }));
+            }
+            while (coalescer.getRequestCount() < 8) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                assertEquals("{\"code\":0}", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(1, sent.get());
+        assertEquals(1, coalescer.getExecutedCount());
+        assertEquals(7, coalescer.getCoalescedCount());
+    }
+
+    /**
+     * Different keys are not coalesced.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void sequential_and_different_requests_are_not_coalesced()
+            throws Exception {
+        RequestCoalescer coalescer = new RequestCoalescer();
+        Request ok = new Request() {
+            @Override
+            public String send() {
+                return "ok";
+            }
+        };
+
+        coalescer.coalesce("a", ok).send();
+        coalescer.coalesce("a", ok).send();
+        coalescer.coalesce("b", ok).send();
+
+        assertEquals(3, coalescer.getExecutedCount());
+        assertEquals(0, coalescer.getCoalescedCount());
+    }
+
+    /**
+     * Errors are passed on to every waiting caller.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void errors_are_passed_on_to_waiting_callers() throws Exception {
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Request failing = new Request() {
+            @Override
+            public String send() throws Exception {
+                release.await();
+                throw new java.io.IOException("connection refused");
+            }
+        };
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        return coalescer.coalesce("padUsersCount", failing)
+                                .send();
+                    }
+                }));
+            }
+            while (coalescer.getRequestCount() < 2) {
+                Thread.sleep(5);
+            }
+            release.countDown();
+            for (Future<String> result : results) {
+                try {
+                    result.get(5, TimeUnit.SECONDS);
+                    fail("Expected the request to fail");
+                } catch (ExecutionException e) {
+                    assertEquals("connection refused",
+                            e.getCause().getMessage());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
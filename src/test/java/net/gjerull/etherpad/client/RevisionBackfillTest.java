@@ -0,0 +1,116 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+/**
+ * The Class RevisionBackfillTest.
+ */
+public class RevisionBackfillTest {
+
+    /** The temporary folder. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Responds to a GET request of a pad.
+     *
+     * @param mockServer the mock server
+     * @param method     the API method
+     * @param padId      the pad's id string
+     * @param rev        the rev parameter, or null
+     * @param body       the response body
+     */
+    private static void respond(final ClientAndServer mockServer,
+            final String method, final String padId, final String rev,
+            final String body) {
+        HttpRequest request = HttpRequest.request().withMethod("GET")
+                .withPath("/api/1.2.13/" + method)
+                .withQueryStringParameter("padID", padId);
+        if (rev != null) {
+            request = request.withQueryStringParameter("rev", rev);
+        }
+        mockServer.when(request).respond(
+                HttpResponse.response().withStatusCode(200).withBody(body));
+    }
+
+    /**
+     * Serves a pad whose every revision inserts a letter at the start.
+     *
+     * @param mockServer the mock server
+     * @param padId      the pad's id string
+     * @param head       the latest revision
+     */
+    private static void servePad(final ClientAndServer mockServer,
+            final String padId, final int head) {
+        respond(mockServer, "getRevisionsCount", padId, null,
+                "{\"code\":0,\"message\":\"ok\",\"data\":{\"revisions\":"
+                        + head + "}}");
+        for (int rev = 0; rev <= head; rev++) {
+            respond(mockServer, "getRevisionChangeset", padId,
+                    String.valueOf(rev),
+                    "{\"code\":0,\"message\":\"ok\",\"data\":\""
+                            + Changeset.builder(rev + 1)
+                                    .insert(String.valueOf((char) ('a' + rev)))
+                                    .build() + "\"}");
+        }
+    }
+
+    /**
+     * Pads are fetched in order, resuming from the stored revisions, and a
+     * failing pad does not stop the others.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void pads_are_backfilled_in_order() throws Exception {
+        ClientAndServer mockServer = startClientAndServer(9001);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        RevisionHistoryStore store = new RevisionHistoryStore(
+                this.folder.newFolder(), 4, 10);
+        try {
+            servePad(mockServer, "one", 11);
+            servePad(mockServer, "two", 4);
+            respond(mockServer, "getRevisionsCount", "gone", null,
+                    "{\"code\":1,\"message\":\"padID does not exist\","
+                            + "\"data\":null}");
+            store.append("two", 0, "Z:1>1+1$a");
+            store.append("two", 1, "Z:2>1+1$b");
+            EPLiteClient client = new EPLiteClient("http://localhost:9001",
+                    "apikey");
+            RevisionBackfill backfill = new RevisionBackfill(client, store,
+                    executor, 3, 2);
+
+            long appended = backfill.backfill(
+                    Arrays.asList("one", "gone", "two"));
+            // every window is appended by the time backfill() returns
+            assertEquals(15, backfill.getRevisionsAppended());
+            assertEquals(15, appended);
+            assertEquals(12, store.getRevisionCount("one"));
+            assertEquals(5, store.getRevisionCount("two"));
+            assertEquals("lkjihgfedcba\n", store.getText("one", 11));
+            assertEquals("edcba\n", store.getText("two", 4));
+            assertEquals(Arrays.asList("gone"), Arrays.asList(
+                    backfill.getFailures().keySet().toArray()));
+            assertTrue(backfill.getRevisionsPerSecond() > 0);
+
+            assertEquals(0, backfill.backfill(Arrays.asList("one", "two")));
+        } finally {
+            store.close();
+            executor.shutdownNow();
+            mockServer.stop();
+        }
+    }
+}
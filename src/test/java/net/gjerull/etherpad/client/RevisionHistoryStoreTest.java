@@ -0,0 +1,142 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+
+/**
+ * The Class RevisionHistoryStoreTest.
+ */
+public class RevisionHistoryStoreTest {
+
+    /** The temporary folder. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Builds the texts of a pad history, starting with the text of a new pad.
+     *
+     * @param revisions the number of revisions
+     * @return the texts, by revision
+     */
+    private static List<String> texts(final int revisions) {
+        List<String> texts = new ArrayList<>();
+        String text = "\n";
+        for (int rev = 0; rev < revisions; rev++) {
+            text = "revision " + rev + "\n" + text;
+            texts.add(text);
+        }
+        return texts;
+    }
+
+    /**
+     * Appends a history to the store.
+     *
+     * @param store the store
+     * @param texts the texts, by revision
+     * @throws Exception the exception
+     */
+    private static void append(final RevisionHistoryStore store,
+            final List<String> texts) throws Exception {
+        String previous = "\n";
+        for (int rev = 0; rev < texts.size(); rev++) {
+            store.append("g.x$pad", rev,
+                    Changeset.diff(previous, texts.get(rev)).toString());
+            previous = texts.get(rev);
+        }
+    }
+
+    /**
+     * Every revision can be rebuilt after reopening the store.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void every_revision_is_rebuilt_after_reopening() throws Exception {
+        File directory = this.folder.newFolder();
+        List<String> texts = texts(20);
+        RevisionHistoryStore store = new RevisionHistoryStore(directory, 4,
+                10);
+        append(store, texts);
+        store.close();
+
+        store = new RevisionHistoryStore(directory, 7, 10);
+        assertEquals(20, store.getRevisionCount("g.x$pad"));
+        for (int rev = 19; rev >= 0; rev--) {
+            assertEquals(texts.get(rev), store.getText("g.x$pad", rev));
+        }
+        store.append("g.x$pad", 20, Changeset.diff(texts.get(19),
+                texts.get(19) + "more\n").toString());
+        assertEquals(texts.get(19) + "more\n", store.getText("g.x$pad", 20));
+        store.close();
+    }
+
+    /**
+     * A torn record at the end of the file is dropped.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void a_torn_record_is_dropped() throws Exception {
+        File directory = this.folder.newFolder();
+        List<String> texts = texts(6);
+        RevisionHistoryStore store = new RevisionHistoryStore(directory, 4,
+                10);
+        append(store, texts);
+        store.close();
+        try (FileOutputStream out = new FileOutputStream(new File(directory,
+                RevisionHistoryStore.fileName("g.x$pad")), true)) {
+            out.write(new byte[] { 1, 0, 0, 0, 6, 0, 0, 0, 9, 'Z', ':' });
+        }
+
+        store = new RevisionHistoryStore(directory, 4, 10);
+        assertEquals(6, store.getRevisionCount("g.x$pad"));
+        assertEquals(texts.get(5), store.getText("g.x$pad", 5));
+        store.close();
+    }
+
+    /**
+     * Missing revisions are fetched from the server.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void missing_revisions_are_fetched() throws Exception {
+        ClientAndServer mockServer = startClientAndServer(9001);
+        RevisionHistoryStore store = new RevisionHistoryStore(
+                this.folder.newFolder(), 4, 10);
+        try {
+            String[] changesets = { "Z:1>3+3$ab\n", "Z:4>1=2+1$c" };
+            for (int rev = 0; rev < changesets.length; rev++) {
+                mockServer.when(HttpRequest.request().withMethod("GET")
+                        .withPath("/api/1.2.13/getRevisionChangeset")
+                        .withQueryStringParameter("rev", String.valueOf(rev)))
+                        .respond(HttpResponse.response().withStatusCode(200)
+                                .withBody("{\"code\":0,\"message\":\"ok\","
+                                        + "\"data\":\""
+                                        + changesets[rev].replace("\n", "\\n")
+                                        + "\"}"));
+            }
+            EPLiteClient client = new EPLiteClient("http://localhost:9001",
+                    "apikey");
+
+            assertEquals("abc\n\n", store.getText(client, "pad", 1));
+            assertEquals("ab\n\n", store.getText("pad", 0));
+            assertEquals(changesets[1], store.getChangeset("pad", 1));
+        } finally {
+            store.close();
+            mockServer.stop();
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.StringBody;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class SessionManagerTest.
+ */
+public class SessionManagerTest {
+
+    /** The Constant GROUP_SESSIONS of the mock server. */
+    private static final String GROUP_SESSIONS = "{"
+            + "\"s.expired\":{\"groupID\":\"g.1\",\"authorID\":\"a.1\","
+            + "\"validUntil\":1312201246},"
+            + "\"s.valid\":{\"groupID\":\"g.1\",\"authorID\":\"a.1\","
+            + "\"validUntil\":4102444800}}";
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The executor. */
+    private ExecutorService executor;
+
+    /** The session manager. */
+    private SessionManager sessions;
+
+    /**
+     * Sets up a session manager against a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.executor = Executors.newFixedThreadPool(4);
+        this.sessions = new SessionManager(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, 60000, 10);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.sessions.close();
+        this.executor.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * Session info is fetched once while the session is valid.
+     */
+    @Test
+    public void session_info_is_cached() {
+        respond("getSessionInfo", "{\"groupID\":\"g.1\",\"authorID\":\"a.1\","
+                + "\"validUntil\":4102444800}");
+        assertTrue(this.sessions.isValid("s.valid"));
+        assertTrue(this.sessions.isValid("s.valid"));
+        this.mockServer.verify(request("getSessionInfo"),
+                VerificationTimes.exactly(1));
+        assertEquals(1, this.sessions.getHitCount());
+    }
+
+    /**
+     * Session info used near the end of its age is refreshed once in the
+     * background, while the cached info is still served.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void session_info_is_refreshed_ahead() throws Exception {
+        respond("getSessionInfo", "{\"groupID\":\"g.1\",\"authorID\":\"a.1\","
+                + "\"validUntil\":4102444800}");
+        SessionManager manager = new SessionManager(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, 2000, 10);
+        manager.getSessionInfo("s.valid");
+        Thread.sleep(1600);
+
+        manager.getSessionInfo("s.valid");
+        manager.getSessionInfo("s.valid");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.getRefreshCount() < 1
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        assertEquals(1, manager.getRefreshCount());
+        assertEquals(1, manager.getMissCount());
+        assertEquals(2, manager.getHitCount());
+        this.mockServer.verify(request("getSessionInfo"),
+                VerificationTimes.exactly(2));
+
+        // the refreshed entry is young again
+        manager.getSessionInfo("s.valid");
+        Thread.sleep(200);
+        assertEquals(1, manager.getRefreshCount());
+        manager.close();
+    }
+
+    /**
+     * The sweeper deletes at most deletesPerSecond sessions a second.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void sweeps_are_rate_limited() throws Exception {
+        StringBuilder expired = new StringBuilder("{");
+        for (int i = 0; i < 5; i++) {
+            expired.append((i > 0) ? "," : "").append("\"s.").append(i)
+                    .append("\":{\"groupID\":\"g.1\",\"authorID\":\"a.1\","
+                            + "\"validUntil\":1312201246}");
+        }
+        respond("listSessionsOfGroup", expired.append("}").toString());
+        respond("deleteSession", "null");
+        SessionManager manager = new SessionManager(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.executor, 60000, 2);
+        manager.addGroup("g.1");
+
+        long start = System.currentTimeMillis();
+        assertEquals(5, manager.sweep());
+        // three batches, each started a second after the previous one
+        assertTrue(System.currentTimeMillis() - start >= 2000);
+        assertEquals(5, manager.getSweptCount());
+        this.mockServer.verify(request("deleteSession"),
+                VerificationTimes.exactly(5));
+        manager.close();
+    }
+
+    /**
+     * Expired sessions of the groups and authors seen are deleted, also
+     * when the list of another group fails.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void expired_sessions_are_swept() throws Exception {
+        this.mockServer.when(request("listSessionsOfGroup")
+                .withBody(StringBody.subString("groupID=g.missing")))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":1,\"message\":"
+                                + "\"groupID does not exist\",\"data\":null}"));
+        respond("listSessionsOfGroup", GROUP_SESSIONS);
+        respond("listSessionsOfAuthor", GROUP_SESSIONS);
+        respond("deleteSession", "null");
+        this.sessions.addGroup("g.missing");
+        this.sessions.addGroup("g.1");
+        this.sessions.addAuthor("a.1");
+
+        assertEquals(1, this.sessions.sweep());
+        this.mockServer.verify(request("deleteSession")
+                .withBody(StringBody.subString("sessionID=s.expired")),
+                VerificationTimes.exactly(1));
+        this.mockServer.verify(request("deleteSession"),
+                VerificationTimes.exactly(1));
+    }
+
+    /**
+     * A group or author which never had sessions is listed as null, which
+     * neither fails the sweep nor ends the sweeper.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void null_session_lists_are_empty() throws Exception {
+        respond("listSessionsOfGroup", "null");
+        respond("listSessionsOfAuthor", GROUP_SESSIONS);
+        respond("deleteSession", "null");
+        this.sessions.addGroup("g.fresh");
+        this.sessions.addAuthor("a.1");
+
+        assertEquals(1, this.sessions.sweep());
+
+        this.sessions.startSweeper(50);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (this.sessions.getSweptCount() < 3
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(this.sessions.getSweptCount() >= 3);
+    }
+
+    /**
+     * Gets a request to an API method.
+     *
+     * @param method the method
+     * @return the request
+     */
+    private HttpRequest request(final String method) {
+        return HttpRequest.request().withPath("/api/1.2.13/" + method);
+    }
+
+    /**
+     * Makes the mock server answer an API method.
+     *
+     * @param method the method
+     * @param data   the data of the response
+     */
+    private void respond(final String method, final String data) {
+        this.mockServer.when(request(method))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":" + data + "}"));
+    }
+}
@@ -0,0 +1,115 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class SessionProvisionerTest.
+ */
+public class SessionProvisionerTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The executor. */
+    private ExecutorService executor;
+
+    /**
+     * Sets up a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.executor = Executors.newFixedThreadPool(4);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.executor.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * A repeated login only creates the session and the pad.
+     */
+    @Test
+    public void mappings_are_cached_between_logins() {
+        respond("createGroupIfNotExistsFor",
+                "{\"groupID\":\"g.s8oes9dhwrvt0zif\"}");
+        respond("createAuthorIfNotExistsFor",
+                "{\"authorID\":\"a.s8oes9dhwrvt0zif\"}");
+        respond("createSession",
+                "{\"sessionID\":\"s.s8oes9dhwrvt0zif\"}");
+        respond("createGroupPad",
+                "{\"padID\":\"g.s8oes9dhwrvt0zif$notes\"}");
+        EPLiteClient client = new EPLiteClient("http://localhost:9001",
+                "apikey");
+        SessionProvisioner provisioner = new SessionProvisioner(client,
+                this.executor);
+
+        Map ids = provisioner.provisionSession("course", "user", null,
+                1312201246L, "notes");
+        assertEquals("g.s8oes9dhwrvt0zif", ids.get("groupID"));
+        assertEquals("a.s8oes9dhwrvt0zif", ids.get("authorID"));
+        assertEquals("s.s8oes9dhwrvt0zif", ids.get("sessionID"));
+        assertEquals("g.s8oes9dhwrvt0zif$notes", ids.get("padID"));
+
+        ids = provisioner.provisionSession("course", "user", null,
+                1312201246L);
+        assertEquals("s.s8oes9dhwrvt0zif", ids.get("sessionID"));
+        this.mockServer.verify(request("createGroupIfNotExistsFor"),
+                VerificationTimes.exactly(1));
+        this.mockServer.verify(request("createAuthorIfNotExistsFor"),
+                VerificationTimes.exactly(1));
+        this.mockServer.verify(request("createSession"),
+                VerificationTimes.exactly(2));
+        assertNull(client.getMappingCache());
+
+        provisioner.invalidateGroup("g.s8oes9dhwrvt0zif");
+        provisioner.provisionSession("course", "user", null, 1312201246L);
+        this.mockServer.verify(request("createGroupIfNotExistsFor"),
+                VerificationTimes.exactly(2));
+        this.mockServer.verify(request("createAuthorIfNotExistsFor"),
+                VerificationTimes.exactly(1));
+    }
+
+    /**
+     * Gets a request to an API method.
+     *
+     * @param method the method
+     * @return the request
+     */
+    private HttpRequest request(final String method) {
+        return HttpRequest.request().withMethod("POST")
+                .withPath("/api/1.2.13/" + method);
+    }
+
+    /**
+     * Makes the mock server answer an API method.
+     *
+     * @param method the method
+     * @param data   the data of the response
+     */
+    private void respond(final String method, final String data) {
+        this.mockServer.when(request(method))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":" + data + "}"));
+    }
+}
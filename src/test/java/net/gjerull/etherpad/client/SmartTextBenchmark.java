@@ -0,0 +1,130 @@
+package net.gjerull.etherpad.client;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks comparing the bytes of text sent by setText with those
+ * {@link SmartTextWriter} transfers for a one line edit of a large pad: the
+ * changeset of a realtime client, or without one setText, preceded by the
+ * download of the current text only if someone else edited the pad since
+ * the writer's last write. The bytes of one operation are
+ * reported as the "bytes" counter.
+ * Not run by the test suite; run like {@link ChangesetBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SmartTextBenchmark {
+
+    /** The number of lines of the pad. */
+    @Param({ "1000", "50000" })
+    private int lines;
+
+    /** The current text. */
+    private String current;
+
+    /** The text with one line edited. */
+    private String edited;
+
+    /**
+     * The bytes sent by one operation.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Wire {
+
+        /** The bytes sent. */
+        public long bytes;
+    }
+
+    /**
+     * Builds the texts.
+     */
+    @Setup
+    public void setUp() {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < this.lines; i++) {
+            text.append("line number ").append(i).append('\n');
+        }
+        this.current = text.toString();
+        this.edited = this.current.replace("line number " + this.lines / 2
+                + "\n", "edited line\n");
+    }
+
+    /**
+     * The payload of setText: the whole text.
+     *
+     * @param wire the byte counter
+     * @return the payload
+     */
+    @Benchmark
+    public byte[] setText(final Wire wire) {
+        byte[] payload = this.edited.getBytes(StandardCharsets.UTF_8);
+        wire.bytes = payload.length;
+        return payload;
+    }
+
+    /**
+     * The payload of a smart set: the changeset of the edit.
+     *
+     * @param wire the byte counter
+     * @return the payload
+     */
+    @Benchmark
+    public byte[] smartSetText(final Wire wire) {
+        byte[] payload = Changeset.diff(this.current, this.edited).toString()
+                .getBytes(StandardCharsets.UTF_8);
+        wire.bytes = payload.length;
+        return payload;
+    }
+
+    /**
+     * The transfer of a smart set without a realtime client, of a pad edited
+     * by someone else since the last write: the current text downloaded
+     * with getText, then the whole text, as the edit is not at the end.
+     * Without an edit by someone else, the text is known and only the
+     * whole text is sent, as by {@link #setText}.
+     *
+     * @param wire the byte counter
+     * @return the payload
+     */
+    @Benchmark
+    public byte[] smartSetTextOverHttp(final Wire wire) {
+        byte[] download = this.current.getBytes(StandardCharsets.UTF_8);
+        byte[] payload = this.edited.getBytes(StandardCharsets.UTF_8);
+        wire.bytes = download.length + payload.length;
+        return payload;
+    }
+
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the arguments
+     * @throws RunnerException the runner exception
+     */
+    public static void main(final String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SmartTextBenchmark.class.getSimpleName()).build())
+                        .run();
+    }
+}
@@ -0,0 +1,159 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.StringBody;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class SmartTextWriterTest.
+ */
+public class SmartTextWriterTest {
+
+    /**
+     * Responds to an API method.
+     *
+     * @param mockServer the mock server
+     * @param method     the HTTP method
+     * @param apiMethod  the API method
+     * @param data       the JSON data
+     */
+    private static void respond(final ClientAndServer mockServer,
+            final String method, final String apiMethod, final String data) {
+        mockServer.when(HttpRequest.request().withMethod(method)
+                .withPath("/api/1.2.13/" + apiMethod))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\",\"data\":"
+                                + data + "}"));
+    }
+
+    /**
+     * Added lines are appended and other changes replace the text. The text
+     * is only downloaded when the pad's revision is not the known one.
+     */
+    @Test
+    public void added_lines_are_appended() {
+        ClientAndServer mockServer = startClientAndServer(9001);
+        try {
+            HttpRequest getRevisionsCount = HttpRequest.request()
+                    .withMethod("GET")
+                    .withPath("/api/1.2.13/getRevisionsCount");
+            mockServer.when(getRevisionsCount, Times.exactly(2))
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":{\"revisions\":1}}"));
+            mockServer.when(getRevisionsCount, Times.once())
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":{\"revisions\":2}}"));
+            respond(mockServer, "GET", "getRevisionsCount",
+                    "{\"revisions\":5}");
+            respond(mockServer, "GET", "getText",
+                    "{\"text\":\"first line\\n\"}");
+            respond(mockServer, "POST", "appendText", "null");
+            respond(mockServer, "POST", "setText", "null");
+            SmartTextWriter writer = new SmartTextWriter(
+                    new EPLiteClient("http://localhost:9001", "apikey"));
+
+            assertEquals(SmartTextWriter.Mutation.UNCHANGED,
+                    writer.setText("pad", "first line"));
+            assertEquals(SmartTextWriter.Mutation.APPEND,
+                    writer.setText("pad", "first line\nsecond\n"));
+            mockServer.verify(HttpRequest.request().withMethod("POST")
+                    .withPath("/api/1.2.13/appendText")
+                    .withBody(StringBody.subString("text=second%0A")),
+                    VerificationTimes.exactly(1));
+            // one download of the current text and the appended line
+            assertEquals(11 + 7, writer.getBytesSent());
+
+            assertEquals(SmartTextWriter.Mutation.REPLACE,
+                    writer.setText("pad", "other\n"));
+            assertEquals(18 + 6, writer.getBytesSent());
+            assertEquals(11 + 18 + 6, writer.getBytesReplaced());
+
+            // edited by someone else since: downloaded again
+            assertEquals(SmartTextWriter.Mutation.UNCHANGED,
+                    writer.setText("pad", "first line\n"));
+            assertEquals(24 + 11, writer.getBytesSent());
+            mockServer.verify(HttpRequest.request().withMethod("GET")
+                    .withPath("/api/1.2.13/getText"),
+                    VerificationTimes.exactly(2));
+        } finally {
+            mockServer.stop();
+        }
+    }
+
+    /**
+     * The current text is read past the client's content cache.
+     */
+    @Test
+    public void the_content_cache_is_bypassed() {
+        ClientAndServer mockServer = startClientAndServer(9001);
+        try {
+            HttpRequest getText = HttpRequest.request().withMethod("GET")
+                    .withPath("/api/1.2.13/getText");
+            mockServer.when(getText, Times.once())
+                    .respond(HttpResponse.response().withStatusCode(200)
+                            .withBody("{\"code\":0,\"message\":\"ok\","
+                                    + "\"data\":{\"text\":\"old\\n\"}}"));
+            respond(mockServer, "GET", "getText",
+                    "{\"text\":\"first\\nsecond\\n\"}");
+            respond(mockServer, "GET", "getRevisionsCount",
+                    "{\"revisions\":5}");
+            respond(mockServer, "POST", "appendText", "null");
+            EPLiteClient client = new EPLiteClient("http://localhost:9001",
+                    "apikey");
+            client.setPadContentCache(new PadContentCache(10, 60000));
+            assertEquals("old\n", client.getText("pad").get("text"));
+            SmartTextWriter writer = new SmartTextWriter(client);
+
+            assertEquals(SmartTextWriter.Mutation.APPEND,
+                    writer.setText("pad", "first\nsecond\nthird\n"));
+            mockServer.verify(HttpRequest.request().withMethod("POST")
+                    .withPath("/api/1.2.13/appendText")
+                    .withBody(StringBody.subString("text=third%0A")),
+                    VerificationTimes.exactly(1));
+        } finally {
+            mockServer.stop();
+        }
+    }
+
+    /**
+     * Realtime clients submit a changeset of the change.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void realtime_clients_submit_changesets() throws Exception {
+        RealtimeStandInServer server = new RealtimeStandInServer();
+        PadRealtimeClient pad = new PadRealtimeClient(server.getUrl(), "pad");
+        try {
+            pad.connect();
+            SmartTextWriter writer = new SmartTextWriter(
+                    new EPLiteClient("http://localhost:9001", "apikey"));
+            writer.setRealtimeClient("pad", pad);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                text.append("line ").append(i).append('\n');
+            }
+            writer.setText("pad", text.toString());
+            long sent = writer.getBytesSent();
+            String edited = text.toString().replace("line 50", "LINE 50");
+
+            assertEquals(SmartTextWriter.Mutation.CHANGESET,
+                    writer.setText("pad", edited));
+            assertEquals(edited, server.getText());
+            assertTrue(writer.getBytesSent() - sent < 30);
+        } finally {
+            pad.close();
+            server.stop();
+        }
+    }
+}
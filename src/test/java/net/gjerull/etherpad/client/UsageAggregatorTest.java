@@ -0,0 +1,155 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class UsageAggregatorTest.
+ */
+public class UsageAggregatorTest {
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The scheduler. */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Sets up a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.scheduler = Executors.newScheduledThreadPool(4);
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.scheduler.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * The users of all pads are counted per group.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void users_are_counted_per_group() throws Exception {
+        respond(HttpRequest.request().withPath("/api/1.2.13/listAllPads"),
+                "{\"padIDs\":[\"g.1$a\",\"g.1$b\",\"g.2$a\",\"public\"]}");
+        respondCount("g.1$a", 2);
+        respondCount("g.1$b", 3);
+        respondCount("g.2$a", 0);
+        respondCount("public", 1);
+        UsageAggregator usage = new UsageAggregator(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.scheduler, 60000, 60000);
+        usage.watchAll();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (usage.getTotalUserCount() < 6
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(5, usage.getUserCount("g.1"));
+        assertEquals(0, usage.getUserCount("g.2"));
+        assertEquals(1, usage.getUserCount(""));
+        assertEquals(6, usage.getTotalUserCount());
+
+        usage.unwatch("g.1$b");
+        assertEquals(2, usage.getUserCount("g.1"));
+        assertEquals(3, usage.getTotalUserCount());
+        usage.close();
+    }
+
+    /**
+     * Pads with users are polled at the active interval, idle pads at the
+     * idle interval, and pads created later are watched by the next listing.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void active_pads_are_polled_more_often() throws Exception {
+        this.mockServer.when(HttpRequest.request()
+                .withPath("/api/1.2.13/listAllPads"), Times.once())
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":{\"padIDs\":"
+                                + "[\"busy\",\"idle\"]}}"));
+        respond(HttpRequest.request().withPath("/api/1.2.13/listAllPads"),
+                "{\"padIDs\":[\"busy\",\"idle\",\"new\"]}");
+        respondCount("busy", 2);
+        respondCount("idle", 0);
+        respondCount("new", 1);
+        UsageAggregator usage = new UsageAggregator(
+                new EPLiteClient("http://localhost:9001", "apikey"),
+                this.scheduler, 50, 60000);
+        usage.watchAll(300);
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (usage.getTotalUserCount() < 3
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(500);
+        usage.close();
+        assertEquals(3, usage.getTotalUserCount());
+        assertEquals(1, usage.getPadUserCount("new"));
+        this.mockServer.verify(padUsersCount("idle"),
+                VerificationTimes.exactly(1));
+        this.mockServer.verify(padUsersCount("busy"),
+                VerificationTimes.atLeast(5));
+        assertTrue(usage.getPollCount() >= 7);
+    }
+
+    /**
+     * Gets a padUsersCount request for a pad.
+     *
+     * @param padId the pad id
+     * @return the request
+     */
+    private HttpRequest padUsersCount(final String padId) {
+        return HttpRequest.request().withPath("/api/1.2.13/padUsersCount")
+                .withQueryStringParameter("padID", padId);
+    }
+
+    /**
+     * Makes the mock server answer padUsersCount for a pad.
+     *
+     * @param padId the pad id
+     * @param count the user count
+     */
+    private void respondCount(final String padId, final int count) {
+        respond(padUsersCount(padId), "{\"padUsersCount\":" + count + "}");
+    }
+
+    /**
+     * Makes the mock server answer a request.
+     *
+     * @param request the request
+     * @param data    the data of the response
+     */
+    private void respond(final HttpRequest request, final String data) {
+        this.mockServer.when(request)
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":" + data + "}"));
+    }
+}
@@ -0,0 +1,295 @@
+package net.gjerull.etherpad.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockserver.integration.ClientAndServer.startClientAndServer;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockserver.integration.ClientAndServer;
+import org.mockserver.matchers.Times;
+import org.mockserver.model.HttpRequest;
+import org.mockserver.model.HttpResponse;
+import org.mockserver.model.StringBody;
+import org.mockserver.verify.VerificationTimes;
+
+/**
+ * The Class WriteJournalTest.
+ */
+public class WriteJournalTest {
+
+    /** The temporary folder. */
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /** The mock server. */
+    private ClientAndServer mockServer;
+
+    /** The scheduler. */
+    private ScheduledExecutorService scheduler;
+
+    /** The client. */
+    private EPLiteClient client;
+
+    /**
+     * Sets up a client against a mock server.
+     */
+    @Before
+    public void setUp() {
+        this.mockServer = startClientAndServer(9001);
+        this.scheduler = Executors.newScheduledThreadPool(4);
+        this.client = new EPLiteClient("http://localhost:9001", "apikey");
+    }
+
+    /**
+     * Tear down.
+     */
+    @After
+    public void tearDown() {
+        this.scheduler.shutdownNow();
+        this.mockServer.stop();
+    }
+
+    /**
+     * Journaled calls are replayed in order.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void calls_are_replayed_in_order() throws Exception {
+        respondOk("createPad");
+        respondOk("setText");
+        respondOk("saveRevision");
+        File file = this.folder.newFile("journal");
+        try (WriteJournal journal = new WriteJournal(this.client, file,
+                this.scheduler)) {
+            journal.createPad("pad");
+            journal.setText("pad", "hello");
+            journal.saveRevision("pad");
+            assertTrue(journal.awaitReplay(10, TimeUnit.SECONDS));
+            assertEquals(3, journal.getReplayedCount());
+        }
+        this.mockServer.verify(request("createPad"), request("setText")
+                .withBody(StringBody.subString("text=hello")),
+                request("saveRevision"));
+    }
+
+    /**
+     * Calls which were not replayed before the journal was closed are
+     * replayed when it is opened again, once Etherpad can be reached.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void pending_calls_survive_an_outage() throws Exception {
+        File file = this.folder.newFile("journal");
+        EPLiteClient unreachable = new EPLiteClient("http://localhost:9002",
+                "apikey");
+        WriteJournal journal = new WriteJournal(unreachable, file,
+                this.scheduler);
+        journal.setText("pad", "one");
+        journal.setText("pad", "two");
+        assertEquals(2, journal.getPendingCount());
+        journal.close();
+
+        respondOk("setText");
+        try (WriteJournal reopened = new WriteJournal(this.client, file,
+                this.scheduler)) {
+            assertTrue(reopened.awaitReplay(10, TimeUnit.SECONDS));
+            assertEquals(2, reopened.getReplayedCount());
+        }
+        this.mockServer.verify(
+                request("setText").withBody(StringBody.subString("text=one")),
+                request("setText").withBody(StringBody.subString("text=two")));
+
+        try (WriteJournal replayed = new WriteJournal(this.client, file,
+                this.scheduler)) {
+            assertEquals(0, replayed.getPendingCount());
+        }
+        this.mockServer.verify(request("setText"),
+                VerificationTimes.exactly(2));
+    }
+
+    /**
+     * A malformed call is dropped, and the pad's later calls are replayed.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void malformed_calls_are_dropped() throws Exception {
+        File file = this.folder.newFile("journal");
+        new WriteJournal(this.client, file, this.scheduler).close();
+        try (DataOutputStream out = new DataOutputStream(
+                new FileOutputStream(file, true))) {
+            writeCall(out, 1, "{\"method\":\"appendChatMessage\",\"args\":"
+                    + "{\"padID\":\"pad\",\"text\":\"hi\","
+                    + "\"authorID\":\"a.1\",\"time\":\"soon\"}}");
+            writeCall(out, 2, "{\"method\":\"setText\",\"args\":"
+                    + "{\"padID\":\"pad\",\"text\":\"after\"}}");
+        }
+
+        respondOk("setText");
+        try (WriteJournal journal = new WriteJournal(this.client, file,
+                this.scheduler)) {
+            assertTrue(journal.awaitReplay(10, TimeUnit.SECONDS));
+            assertEquals(1, journal.getFailedCount());
+            assertEquals(1, journal.getReplayedCount());
+        }
+        this.mockServer.verify(request("setText")
+                .withBody(StringBody.subString("text=after")));
+    }
+
+    /**
+     * A replay the executor rejects is started again by the pad's next call.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void rejected_replays_are_kicked_again() throws Exception {
+        respondOk("setText");
+        RejectingScheduler rejecting = new RejectingScheduler(1, 0);
+        try (WriteJournal journal = new WriteJournal(this.client,
+                this.folder.newFile("journal"), rejecting)) {
+            journal.setText("pad", "one");
+            journal.setText("pad", "two");
+            assertTrue(journal.awaitReplay(10, TimeUnit.SECONDS));
+            assertEquals(2, journal.getReplayedCount());
+        } finally {
+            rejecting.shutdownNow();
+        }
+    }
+
+    /**
+     * A retry the executor rejects is started again by the pad's next call.
+     *
+     * @throws Exception the exception
+     */
+    @Test
+    public void rejected_retries_are_kicked_again() throws Exception {
+        this.mockServer.when(request("setText"), Times.once())
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":1,\"message\":\"busy\","
+                                + "\"data\":null}"));
+        respondOk("setText");
+        RejectingScheduler rejecting = new RejectingScheduler(0, 1);
+        try (WriteJournal journal = new WriteJournal(this.client,
+                this.folder.newFile("journal"), rejecting)) {
+            journal.setText("pad", "one");
+            long deadline = System.currentTimeMillis() + 10000;
+            while (rejecting.rejectSchedules > 0
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            journal.setText("pad", "two");
+            assertTrue(journal.awaitReplay(10, TimeUnit.SECONDS));
+            assertEquals(2, journal.getReplayedCount());
+        } finally {
+            rejecting.shutdownNow();
+        }
+        this.mockServer.verify(
+                request("setText").withBody(StringBody.subString("text=one")),
+                request("setText").withBody(StringBody.subString("text=one")),
+                request("setText").withBody(StringBody.subString("text=two")));
+    }
+
+    /**
+     * Writes a call record to a journal file.
+     *
+     * @param out  the file
+     * @param seq  the sequence number
+     * @param json the call
+     * @throws Exception the exception
+     */
+    private static void writeCall(final DataOutputStream out, final long seq,
+            final String json) throws Exception {
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(1);
+        out.writeLong(seq);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt(MappedPadStore.checksum(ByteBuffer.wrap(payload)));
+    }
+
+    /**
+     * A scheduler rejecting its first tasks.
+     */
+    private static final class RejectingScheduler
+            extends ScheduledThreadPoolExecutor {
+
+        /** The number of immediate tasks still to reject. */
+        private volatile int rejectExecutes;
+
+        /** The number of delayed tasks still to reject. */
+        private volatile int rejectSchedules;
+
+        /**
+         * Instantiates a new rejecting scheduler.
+         *
+         * @param rejectExecutes  the number of immediate tasks to reject
+         * @param rejectSchedules the number of delayed tasks to reject
+         */
+        private RejectingScheduler(final int rejectExecutes,
+                final int rejectSchedules) {
+            super(2);
+            this.rejectExecutes = rejectExecutes;
+            this.rejectSchedules = rejectSchedules;
+        }
+
+        @Override
+        public void execute(final Runnable command) {
+            if (this.rejectExecutes > 0) {
+                this.rejectExecutes--;
+                throw new RejectedExecutionException("rejected");
+            }
+            super.execute(command);
+        }
+
+        @Override
+        public ScheduledFuture<?> schedule(final Runnable command,
+                final long delay, final TimeUnit unit) {
+            if (delay > 0 && this.rejectSchedules > 0) {
+                this.rejectSchedules--;
+                throw new RejectedExecutionException("rejected");
+            }
+            return super.schedule(command, delay, unit);
+        }
+    }
+
+    /**
+     * Gets a request to an API method.
+     *
+     * @param method the method
+     * @return the request
+     */
+    private HttpRequest request(final String method) {
+        return HttpRequest.request().withMethod("POST")
+                .withPath("/api/1.2.13/" + method);
+    }
+
+    /**
+     * Makes the mock server accept an API method.
+     *
+     * @param method the method
+     */
+    private void respondOk(final String method) {
+        this.mockServer.when(request(method))
+                .respond(HttpResponse.response().withStatusCode(200)
+                        .withBody("{\"code\":0,\"message\":\"ok\","
+                                + "\"data\":null}"));
+    }
+}